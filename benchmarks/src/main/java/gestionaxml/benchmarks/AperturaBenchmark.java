@@ -0,0 +1,70 @@
+package gestionaxml.benchmarks;
+
+import gestionaxml.GestionaXML;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Apertura de ficheros Productos con el constructor, leyendo seguido o en
+ * paralelo, con GestionaXML.compartido cuando el fichero ya esta abierto y
+ * desde una instantanea (ver GestionaXML.guardaInstantanea) de una copia del
+ * fichero (estos dos no dependen de paralelo).
+ * @author neowavila
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class AperturaBenchmark
+{
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int numNodos;
+
+    @Param({"false", "true"})
+    public boolean paralelo;
+
+    private String ruta;
+    private String rutaInstantanea;
+
+    @Setup
+    public void prepara() throws IOException
+    {
+        ruta = GeneraProductos.fichero(numNodos).toString();
+        rutaInstantanea = GeneraProductos.copia(numNodos).toString();
+        if(!new GestionaXML(rutaInstantanea).guardaInstantanea())
+            throw new IOException("No se ha podido guardar la instantanea de " + rutaInstantanea);
+        Paths.get(rutaInstantanea + ".instantanea").toFile().deleteOnExit();
+    }
+
+    @Benchmark
+    public GestionaXML constructor()
+    {
+        return new GestionaXML(ruta, paralelo);
+    }
+
+    @Benchmark
+    public GestionaXML compartido()
+    {
+        return GestionaXML.compartido(ruta);
+    }
+
+    @Benchmark
+    public GestionaXML instantanea()
+    {
+        return new GestionaXML(rutaInstantanea);
+    }
+}
@@ -0,0 +1,79 @@
+package gestionaxml.benchmarks;
+
+import gestionaxml.GestionaXML;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cambios en memoria: cambiar el valor de un campo (en un nodo o en todos los
+ * de una categoria con cambiaDonde) y crear nodos. El fichero se vuelve a
+ * abrir en cada iteracion para que no crezca sin limite.
+ * @author neowavila
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CambioBenchmark
+{
+    @Param({"1000", "100000", "1000000"})
+    public int numNodos;
+
+    private String ruta;
+    private GestionaXML gestor;
+    private int posicion;
+    private int precio;
+
+    @Setup(Level.Trial)
+    public void copia() throws IOException
+    {
+        ruta = GeneraProductos.copia(numNodos).toString();
+    }
+
+    @Setup(Level.Iteration)
+    public void abre()
+    {
+        gestor = new GestionaXML(ruta);
+        posicion = 0;
+    }
+
+    @Benchmark
+    public boolean cambiaInfo()
+    {
+        posicion = posicion + 7919 < numNodos ? posicion + 7919 : (posicion + 7919) % numNodos;
+        precio = precio==100 ? 1 : precio + 1;
+        return gestor.cambiaInfo("Precio", Integer.toString(precio), posicion);
+    }
+
+    @Benchmark
+    public int cambiaDonde()
+    {
+        precio = precio==100 ? 1 : precio + 1;
+        String categoria = "Categoria" + precio % GeneraProductos.NUM_CATEGORIAS;
+        return gestor.cambiaDonde("Categoria", categoria::equals, "Precio", Integer.toString(precio));
+    }
+
+    @Benchmark
+    public boolean creaNodo()
+    {
+        return gestor.creaNodo(new String[][]{
+            {"Nombre", "Nueva"},
+            {"Precio", "10"},
+            {"Categoria", "Categoria0"},
+            {"Icono", "nueva.png"}});
+    }
+}
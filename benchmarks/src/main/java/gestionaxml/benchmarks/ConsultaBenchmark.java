@@ -0,0 +1,171 @@
+package gestionaxml.benchmarks;
+
+import gestionaxml.Agregado;
+import gestionaxml.GestionaXML;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Consultas sobre un fichero abierto: valor de un campo, busqueda de un nodo
+ * que existe y de uno que no, busqueda por rango de precio y por prefijo o
+ * texto contenido en el nombre (con y sin indice), media del precio por
+ * categoria, los 50 productos mas baratos, cruce de 1000 pedidos con el
+ * catalogo por nombre (con la tabla y buscando cada pedido) y volcado de todos
+ * los nodos (a un String[] o exportados en CSV).
+ * @author neowavila
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConsultaBenchmark
+{
+    @Param({"1000", "100000", "1000000"})
+    public int numNodos;
+
+    @Param({"false", "true"})
+    public boolean indice;
+
+    private static final int NUM_PEDIDOS = 1000;
+
+    private GestionaXML gestor;
+    private GestionaXML pedidos;
+
+    @Setup
+    public void prepara() throws IOException
+    {
+        gestor = new GestionaXML(GeneraProductos.fichero(numNodos).toString());
+        if(indice)
+        {
+            gestor.creaIndice("Nombre");
+            gestor.creaIndiceRango("Precio");
+            gestor.creaIndiceTexto("Nombre");
+        }
+        pedidos = new GestionaXML(GeneraProductos.fichero(Math.min(numNodos, NUM_PEDIDOS)).toString());
+    }
+
+    /**
+     * Posiciones aleatorias de nodos, distintas en cada hilo.
+     */
+    @State(Scope.Thread)
+    public static class Posiciones
+    {
+        private static final int NUM_POSICIONES = 1 << 12;
+        private final int[] posiciones = new int[NUM_POSICIONES];
+        private final String[] nombres = new String[NUM_POSICIONES];
+        private final String[] prefijos = new String[NUM_POSICIONES];
+        private int siguiente;
+
+        @Setup
+        public void prepara(ConsultaBenchmark benchmark)
+        {
+            SplittableRandom aleatorio = new SplittableRandom(Thread.currentThread().getId());
+            for (int i = 0; i < NUM_POSICIONES; i++)
+            {
+                posiciones[i] = aleatorio.nextInt(benchmark.numNodos);
+                nombres[i] = "Flor" + posiciones[i];
+                prefijos[i] = nombres[i].substring(0, nombres[i].length() - 1).toLowerCase();
+            }
+        }
+
+        int avanza()
+        {
+            siguiente = (siguiente + 1) & (NUM_POSICIONES - 1);
+            return siguiente;
+        }
+    }
+
+    @Benchmark
+    public String getValorCampo(Posiciones p)
+    {
+        return gestor.getValorCampo(p.posiciones[p.avanza()], "Precio");
+    }
+
+    @Benchmark
+    public int getIndiceNodoAcierto(Posiciones p)
+    {
+        return gestor.getIndiceNodo("Nombre", p.nombres[p.avanza()]);
+    }
+
+    @Benchmark
+    public int getIndiceNodoFallo()
+    {
+        return gestor.getIndiceNodo("Nombre", "NoExiste");
+    }
+
+    @Benchmark
+    public int[] getIndicesNodosEntre()
+    {
+        return gestor.getIndicesNodosEntre("Precio", 2, 10);
+    }
+
+    @Benchmark
+    public int[] getIndicesNodosEmpiezan(Posiciones p)
+    {
+        return gestor.getIndicesNodosEmpiezan("Nombre", p.prefijos[p.avanza()], true, 10);
+    }
+
+    @Benchmark
+    public int[] getIndicesNodosContienen()
+    {
+        return gestor.getIndicesNodosContienen("Nombre", "999", false, 10);
+    }
+
+    @Benchmark
+    public Map<String, Agregado> agregaPor()
+    {
+        return gestor.agregaPor("Precio", "Categoria");
+    }
+
+    @Benchmark
+    public int[] getPrimerosNodos()
+    {
+        return gestor.getPrimerosNodos("Precio", false, 50);
+    }
+
+    @Benchmark
+    public long cruza(Blackhole agujero)
+    {
+        return pedidos.cruza(gestor, "Nombre", agujero::consume);
+    }
+
+    @Benchmark
+    public void cruzaBuscando(Blackhole agujero)
+    {
+        for (int pedido : pedidos.getIndicesNodos())
+        {
+            int producto = gestor.getIndiceNodo("Nombre", pedidos.getValorCampo(pedido, "Nombre"));
+            if(producto>=0)
+                agujero.consume(gestor.getNodo(producto));
+        }
+    }
+
+    @Benchmark
+    public String[] getValorNodos()
+    {
+        return gestor.getValorNodos("-");
+    }
+
+    @Benchmark
+    public void exportaCSV() throws IOException
+    {
+        gestor.exportaCSV(Writer.nullWriter());
+    }
+}
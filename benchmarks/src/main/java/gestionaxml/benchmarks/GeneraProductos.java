@@ -0,0 +1,122 @@
+package gestionaxml.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.SplittableRandom;
+
+/**
+ * Genera ficheros Productos sinteticos para los benchmarks, siempre iguales
+ * para el mismo numero de nodos:
+ * <pre>
+ * {@code
+ * <Productos>
+ *     <Producto>
+ *         <Nombre>Flor17</Nombre>
+ *         <Precio>42</Precio>
+ *         <Categoria>Categoria3</Categoria>
+ *         <Icono>flor17.png</Icono>
+ *     </Producto>
+ * </Productos>
+ * }
+ * </pre>
+ * Los nombres son unicos (Flor0, Flor1...), el precio va de 1 a 100 y hay
+ * NUM_CATEGORIAS categorias.
+ * @author neowavila
+ */
+public class GeneraProductos
+{
+    /** Numero de categorias distintas. */
+    public static final int NUM_CATEGORIAS = 20;
+    private static final long SEMILLA = 0x5EED;
+
+    private GeneraProductos()
+    {
+    }
+
+    /**
+     * Devuelve el fichero con numNodos productos, generandolo solo si no existe
+     * todavia en la carpeta temporal.
+     * @param numNodos numero de productos.
+     * @return ruta del fichero.
+     * @throws IOException si no se puede escribir.
+     */
+    public static Path fichero(int numNodos) throws IOException
+    {
+        Path carpeta = Paths.get(System.getProperty("java.io.tmpdir"), "gestionaxml-benchmarks");
+        Files.createDirectories(carpeta);
+        Path destino = carpeta.resolve("productos-" + numNodos + ".xml");
+        if(!Files.exists(destino))
+        {
+            Path temporal = Files.createTempFile(carpeta, "productos-", ".tmp");
+            genera(temporal, numNodos);
+            Files.move(temporal, destino, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return destino;
+    }
+
+    /**
+     * Copia el fichero con numNodos productos a un temporal que se puede
+     * modificar y sobreescribir sin estropear el original.
+     * @param numNodos numero de productos.
+     * @return ruta de la copia (se borra al salir de la JVM).
+     * @throws IOException si no se puede copiar.
+     */
+    public static Path copia(int numNodos) throws IOException
+    {
+        Path original = fichero(numNodos);
+        Path copia = Files.createTempFile(original.getParent(), "copia-", ".xml");
+        Files.copy(original, copia, StandardCopyOption.REPLACE_EXISTING);
+        copia.toFile().deleteOnExit();
+        return copia;
+    }
+
+    /**
+     * Escribe un fichero con numNodos productos.
+     * @param destino ruta del fichero.
+     * @param numNodos numero de productos.
+     * @throws IOException si no se puede escribir.
+     */
+    public static void genera(Path destino, int numNodos) throws IOException
+    {
+        SplittableRandom aleatorio = new SplittableRandom(SEMILLA);
+        try(Writer salida = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(destino), StandardCharsets.UTF_8), 1 << 20))
+        {
+            salida.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n<Productos>\n");
+            for (int i = 0; i < numNodos; i++)
+            {
+                salida.write("    <Producto>\n        <Nombre>Flor");
+                salida.write(Integer.toString(i));
+                salida.write("</Nombre>\n        <Precio>");
+                salida.write(Integer.toString(1 + aleatorio.nextInt(100)));
+                salida.write("</Precio>\n        <Categoria>Categoria");
+                salida.write(Integer.toString(aleatorio.nextInt(NUM_CATEGORIAS)));
+                salida.write("</Categoria>\n        <Icono>flor");
+                salida.write(Integer.toString(i));
+                salida.write(".png</Icono>\n    </Producto>\n");
+            }
+            salida.write("</Productos>\n");
+        }
+    }
+
+    /**
+     * Genera un fichero desde la linea de comandos.
+     * @param args ruta del fichero y numero de productos.
+     * @throws IOException si no se puede escribir.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length!=2)
+        {
+            System.out.println("Uso: GeneraProductos <fichero.xml> <numNodos>");
+            return;
+        }
+        genera(Paths.get(args[0]), Integer.parseInt(args[1]));
+    }
+}
@@ -0,0 +1,76 @@
+package gestionaxml.benchmarks;
+
+import gestionaxml.GestionaXML;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Guardado con guardar() (sobreescribe el propio fichero) y guardar(ruta)
+ * (escribe en otro fichero). guardarCambio cambia un nodo antes de guardar,
+ * asi que mide el guardado incremental (sin cambios guardar() no escribe nada).
+ * Se trabaja sobre una copia del fichero generado.
+ * @author neowavila
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class GuardadoBenchmark
+{
+    @Param({"1000", "100000", "1000000"})
+    public int numNodos;
+
+    private GestionaXML gestor;
+    private Path otraRuta;
+    private int cambios;
+
+    @Setup
+    public void prepara() throws IOException
+    {
+        Path copia = GeneraProductos.copia(numNodos);
+        gestor = new GestionaXML(copia.toString());
+        otraRuta = Files.createTempFile(copia.getParent(), "guardado-", ".xml");
+    }
+
+    @TearDown
+    public void borra() throws IOException
+    {
+        Files.deleteIfExists(otraRuta);
+    }
+
+    @Benchmark
+    public boolean guardar()
+    {
+        return gestor.guardar();
+    }
+
+    @Benchmark
+    public boolean guardarCambio()
+    {
+        cambios++;
+        gestor.cambiaInfo("Precio", Integer.toString(cambios), cambios % numNodos);
+        return gestor.guardar();
+    }
+
+    @Benchmark
+    public boolean guardarRuta()
+    {
+        return gestor.guardar(otraRuta.toString());
+    }
+}
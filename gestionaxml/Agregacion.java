@@ -0,0 +1,278 @@
+package gestionaxml;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Agrega los valores numericos de un campo (ver Agregado), agrupados por el
+ * valor de otro campo, en una sola pasada por los nodos.
+ * <p>
+ * Los nodos se reparten en el {@link ForkJoinPool} comun: cada tarea parte su
+ * tramo en dos hasta que es pequeno, agrega su tramo en un mapa propio (sin
+ * compartir nada con las demas) y al terminar se juntan los mapas de cada mitad.
+ * Como se junta siempre la mitad izquierda con la derecha, los grupos quedan en
+ * el orden en que aparecen en el fichero.
+ * <p>
+ * Si el campo tiene indice de rangos construido se usan sus valores ya
+ * convertidos a numero, sin leer ni convertir el texto de cada nodo. Si no, los
+ * valores ASCII sin escapar de un fichero proyectado se copian a un buffer que
+ * se reutiliza (como en Exportador) y los enteros se convierten desde ahi; los
+ * grupos tambien se buscan por sus caracteres, asi que solo se crea un String
+ * por grupo distinto y no por nodo.
+ * @author neowavila
+ */
+class Agregacion extends RecursiveTask<LinkedHashMap<String, Agregado>>
+{
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_NODOS_TAREA = 1 << 12;
+    /** Cifras de un entero que caben en un double sin perder precision. */
+    private static final int MAX_CIFRAS_EXACTAS = 15;
+
+    private final AlmacenRegistros almacen;
+    private final int columna;
+    private final int columnaGrupo;
+    private final IndiceRango rango;
+    private final int desde;
+    private final int hasta;
+    private final int tamTarea;
+
+    private Agregacion(AlmacenRegistros almacen, int columna, int columnaGrupo, IndiceRango rango,
+            int desde, int hasta, int tamTarea)
+    {
+        this.almacen = almacen;
+        this.columna = columna;
+        this.columnaGrupo = columnaGrupo;
+        this.rango = rango;
+        this.desde = desde;
+        this.hasta = hasta;
+        this.tamTarea = tamTarea;
+    }
+
+    /**
+     * Agrega los valores de un campo de todos los nodos no borrados.
+     * @param almacen nodos del fichero.
+     * @param columna columna del campo a agregar.
+     * @param columnaGrupo columna del campo por el que se agrupa (-1 para no agrupar).
+     * @param rango indice de rangos construido del campo a agregar, o null.
+     * @param minParalelo numero de nodos a partir del que se reparte entre hilos.
+     * @return agregado de cada valor del campo de grupo, en el orden en que
+     * aparecen (la clave null agrupa los nodos sin ese campo, o todos si no se agrupa).
+     */
+    static LinkedHashMap<String, Agregado> agrega(AlmacenRegistros almacen, int columna, int columnaGrupo,
+            IndiceRango rango, int minParalelo)
+    {
+        int numNodos = almacen.numRegistros();
+        if(columna<0)
+            return new LinkedHashMap<>();
+        if(numNodos<minParalelo)
+            return new Agregacion(almacen, columna, columnaGrupo, rango, 0, numNodos, numNodos).compute();
+        int tamTarea = Math.max(MIN_NODOS_TAREA, numNodos / (4 * ForkJoinPool.getCommonPoolParallelism()));
+        return ForkJoinPool.commonPool().invoke(new Agregacion(almacen, columna, columnaGrupo, rango, 0, numNodos, tamTarea));
+    }
+
+    @Override
+    protected LinkedHashMap<String, Agregado> compute()
+    {
+        if(hasta - desde<=tamTarea)
+            return agregaTramo();
+        int medio = (desde + hasta) >>> 1;
+        Agregacion izquierda = new Agregacion(almacen, columna, columnaGrupo, rango, desde, medio, tamTarea);
+        Agregacion derecha = new Agregacion(almacen, columna, columnaGrupo, rango, medio, hasta, tamTarea);
+        izquierda.fork();
+        LinkedHashMap<String, Agregado> resultado = derecha.compute();
+        return junta(izquierda.join(), resultado);
+    }
+
+    /**
+     * Agrega los nodos del tramo de esta tarea.
+     */
+    private LinkedHashMap<String, Agregado> agregaTramo()
+    {
+        LinkedHashMap<String, Agregado> resultado = new LinkedHashMap<>();
+        Grupos grupos = new Grupos(resultado);
+        char[] texto = new char[64];
+        char[] grupo = new char[64];
+        int longitudAnterior = -1;
+        char[] grupoAnterior = new char[64];
+        Agregado agregado = null;
+        for (int i = desde; i < hasta; i++)
+        {
+            if(almacen.estaBorrado(i))
+                continue;
+            double valor = rango!=null ? rango.numero(i) : numero(almacen, i, columna, texto);
+            if(Double.isNaN(valor))
+                continue;
+            if(columnaGrupo<0)
+            {
+                if(agregado==null)
+                    resultado.put(null, agregado = new Agregado());
+                agregado.agrega(valor);
+                continue;
+            }
+            int longitud = almacen.copiaValor(i, columnaGrupo, grupo);
+            if(longitud<0)
+            {
+                String valorGrupo = almacen.valor(i, columnaGrupo);
+                if(valorGrupo==null)
+                {
+                    grupos.nulo().agrega(valor);
+                    continue;
+                }
+                if(valorGrupo.length()>grupo.length)
+                {
+                    grupo = new char[Math.max(valorGrupo.length(), grupo.length * 2)];
+                    grupoAnterior = new char[grupo.length];
+                    longitudAnterior = -1;
+                }
+                valorGrupo.getChars(0, valorGrupo.length(), grupo, 0);
+                longitud = valorGrupo.length();
+            }
+            //Los nodos seguidos suelen ser del mismo grupo: se ahorra buscarlo.
+            if(longitud!=longitudAnterior || !Arrays.equals(grupo, 0, longitud, grupoAnterior, 0, longitud))
+            {
+                agregado = grupos.busca(grupo, longitud);
+                System.arraycopy(grupo, 0, grupoAnterior, 0, longitud);
+                longitudAnterior = longitud;
+            }
+            agregado.agrega(valor);
+        }
+        return resultado;
+    }
+
+    /**
+     * Convierte a numero el valor del campo en un nodo. Los enteros ASCII sin
+     * escapar se convierten desde el buffer sin crear ningun String; el resto
+     * como IndiceRango.numero.
+     * @param almacen nodos del fichero.
+     * @param registro posicion del nodo.
+     * @param columna columna del campo.
+     * @param texto buffer donde se copia el valor.
+     * @return numero o NaN si el nodo no tiene el campo o no es un numero.
+     */
+    static double numero(AlmacenRegistros almacen, int registro, int columna, char[] texto)
+    {
+        int longitud = almacen.copiaValor(registro, columna, texto);
+        if(longitud<0)
+            return IndiceRango.numero(almacen.valor(registro, columna));
+        boolean negativo = longitud>0 && texto[0]=='-';
+        int inicio = longitud>0 && (texto[0]=='-' || texto[0]=='+') ? 1 : 0;
+        if(longitud==inicio || longitud - inicio>MAX_CIFRAS_EXACTAS)
+            return IndiceRango.numero(new String(texto, 0, longitud));
+        long entero = 0;
+        for (int i = inicio; i < longitud; i++)
+        {
+            char c = texto[i];
+            if(c<'0' || c>'9')
+                return IndiceRango.numero(new String(texto, 0, longitud));
+            entero = entero * 10 + (c - '0');
+        }
+        return negativo ? -entero : entero;
+    }
+
+    /**
+     * Junta los grupos de la mitad derecha en los de la izquierda.
+     */
+    private static LinkedHashMap<String, Agregado> junta(LinkedHashMap<String, Agregado> izquierda,
+            LinkedHashMap<String, Agregado> derecha)
+    {
+        for (Map.Entry<String, Agregado> grupo : derecha.entrySet())
+        {
+            Agregado agregado = izquierda.get(grupo.getKey());
+            if(agregado==null)
+                izquierda.put(grupo.getKey(), grupo.getValue());
+            else
+                agregado.junta(grupo.getValue());
+        }
+        return izquierda;
+    }
+
+    /**
+     * Tabla de grupos de una tarea que busca por los caracteres del valor (sin
+     * crear un String por nodo). Cada grupo nuevo se agrega tambien al mapa del
+     * resultado, que conserva el orden en que aparecen.
+     */
+    private static class Grupos
+    {
+        private final LinkedHashMap<String, Agregado> resultado;
+        private char[][] claves = new char[16][];
+        private Agregado[] agregados = new Agregado[16];
+        private int tam;
+
+        Grupos(LinkedHashMap<String, Agregado> resultado)
+        {
+            this.resultado = resultado;
+        }
+
+        /**
+         * Devuelve el agregado de los nodos sin el campo de grupo.
+         */
+        Agregado nulo()
+        {
+            return resultado.computeIfAbsent(null, g -> new Agregado());
+        }
+
+        /**
+         * Devuelve el agregado de un grupo, creandolo si no existe.
+         * @param texto caracteres del valor del grupo.
+         * @param longitud numero de caracteres.
+         * @return agregado del grupo.
+         */
+        Agregado busca(char[] texto, int longitud)
+        {
+            int mascara = claves.length - 1;
+            for (int pos = hash(texto, longitud) & mascara; ; pos = (pos + 1) & mascara)
+            {
+                char[] clave = claves[pos];
+                if(clave==null)
+                {
+                    Agregado agregado = new Agregado();
+                    claves[pos] = Arrays.copyOf(texto, longitud);
+                    agregados[pos] = agregado;
+                    resultado.put(new String(texto, 0, longitud), agregado);
+                    if(++tam * 2>claves.length)
+                        crece();
+                    return agregado;
+                }
+                if(clave.length==longitud && Arrays.equals(clave, 0, longitud, texto, 0, longitud))
+                    return agregados[pos];
+            }
+        }
+
+        /**
+         * Duplica la tabla y recoloca los grupos.
+         */
+        private void crece()
+        {
+            char[][] anteriores = claves;
+            Agregado[] anterioresAgregados = agregados;
+            claves = new char[anteriores.length * 2][];
+            agregados = new Agregado[claves.length];
+            int mascara = claves.length - 1;
+            for (int i = 0; i < anteriores.length; i++)
+            {
+                if(anteriores[i]==null)
+                    continue;
+                int pos = hash(anteriores[i], anteriores[i].length) & mascara;
+                while(claves[pos]!=null)
+                    pos = (pos + 1) & mascara;
+                claves[pos] = anteriores[i];
+                agregados[pos] = anterioresAgregados[i];
+            }
+        }
+
+        /**
+         * Calcula el mismo hash que String.hashCode, mezclado para repartir
+         * mejor en una tabla de potencia de 2.
+         */
+        private static int hash(char[] texto, int longitud)
+        {
+            int h = 0;
+            for (int i = 0; i < longitud; i++)
+                h = 31 * h + texto[i];
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package gestionaxml;
+
+/**
+ * <h1>Agregado</h1>
+ * Resultado de agregar los valores numericos de un campo con
+ * {@link GestionaXML#agrega(String)} o {@link GestionaXML#agregaPor(String, String)}:
+ * cuantos valores hay, su suma, media, minimo y maximo. Los valores que no son
+ * numeros (o los nodos sin el campo) no cuentan.
+ * @author neowavila
+ */
+public class Agregado
+{
+    private long numValores;
+    private double suma;
+    private double minimo = Double.NaN;
+    private double maximo = Double.NaN;
+
+    /**
+     * Crea un agregado sin valores.
+     */
+    Agregado()
+    {
+    }
+
+    /**
+     * Suma un valor al agregado.
+     * @param valor valor numerico (no NaN).
+     */
+    void agrega(double valor)
+    {
+        if(numValores==0)
+            minimo = maximo = valor;
+        else if(valor<minimo)
+            minimo = valor;
+        else if(valor>maximo)
+            maximo = valor;
+        numValores++;
+        suma += valor;
+    }
+
+    /**
+     * Junta otro agregado parcial con este.
+     * @param otro agregado de otra parte de los nodos.
+     */
+    void junta(Agregado otro)
+    {
+        if(otro.numValores==0)
+            return;
+        if(numValores==0 || otro.minimo<minimo)
+            minimo = otro.minimo;
+        if(numValores==0 || otro.maximo>maximo)
+            maximo = otro.maximo;
+        numValores += otro.numValores;
+        suma += otro.suma;
+    }
+
+    /**
+     * @return numero de valores numericos agregados.
+     */
+    public long getNumValores()
+    {
+        return numValores;
+    }
+
+    /**
+     * @return suma de los valores (0 si no hay ninguno).
+     */
+    public double getSuma()
+    {
+        return suma;
+    }
+
+    /**
+     * @return media de los valores o NaN si no hay ninguno.
+     */
+    public double getMedia()
+    {
+        return numValores==0 ? Double.NaN : suma / numValores;
+    }
+
+    /**
+     * @return valor minimo o NaN si no hay ninguno.
+     */
+    public double getMinimo()
+    {
+        return minimo;
+    }
+
+    /**
+     * @return valor maximo o NaN si no hay ninguno.
+     */
+    public double getMaximo()
+    {
+        return maximo;
+    }
+
+    /**
+     * Devuelve los valores del agregado.
+     * @return String con el numero de valores, suma, media, minimo y maximo.
+     */
+    @Override
+    public String toString()
+    {
+        return "numValores=" + numValores + ", suma=" + suma + ", media=" + getMedia()
+                + ", minimo=" + minimo + ", maximo=" + maximo;
+    }
+}
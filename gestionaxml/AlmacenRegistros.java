@@ -0,0 +1,808 @@
+package gestionaxml;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Guarda en memoria los nodos de un fichero de un nivel de profundidad por columnas:
+ * cada campo distinto tiene una {@link Columna} con el valor de ese campo en cada nodo,
+ * y los nombres de los campos se guardan una sola vez.
+ * <p>
+ * El orden de los campos de cada nodo se guarda como un "formato" (titulo del nodo
+ * y columnas en orden) compartido por todos los nodos iguales, que en un fichero
+ * normal es uno solo. Si un nodo repite un campo, la segunda aparicion va en otra
+ * columna, asi se respeta el fichero original al guardar.
+ * <p>
+ * Los nodos borrados se marcan y no se quitan hasta llamar a compacta(), para que
+ * los indices de los demas nodos no cambien mientras se trabaja con ellos.
+ * <p>
+ * Ademas de su posicion, cada nodo tiene un identificador que no cambia al
+ * compactar: se reparten en orden al agregar nodos, asi que van de menor a mayor
+ * igual que las posiciones. Hasta la primera compactacion coinciden con la
+ * posicion y no se guardan.
+ * @author neowavila
+ */
+class AlmacenRegistros
+{
+    /** Valor que se devuelve cuando un nodo no tiene el campo buscado. */
+    static final String NO_ENCONTRADO = "No se ha encontrado el campo";
+    private static final char SEPARADOR = '\u0000';
+    private static final String[][] SIN_ATRIBUTOS = new String[0][];
+
+    private final String tituloRaiz;
+    private final String[][] atributosRaiz;
+    private final HashMap<String, Integer> idColumnas = new HashMap<>();
+    private final ArrayList<String> nombreColumnas = new ArrayList<>();
+    private final ArrayList<Columna> columnas = new ArrayList<>();
+    private final HashMap<String, Integer> idFormatos = new HashMap<>();
+    private final ArrayList<Formato> formatos = new ArrayList<>();
+    private final BitSet borrados = new BitSet();
+    private int[] formatoRegistros = new int[16];
+    private int[] ids;
+    private int siguienteId;
+    private String[][][] atributos;
+    private String[][][][] atributosCampos;
+    private int numRegistros;
+    private int numBorrados;
+    private Formato ultimoFormato;
+    private int idUltimoFormato;
+    private final ByteBuffer fuente;
+    private TramosFichero tramos;
+
+    /**
+     * Crea un almacen vacio.
+     * @param tituloRaiz nombre del nodo raiz.
+     * @param atributosRaiz atributos del nodo raiz en formato String[n][2] (nombre, valor).
+     */
+    AlmacenRegistros(String tituloRaiz, String[][] atributosRaiz)
+    {
+        this(tituloRaiz, atributosRaiz, null);
+    }
+
+    /**
+     * Crea un almacen vacio cuyos valores van a ser trozos de un fichero proyectado.
+     * @param tituloRaiz nombre del nodo raiz.
+     * @param atributosRaiz atributos del nodo raiz en formato String[n][2] (nombre, valor).
+     * @param fuente fichero proyectado (null si los valores son String).
+     */
+    AlmacenRegistros(String tituloRaiz, String[][] atributosRaiz, ByteBuffer fuente)
+    {
+        this.tituloRaiz = tituloRaiz;
+        this.atributosRaiz = atributosRaiz==null ? SIN_ATRIBUTOS : atributosRaiz;
+        this.fuente = fuente;
+    }
+
+    /**
+     * Copia los nodos de un documento DOM al almacen. Despues el documento se puede descartar.
+     * @param doc documento ya leido.
+     * @return almacen con todos los nodos hijos del raiz.
+     */
+    static AlmacenRegistros desdeDocumento(Document doc)
+    {
+        Element raiz = doc.getDocumentElement();
+        AlmacenRegistros almacen = new AlmacenRegistros(raiz.getNodeName(), leeAtributos(raiz));
+        ArrayList<String> campos = new ArrayList<>();
+        ArrayList<String> valores = new ArrayList<>();
+
+        for (Node nodo = raiz.getFirstChild(); nodo!=null; nodo = nodo.getNextSibling())
+        {
+            if(nodo.getNodeType()!=Node.ELEMENT_NODE)
+                continue;
+            campos.clear();
+            valores.clear();
+            String[][][] atributosCampos = null;
+            for (Node campo = nodo.getFirstChild(); campo!=null; campo = campo.getNextSibling())
+            {
+                if(campo.getNodeType()==Node.ELEMENT_NODE)
+                {
+                    if(campo.hasAttributes())
+                    {
+                        if(atributosCampos==null)
+                            atributosCampos = new String[nodo.getChildNodes().getLength()][][];
+                        atributosCampos[campos.size()] = leeAtributos(campo);
+                    }
+                    campos.add(campo.getNodeName());
+                    valores.add(campo.getTextContent());
+                }
+            }
+            int registro = almacen.agrega(nodo.getNodeName(), campos.toArray(new String[campos.size()]),
+                    valores.toArray(new String[valores.size()]));
+            if(nodo.hasAttributes())
+                almacen.setAtributos(registro, leeAtributos(nodo));
+            if(atributosCampos!=null)
+                almacen.setAtributosCampos(registro, atributosCampos);
+        }
+        return almacen;
+    }
+
+    /**
+     * Devuelve los atributos de un elemento.
+     * @param elemento elemento del que se leen los atributos.
+     * @return atributos en formato String[n][2] (nombre, valor).
+     */
+    private static String[][] leeAtributos(Node elemento)
+    {
+        NamedNodeMap mapa = elemento.getAttributes();
+        if(mapa==null || mapa.getLength()==0)
+            return SIN_ATRIBUTOS;
+        String[][] leidos = new String[mapa.getLength()][];
+        for (int i = 0; i < leidos.length; i++)
+            leidos[i] = new String[]{mapa.item(i).getNodeName(), mapa.item(i).getNodeValue()};
+        return leidos;
+    }
+
+    /**
+     * Agrega un nodo al final del almacen.
+     * @param tituloNodo nombre del nodo (Ej: Producto).
+     * @param campos titulos de los campos en orden.
+     * @param valores valores de los campos en el mismo orden (null se guarda como vacio).
+     * @return posicion del nuevo nodo.
+     */
+    int agrega(String tituloNodo, String[] campos, String[] valores)
+    {
+        int idFormato = buscaFormato(tituloNodo, campos);
+        int registro = nuevoRegistro(idFormato);
+        int[] columnasFormato = formatos.get(idFormato).columnas;
+        for (int i = 0; i < columnasFormato.length; i++)
+            columnas.get(columnasFormato[i]).set(registro, valores[i]==null ? "" : valores[i]);
+        return registro;
+    }
+
+    /**
+     * Agrega al final del almacen un nodo cuyos valores son trozos del fichero proyectado.
+     * @param tituloNodo nombre del nodo.
+     * @param campos titulos de los campos en orden.
+     * @param trozos trozo de cada campo, codificado como en ParserMapeado.
+     * @param desde posicion en trozos del primer campo.
+     * @return posicion del nuevo nodo.
+     */
+    int agregaTrozos(String tituloNodo, String[] campos, long[] trozos, int desde)
+    {
+        int idFormato = buscaFormato(tituloNodo, campos);
+        int registro = nuevoRegistro(idFormato);
+        int[] columnasFormato = formatos.get(idFormato).columnas;
+        for (int i = 0; i < columnasFormato.length; i++)
+            columnas.get(columnasFormato[i]).setTrozo(registro, trozos[desde + i]);
+        return registro;
+    }
+
+    /**
+     * Reserva la posicion y el identificador de un nodo nuevo al final.
+     * @param idFormato formato del nodo.
+     * @return posicion del nuevo nodo.
+     */
+    private int nuevoRegistro(int idFormato)
+    {
+        if(numRegistros==formatoRegistros.length)
+        {
+            formatoRegistros = Arrays.copyOf(formatoRegistros, numRegistros + (numRegistros >> 1) + 1);
+            if(ids!=null)
+                ids = Arrays.copyOf(ids, formatoRegistros.length);
+        }
+        int registro = numRegistros++;
+        formatoRegistros[registro] = idFormato;
+        if(ids!=null)
+            ids[registro] = siguienteId;
+        siguienteId++;
+        return registro;
+    }
+
+    /**
+     * Carga de golpe los nodos de una instantanea (ver Instantanea) en el almacen
+     * vacio, despues de crear sus formatos con buscaFormato en el mismo orden que
+     * en el almacen original (asi las columnas tienen los mismos identificadores).
+     * @param formatosNodos formato de cada nodo (se usa sin copiar).
+     * @param trozos trozos de cada columna con un elemento por nodo (se usan sin copiar).
+     */
+    void cargaTrozos(int[] formatosNodos, long[][] trozos)
+    {
+        formatoRegistros = formatosNodos;
+        numRegistros = formatosNodos.length;
+        siguienteId = numRegistros;
+        for (int i = 0; i < trozos.length; i++)
+            columnas.set(i, new Columna(trozos[i], fuente));
+    }
+
+    /**
+     * Busca (o crea) el formato de un nodo. Si es igual que el del ultimo nodo
+     * agregado no hace falta calcular la clave.
+     * @param tituloNodo nombre del nodo.
+     * @param campos titulos de los campos en orden.
+     * @return identificador del formato.
+     */
+    int buscaFormato(String tituloNodo, String[] campos)
+    {
+        if(ultimoFormato!=null && ultimoFormato.esIgual(tituloNodo, campos))
+            return idUltimoFormato;
+
+        StringBuilder clave = new StringBuilder(tituloNodo);
+        for (String campo : campos)
+            clave.append(SEPARADOR).append(campo);
+        Integer id = idFormatos.get(clave.toString());
+        if(id==null)
+        {
+            int[] columnasFormato = new int[campos.length];
+            for (int i = 0; i < campos.length; i++)
+            {
+                int repeticion = 0;
+                for (int j = 0; j < i; j++)
+                    if(campos[j].equals(campos[i]))
+                        repeticion++;
+                columnasFormato[i] = buscaColumna(campos[i], repeticion);
+            }
+            id = formatos.size();
+            formatos.add(new Formato(tituloNodo, campos, columnasFormato));
+            idFormatos.put(clave.toString(), id);
+        }
+        ultimoFormato = formatos.get(id);
+        idUltimoFormato = id;
+        return id;
+    }
+
+    /**
+     * Busca (o crea) la columna de un campo.
+     * @param campo titulo del campo.
+     * @param repeticion 0 para la primera aparicion del campo en el nodo, 1 para la segunda...
+     * @return identificador de la columna.
+     */
+    private int buscaColumna(String campo, int repeticion)
+    {
+        String clave = repeticion==0 ? campo : campo + SEPARADOR + repeticion;
+        Integer id = idColumnas.get(clave);
+        if(id==null)
+        {
+            id = columnas.size();
+            columnas.add(fuente==null ? new Columna(numRegistros) : new Columna(numRegistros, fuente));
+            nombreColumnas.add(campo.intern());
+            idColumnas.put(clave, id);
+        }
+        return id;
+    }
+
+    /**
+     * Devuelve la columna con la primera aparicion de un campo.
+     * @param campo titulo del campo.
+     * @return identificador de la columna o -1 si ningun nodo tiene ese campo.
+     */
+    int columna(String campo)
+    {
+        Integer id = idColumnas.get(campo);
+        return id==null ? -1 : id;
+    }
+
+    /**
+     * Comprueba que la posicion corresponda a un nodo.
+     * @param registro posicion del nodo.
+     */
+    private void compruebaRegistro(int registro)
+    {
+        if(registro<0 || registro>=numRegistros)
+            throw new ArrayIndexOutOfBoundsException(registro);
+    }
+
+    /**
+     * Devuelve el valor de una columna en un nodo.
+     * @param registro posicion del nodo.
+     * @param columna identificador de la columna (-1 si no existe).
+     * @return valor del campo o null si el nodo no lo tiene.
+     */
+    String valor(int registro, int columna)
+    {
+        compruebaRegistro(registro);
+        return columna<0 ? null : columnas.get(columna).get(registro);
+    }
+
+    /**
+     * Copia el valor de una columna en un nodo sin crear ningun String, si se
+     * puede (ver Columna.copia).
+     * @param registro posicion del nodo.
+     * @param columna identificador de la columna.
+     * @param destino donde se copian los caracteres.
+     * @return numero de caracteres copiados, o -1 si hay que leerlo con valor().
+     */
+    int copiaValor(int registro, int columna, char[] destino)
+    {
+        compruebaRegistro(registro);
+        return columnas.get(columna).copia(registro, destino);
+    }
+
+    /**
+     * Copia los bytes UTF-8 del valor de una columna en un nodo sin crear ningun
+     * String, si se puede (ver Columna.copiaBytes).
+     * @param registro posicion del nodo.
+     * @param columna identificador de la columna.
+     * @param destino donde se copian los bytes.
+     * @return numero de bytes copiados, o -1 si hay que leerlo con valor().
+     */
+    int copiaBytes(int registro, int columna, byte[] destino)
+    {
+        compruebaRegistro(registro);
+        return columnas.get(columna).copiaBytes(registro, destino);
+    }
+
+    /**
+     * Devuelve el valor de una columna en un nodo, o NO_ENCONTRADO si no lo tiene.
+     * @param registro posicion del nodo.
+     * @param columna identificador de la columna (-1 si no existe).
+     * @return valor del campo.
+     */
+    String valorCampo(int registro, int columna)
+    {
+        String valor = valor(registro, columna);
+        return valor==null ? NO_ENCONTRADO : valor;
+    }
+
+    /**
+     * Devuelve el valor de un campo en un nodo, o NO_ENCONTRADO si no lo tiene.
+     * @param registro posicion del nodo.
+     * @param campo titulo del campo.
+     * @return valor del campo.
+     */
+    String valorCampo(int registro, String campo)
+    {
+        return valorCampo(registro, columna(campo));
+    }
+
+    /**
+     * Cambia el valor de un campo que ya existe en el nodo.
+     * @param registro posicion del nodo.
+     * @param campo titulo del campo.
+     * @param valor nuevo valor (null se guarda como texto vacio, como en agrega).
+     * @return valor anterior o null si el nodo no tiene el campo (no se cambia nada).
+     */
+    String cambia(int registro, String campo, String valor)
+    {
+        compruebaRegistro(registro);
+        int columna = columna(campo);
+        if(columna<0)
+            return null;
+        Columna datos = columnas.get(columna);
+        String anterior = datos.get(registro);
+        if(anterior!=null)
+        {
+            datos.set(registro, valor==null ? "" : valor);
+            if(tramos!=null)
+                tramos.ensucia(registro);
+        }
+        return anterior;
+    }
+
+    /**
+     * Devuelve el nombre de un nodo (Ej: Producto).
+     * @param registro posicion del nodo.
+     * @return nombre del nodo.
+     */
+    String getTituloNodo(int registro)
+    {
+        compruebaRegistro(registro);
+        return formatos.get(formatoRegistros[registro]).titulo;
+    }
+
+    /**
+     * Devuelve las columnas de los campos de un nodo en orden.
+     * @param registro posicion del nodo.
+     * @return columnas del formato del nodo (no modificar).
+     */
+    int[] getColumnas(int registro)
+    {
+        compruebaRegistro(registro);
+        return formatos.get(formatoRegistros[registro]).columnas;
+    }
+
+    /**
+     * Devuelve el titulo del campo guardado en una columna.
+     * @param columna identificador de la columna.
+     * @return titulo del campo.
+     */
+    String getNombreColumna(int columna)
+    {
+        return nombreColumnas.get(columna);
+    }
+
+    /**
+     * Devuelve cuantas columnas hay (campos distintos, contando aparte las
+     * repeticiones de un campo en el mismo nodo).
+     * @return numero de columnas.
+     */
+    int numColumnas()
+    {
+        return columnas.size();
+    }
+
+    /**
+     * Devuelve el formato de un nodo.
+     * @param registro posicion del nodo.
+     * @return identificador del formato.
+     */
+    int formato(int registro)
+    {
+        compruebaRegistro(registro);
+        return formatoRegistros[registro];
+    }
+
+    /**
+     * Devuelve cuantos formatos distintos de nodo hay.
+     * @return numero de formatos.
+     */
+    int numFormatos()
+    {
+        return formatos.size();
+    }
+
+    /**
+     * Devuelve el nombre de los nodos de un formato.
+     * @param formato identificador del formato.
+     * @return nombre del nodo.
+     */
+    String getTituloFormato(int formato)
+    {
+        return formatos.get(formato).titulo;
+    }
+
+    /**
+     * Devuelve los titulos de los campos de un formato en orden.
+     * @param formato identificador del formato.
+     * @return titulos de los campos (no modificar).
+     */
+    String[] getCamposFormato(int formato)
+    {
+        return formatos.get(formato).campos;
+    }
+
+    /**
+     * Devuelve los titulos de los campos de un nodo en orden.
+     * @param registro posicion del nodo.
+     * @return titulos de los campos.
+     */
+    String[] getCampos(int registro)
+    {
+        compruebaRegistro(registro);
+        return formatos.get(formatoRegistros[registro]).campos.clone();
+    }
+
+    /**
+     * Devuelve los valores de los campos de un nodo en orden.
+     * @param registro posicion del nodo.
+     * @return valores de los campos.
+     */
+    String[] getValores(int registro)
+    {
+        compruebaRegistro(registro);
+        int[] columnasFormato = formatos.get(formatoRegistros[registro]).columnas;
+        String[] valores = new String[columnasFormato.length];
+        for (int i = 0; i < valores.length; i++)
+            valores[i] = columnas.get(columnasFormato[i]).get(registro);
+        return valores;
+    }
+
+    /**
+     * Devuelve los atributos de un nodo.
+     * @param registro posicion del nodo.
+     * @return atributos en formato String[n][2] (nombre, valor).
+     */
+    String[][] getAtributos(int registro)
+    {
+        if(atributos==null || registro>=atributos.length || atributos[registro]==null)
+            return SIN_ATRIBUTOS;
+        return atributos[registro];
+    }
+
+    /**
+     * Guarda los atributos de un nodo (casi nunca hay, por eso el array se crea solo si hace falta).
+     * @param registro posicion del nodo.
+     * @param atributosNodo atributos en formato String[n][2] (nombre, valor).
+     */
+    void setAtributos(int registro, String[][] atributosNodo)
+    {
+        if(atributos==null || registro>=atributos.length)
+            atributos = Arrays.copyOf(atributos==null ? new String[0][][] : atributos, formatoRegistros.length);
+        atributos[registro] = atributosNodo;
+    }
+
+    /**
+     * Devuelve los atributos de un campo de un nodo.
+     * @param registro posicion del nodo.
+     * @param posicion posicion del campo en el nodo (como en getColumnas).
+     * @return atributos en formato String[n][2] (nombre, valor).
+     */
+    String[][] getAtributosCampo(int registro, int posicion)
+    {
+        String[][][] delNodo = getAtributosCampos(registro);
+        if(delNodo==null || posicion>=delNodo.length || delNodo[posicion]==null)
+            return SIN_ATRIBUTOS;
+        return delNodo[posicion];
+    }
+
+    /**
+     * Devuelve los atributos de todos los campos de un nodo.
+     * @param registro posicion del nodo.
+     * @return atributos de cada campo por su posicion (null en los que no tienen),
+     * o null si ningun campo tiene atributos.
+     */
+    String[][][] getAtributosCampos(int registro)
+    {
+        if(atributosCampos==null || registro>=atributosCampos.length)
+            return null;
+        return atributosCampos[registro];
+    }
+
+    /**
+     * Guarda los atributos de los campos de un nodo (casi nunca hay, como en setAtributos).
+     * @param registro posicion del nodo.
+     * @param atributosNodo atributos de cada campo por su posicion (null en los
+     * que no tienen); puede ser mas largo que el numero de campos.
+     */
+    void setAtributosCampos(int registro, String[][][] atributosNodo)
+    {
+        if(atributosCampos==null || registro>=atributosCampos.length)
+            atributosCampos = Arrays.copyOf(atributosCampos==null ? new String[0][][][] : atributosCampos,
+                    formatoRegistros.length);
+        atributosCampos[registro] = atributosNodo;
+    }
+
+    /**
+     * Devuelve la posicion de cada nodo en el fichero en disco.
+     * @return tramos o null si no se conocen (ver GuardadoIncremental).
+     */
+    TramosFichero getTramos()
+    {
+        return tramos;
+    }
+
+    /**
+     * Cambia la posicion de los nodos en el fichero en disco.
+     * @param tramos tramos del fichero (null si no se conocen).
+     */
+    void setTramos(TramosFichero tramos)
+    {
+        this.tramos = tramos;
+    }
+
+    /**
+     * Devuelve el nombre del nodo raiz.
+     * @return nombre del nodo raiz.
+     */
+    String getTituloRaiz()
+    {
+        return tituloRaiz;
+    }
+
+    /**
+     * Devuelve los atributos del nodo raiz.
+     * @return atributos en formato String[n][2] (nombre, valor).
+     */
+    String[][] getAtributosRaiz()
+    {
+        return atributosRaiz;
+    }
+
+    /**
+     * Devuelve cuantos nodos hay, incluidos los borrados que todavia no se han compactado.
+     * @return numero de posiciones ocupadas.
+     */
+    int numRegistros()
+    {
+        return numRegistros;
+    }
+
+    /**
+     * Devuelve cuantos nodos estan borrados y pendientes de compactar.
+     * @return numero de nodos borrados.
+     */
+    int numBorrados()
+    {
+        return numBorrados;
+    }
+
+    /**
+     * Indica si un nodo esta marcado como borrado.
+     * @param registro posicion del nodo.
+     * @return true si esta borrado.
+     */
+    boolean estaBorrado(int registro)
+    {
+        return borrados.get(registro);
+    }
+
+    /**
+     * Devuelve el identificador de un nodo, que no cambia al compactar.
+     * @param registro posicion del nodo.
+     * @return identificador del nodo.
+     */
+    int id(int registro)
+    {
+        compruebaRegistro(registro);
+        return ids==null ? registro : ids[registro];
+    }
+
+    /**
+     * Busca la posicion actual de un nodo por su identificador.
+     * @param id identificador del nodo.
+     * @return posicion del nodo o -1 si no existe o se ha quitado al compactar.
+     */
+    int posicion(int id)
+    {
+        if(id<0 || id>=siguienteId)
+            return -1;
+        if(ids==null)
+            return id<numRegistros ? id : -1;
+        int posicion = Arrays.binarySearch(ids, 0, numRegistros, id);
+        return posicion<0 ? -1 : posicion;
+    }
+
+    /**
+     * Marca un nodo como borrado. Sus datos siguen disponibles hasta compactar.
+     * @param registro posicion del nodo.
+     * @return false si el nodo no existe o ya estaba borrado.
+     */
+    boolean borra(int registro)
+    {
+        if(registro<0 || registro>=numRegistros || borrados.get(registro))
+            return false;
+        borrados.set(registro);
+        numBorrados++;
+        return true;
+    }
+
+    /**
+     * Inserta nodos ya borrados en posiciones concretas, desplazando el resto.
+     * Se usa al recuperar el diario para que los indices coincidan con los que
+     * habia cuando se escribio (los nodos borrados siguen ocupando su posicion
+     * hasta compactar). Los identificadores vuelven a coincidir con las posiciones,
+     * ya que todavia no se han dado a nadie.
+     * @param posiciones posiciones finales de los nodos, de menor a mayor.
+     * @param titulos nombre de cada nodo.
+     * @param campos titulos de los campos de cada nodo.
+     * @param valores valores de los campos de cada nodo.
+     */
+    void insertaBorrados(int[] posiciones, String[] titulos, String[][] campos, String[][] valores)
+    {
+        int[] idFormatos = new int[posiciones.length];
+        for (int i = 0; i < posiciones.length; i++)
+            idFormatos[i] = buscaFormato(titulos[i], campos[i]);
+
+        int total = numRegistros + posiciones.length;
+        if(total>formatoRegistros.length)
+            formatoRegistros = Arrays.copyOf(formatoRegistros, total);
+        abreHuecos(formatoRegistros, posiciones, numRegistros);
+        if(atributos!=null)
+        {
+            atributos = Arrays.copyOf(atributos, Math.max(total, formatoRegistros.length));
+            abreHuecos(atributos, posiciones, numRegistros);
+        }
+        if(atributosCampos!=null)
+        {
+            atributosCampos = Arrays.copyOf(atributosCampos, Math.max(total, formatoRegistros.length));
+            abreHuecos(atributosCampos, posiciones, numRegistros);
+        }
+        for (Columna columna : columnas)
+            columna.abreHuecos(posiciones, numRegistros);
+        if(tramos!=null)
+            tramos.abreHuecos(posiciones, numRegistros);
+        BitSet anteriores = (BitSet)borrados.clone();
+        borrados.clear();
+        for (int i = anteriores.nextSetBit(0), desplazamiento = 0; i >= 0; i = anteriores.nextSetBit(i+1))
+        {
+            while(desplazamiento<posiciones.length && posiciones[desplazamiento]<=i+desplazamiento)
+                desplazamiento++;
+            borrados.set(i + desplazamiento);
+        }
+        numRegistros = total;
+        ids = null;
+        siguienteId = total;
+
+        for (int i = 0; i < posiciones.length; i++)
+        {
+            int registro = posiciones[i];
+            formatoRegistros[registro] = idFormatos[i];
+            if(atributos!=null)
+                atributos[registro] = null;
+            if(atributosCampos!=null)
+                atributosCampos[registro] = null;
+            int[] columnasFormato = formatos.get(idFormatos[i]).columnas;
+            for (int j = 0; j < columnasFormato.length; j++)
+                columnas.get(columnasFormato[j]).set(registro, valores[i][j]==null ? "" : valores[i][j]);
+            borrados.set(registro);
+        }
+        numBorrados += posiciones.length;
+    }
+
+    /**
+     * Desplaza los elementos de un array para dejar huecos en las posiciones indicadas.
+     * El array tiene que tener sitio para numAntes + huecos.length elementos.
+     * @param array array de cualquier tipo.
+     * @param huecos posiciones finales de los huecos, de menor a mayor.
+     * @param numAntes numero de elementos usados antes de abrir los huecos.
+     */
+    static void abreHuecos(Object array, int[] huecos, int numAntes)
+    {
+        int fin = numAntes;
+        for (int i = huecos.length-1; i >= 0; i--)
+        {
+            //Los elementos desde huecos[i]-i quedan detras de i+1 huecos.
+            int inicio = Math.min(huecos[i] - i, fin);
+            System.arraycopy(array, inicio, array, inicio + i + 1, fin - inicio);
+            fin = inicio;
+        }
+    }
+
+    /**
+     * Quita definitivamente los nodos borrados; los siguientes nodos cambian de
+     * posicion pero conservan su identificador.
+     * @return true si habia algun nodo borrado.
+     */
+    boolean compacta()
+    {
+        if(numBorrados==0)
+            return false;
+        for (Columna columna : columnas)
+            columna.compacta(borrados, numRegistros);
+        if(tramos!=null)
+            tramos.compacta(borrados, numRegistros);
+        if(ids==null)
+        {
+            ids = new int[formatoRegistros.length];
+            for (int i = 0; i < numRegistros; i++)
+                ids[i] = i;
+        }
+        int destino = 0;
+        for (int i = 0; i < numRegistros; i++)
+        {
+            if(borrados.get(i))
+                continue;
+            formatoRegistros[destino] = formatoRegistros[i];
+            ids[destino] = ids[i];
+            if(atributos!=null && destino<atributos.length)
+                atributos[destino] = i<atributos.length ? atributos[i] : null;
+            if(atributosCampos!=null && destino<atributosCampos.length)
+                atributosCampos[destino] = i<atributosCampos.length ? atributosCampos[i] : null;
+            destino++;
+        }
+        if(atributos!=null)
+            Arrays.fill(atributos, Math.min(destino, atributos.length), atributos.length, null);
+        if(atributosCampos!=null)
+            Arrays.fill(atributosCampos, Math.min(destino, atributosCampos.length), atributosCampos.length, null);
+        numRegistros = destino;
+        numBorrados = 0;
+        borrados.clear();
+        return true;
+    }
+
+    /**
+     * Titulo del nodo y columnas de sus campos en orden, compartido por todos
+     * los nodos con la misma estructura.
+     */
+    private static class Formato
+    {
+        private final String titulo;
+        private final String[] campos;
+        private final int[] columnas;
+
+        Formato(String titulo, String[] campos, int[] columnas)
+        {
+            this.titulo = titulo.intern();
+            this.campos = new String[campos.length];
+            for (int i = 0; i < campos.length; i++)
+                this.campos[i] = campos[i].intern();
+            this.columnas = columnas;
+        }
+
+        /**
+         * Comprueba si un nodo tiene este formato.
+         * @param tituloNodo nombre del nodo.
+         * @param camposNodo titulos de los campos en orden.
+         * @return true si coinciden el nombre y todos los campos.
+         */
+        boolean esIgual(String tituloNodo, String[] camposNodo)
+        {
+            return titulo.equals(tituloNodo) && Arrays.equals(campos, camposNodo);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package gestionaxml;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Ficheros abiertos compartidos por todo el programa (ver GestionaXML.compartido).
+ * <p>
+ * Cada fichero se abre una sola vez y se devuelve la misma instancia mientras
+ * el fichero no cambie en disco: en cada peticion se comparan el tamano, la
+ * fecha de modificacion y el identificador del fichero (cambia al sustituirlo
+ * con un renombrado) con los de cuando se abrio, lo que cuesta una sola
+ * llamada al sistema. Si ha cambiado se vuelve a abrir; los que ya tenian la
+ * instancia anterior la pueden seguir usando, porque los guardados de
+ * GestionaXML sustituyen el fichero con un renombrado. Si otro programa lo
+ * reescribe en su sitio, la instancia anterior puede fallar (ver ParserMapeado).
+ * <p>
+ * Los ficheros se expulsan del menos usado al mas usado cuando la suma de sus
+ * tamanos pasa del maximo (la memoria que ocupa un fichero abierto es
+ * proporcional a su tamano). Si dos hilos piden a la vez un fichero que no esta
+ * abierto, solo uno lo abre y el otro espera.
+ * @author neowavila
+ */
+class CacheFicheros
+{
+    private final LinkedHashMap<Path, Entrada> entradas = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long usados;
+
+    /**
+     * Fichero abierto (o abriendose) y como estaba el fichero en disco.
+     */
+    private static class Entrada
+    {
+        final CompletableFuture<GestionaXML> gestor = new CompletableFuture<>();
+        Firma firma;
+
+        Entrada(Firma firma)
+        {
+            this.firma = firma;
+        }
+    }
+
+    /**
+     * Tamano, fecha de modificacion e identificador de un fichero.
+     */
+    private static class Firma
+    {
+        final long tamano;
+        final FileTime modificacion;
+        final Object clave;
+
+        Firma(BasicFileAttributes atributos)
+        {
+            tamano = atributos.size();
+            modificacion = atributos.lastModifiedTime();
+            clave = atributos.fileKey();
+        }
+
+        @Override
+        public boolean equals(Object otro)
+        {
+            if(!(otro instanceof Firma))
+                return false;
+            Firma firma = (Firma)otro;
+            return tamano==firma.tamano && modificacion.equals(firma.modificacion) && Objects.equals(clave, firma.clave);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(tamano, modificacion, clave);
+        }
+    }
+
+    /**
+     * Crea una cache vacia.
+     * @param maxBytes suma maxima del tamano de los ficheros abiertos.
+     */
+    CacheFicheros(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Devuelve el fichero abierto, abriendolo si no lo estaba o si ha cambiado en disco.
+     * Si la apertura lanza una excepcion, la entrada se quita y los que la
+     * esperaban reciben la misma excepcion.
+     * @param ruta ruta del fichero.
+     * @return fichero abierto (compartido).
+     */
+    GestionaXML get(Path ruta)
+    {
+        ruta = ruta.toAbsolutePath().normalize();
+        Firma firma = firma(ruta);
+        if(firma==null)
+            return new GestionaXML(ruta.toString()); //No existe: falla igual que el constructor.
+
+        Entrada entrada;
+        boolean abrir = false;
+        synchronized(this)
+        {
+            entrada = entradas.get(ruta);
+            if(entrada==null || !entrada.firma.equals(firma))
+            {
+                if(entrada!=null)
+                    usados -= entrada.firma.tamano;
+                entrada = new Entrada(firma);
+                entradas.put(ruta, entrada);
+                usados += firma.tamano;
+                expulsa(entrada);
+                abrir = true;
+            }
+        }
+        if(!abrir)
+        {
+            try
+            {
+                return entrada.gestor.join();
+            }
+            catch(CompletionException e)
+            {
+                //Quien lo abria ha fallado: la misma excepcion para todos.
+                if(e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)e.getCause();
+                if(e.getCause() instanceof Error)
+                    throw (Error)e.getCause();
+                throw e;
+            }
+        }
+
+        //La firma es de antes de abrir: si cambia mientras se lee, la siguiente
+        //peticion ya no coincide y se vuelve a abrir.
+        GestionaXML gestor;
+        try
+        {
+            gestor = new GestionaXML(ruta.toString());
+        }
+        catch(RuntimeException | Error e)
+        {
+            //Sin esto los que esperan la entrada se quedarian bloqueados.
+            quita(ruta, entrada);
+            entrada.gestor.completeExceptionally(e);
+            throw e;
+        }
+        if(gestor.estaAbierto())
+            gestor.marcaCompartido();
+        else
+            quita(ruta, entrada);
+        entrada.gestor.complete(gestor);
+        return gestor;
+    }
+
+    /**
+     * Actualiza la firma de un fichero despues de que la propia instancia
+     * compartida lo guarde, para no volver a abrirlo.
+     * @param ruta ruta del fichero.
+     * @param gestor instancia que lo ha guardado.
+     */
+    void refresca(Path ruta, GestionaXML gestor)
+    {
+        ruta = ruta.toAbsolutePath().normalize();
+        Firma firma = firma(ruta);
+        synchronized(this)
+        {
+            Entrada entrada = entradas.get(ruta);
+            if(firma==null || entrada==null || entrada.gestor.getNow(null)!=gestor)
+                return;
+            usados += firma.tamano - entrada.firma.tamano;
+            entrada.firma = firma;
+            expulsa(entrada);
+        }
+    }
+
+    /**
+     * Cambia la suma maxima del tamano de los ficheros abiertos.
+     * @param bytes nuevo maximo.
+     */
+    synchronized void setMaxBytes(long bytes)
+    {
+        maxBytes = bytes;
+        expulsa(null);
+    }
+
+    /**
+     * Olvida todos los ficheros abiertos.
+     */
+    synchronized void vacia()
+    {
+        entradas.clear();
+        usados = 0;
+    }
+
+    /**
+     * Quita una entrada si sigue siendo la de esa ruta.
+     */
+    private synchronized void quita(Path ruta, Entrada entrada)
+    {
+        if(entradas.remove(ruta, entrada))
+            usados -= entrada.firma.tamano;
+    }
+
+    /**
+     * Expulsa los ficheros menos usados hasta no pasar del maximo.
+     * @param conservar entrada que no se expulsa (la que se acaba de pedir).
+     */
+    private void expulsa(Entrada conservar)
+    {
+        Iterator<Map.Entry<Path, Entrada>> it = entradas.entrySet().iterator();
+        while(usados>maxBytes && it.hasNext())
+        {
+            Entrada entrada = it.next().getValue();
+            if(entrada==conservar)
+                continue;
+            it.remove();
+            usados -= entrada.firma.tamano;
+        }
+    }
+
+    /**
+     * Lee la firma de un fichero.
+     * @return firma o null si no se puede leer (no existe).
+     */
+    private static Firma firma(Path ruta)
+    {
+        try
+        {
+            return new Firma(Files.readAttributes(ruta, BasicFileAttributes.class));
+        }
+        catch(IOException e)
+        {
+            return null;
+        }
+    }
+}
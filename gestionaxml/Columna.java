@@ -0,0 +1,184 @@
+package gestionaxml;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Valores de un campo para todos los nodos del fichero, uno por posicion.
+ * Un valor null indica que ese nodo no tiene el campo.
+ * <p>
+ * Si el fichero se ha leido con {@link ParserMapeado}, los valores originales son
+ * trozos del fichero proyectado que se convierten a String al consultarlos; los
+ * valores cambiados despues se guardan como String y tienen preferencia.
+ * @author neowavila
+ */
+class Columna
+{
+    private String[] valores;
+    private long[] trozos;
+    private final ByteBuffer fuente;
+
+    /**
+     * Crea una columna vacia.
+     * @param capacidad numero de nodos que caben sin tener que crecer.
+     */
+    Columna(int capacidad)
+    {
+        valores = new String[Math.max(capacidad, 8)];
+        fuente = null;
+    }
+
+    /**
+     * Crea una columna vacia cuyos valores son trozos de un fichero proyectado.
+     * @param capacidad numero de nodos que caben sin tener que crecer.
+     * @param fuente fichero proyectado.
+     */
+    Columna(int capacidad, ByteBuffer fuente)
+    {
+        valores = new String[8];
+        trozos = new long[Math.max(capacidad, 8)];
+        this.fuente = fuente;
+    }
+
+    /**
+     * Crea una columna con los trozos ya leidos de todos sus nodos (ver Instantanea).
+     * @param trozos trozo de cada nodo, codificado como en ParserMapeado (0 si
+     * el nodo no tiene el campo).
+     * @param fuente fichero proyectado.
+     */
+    Columna(long[] trozos, ByteBuffer fuente)
+    {
+        valores = new String[8];
+        this.trozos = trozos;
+        this.fuente = fuente;
+    }
+
+    /**
+     * Devuelve el valor de un nodo.
+     * @param registro posicion del nodo.
+     * @return valor del campo o null si el nodo no lo tiene.
+     */
+    String get(int registro)
+    {
+        String valor = registro<valores.length ? valores[registro] : null;
+        if(valor!=null || trozos==null || registro>=trozos.length)
+            return valor;
+        return ParserMapeado.texto(fuente, trozos[registro]);
+    }
+
+    /**
+     * Copia el valor de un nodo como caracteres sin crear ningun String, si se
+     * puede (ver ParserMapeado.copiaTexto).
+     * @param registro posicion del nodo.
+     * @param destino donde se copian los caracteres.
+     * @return numero de caracteres copiados, o -1 si hay que leerlo con get().
+     */
+    int copia(int registro, char[] destino)
+    {
+        String valor = registro<valores.length ? valores[registro] : null;
+        if(valor!=null)
+        {
+            if(valor.length()>destino.length)
+                return -1;
+            valor.getChars(0, valor.length(), destino, 0);
+            return valor.length();
+        }
+        if(trozos==null || registro>=trozos.length)
+            return -1;
+        return ParserMapeado.copiaTexto(fuente, trozos[registro], destino);
+    }
+
+    /**
+     * Copia los bytes UTF-8 del valor de un nodo si es un trozo que no hay que
+     * desescapar (ver ParserMapeado.copiaBytes).
+     * @param registro posicion del nodo.
+     * @param destino donde se copian los bytes.
+     * @return numero de bytes copiados, o -1 si hay que leerlo con get().
+     */
+    int copiaBytes(int registro, byte[] destino)
+    {
+        if(registro<valores.length && valores[registro]!=null)
+            return -1;
+        if(trozos==null || registro>=trozos.length)
+            return -1;
+        return ParserMapeado.copiaBytes(fuente, trozos[registro], destino);
+    }
+
+    /**
+     * Cambia el valor de un nodo, creciendo si hace falta.
+     * @param registro posicion del nodo.
+     * @param valor nuevo valor (null para quitar el campo).
+     */
+    void set(int registro, String valor)
+    {
+        if(registro>=valores.length)
+            valores = Arrays.copyOf(valores, Math.max(registro+1, valores.length + (valores.length >> 1)));
+        valores[registro] = valor;
+        if(trozos!=null && registro<trozos.length)
+            trozos[registro] = 0;
+    }
+
+    /**
+     * Guarda el valor de un nodo como trozo del fichero proyectado.
+     * @param registro posicion del nodo.
+     * @param trozo trozo codificado como en ParserMapeado.
+     */
+    void setTrozo(int registro, long trozo)
+    {
+        if(registro>=trozos.length)
+            trozos = Arrays.copyOf(trozos, Math.max(registro+1, trozos.length + (trozos.length >> 1)));
+        trozos[registro] = trozo;
+    }
+
+    /**
+     * Abre huecos vacios en las posiciones indicadas desplazando el resto de nodos.
+     * @param huecos posiciones finales de los huecos, de menor a mayor.
+     * @param numRegistros numero de nodos antes de abrir los huecos.
+     */
+    void abreHuecos(int[] huecos, int numRegistros)
+    {
+        int total = numRegistros + huecos.length;
+        if(total>valores.length)
+            valores = Arrays.copyOf(valores, total);
+        AlmacenRegistros.abreHuecos(valores, huecos, numRegistros);
+        for (int hueco : huecos)
+            valores[hueco] = null;
+        if(trozos!=null)
+        {
+            if(total>trozos.length)
+                trozos = Arrays.copyOf(trozos, total);
+            AlmacenRegistros.abreHuecos(trozos, huecos, numRegistros);
+            for (int hueco : huecos)
+                trozos[hueco] = 0;
+        }
+    }
+
+    /**
+     * Quita los nodos borrados desplazando el resto hacia el principio.
+     * @param borrados posiciones de los nodos borrados.
+     * @param numRegistros numero de nodos antes de compactar.
+     */
+    void compacta(BitSet borrados, int numRegistros)
+    {
+        int destino = 0;
+        int limite = Math.min(numRegistros, valores.length);
+        for (int i = 0; i < limite; i++)
+        {
+            if(!borrados.get(i))
+                valores[destino++] = valores[i];
+        }
+        Arrays.fill(valores, destino, limite, null);
+        if(trozos!=null)
+        {
+            destino = 0;
+            limite = Math.min(numRegistros, trozos.length);
+            for (int i = 0; i < limite; i++)
+            {
+                if(!borrados.get(i))
+                    trozos[destino++] = trozos[i];
+            }
+            Arrays.fill(trozos, destino, limite, 0);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package gestionaxml;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Confirmacion en grupo de los guardados atomicos de un fichero.
+ * <p>
+ * Cada guardado escribe su fichero temporal en el hilo que lo pide (asi se
+ * guarda el estado de ese momento), pero no lo fuerza a disco. Los guardados
+ * que llegan dentro de la misma ventana de tiempo se confirman juntos: solo el
+ * temporal mas nuevo se fuerza a disco y se renombra encima del destino, y los
+ * demas se borran sin llegar a sincronizarse. Todos los que esperaban reciben
+ * el resultado de esa unica sincronizacion.
+ * <p>
+ * Los temporales pueden llegar desordenados (se escriben con el cerrojo de
+ * lectura pero se agregan despues de soltarlo), asi que cada uno trae la
+ * version de los datos que contiene y solo se publica si es mas nueva que
+ * todas las anteriores, tambien las de grupos que ya se estan confirmando.
+ * <p>
+ * Los guardados que no esperan (guardar, guardarAtomico y los puntos de control
+ * del diario) publican su propio fichero, asi que antes avisan con
+ * iniciaSincrono: el temporal pendiente se descarta, porque es igual o mas viejo,
+ * y se espera a que termine el grupo que ya se este publicando. Quien esperaba
+ * el grupo descartado recibe el resultado del guardado que lo sustituye.
+ * @author neowavila
+ */
+class ConfirmacionGrupo
+{
+    private static final ScheduledExecutorService HILO = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread hilo = new Thread(r, "GestionaXML-confirmacion");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+
+    private final Path destino;
+    private long ventanaMs;
+    private Path pendiente;
+    /** Version mas nueva agregada (pendiente, confirmandose o ya en disco). */
+    private long ultimaVersion = -1;
+    /** Resultado del grupo (o guardado sin esperar) con la version mas nueva. */
+    private CompletableFuture<Boolean> grupo;
+    /** Resultado de los guardados sin esperar en curso, o null si no hay ninguno. */
+    private CompletableFuture<Boolean> sincrono;
+    private int numSincronos;
+    private boolean sincronosCorrectos;
+    /** Se tiene mientras se publica un temporal, para no pisar un guardado sin esperar. */
+    private final Object publicando = new Object();
+
+    /**
+     * Crea el grupo de confirmacion de un fichero.
+     * @param destino fichero que se sustituye al confirmar.
+     * @param ventanaMs milisegundos que se espera a otros guardados antes de sincronizar.
+     */
+    ConfirmacionGrupo(Path destino, long ventanaMs)
+    {
+        this.destino = destino;
+        this.ventanaMs = ventanaMs;
+    }
+
+    /**
+     * Cambia la ventana de los grupos que empiecen a partir de ahora.
+     * @param ventanaMs milisegundos que se espera a otros guardados antes de sincronizar.
+     */
+    synchronized void setVentana(long ventanaMs)
+    {
+        this.ventanaMs = ventanaMs;
+    }
+
+    /**
+     * Agrega un temporal ya escrito al grupo actual.
+     * @param temporal fichero temporal con el nuevo contenido (sin sincronizar).
+     * @param version version de los datos del temporal (mayor cuanto mas nuevos).
+     * @return se completa con true cuando el contenido (o uno posterior) ya esta
+     * en disco, o con false si la confirmacion ha fallado.
+     */
+    synchronized CompletableFuture<Boolean> agrega(Path temporal, long version)
+    {
+        if(version<=ultimaVersion)
+        {
+            borra(temporal); //Ya hay uno igual o mas nuevo pendiente o confirmado.
+            return grupo.copy();
+        }
+        ultimaVersion = version;
+        if(pendiente!=null)
+            borra(pendiente); //Lo sustituye este, que es mas nuevo.
+        else
+        {
+            grupo = new CompletableFuture<>();
+            HILO.schedule(this::confirma, ventanaMs, TimeUnit.MILLISECONDS);
+        }
+        pendiente = temporal;
+        return grupo.copy();
+    }
+
+    /**
+     * Avisa de que se va a publicar el fichero sin pasar por el grupo. Hay que
+     * llamarlo con el cerrojo de lectura del fichero (asi la version no cambia
+     * hasta publicarlo) y despues llamar siempre a terminaSincrono.
+     * @param version version de los datos que se van a publicar.
+     */
+    void iniciaSincrono(long version)
+    {
+        CompletableFuture<Boolean> descartado = null;
+        synchronized(publicando)
+        {
+            synchronized(this)
+            {
+                ultimaVersion = Math.max(ultimaVersion, version);
+                if(sincrono==null)
+                {
+                    sincrono = new CompletableFuture<>();
+                    sincronosCorrectos = true;
+                }
+                numSincronos++;
+                if(pendiente!=null)
+                {
+                    borra(pendiente); //Es igual o mas viejo que lo que se va a publicar.
+                    pendiente = null;
+                    descartado = grupo;
+                }
+                grupo = sincrono;
+            }
+        }
+        if(descartado!=null)
+            sincrono.thenAccept(descartado::complete);
+    }
+
+    /**
+     * Avisa de que ha terminado un guardado avisado con iniciaSincrono.
+     * @param correcto true si se ha publicado.
+     */
+    void terminaSincrono(boolean correcto)
+    {
+        CompletableFuture<Boolean> terminado;
+        boolean resultado;
+        synchronized(this)
+        {
+            sincronosCorrectos &= correcto;
+            if(--numSincronos>0)
+                return;
+            resultado = sincronosCorrectos;
+            terminado = sincrono;
+            sincrono = null;
+        }
+        //Como los grupos, se completa en el hilo de confirmacion y no en el de
+        //quien guarda, que puede tener el cerrojo del fichero.
+        HILO.execute(() -> terminado.complete(resultado));
+    }
+
+    /**
+     * Sincroniza y publica el temporal mas nuevo del grupo y avisa a todos los
+     * que esperan. Los grupos de un fichero se confirman de uno en uno y en
+     * orden, porque todos usan el mismo hilo. Si un guardado sin esperar ha
+     * descartado el temporal no hay nada que publicar.
+     */
+    private void confirma()
+    {
+        CompletableFuture<Boolean> lote;
+        boolean correcto;
+        synchronized(publicando)
+        {
+            Path temporal;
+            synchronized(this)
+            {
+                temporal = pendiente;
+                lote = grupo;
+                pendiente = null;
+            }
+            if(temporal==null)
+                return;
+
+            try
+            {
+                GuardadoAtomico.sincroniza(temporal);
+                GuardadoAtomico.publica(temporal, destino);
+                correcto = true;
+            }
+            catch(IOException e)
+            {
+                borra(temporal);
+                correcto = false;
+            }
+        }
+        lote.complete(correcto);
+    }
+
+    /**
+     * Borra un temporal que ya no se va a publicar.
+     * @param temporal fichero a borrar.
+     */
+    private static void borra(Path temporal)
+    {
+        try
+        {
+            Files.deleteIfExists(temporal);
+        }
+        catch(IOException e)
+        {
+            //Solo queda un temporal oculto en la carpeta.
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package gestionaxml;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.function.Consumer;
+
+/**
+ * Cruce (join) de los nodos de dos ficheros por el valor de un campo: cada
+ * pareja de nodos con el mismo valor da una fila con los campos de los dos, en
+ * el formato de getNodo (String[n][0] = Campo, String[n][1] = Informacion),
+ * primero los del fichero izquierdo y despues los del derecho.
+ * <p>
+ * Se construye una tabla con los valores del fichero con menos nodos (o se usa
+ * su indice si lo tiene, ver IndiceCampo) y se recorre el otro una vez,
+ * buscando cada valor en la tabla, con lo que el coste es O(n + m) en vez de
+ * O(n * m). Si el fichero grande ya tiene indice del campo se usa ese indice
+ * como tabla y solo se recorre el pequeno. La tabla solo guarda el valor y el indice de cada nodo, no sus
+ * filas, y como mucho maxNodosTabla nodos: si el fichero pequeno tiene mas, sus
+ * nodos se reparten por el hash del valor en varias tablas y el otro fichero
+ * se recorre una vez por tabla.
+ * <p>
+ * Las filas salen en el orden del fichero que se recorre (por tabla si hay
+ * varias). En un cruce por la izquierda los nodos izquierdos sin pareja salen
+ * solo con sus campos: junto a las demas si se recorre el izquierdo, o al final
+ * si la tabla es del izquierdo.
+ * @author neowavila
+ */
+class Cruce
+{
+    /** Nodos que caben por defecto en la tabla de un cruce. */
+    static final int MAX_NODOS_TABLA = 1 << 20;
+
+    private final AlmacenRegistros izquierdo;
+    private final AlmacenRegistros derecho;
+    private final boolean tablaIzquierda;
+    private final Consumer<String[][]> destino;
+    private long numFilas;
+    private boolean conIndice;
+
+    private Cruce(AlmacenRegistros izquierdo, AlmacenRegistros derecho, boolean tablaIzquierda,
+            Consumer<String[][]> destino)
+    {
+        this.izquierdo = izquierdo;
+        this.derecho = derecho;
+        this.tablaIzquierda = tablaIzquierda;
+        this.destino = destino;
+    }
+
+    /**
+     * Cruza los nodos no borrados de dos ficheros. Si el fichero con mas nodos
+     * tiene indice del campo se recorre el pequeno buscando en ese indice; si
+     * no, la tabla es del pequeno (con su indice si lo tiene).
+     * @param izquierdo nodos del fichero izquierdo.
+     * @param indicesIzquierdo indices del fichero izquierdo.
+     * @param campoIzquierdo titulo del campo en el fichero izquierdo.
+     * @param derecho nodos del fichero derecho.
+     * @param indicesDerecho indices del fichero derecho.
+     * @param campoDerecho titulo del campo en el fichero derecho.
+     * @param conservaIzquierdo true para devolver tambien los nodos izquierdos sin pareja.
+     * @param destino recibe cada fila.
+     * @param maxNodosTabla numero maximo de nodos en cada tabla.
+     * @return el cruce terminado (ver getNumFilas y conIndice).
+     */
+    static Cruce cruza(AlmacenRegistros izquierdo, GestorIndices indicesIzquierdo, String campoIzquierdo,
+            AlmacenRegistros derecho, GestorIndices indicesDerecho, String campoDerecho,
+            boolean conservaIzquierdo, Consumer<String[][]> destino, int maxNodosTabla)
+    {
+        int vivosIzquierdo = izquierdo.numRegistros() - izquierdo.numBorrados();
+        int vivosDerecho = derecho.numRegistros() - derecho.numBorrados();
+        boolean menorIzquierdo = vivosIzquierdo<vivosDerecho;
+        //Si el fichero grande tiene indice basta con recorrer el pequeno.
+        IndiceCampo indiceMayor = menorIzquierdo ? indicesDerecho.getIndice(campoDerecho)
+                : indicesIzquierdo.getIndice(campoIzquierdo);
+        boolean tablaIzquierda = indiceMayor!=null ? !menorIzquierdo : menorIzquierdo;
+        Cruce cruce = new Cruce(izquierdo, derecho, tablaIzquierda, destino);
+        if(tablaIzquierda)
+            cruce.cruza(izquierdo, izquierdo.columna(campoIzquierdo),
+                    indiceMayor!=null ? indiceMayor : indicesIzquierdo.getIndice(campoIzquierdo),
+                    derecho, derecho.columna(campoDerecho), conservaIzquierdo, maxNodosTabla);
+        else
+            cruce.cruza(derecho, derecho.columna(campoDerecho),
+                    indiceMayor!=null ? indiceMayor : indicesDerecho.getIndice(campoDerecho),
+                    izquierdo, izquierdo.columna(campoIzquierdo), conservaIzquierdo, maxNodosTabla);
+        return cruce;
+    }
+
+    /**
+     * @return numero de filas devueltas.
+     */
+    long getNumFilas()
+    {
+        return numFilas;
+    }
+
+    /**
+     * @return true si se ha usado el indice del campo en vez de construir la tabla.
+     */
+    boolean conIndice()
+    {
+        return conIndice;
+    }
+
+    /**
+     * Construye las tablas de un fichero y recorre el otro buscando sus valores.
+     */
+    private void cruza(AlmacenRegistros tabla, int columnaTabla, IndiceCampo indiceTabla,
+            AlmacenRegistros recorrido, int columnaRecorrido, boolean conservaIzquierdo, int maxNodosTabla)
+    {
+        conIndice = indiceTabla!=null;
+        BitSet emparejados = conservaIzquierdo && tablaIzquierda ? new BitSet() : null;
+        int vivosTabla = tabla.numRegistros() - tabla.numBorrados();
+        int numTablas = indiceTabla!=null ? 1 : Math.max(1, (int)((vivosTabla + (long)maxNodosTabla - 1) / maxNodosTabla));
+        for (int parte = 0; parte < numTablas; parte++)
+        {
+            HashMap<String, ListaEnteros> valores = indiceTabla!=null ? null
+                    : construye(tabla, columnaTabla, parte, numTablas);
+            for (int i = 0; i < recorrido.numRegistros(); i++)
+            {
+                if(recorrido.estaBorrado(i))
+                    continue;
+                String valor = columnaRecorrido<0 || columnaTabla<0 ? null : recorrido.valor(i, columnaRecorrido);
+                if(valor!=null && numTablas>1 && parte(valor, numTablas)!=parte)
+                    continue; //Su pareja, si la tiene, esta en otra tabla.
+                if(valor==null && parte>0)
+                    continue; //Sin valor: ya se ha visto en la primera tabla.
+                int numParejas = 0;
+                if(valor!=null && indiceTabla!=null)
+                {
+                    int[] parejas = indiceTabla.busca(valor);
+                    for (int pareja : parejas)
+                        emite(pareja, i, emparejados);
+                    numParejas = parejas.length;
+                }
+                else if(valor!=null)
+                {
+                    ListaEnteros parejas = valores.get(valor);
+                    for (int j = 0; parejas!=null && j < parejas.tam(); j++)
+                        emite(parejas.get(j), i, emparejados);
+                    numParejas = parejas==null ? 0 : parejas.tam();
+                }
+                if(numParejas==0 && conservaIzquierdo && !tablaIzquierda)
+                    emite(i, -1);
+            }
+        }
+        if(emparejados!=null)
+        {
+            for (int i = 0; i < izquierdo.numRegistros(); i++)
+                if(!izquierdo.estaBorrado(i) && !emparejados.get(i))
+                    emite(i, -1);
+        }
+    }
+
+    /**
+     * Construye la tabla de valores de una parte de los nodos.
+     * @param parte parte de los nodos (por el hash de su valor).
+     * @param numTablas numero de partes.
+     * @return nodos de cada valor, de menor a mayor.
+     */
+    private static HashMap<String, ListaEnteros> construye(AlmacenRegistros tabla, int columna, int parte, int numTablas)
+    {
+        HashMap<String, ListaEnteros> valores = new HashMap<>();
+        if(columna<0)
+            return valores;
+        for (int i = 0; i < tabla.numRegistros(); i++)
+        {
+            if(tabla.estaBorrado(i))
+                continue;
+            String valor = tabla.valor(i, columna);
+            if(valor!=null && (numTablas==1 || parte(valor, numTablas)==parte))
+                valores.computeIfAbsent(valor, v -> new ListaEnteros(1)).agrega(i);
+        }
+        return valores;
+    }
+
+    /**
+     * Devuelve la parte (tabla) a la que va un valor.
+     */
+    private static int parte(String valor, int numTablas)
+    {
+        int hash = valor.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), numTablas);
+    }
+
+    /**
+     * Devuelve la fila de una pareja de nodos de la tabla y del recorrido.
+     */
+    private void emite(int nodoTabla, int nodoRecorrido, BitSet emparejados)
+    {
+        if(tablaIzquierda)
+        {
+            if(emparejados!=null)
+                emparejados.set(nodoTabla);
+            emite(nodoTabla, nodoRecorrido);
+        }
+        else
+            emite(nodoRecorrido, nodoTabla);
+    }
+
+    /**
+     * Devuelve la fila de una pareja de nodos.
+     * @param nodoIzquierdo nodo del fichero izquierdo.
+     * @param nodoDerecho nodo del fichero derecho, o -1 si no tiene pareja.
+     */
+    private void emite(int nodoIzquierdo, int nodoDerecho)
+    {
+        String[] campos = izquierdo.getCampos(nodoIzquierdo);
+        String[] valores = izquierdo.getValores(nodoIzquierdo);
+        String[] camposDerecho = nodoDerecho<0 ? new String[0] : derecho.getCampos(nodoDerecho);
+        String[] valoresDerecho = nodoDerecho<0 ? new String[0] : derecho.getValores(nodoDerecho);
+        String[][] fila = new String[campos.length + camposDerecho.length][];
+        for (int i = 0; i < campos.length; i++)
+            fila[i] = new String[]{campos[i], valores[i]};
+        for (int i = 0; i < camposDerecho.length; i++)
+            fila[campos.length + i] = new String[]{camposDerecho[i], valoresDerecho[i]};
+        numFilas++;
+        destino.accept(fila);
+    }
+}
@@ -0,0 +1,626 @@
+package gestionaxml;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Diario de cambios (write-ahead log) que se guarda junto al XML con la extension
+ * ".diario". Cada creaNodo, cambiaInfo, borraNodo y recargaNodosRaiz se anota al
+ * final del diario como un registro binario pequeno antes de aplicarse, asi que un
+ * cambio cuesta una escritura secuencial en vez de reescribir todo el XML.
+ * <p>
+ * Formato: cabecera (magia, tamano y fecha de modificacion del XML al que se
+ * aplica) y despues registros {@code [longitud][tipo][datos][crc32]}. Al abrir,
+ * los registros se reproducen sobre el XML; si el ultimo esta cortado (el
+ * programa murio a mitad de escribirlo) se descarta. Si la cabecera no coincide
+ * con el XML actual, el diario es de antes de un punto de control que ya se
+ * publico y se ignora.
+ * <p>
+ * Los nodos borrados conservan su posicion hasta compactar, asi que al empezar un
+ * diario nuevo se anotan los borrados pendientes (que no estan en el XML) para
+ * que al reproducirlo los indices de los nodos sean los mismos.
+ * @author neowavila
+ */
+class DiarioCambios implements Closeable
+{
+    private static final int MAGIA = 0x47584431; //"GXD1"
+    private static final int TAM_CABECERA = 4 + 8 + 8;
+    private static final byte CREA = 1;
+    private static final byte CAMBIA = 2;
+    private static final byte BORRA = 3;
+    private static final byte COMPACTA = 4;
+    private static final byte BORRADO_PENDIENTE = 5;
+    private static final int MAX_REGISTRO = 1 << 30;
+
+    private final FileChannel canal;
+    private final CRC32 crc = new CRC32();
+    private byte[] buffer = new byte[256];
+    private int longitud;
+    private int inicioRegistro;
+    private volatile boolean sincroniza;
+    private long tamano;
+
+    private DiarioCambios(FileChannel canal) throws IOException
+    {
+        this.canal = canal;
+        this.tamano = canal.size();
+        canal.position(tamano);
+    }
+
+    /**
+     * Devuelve la ruta del diario de un fichero XML.
+     * @param xml ruta del fichero XML.
+     * @return ruta del diario.
+     */
+    static Path rutaDiario(Path xml)
+    {
+        Path absoluto = xml.toAbsolutePath();
+        return absoluto.resolveSibling(absoluto.getFileName() + ".diario");
+    }
+
+    /**
+     * Indica si el fichero XML tiene diario.
+     * @param xml ruta del fichero XML.
+     * @return true si existe el diario.
+     */
+    static boolean existe(Path xml)
+    {
+        return Files.exists(rutaDiario(xml));
+    }
+
+    /**
+     * Reproduce el diario de un XML sobre sus nodos recien leidos y lo deja abierto
+     * para seguir anotando. Si el diario no corresponde al XML actual se sustituye
+     * por uno vacio.
+     * @param xml ruta del fichero XML.
+     * @param almacen nodos leidos del XML, se modifican con los cambios del diario.
+     * @return diario abierto.
+     * @throws IOException si no se puede leer o escribir el diario.
+     */
+    static DiarioCambios recupera(Path xml, AlmacenRegistros almacen) throws IOException
+    {
+        Path ruta = rutaDiario(xml);
+        long validos = -1;
+        try(InputStream entrada = new BufferedInputStream(Files.newInputStream(ruta), 1 << 16))
+        {
+            DataInputStream datos = new DataInputStream(entrada);
+            if(cabeceraCoincide(datos, xml))
+                validos = TAM_CABECERA + reproduce(datos, almacen);
+        }
+        catch(EOFException e)
+        {
+            //Cabecera incompleta: el diario se estaba creando.
+        }
+        if(validos<0)
+            return crea(xml, almacen);
+
+        FileChannel canal = FileChannel.open(ruta, StandardOpenOption.WRITE);
+        try
+        {
+            if(canal.size()>validos)
+                canal.truncate(validos);
+            return new DiarioCambios(canal);
+        }
+        catch(IOException e)
+        {
+            canal.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Comprueba que el diario sea del XML en su estado actual.
+     */
+    private static boolean cabeceraCoincide(DataInputStream datos, Path xml) throws IOException
+    {
+        if(datos.readInt()!=MAGIA)
+            throw new IOException("El fichero no es un diario de GestionaXML: " + rutaDiario(xml));
+        long tamanoXML = datos.readLong();
+        long modificacionXML = datos.readLong();
+        return tamanoXML==Files.size(xml) && modificacionXML==fechaModificacion(xml);
+    }
+
+    /**
+     * Aplica los registros del diario al almacen hasta el final o hasta el primer
+     * registro incompleto o danado.
+     * @return bytes de registros validos.
+     */
+    private static long reproduce(DataInputStream datos, AlmacenRegistros almacen) throws IOException
+    {
+        long validos = 0;
+        byte[] registro = new byte[256];
+        CRC32 crc = new CRC32();
+        Pendientes pendientes = new Pendientes();
+        while(true)
+        {
+            int longitud;
+            try
+            {
+                longitud = datos.readInt();
+                if(longitud<=0 || longitud>MAX_REGISTRO)
+                    break;
+                if(longitud>registro.length)
+                    registro = new byte[Math.max(longitud, registro.length * 2)];
+                datos.readFully(registro, 0, longitud);
+                crc.reset();
+                crc.update(registro, 0, longitud);
+                if(datos.readInt()!=(int)crc.getValue())
+                    break;
+            }
+            catch(EOFException e)
+            {
+                break;
+            }
+
+            Lector lector = new Lector(registro, longitud);
+            byte tipo = lector.leeByte();
+            if(tipo==BORRADO_PENDIENTE)
+                pendientes.agrega(lector);
+            else
+            {
+                pendientes.inserta(almacen);
+                aplica(tipo, lector, almacen);
+            }
+            validos += 4 + longitud + 4;
+        }
+        pendientes.inserta(almacen);
+        return validos;
+    }
+
+    /**
+     * Aplica un registro al almacen. Un cambio que ya fallo al hacerse tambien
+     * falla al reproducirlo, por eso los errores se ignoran.
+     */
+    private static void aplica(byte tipo, Lector lector, AlmacenRegistros almacen) throws IOException
+    {
+        switch(tipo)
+        {
+            case CREA:
+                String titulo = lector.leeTexto();
+                String[][] nodo = lector.leeCampos();
+                almacen.agrega(titulo, nodo[0], nodo[1]);
+                break;
+            case CAMBIA:
+                int registro = lector.leeEntero();
+                String campo = lector.leeTexto();
+                String valor = lector.leeTexto();
+                if(registro>=0 && registro<almacen.numRegistros())
+                    almacen.cambia(registro, campo, valor);
+                break;
+            case BORRA:
+                almacen.borra(lector.leeEntero());
+                break;
+            case COMPACTA:
+                almacen.compacta();
+                break;
+            default:
+                throw new IOException("Tipo de registro desconocido en el diario: " + tipo);
+        }
+    }
+
+    /**
+     * Crea un diario vacio para el XML indicado, sustituyendo el que hubiera. Si el
+     * almacen tiene nodos borrados sin compactar se anotan para conservar los indices.
+     * @param xml ruta del fichero XML (el diario va junto a el).
+     * @param almacen nodos en memoria, que tienen que coincidir con el XML.
+     * @return diario abierto.
+     * @throws IOException si no se puede escribir.
+     */
+    static DiarioCambios crea(Path xml, AlmacenRegistros almacen) throws IOException
+    {
+        return publica(xml, escribeTemporal(xml, almacen, xml));
+    }
+
+    /**
+     * Escribe un diario vacio en un fichero temporal, sin sustituir todavia el actual.
+     * En un punto de control primero se publica el XML nuevo y despues el diario: si
+     * el programa muere entre los dos, el diario viejo no coincide con el XML y se
+     * ignora, que es lo correcto porque el XML ya tiene todos sus cambios.
+     * @param xml ruta del fichero XML.
+     * @param almacen nodos en memoria, que tienen que coincidir con base.
+     * @param base fichero cuyo tamano y fecha se guardan en la cabecera (el XML o
+     * el temporal que lo va a sustituir).
+     * @return ruta del temporal, ya forzado a disco.
+     * @throws IOException si no se puede escribir (el temporal se borra).
+     */
+    static Path escribeTemporal(Path xml, AlmacenRegistros almacen, Path base) throws IOException
+    {
+        Path temporal = GuardadoAtomico.creaTemporal(rutaDiario(xml));
+        try(DiarioCambios diario = new DiarioCambios(FileChannel.open(temporal, StandardOpenOption.WRITE)))
+        {
+            ByteBuffer cabecera = ByteBuffer.allocate(TAM_CABECERA);
+            cabecera.putInt(MAGIA).putLong(Files.size(base)).putLong(fechaModificacion(base));
+            cabecera.flip();
+            diario.escribe(cabecera);
+            for (int registro = 0; registro < almacen.numRegistros(); registro++)
+            {
+                if(!almacen.estaBorrado(registro))
+                    continue;
+                diario.inicia(BORRADO_PENDIENTE);
+                diario.agregaEntero(registro);
+                diario.agregaTexto(almacen.getTituloNodo(registro));
+                diario.agregaCampos(almacen.getCampos(registro), almacen.getValores(registro));
+                diario.termina();
+                if(diario.longitud>=1 << 16)
+                    diario.vuelca();
+            }
+            diario.vuelca();
+            diario.canal.force(true);
+            return temporal;
+        }
+        catch(IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(temporal);
+            throw e;
+        }
+    }
+
+    /**
+     * Sustituye el diario del XML por un temporal escrito con escribeTemporal.
+     * @param xml ruta del fichero XML.
+     * @param temporal diario temporal.
+     * @return diario abierto para anotar.
+     * @throws IOException si falla.
+     */
+    static DiarioCambios publica(Path xml, Path temporal) throws IOException
+    {
+        Path ruta = rutaDiario(xml);
+        GuardadoAtomico.publica(temporal, ruta);
+        return new DiarioCambios(FileChannel.open(ruta, StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Fecha de modificacion con la maxima precision que de el sistema de ficheros.
+     */
+    static long fechaModificacion(Path fichero) throws IOException
+    {
+        return Files.getLastModifiedTime(fichero).to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Borra el diario de un XML.
+     * @param xml ruta del fichero XML.
+     * @throws IOException si no se puede borrar.
+     */
+    static void borra(Path xml) throws IOException
+    {
+        Files.deleteIfExists(rutaDiario(xml));
+    }
+
+    /**
+     * Indica si cada anotacion se fuerza a disco (por defecto no: sobrevive a que
+     * el programa muera, pero no a un corte de luz).
+     * @param sincroniza true para forzar cada anotacion a disco.
+     */
+    void setSincroniza(boolean sincroniza)
+    {
+        this.sincroniza = sincroniza;
+    }
+
+    /**
+     * Devuelve el tamano actual del diario.
+     * @return bytes escritos.
+     */
+    long tamano()
+    {
+        return tamano;
+    }
+
+    /**
+     * Anota la creacion de un nodo al final de la lista.
+     * @param titulo nombre del nodo.
+     * @param campos titulos de los campos.
+     * @param valores valores de los campos.
+     * @throws IOException si falla la escritura.
+     */
+    void anotaCreacion(String titulo, String[] campos, String[] valores) throws IOException
+    {
+        inicia(CREA);
+        agregaTexto(titulo);
+        agregaCampos(campos, valores);
+        termina();
+        vuelca();
+    }
+
+    /**
+     * Anota la creacion de varios nodos con una sola escritura.
+     * @param titulo nombre de los nodos.
+     * @param campos titulos de los campos de cada nodo.
+     * @param valores valores de los campos de cada nodo.
+     * @param numNodos numero de nodos a anotar.
+     * @throws IOException si falla la escritura (no se anota ninguno).
+     */
+    void anotaCreaciones(String titulo, String[][] campos, String[][] valores, int numNodos) throws IOException
+    {
+        for (int i = 0; i < numNodos; i++)
+        {
+            inicia(CREA);
+            agregaTexto(titulo);
+            agregaCampos(campos[i], valores[i]);
+            termina();
+        }
+        vuelca();
+    }
+
+    /**
+     * Anota el cambio de valor de un campo.
+     * @param registro posicion del nodo.
+     * @param campo titulo del campo.
+     * @param valor nuevo valor.
+     * @throws IOException si falla la escritura.
+     */
+    void anotaCambio(int registro, String campo, String valor) throws IOException
+    {
+        inicia(CAMBIA);
+        agregaEntero(registro);
+        agregaTexto(campo);
+        agregaTexto(valor);
+        termina();
+        vuelca();
+    }
+
+    /**
+     * Anota el mismo cambio de valor en varios nodos con una sola escritura.
+     * @param registros posiciones de los nodos.
+     * @param campo titulo del campo.
+     * @param valor nuevo valor.
+     * @throws IOException si falla la escritura (no se anota ninguno).
+     */
+    void anotaCambios(int[] registros, String campo, String valor) throws IOException
+    {
+        for (int registro : registros)
+        {
+            inicia(CAMBIA);
+            agregaEntero(registro);
+            agregaTexto(campo);
+            agregaTexto(valor);
+            termina();
+        }
+        vuelca();
+    }
+
+    /**
+     * Anota el borrado de un nodo.
+     * @param registro posicion del nodo.
+     * @throws IOException si falla la escritura.
+     */
+    void anotaBorrado(int registro) throws IOException
+    {
+        inicia(BORRA);
+        agregaEntero(registro);
+        termina();
+        vuelca();
+    }
+
+    /**
+     * Anota el borrado de varios nodos con una sola escritura.
+     * @param registros posiciones de los nodos.
+     * @throws IOException si falla la escritura (no se anota ninguno).
+     */
+    void anotaBorrados(int[] registros) throws IOException
+    {
+        for (int registro : registros)
+        {
+            inicia(BORRA);
+            agregaEntero(registro);
+            termina();
+        }
+        vuelca();
+    }
+
+    /**
+     * Anota que se han compactado los nodos borrados.
+     * @throws IOException si falla la escritura.
+     */
+    void anotaCompactacion() throws IOException
+    {
+        inicia(COMPACTA);
+        termina();
+        vuelca();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        canal.close();
+    }
+
+    /**
+     * Empieza un registro nuevo al final del buffer, dejando sitio para la longitud.
+     */
+    private void inicia(byte tipo)
+    {
+        inicioRegistro = longitud;
+        asegura(5);
+        longitud += 4;
+        buffer[longitud++] = tipo;
+    }
+
+    private void agregaEntero(int valor)
+    {
+        asegura(4);
+        buffer[longitud++] = (byte)(valor >>> 24);
+        buffer[longitud++] = (byte)(valor >>> 16);
+        buffer[longitud++] = (byte)(valor >>> 8);
+        buffer[longitud++] = (byte)valor;
+    }
+
+    /**
+     * Agrega un texto en UTF-8 precedido de su longitud (-1 para null).
+     */
+    private void agregaTexto(String texto)
+    {
+        if(texto==null)
+        {
+            agregaEntero(-1);
+            return;
+        }
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        agregaEntero(bytes.length);
+        asegura(bytes.length);
+        System.arraycopy(bytes, 0, buffer, longitud, bytes.length);
+        longitud += bytes.length;
+    }
+
+    private void agregaCampos(String[] campos, String[] valores)
+    {
+        agregaEntero(campos.length);
+        for (int i = 0; i < campos.length; i++)
+        {
+            agregaTexto(campos[i]);
+            agregaTexto(valores[i]);
+        }
+    }
+
+    private void asegura(int bytes)
+    {
+        if(longitud + bytes + 4>buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(longitud + bytes + 4, buffer.length * 2));
+    }
+
+    /**
+     * Completa la longitud y el crc del registro, que queda en el buffer hasta vuelca().
+     */
+    private void termina()
+    {
+        int datos = longitud - inicioRegistro - 4;
+        crc.reset();
+        crc.update(buffer, inicioRegistro + 4, datos);
+        ByteBuffer registro = ByteBuffer.wrap(buffer);
+        registro.putInt(inicioRegistro, datos);
+        registro.putInt(longitud, (int)crc.getValue());
+        longitud += 4;
+    }
+
+    /**
+     * Escribe al final del diario todos los registros terminados del buffer, en
+     * una sola escritura.
+     */
+    private void vuelca() throws IOException
+    {
+        try
+        {
+            escribe(ByteBuffer.wrap(buffer, 0, longitud));
+        }
+        finally
+        {
+            longitud = 0;
+        }
+        if(sincroniza)
+            canal.force(false);
+    }
+
+    private void escribe(ByteBuffer datos) throws IOException
+    {
+        long inicio = tamano;
+        try
+        {
+            while(datos.hasRemaining())
+                tamano += canal.write(datos);
+        }
+        catch(IOException e)
+        {
+            //Quita lo que se haya escrito a medias para no dejar un registro cortado delante de los siguientes.
+            canal.truncate(inicio);
+            canal.position(inicio);
+            tamano = inicio;
+            throw e;
+        }
+    }
+
+    /**
+     * Nodos borrados pendientes leidos al principio del diario, que se insertan
+     * todos juntos antes del primer cambio.
+     */
+    private static class Pendientes
+    {
+        private ListaEnteros posiciones = new ListaEnteros();
+        private final ArrayList<String> titulos = new ArrayList<>();
+        private final ArrayList<String[]> campos = new ArrayList<>();
+        private final ArrayList<String[]> valores = new ArrayList<>();
+
+        void agrega(Lector lector)
+        {
+            posiciones.agrega(lector.leeEntero());
+            titulos.add(lector.leeTexto());
+            String[][] nodo = lector.leeCampos();
+            campos.add(nodo[0]);
+            valores.add(nodo[1]);
+        }
+
+        void inserta(AlmacenRegistros almacen)
+        {
+            if(titulos.isEmpty())
+                return;
+            almacen.insertaBorrados(posiciones.toArray(), titulos.toArray(new String[0]),
+                    campos.toArray(new String[0][]), valores.toArray(new String[0][]));
+            posiciones = new ListaEnteros();
+            titulos.clear();
+            campos.clear();
+            valores.clear();
+        }
+    }
+
+    /**
+     * Lee los datos de un registro ya comprobado.
+     */
+    private static class Lector
+    {
+        private final ByteBuffer datos;
+
+        Lector(byte[] registro, int longitud)
+        {
+            datos = ByteBuffer.wrap(registro, 0, longitud);
+        }
+
+        byte leeByte()
+        {
+            return datos.get();
+        }
+
+        int leeEntero()
+        {
+            return datos.getInt();
+        }
+
+        String leeTexto()
+        {
+            int bytes = datos.getInt();
+            if(bytes<0)
+                return null;
+            String texto = new String(datos.array(), datos.position(), bytes, StandardCharsets.UTF_8);
+            datos.position(datos.position() + bytes);
+            return texto;
+        }
+
+        /**
+         * Lee una lista de campos.
+         * @return array con los titulos en [0] y los valores en [1].
+         */
+        String[][] leeCampos()
+        {
+            int numCampos = datos.getInt();
+            String[][] campos = new String[2][numCampos];
+            for (int i = 0; i < numCampos; i++)
+            {
+                campos[0][i] = leeTexto();
+                campos[1][i] = leeTexto();
+            }
+            return campos;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package gestionaxml;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Exporta los nodos no borrados a texto delimitado, CSV o JSON (un objeto por
+ * linea), escribiendo cada nodo directamente en el Writer sin construir el
+ * resultado en memoria.
+ * <p>
+ * Cada valor se copia a un buffer de caracteres que se reutiliza: los valores
+ * ASCII sin escapar de un fichero proyectado y los que ya son String se copian
+ * sin crear ningun objeto, asi que exportar un fichero grande no genera basura
+ * por nodo. El resto se convierten a String como al consultarlos.
+ * @author neowavila
+ */
+class Exportador
+{
+    private static final int TAM_BUFFER = 1 << 16;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final AlmacenRegistros almacen;
+    private final Writer salida;
+    private char[] valor = new char[256];
+    private int longitud;
+
+    private Exportador(AlmacenRegistros almacen, Writer salida)
+    {
+        this.almacen = almacen;
+        this.salida = salida instanceof BufferedWriter ? salida : new BufferedWriter(salida, TAM_BUFFER);
+    }
+
+    /**
+     * Escribe un nodo por linea con sus valores en orden unidos por el separador
+     * (el mismo formato que getValorNodos).
+     * @param almacen nodos del fichero.
+     * @param salida donde se escribe (no se cierra).
+     * @param separador texto entre valores.
+     * @throws IOException si falla la escritura.
+     */
+    static void texto(AlmacenRegistros almacen, Writer salida, String separador) throws IOException
+    {
+        Exportador exportador = new Exportador(almacen, salida);
+        exportador.texto(separador);
+    }
+
+    /**
+     * Escribe los nodos en CSV (RFC 4180): una cabecera con los titulos de los
+     * campos y un nodo por linea con un valor por campo (vacio si el nodo no lo
+     * tiene). Los valores con separador, comillas o saltos de linea van entre
+     * comillas.
+     * @param almacen nodos del fichero.
+     * @param salida donde se escribe (no se cierra).
+     * @param separador separador de valores (Ej: ',' o ';').
+     * @throws IOException si falla la escritura.
+     */
+    static void csv(AlmacenRegistros almacen, Writer salida, char separador) throws IOException
+    {
+        if(separador=='"' || separador=='\n' || separador=='\r')
+            throw new IllegalArgumentException("Separador no valido para CSV: " + separador);
+        Exportador exportador = new Exportador(almacen, salida);
+        exportador.csv(separador);
+    }
+
+    /**
+     * Escribe un objeto JSON por linea con los campos de cada nodo. Si un nodo
+     * repite un campo, su valor es un array con todas las apariciones.
+     * @param almacen nodos del fichero.
+     * @param salida donde se escribe (no se cierra).
+     * @throws IOException si falla la escritura.
+     */
+    static void json(AlmacenRegistros almacen, Writer salida) throws IOException
+    {
+        Exportador exportador = new Exportador(almacen, salida);
+        exportador.json();
+    }
+
+    /**
+     * Cuerpo de texto().
+     */
+    private void texto(String separador) throws IOException
+    {
+        for (int registro = 0; registro < almacen.numRegistros(); registro++)
+        {
+            if(almacen.estaBorrado(registro))
+                continue;
+            int[] columnas = almacen.getColumnas(registro);
+            for (int i = 0; i < columnas.length; i++)
+            {
+                if(i>0)
+                    salida.write(separador);
+                if(carga(registro, columnas[i]))
+                    salida.write(valor, 0, longitud);
+            }
+            salida.write('\n');
+        }
+        salida.flush();
+    }
+
+    /**
+     * Cuerpo de csv().
+     */
+    private void csv(char separador) throws IOException
+    {
+        int numColumnas = almacen.numColumnas();
+        for (int columna = 0; columna < numColumnas; columna++)
+        {
+            if(columna>0)
+                salida.write(separador);
+            carga(almacen.getNombreColumna(columna));
+            escribeCSV(separador);
+        }
+        salida.write("\r\n");
+        for (int registro = 0; registro < almacen.numRegistros(); registro++)
+        {
+            if(almacen.estaBorrado(registro))
+                continue;
+            for (int columna = 0; columna < numColumnas; columna++)
+            {
+                if(columna>0)
+                    salida.write(separador);
+                if(carga(registro, columna))
+                    escribeCSV(separador);
+            }
+            salida.write("\r\n");
+        }
+        salida.flush();
+    }
+
+    /**
+     * Cuerpo de json().
+     */
+    private void json() throws IOException
+    {
+        for (int registro = 0; registro < almacen.numRegistros(); registro++)
+        {
+            if(almacen.estaBorrado(registro))
+                continue;
+            int[] columnas = almacen.getColumnas(registro);
+            salida.write('{');
+            boolean primero = true;
+            for (int i = 0; i < columnas.length; i++)
+            {
+                String nombre = almacen.getNombreColumna(columnas[i]);
+                if(apareceAntes(columnas, i, nombre))
+                    continue;
+                if(!primero)
+                    salida.write(',');
+                primero = false;
+                carga(nombre);
+                escribeJSON();
+                salida.write(':');
+                boolean repetido = apareceDespues(columnas, i, nombre);
+                if(repetido)
+                    salida.write('[');
+                for (int j = i; j < columnas.length; j++)
+                {
+                    if(j>i && !nombre.equals(almacen.getNombreColumna(columnas[j])))
+                        continue;
+                    if(j>i)
+                        salida.write(',');
+                    if(!carga(registro, columnas[j]))
+                        longitud = 0;
+                    escribeJSON();
+                }
+                if(repetido)
+                    salida.write(']');
+            }
+            salida.write("}\n");
+        }
+        salida.flush();
+    }
+
+    /**
+     * Indica si el campo ya ha salido antes en el nodo (ya se ha escrito).
+     */
+    private boolean apareceAntes(int[] columnas, int posicion, String nombre)
+    {
+        for (int j = 0; j < posicion; j++)
+            if(nombre.equals(almacen.getNombreColumna(columnas[j])))
+                return true;
+        return false;
+    }
+
+    /**
+     * Indica si el campo se repite mas adelante en el nodo.
+     */
+    private boolean apareceDespues(int[] columnas, int posicion, String nombre)
+    {
+        for (int j = posicion + 1; j < columnas.length; j++)
+            if(nombre.equals(almacen.getNombreColumna(columnas[j])))
+                return true;
+        return false;
+    }
+
+    /**
+     * Copia el valor de una columna de un nodo al buffer.
+     * @return false si el nodo no tiene el campo.
+     */
+    private boolean carga(int registro, int columna)
+    {
+        int copiados = almacen.copiaValor(registro, columna, valor);
+        if(copiados>=0)
+        {
+            longitud = copiados;
+            return true;
+        }
+        String texto = almacen.valor(registro, columna);
+        if(texto==null)
+            return false;
+        carga(texto);
+        return true;
+    }
+
+    /**
+     * Copia un texto al buffer, haciendolo crecer si hace falta.
+     */
+    private void carga(String texto)
+    {
+        if(texto.length()>valor.length)
+            valor = new char[Math.max(texto.length(), valor.length * 2)];
+        texto.getChars(0, texto.length(), valor, 0);
+        longitud = texto.length();
+    }
+
+    /**
+     * Escribe el buffer como valor CSV, entre comillas si hace falta.
+     */
+    private void escribeCSV(char separador) throws IOException
+    {
+        boolean comillas = false;
+        for (int i = 0; i < longitud && !comillas; i++)
+        {
+            char c = valor[i];
+            comillas = c==separador || c=='"' || c=='\n' || c=='\r';
+        }
+        if(!comillas)
+        {
+            salida.write(valor, 0, longitud);
+            return;
+        }
+        salida.write('"');
+        int desde = 0;
+        for (int i = 0; i < longitud; i++)
+        {
+            if(valor[i]=='"')
+            {
+                salida.write(valor, desde, i + 1 - desde);
+                salida.write('"');
+                desde = i + 1;
+            }
+        }
+        salida.write(valor, desde, longitud - desde);
+        salida.write('"');
+    }
+
+    /**
+     * Escribe el buffer como cadena JSON.
+     */
+    private void escribeJSON() throws IOException
+    {
+        salida.write('"');
+        int desde = 0;
+        for (int i = 0; i < longitud; i++)
+        {
+            char c = valor[i];
+            if(c!='"' && c!='\\' && c>=0x20)
+                continue;
+            salida.write(valor, desde, i - desde);
+            desde = i + 1;
+            switch(c)
+            {
+                case '"':
+                    salida.write("\\\"");
+                    break;
+                case '\\':
+                    salida.write("\\\\");
+                    break;
+                case '\n':
+                    salida.write("\\n");
+                    break;
+                case '\r':
+                    salida.write("\\r");
+                    break;
+                case '\t':
+                    salida.write("\\t");
+                    break;
+                default:
+                    salida.write("\\u00");
+                    salida.write(HEX[c >> 4]);
+                    salida.write(HEX[c & 0xF]);
+            }
+        }
+        salida.write(valor, desde, longitud - desde);
+        salida.write('"');
+    }
+}
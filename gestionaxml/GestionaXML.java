@@ -1,20 +1,32 @@
 package gestionaxml;
 
-import com.sun.org.apache.xml.internal.serialize.OutputFormat;
-import com.sun.org.apache.xml.internal.serialize.XMLSerializer;
-import java.awt.List;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import org.w3c.dom.DOMException;
+import javax.xml.stream.XMLStreamException;
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Text;
 import org.xml.sax.SAXException;
 
 /**
@@ -62,42 +74,296 @@ import org.xml.sax.SAXException;
  * </xmp>
  * }
  * </pre>
+ * Se puede usar desde varios hilos a la vez sin cerrojos externos: las
+ * consultas cortas (getValorCampo, getNodo...) no bloquean y solo se repiten
+ * con cerrojo si un cambio se publica mientras leen; las busquedas comparten un
+ * cerrojo de lectura entre ellas, y cada cambio se aplica entero antes de que
+ * nadie lo vea. Los guardados bloquean los cambios pero no las consultas.
  * @author neowavila
  * @version 2.8.0
  */
 public class GestionaXML 
 {
     private final File fichero;
-    private Node[] hijosRaiz;
-    private final Node raiz;
-    private Document doc;
+    private final AlmacenRegistros almacen;
+    private final GestorIndices indices;
+    private int tamBufferGuardado = EscritorXML.TAM_BUFFER_DEFECTO;
+    private volatile int maxNodosCruce = Cruce.MAX_NODOS_TABLA;
+    private long ventanaAgrupadoMs = 10;
+    private ConfirmacionGrupo confirmacion;
+    private final StampedLock cerrojo = new StampedLock();
+    private final Object cerrojoDiario = new Object();
+    private volatile DiarioCambios diario;
+    private volatile long umbralDiario = 64L << 20;
+    private boolean sincronizaDiario;
+    private final AtomicBoolean puntoControlProgramado = new AtomicBoolean();
+    private volatile boolean modificado;
+    /** Numero de cambios anotados: version de los datos (solo cambia con el cerrojo de escritura). */
+    private long version;
+    private final MetricasXML metricas;
+    private volatile RegistrosPerezosos perezosos;
+    private volatile boolean compartido;
+    private volatile double fraccionCompactacion;
+    private volatile long tamanoDisco = -1;
+    private volatile long fechaDisco;
+
+    private static final int TAM_LOTE = 4096;
+    private static final int MIN_NODOS_PARALELO = 1 << 14;
+    /** Orden de los cerrojos en los cruces entre ficheros con el mismo identityHashCode. */
+    private static final Object CERROJO_CRUCES = new Object();
+    private static final ExecutorService PUNTOS_CONTROL = Executors.newSingleThreadExecutor(r -> {
+        Thread hilo = new Thread(r, "GestionaXML-puntoControl");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+    private static final CacheFicheros COMPARTIDOS = new CacheFicheros(Runtime.getRuntime().maxMemory() / 2);
 
     /**
      * Constructor que abre el fichero e inicializa las variables que nos permiten empezar a trabajar con el.
+     * Si el fichero tiene diario de cambios (ver activaDiario) se reproducen sus
+     * cambios y se sigue anotando en el. Si tiene una instantanea al dia (ver
+     * guardaInstantanea) se abre la instantanea en vez de leer el XML.
      * @param rutaXML ruta del fichero XML que queremos trabajar.
      */
     public GestionaXML(String rutaXML) 
+    {
+        this(rutaXML, false);
+    }
+
+    /**
+     * Constructor que abre el fichero, opcionalmente leyendo sus nodos en paralelo:
+     * el fichero se corta en partes que empiezan en una etiqueta de nodo y cada
+     * parte se lee en el {@link ForkJoinPool} comun. Los indices de los nodos son
+     * los mismos que leyendo seguido.
+     * @param rutaXML ruta del fichero XML que queremos trabajar.
+     * @param paralelo true para leer en paralelo (solo compensa en ficheros de varios MB).
+     */
+    public GestionaXML(String rutaXML, boolean paralelo)
+    {
+        this(rutaXML, paralelo, 0);
+    }
+
+    /**
+     * Abre el fichero sin leer sus nodos: se recorre una vez para comprobar su
+     * estructura y apuntar donde empieza cada nodo, y getNodo, getValoresNodo y
+     * getValorCampo leen solo el nodo pedido. Los ultimos tamCache nodos leidos
+     * se guardan en memoria, asi que la memoria y el tiempo de apertura dependen
+     * de los nodos que se usan y no del tamano del fichero.
+     * <p>
+     * El resto de operaciones (busquedas, cambios, guardar...) necesitan todos
+     * los nodos: la primera que se use los lee todos y a partir de ahi el fichero
+     * funciona como abierto con el constructor. Si el fichero no se puede indexar
+     * (ver el constructor) o tiene diario de cambios se abre de forma normal.
+     * @param rutaXML ruta del fichero XML que queremos trabajar.
+     * @param tamCache numero maximo de nodos leidos que se guardan en memoria.
+     * @return fichero abierto.
+     */
+    public static GestionaXML abrePerezoso(String rutaXML, int tamCache)
+    {
+        if(tamCache<=0)
+            throw new IllegalArgumentException("El tamano de la cache tiene que ser positivo: "+tamCache);
+        return new GestionaXML(rutaXML, false, tamCache);
+    }
+
+    /**
+     * Devuelve el fichero abierto compartido por todo el programa: la primera vez
+     * se abre con el constructor y las siguientes se devuelve la misma instancia
+     * sin leer nada, salvo que el fichero haya cambiado en disco (tamano, fecha de
+     * modificacion o fichero sustituido), que se vuelve a abrir. Los guardados de
+     * la propia instancia compartida no cuentan como cambio.
+     * <p>
+     * Como la instancia es la misma para todos, los cambios que haga uno los ven
+     * los demas; si el fichero cambia por fuera, los cambios sin guardar de la
+     * instancia anterior no pasan a la nueva. Los ficheros menos usados se
+     * olvidan cuando la suma de sus tamanos pasa del maximo (ver
+     * setMaxBytesCompartidos). Si el fichero no se puede abrir no se comparte.
+     * @param rutaXML ruta del fichero XML que queremos trabajar.
+     * @return fichero abierto.
+     */
+    public static GestionaXML compartido(String rutaXML)
+    {
+        return COMPARTIDOS.get(Paths.get(rutaXML));
+    }
+
+    /**
+     * Cambia la suma maxima del tamano de los ficheros que guarda compartido
+     * (por defecto la mitad de la memoria maxima de la JVM). Al pasarla se
+     * olvidan los ficheros menos usados; quien ya tenga la instancia la puede
+     * seguir usando.
+     * @param bytes suma maxima en bytes.
+     */
+    public static void setMaxBytesCompartidos(long bytes)
+    {
+        if(bytes<0)
+            throw new IllegalArgumentException("El maximo no puede ser negativo: "+bytes);
+        COMPARTIDOS.setMaxBytes(bytes);
+    }
+
+    /**
+     * Olvida todos los ficheros compartidos, la siguiente llamada a compartido
+     * los vuelve a abrir.
+     */
+    public static void vaciaCompartidos()
+    {
+        COMPARTIDOS.vacia();
+    }
+
+    /**
+     * Abre el fichero.
+     * @param rutaXML ruta del fichero XML que queremos trabajar.
+     * @param paralelo true para leer en paralelo.
+     * @param tamCache mayor que 0 para abrirlo sin leer los nodos (ver abrePerezoso).
+     */
+    private GestionaXML(String rutaXML, boolean paralelo, int tamCache)
     {
         fichero=new File(rutaXML);
-        if(abrir())
+        metricas=new MetricasXML(ruta().toString(), this::numNodosAbiertos);
+        MetricasXML.Lectura lectura=MetricasXML.iniciaLectura();
+        String lector=paralelo ? "paralelo" : "mapeado";
+        AlmacenRegistros abierto=null;
+        apuntaFirma();
+        if(tamCache>0 && !DiarioCambios.existe(ruta()))
+        {
+            perezosos=indexa(tamCache);
+            if(perezosos!=null)
+            {
+                lector="perezoso";
+                abierto=perezosos.getAlmacen();
+            }
+        }
+        if(abierto==null && Instantanea.existe(ruta()))
+        {
+            abierto=leeInstantanea();
+            if(abierto!=null)
+                lector="instantanea";
+        }
+        if(abierto==null)
+            abierto=abrirMapeado(paralelo ? partesLectura() : 1);
+        if(abierto==null)
+        {
+            lector="DOM";
+            abierto=abrir();
+        }
+        if(abierto!=null && DiarioCambios.existe(ruta()))
+            diario=recuperaDiario(abierto);
+        almacen=abierto;
+        metricas.terminaLectura(lectura, abierto==null ? null : lector, fichero.length());
+        if(almacen!=null)
         {
             System.out.println("Archivo abierto con extio");
-            raiz=doc.getFirstChild();
-            hijosRaiz=getNodosRaiz();
+            indices=new GestorIndices(almacen);
         }
         else
         {
-            raiz = null;
-            hijosRaiz = null;
+            indices = null;
             System.out.println("Error abriendo el archivo");
         }
-    }                                                                                         
+    }
+
+    /**
+     * Alternativa al constructor para ficheros grandes: recorre el fichero nodo
+     * a nodo con StAX sin construir el DOM, con memoria constante.
+     * Cada nodo se devuelve en el mismo formato que {@link #getNodo(int)}.
+     * @param rutaXML ruta del fichero XML que queremos recorrer.
+     * @return lector posicionado antes del primer nodo (hay que cerrarlo al terminar).
+     * @throws IOException si no se puede abrir el fichero.
+     * @throws XMLStreamException si el fichero no es un XML valido.
+     */
+    public static LectorXML lector(String rutaXML) throws IOException, XMLStreamException
+    {
+        return new LectorXML(rutaXML);
+    }
 
     /**
-     * Abre el fichero XML y nos permite su lectura/escritura de datos.
-     * @return si ha funcionado o no.
+     * Abre el fichero con el lector rapido: lo proyecta en memoria y guarda los
+     * valores como trozos del fichero que se convierten a String al consultarlos.
+     * @return almacen con los nodos del fichero o null si el fichero tiene mas de
+     * un nivel u otra cosa que el lector rapido no trata (entonces se usa abrir()).
+     * @param partes numero de partes que se leen en paralelo (1 para leer seguido).
+     */
+    private AlmacenRegistros abrirMapeado(int partes)
+    {
+        try
+        {
+            return ParserMapeado.abre(ruta(), partes);
+        }
+        catch(IOException e)
+        {
+            return null;
+        }
+    }
+    /**
+     * Abre la instantanea del fichero (ver guardaInstantanea).
+     * @return almacen con los nodos del fichero o null si la instantanea no
+     * corresponde al fichero actual o no se puede leer (entonces se lee el XML).
+     */
+    private AlmacenRegistros leeInstantanea()
+    {
+        try
+        {
+            return Instantanea.lee(ruta());
+        }
+        catch(IOException | RuntimeException e)
+        {
+            metricas.fallo("leeInstantanea", e);
+            return null;
+        }
+    }
+    /**
+     * Indexa el fichero sin leer sus nodos (ver abrePerezoso).
+     * @param tamCache numero maximo de nodos leidos que se guardan en memoria.
+     * @return nodos sin leer o null si el fichero no se puede indexar.
+     */
+    private RegistrosPerezosos indexa(int tamCache)
+    {
+        try
+        {
+            return ParserMapeado.indexa(ruta(), tamCache);
+        }
+        catch(IOException e)
+        {
+            return null;
+        }
+    }
+    /**
+     * Lee todos los nodos si el fichero se ha abierto con abrePerezoso y todavia
+     * no se han leido. Lo tienen que llamar todas las operaciones salvo getNodo,
+     * getValoresNodo, getValorCampo y getNumNodos, antes de coger el cerrojo.
+     */
+    private void cargaCompleto()
+    {
+        if(perezosos==null)
+            return;
+        long sello = cerrojo.writeLock();
+        try
+        {
+            if(perezosos!=null)
+            {
+                perezosos.carga();
+                perezosos = null;
+            }
+        }
+        finally
+        {
+            cerrojo.unlockWrite(sello);
+        }
+    }
+    /**
+     * Calcula en cuantas partes se lee el fichero en paralelo: varias por hilo para
+     * repartir bien el trabajo, pero de al menos 4 MB cada una.
+     * @return numero de partes.
+     */
+    private int partesLectura()
+    {
+        long porTamano = Math.max(1, fichero.length() / (4 << 20));
+        return (int)Math.min(porTamano, 4L * ForkJoinPool.getCommonPoolParallelism());
+    }
+    /**
+     * Abre el fichero XML y copia sus nodos al almacen por columnas, despues
+     * el DOM se descarta (solo se vuelve a crear al guardar).
+     * @return almacen con los nodos del fichero o null si no ha funcionado.
      */
-    private boolean abrir()
+    private AlmacenRegistros abrir()
     {   
         try
         {
@@ -105,122 +371,83 @@ public class GestionaXML
             factory.setIgnoringComments(true);
             factory.setIgnoringElementContentWhitespace(true);
             DocumentBuilder builder=factory.newDocumentBuilder();
-            doc=builder.parse(fichero);
-            return true;                                                    
+            Document doc=builder.parse(fichero);
+            return AlmacenRegistros.desdeDocumento(doc);
         }
         catch(IOException | ParserConfigurationException | SAXException e)
         {
-            System.out.println(e.toString());
-            return false;
+            metricas.fallo("abrir", e);
+            return null;
         }
     }
     /**
-     * Devuelve un array de Strings con todos los datos de un nodo.
-     * @param n Nodo del que queremos los datos.
+     * Reproduce el diario del fichero sobre los nodos recien leidos.
+     * @param abierto nodos leidos del XML.
+     * @return diario abierto o null si no se ha podido leer (se deja sin tocar).
      */
-    private String[] procesaNodo(Node n)
+    private DiarioCambios recuperaDiario(AlmacenRegistros abierto)
     {
-        NodeList nodos=n.getChildNodes();
-        List datosNodo = new List();
-        
-        for(int i=0; i<nodos.getLength(); i++)
+        try
         {
-            Node ntemp = nodos.item(i);
-            if(ntemp.getNodeType()==Node.ELEMENT_NODE)
-            {
-                //String tituloInfo=ntemp.getNodeName();
-                String info=ntemp.getChildNodes().item(0).getNodeValue();
-                datosNodo.add(info);
-            }
-        }  
-        return datosNodo.getItems();
+            return DiarioCambios.recupera(ruta(), abierto);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            metricas.fallo("recuperaDiario", e);
+            return null;
+        }
     }
     /**
-     * @deprecated mejor usar getIndiceNodo para no tener que trabajar con nodos.
-     * Busca en la lista de hijosRaiz y devuelve el primer nodo que coincida con
-     * el campo y el valor.
-     * @param campo campo a buscar.
-     * @param valorCampo valor del campo a buscar.
-     * @return Nodo que tiene contiene el campo y valor.
+     * Indica si el fichero se ha podido abrir.
+     * @return true si se ha abierto.
      */
-    private Node buscaNodo(String campo, String valorCampo)
+    boolean estaAbierto()
     {
-       Node node;
-       
-       for (int i=0; i<hijosRaiz.length; i++) //Proceso los nodos hijo
-       { 
-           node = hijosRaiz[i];
-           if(node.getNodeType()==Node.ELEMENT_NODE)
-           {
-               //Es un nodo libro que hay que procesar si es de tipo Elemento
-               String valorCampoNodo = GestionaXML.this.getValorCampo(node, campo);
-               if(valorCampo.equals(valorCampoNodo))
-                   return node;
-            }
-       }
-        return null;
+        return almacen!=null;
     }
     /**
-     * Cuenta cuantos nodos de tipo elemento hay en la lista de nodos hijos del raiz.
-     * @return Devuelve cuantos nodos de tipo elemento hay en la lista de nodos hijos del raiz.
+     * Marca la instancia como compartida (ver compartido), para avisar a la
+     * cache cuando se guarde el fichero.
      */
-    private int cuentaNodos()
+    void marcaCompartido()
     {
-        NodeList listaNodos = raiz.getChildNodes();
-        int contador=0;
-        for (int i = 0; i < listaNodos.getLength(); i++) 
-        {
-            Node node = listaNodos.item(i);
-            if(node.getNodeType()==Node.ELEMENT_NODE)
-                contador++;
-        }
-        return contador;
+        compartido = true;
     }
     /**
-     * Devuelve un array con todos los nodos hijos de tipo element del nodo raiz.
-     * @return un array con todos los nodos hijos de tipo element del nodo raiz.
+     * Anota que el fichero en disco ya tiene los cambios: no hace falta punto de
+     * control al desactivar el diario, y si la instancia es compartida la cache
+     * no la vuelve a abrir por este guardado.
      */
-    private Node[] getNodosRaiz()
+    private void guardado()
     {
-        NodeList listaNodos = raiz.getChildNodes();
-        Node[] nodos= new Node[cuentaNodos()];
-        int contador=0;
-        
-        for (int i = 0; i < listaNodos.getLength(); i++) 
+        modificado = false;
+        apuntaFirma();
+        if(compartido)
+            COMPARTIDOS.refresca(ruta(), this);
+    }
+    /**
+     * Apunta el tamano y la fecha de modificacion del fichero en disco cuando se
+     * lee o se guarda, para que guardaInstantanea sepa si sigue siendo el mismo.
+     */
+    private void apuntaFirma()
+    {
+        try
         {
-            Node node = listaNodos.item(i);
-            if (node.getNodeType()==Node.ELEMENT_NODE)
-            {
-                nodos[contador]=listaNodos.item(i);
-                contador++;
-            }
+            fechaDisco = DiarioCambios.fechaModificacion(ruta());
+            tamanoDisco = Files.size(ruta());
+        }
+        catch(IOException e)
+        {
+            tamanoDisco = -1;
         }
-        
-        return nodos;
     }
     /**
-     * Devuelve el valor de un campo contenido en un nodo.
-     * @param n Un nodo.
-     * @param campo titulo del campo que quieres buscar.
-     * @return valor del campo buscado
+     * Devuelve la ruta absoluta del fichero.
+     * @return ruta del fichero XML.
      */
-    private String getValorCampo(Node n, String campo)
+    private Path ruta()
     {
-        //Obtiene los hijos del Libro (titulo y autor)
-        NodeList nodos=n.getChildNodes();
-        Node ntemp;
-        
-         for (int i=0; i<nodos.getLength(); i++)
-         {
-             ntemp = nodos.item(i);
-             if(ntemp.getNodeType()==Node.ELEMENT_NODE)
-             {
-                 String tituloCampo=ntemp.getNodeName();
-                 if(tituloCampo.equals(campo))
-                     return ntemp.getChildNodes().item(0).getNodeValue();
-             }
-         }
-         return "No se ha encontrado el campo";
+        return fichero.getAbsoluteFile().toPath();
     }
     /**
      * Verifica que num exista en el array numeros.
@@ -240,26 +467,36 @@ public class GestionaXML
     
     /**
      * Devuelve el valor de un campo contenido en un nodo.
-     * @param indice posicion del nodo en el array hijosRaiz.
+     * @param indice posicion del nodo en la lista de nodos.
      * @param campo titulo del campo que quieres buscar.
      * @return valor del campo buscado
      */
     public String getValorCampo(int indice, String campo)
     {
-        NodeList nodos=this.hijosRaiz[indice].getChildNodes();
-        Node ntemp;
-        
-        for (int i=0; i<nodos.getLength(); i++)
-        {
-            ntemp = nodos.item(i);
-            if(ntemp.getNodeType()==Node.ELEMENT_NODE)
-            {
-                String tituloCampo=ntemp.getNodeName();
-                if(tituloCampo.equals(campo))
-                    return ntemp.getChildNodes().item(0).getNodeValue();
-            }
-        }
-        return "No se ha encontrado el campo";
+        return consulta(() -> {
+            RegistrosPerezosos sinLeer = perezosos;
+            return sinLeer!=null ? sinLeer.valorCampo(indice, campo) : almacen.valorCampo(indice, campo);
+        });
+    }
+    /**
+     * Devuelve el valor de un campo de un nodo como numero. Si el campo tiene
+     * indice de rangos ya construido (ver creaIndiceRango) el valor ya esta
+     * convertido y no hay que leerlo del nodo.
+     * @param indice posicion del nodo en la lista de nodos.
+     * @param campo titulo del campo que quieres buscar.
+     * @return valor del campo o NaN si el nodo no lo tiene o no es un numero.
+     */
+    public double getValorNumerico(int indice, String campo)
+    {
+        return consulta(() -> {
+            RegistrosPerezosos sinLeer = perezosos;
+            if(sinLeer!=null)
+                return IndiceRango.numero(sinLeer.valorCampo(indice, campo));
+            IndiceRango rango = indices.getIndiceRangoConstruido(campo);
+            if(rango!=null && !almacen.estaBorrado(indice))
+                return rango.numero(indice);
+            return IndiceRango.numero(almacen.valorCampo(indice, campo));
+        });
     }
     
     
@@ -288,25 +525,7 @@ public class GestionaXML
      */
     public String[] getValorNodos()
     {
-       int contador=0;
-       String datos[]= new String[hijosRaiz.length];
-       
-       for(int i=0; i<hijosRaiz.length; i++)
-       { 
-            Node node = hijosRaiz[i];
-            String []datosNodo=procesaNodo(node);
-            //Inicializamos a vacio para que al hacer la suma no pille el null.
-            datos[contador]="";
-            //Guardamos los datos en salida.
-            for(int j=0; j<datosNodo.length; j++)
-                datos[contador]+=datosNodo[j]+"-";
-            //Eliminamos el ultimo "-".
-            datos[contador]=datos[contador].substring(0, datos[contador].length()-1);
-
-            contador++;
-       }
-
-       return datos;
+       return getValorNodos("-");
     }
     /**
      * Devuelve un array de Strings con el contenidos de los nodos hijos de la 
@@ -329,56 +548,131 @@ public class GestionaXML
      * }
      * </pre>
      * Ej String[]: {"Rosa-1","Lirio-2"}
+     * Para ficheros grandes es mejor exporta(Writer, String), que escribe las
+     * filas segun las genera en vez de guardarlas todas en memoria.
      * @return String[] valores de los nodos hijos de la lista de hijos principal.
      * @param separador separador para los valores del String.
      */
     public String[] getValorNodos(String separador)
     {
-       int contador=0;
-       String datos[]= new String[hijosRaiz.length];
+       cargaCompleto();
+       return consulta(() -> valorNodos(separador));
+    }
+    /**
+     * Cuerpo de getValorNodos(separador), sin cerrojo.
+     * @param separador separador para los valores del String.
+     * @return String[] valores de los nodos.
+     */
+    private String[] valorNodos(String separador)
+    {
+       int numNodos = almacen.numRegistros();
+       String datos[]= new String[numNodos];
+       StringBuilder fila = new StringBuilder();
        
-       for(int i=0; i<hijosRaiz.length; i++)
+       for(int i=0; i<numNodos; i++)
        { 
-           Node node = hijosRaiz[i];
-           if(node.getNodeType()==Node.ELEMENT_NODE)
+           fila.setLength(0);
+           //Guardamos los datos en salida, con el separador solo entre valores.
+           String[] valores = almacen.getValores(i);
+           for(int j=0; j<valores.length; j++)
            {
-               String []datosNodo=procesaNodo(node);
-               //Inicializamos a vacio para que al hacer la suma no pille el null.
-               datos[contador]="";
-               //Guardamos los datos en salida.
-               for(int j=0; j<datosNodo.length; j++)
-                   datos[contador]+=datosNodo[j]+separador;
-               //Eliminamos el ultimo "-".
-               datos[contador]=datos[contador].substring(0, datos[contador].length()-1);
-               
-               contador++;
-            }
+               if(j>0)
+                   fila.append(separador);
+               fila.append(valores[j]);
+           }
+           datos[i]=fila.toString();
        }
 
        return datos;
     }
+    /**
+     * Escribe los valores de todos los nodos (sin los borrados) como texto, un
+     * nodo por linea con el mismo formato que getValorNodos(separador), sin
+     * guardar las filas en memoria. Sirve para exportar ficheros de cualquier
+     * tamano; mientras se escribe no se pueden hacer cambios (como al guardar).
+     * @param salida donde se escriben las filas, Ej: un OutputStreamWriter en
+     * UTF-8 (se vacia pero no se cierra).
+     * @param separador separador entre valores.
+     * @throws IOException si falla la escritura.
+     */
+    public void exporta(Writer salida, String separador) throws IOException
+    {
+        cargaCompleto();
+        long sello = cerrojo.readLock();
+        try
+        {
+            Exportador.texto(almacen, salida, separador);
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+        }
+    }
+    /**
+     * Escribe todos los nodos (sin los borrados) en formato CSV separado por
+     * comas, como exportaCSV(salida, ',').
+     * @param salida donde se escribe el CSV (se vacia pero no se cierra).
+     * @throws IOException si falla la escritura.
+     */
+    public void exportaCSV(Writer salida) throws IOException
+    {
+        exportaCSV(salida, ',');
+    }
+    /**
+     * Escribe todos los nodos (sin los borrados) en formato CSV: una cabecera con
+     * los titulos de todos los campos y despues un nodo por linea, con un valor
+     * por campo (vacio si el nodo no lo tiene). Los valores que contienen el
+     * separador, comillas o saltos de linea se escriben entre comillas. Como
+     * exporta, no guarda las filas en memoria.
+     * @param salida donde se escribe el CSV (se vacia pero no se cierra).
+     * @param separador separador de valores (Ej: ';' para abrirlo con Excel en espanol).
+     * @throws IOException si falla la escritura.
+     */
+    public void exportaCSV(Writer salida, char separador) throws IOException
+    {
+        cargaCompleto();
+        long sello = cerrojo.readLock();
+        try
+        {
+            Exportador.csv(almacen, salida, separador);
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+        }
+    }
+    /**
+     * Escribe todos los nodos (sin los borrados) como JSON, un objeto por linea
+     * con los campos del nodo: {"Nombre":"Rosa","Precio":"1"}. Los valores son
+     * siempre cadenas; si un nodo repite un campo, su valor es un array. Como
+     * exporta, no guarda las filas en memoria.
+     * @param salida donde se escribe el JSON (se vacia pero no se cierra).
+     * @throws IOException si falla la escritura.
+     */
+    public void exportaJSON(Writer salida) throws IOException
+    {
+        cargaCompleto();
+        long sello = cerrojo.readLock();
+        try
+        {
+            Exportador.json(almacen, salida);
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+        }
+    }
     /**
      * Devuelve un array de Strings con todos los datos de un nodo.
-     * @param indiceNodo numero del nodo en el array de hijosRaiz.
+     * @param indiceNodo numero del nodo en la lista de nodos.
      * @return array con los valores del nodo.
      */
     public String[] getValoresNodo(int indiceNodo)
     {
-        Node n = this.hijosRaiz[indiceNodo];
-        NodeList nodos=n.getChildNodes();
-        List datosNodo = new List();
-        
-        for(int i=0; i<nodos.getLength(); i++)
-        {
-            Node ntemp = nodos.item(i);
-            if(ntemp.getNodeType()==Node.ELEMENT_NODE)
-            {
-                //String tituloInfo=ntemp.getNodeName();
-                String info=ntemp.getChildNodes().item(0).getNodeValue();
-                datosNodo.add(info);
-            }
-        }  
-        return datosNodo.getItems();
+        return consulta(() -> {
+            RegistrosPerezosos sinLeer = perezosos;
+            return sinLeer!=null ? sinLeer.get(indiceNodo).valores.clone() : almacen.getValores(indiceNodo);
+        });
     }
     /**
      * Devuelve un String[numCamposNodo][2] donde contiene el nombre de los campos
@@ -391,79 +685,171 @@ public class GestionaXML
      */
     public String[][] getNodo(int indiceNodo)
     {
-        Node n = this.hijosRaiz[indiceNodo];
-        NodeList nodos=n.getChildNodes();
-        List datosNodo = new List();
-        List camposNodo = new List();
-        
-        for(int i=0; i<nodos.getLength(); i++)
+        return consulta(() -> nodo(indiceNodo));
+    }
+    /**
+     * Cuerpo de getNodo, sin cerrojo.
+     * @param indiceNodo nodo del que quremos la informacion.
+     * @return String[numCamposNodo][2] con los campos y su informacion.
+     */
+    private String[][] nodo(int indiceNodo)
+    {
+        String[] campos;
+        String[] valores;
+        RegistrosPerezosos sinLeer = perezosos;
+        if(sinLeer!=null)
         {
-            Node ntemp = nodos.item(i);
-            if(ntemp.getNodeType()==Node.ELEMENT_NODE)
-            {
-                String tituloInfo=ntemp.getNodeName();
-                String info=ntemp.getChildNodes().item(0).getNodeValue();
-                datosNodo.add(info);
-                camposNodo.add(tituloInfo);
-            }
+            RegistrosPerezosos.Registro registro = sinLeer.get(indiceNodo);
+            campos = registro.campos;
+            valores = registro.valores;
+        }
+        else
+        {
+            campos = almacen.getCampos(indiceNodo);
+            valores = almacen.getValores(indiceNodo);
         }
-        String[][] infoNodo = new String[camposNodo.getItemCount()][2];
+        String[][] infoNodo = new String[campos.length][2];
         for (int i = 0; i < infoNodo.length; i++) 
         {
-            infoNodo[i][0] = camposNodo.getItem(i);
-            infoNodo[i][1] = datosNodo.getItem(i);
+            infoNodo[i][0] = campos[i];
+            infoNodo[i][1] = valores[i];
         }
         return infoNodo;
     }
     /**
-     * Devuelve la longitud del array hijosRaiz (numero de nodos de tipo element).
-     * @return longitud del array hijosRaiz.
+     * Devuelve el numero de nodos de tipo element, incluidos los borrados
+     * hasta que se llame a recargaNodosRaiz.
+     * @return numero de nodos.
      */
     public int getNumNodos()
     {
-        return hijosRaiz.length;
+        return consulta(() -> {
+            RegistrosPerezosos sinLeer = perezosos;
+            return sinLeer!=null ? sinLeer.numRegistros() : almacen.numRegistros();
+        });
+    }
+    /**
+     * Numero de nodos para las metricas, 0 si el fichero no se ha podido abrir.
+     * @return numero de nodos.
+     */
+    private int numNodosAbiertos()
+    {
+        return almacen==null ? 0 : getNumNodos();
+    }
+    /**
+     * Hace una consulta corta sin bloquear a nadie: se lee sin cerrojo y se
+     * comprueba despues que ningun cambio se ha publicado mientras tanto. Si ha
+     * habido un cambio (lo que se haya leido puede estar a medias, incluso haber
+     * fallado) se repite con el cerrojo de lectura.
+     * @param <T> tipo del resultado.
+     * @param lectura consulta a hacer; no puede modificar nada.
+     * @return resultado de la consulta sobre un estado consistente.
+     */
+    private <T> T consulta(Supplier<T> lectura)
+    {
+        long sello = cerrojo.tryOptimisticRead();
+        if(sello!=0)
+        {
+            try
+            {
+                T resultado = lectura.get();
+                if(cerrojo.validate(sello))
+                    return resultado;
+            }
+            catch(RuntimeException e)
+            {
+                if(cerrojo.validate(sello))
+                    throw e; //Error de verdad, no por un cambio a medias.
+            }
+        }
+        sello = cerrojo.readLock();
+        try
+        {
+            return lectura.get();
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+        }
     }
     /**
      * Borra el nodo seleccionado (Los cambios hay que guardarlos manualmente).
+     * Los indices del resto de nodos no cambian hasta llamar a recargaNodosRaiz
+     * (o hasta que se compacte solo, ver setCompactacionAutomatica), y las
+     * busquedas dejan de devolver el nodo borrado.
      * @param indiceNodo indice del nodo a borrar.
      * @return true si se ha borrado el nodo con exito.
      */
     public boolean borraNodo(int indiceNodo)
     {
+        cargaCompleto();
+        long sello = cerrojo.writeLock();
         try
         {
-            Node nodo = hijosRaiz[indiceNodo];
-            raiz.removeChild(nodo);
-            return true;
-        }
-        catch(DOMException e)
-        {
-            return false;
+            if(indiceNodo<0 || indiceNodo>=almacen.numRegistros() || almacen.estaBorrado(indiceNodo))
+                return false;
+            if(!anota(d -> d.anotaBorrado(indiceNodo)))
+                return false;
+            almacen.borra(indiceNodo);
+            indices.borraNodo(indiceNodo);
+            if(fraccionCompactacion>0 && almacen.numBorrados()>fraccionCompactacion*almacen.numRegistros())
+                compactaBorrados();
         }
-        catch(ArrayIndexOutOfBoundsException i)
+        finally
         {
-            return false;
+            cerrojo.unlockWrite(sello);
         }
+        return true;
     }
     /**
-     * Guarda los cambios en la ruta enviada.
+     * Guarda los cambios en la ruta enviada. Si es el propio fichero y se leyo
+     * con el parser proyectado, solo se escriben los nodos que han cambiado
+     * (ver GuardadoIncremental).
      * @param rutaFichero ruta donde se desea guardar el fichero.
      * @return true en caso de que se guarde correctamente.
      */
     public boolean guardar(String rutaFichero)
     {
+        cargaCompleto();
+        if(diario!=null && esPropio(rutaFichero))
+            return puntoControl();
+        MetricasXML.Guardado evento = MetricasXML.iniciaGuardado();
+        Path destino = Paths.get(rutaFichero);
+        long sello = cerrojo.readLock();
+        ConfirmacionGrupo grupo = esPropio(rutaFichero) ? iniciaSincrono() : null;
+        boolean correcto = false;
         try
         {
-            OutputFormat format = new OutputFormat(doc);
-            format.setIndenting(true);
-            XMLSerializer serializer = new XMLSerializer(new FileOutputStream(rutaFichero),format);
-            serializer.serialize(doc);
+            if(esPropio(rutaFichero) && GuardadoIncremental.guarda(almacen, destino, tamBufferGuardado, false))
+            {
+                guardado();
+                metricas.terminaGuardado(evento, "guardar", destino, null);
+                correcto = true;
+                return true;
+            }
+            //Se escribe un temporal y se renombra: quien tenga el fichero
+            //proyectado (esta u otra instancia) sigue leyendo el anterior.
+            GuardadoAtomico.guarda(almacen, destino, tamBufferGuardado, false);
+            if(esPropio(rutaFichero))
+            {
+                almacen.setTramos(null); //Las posiciones son del fichero anterior.
+                guardado();
+            }
+            metricas.terminaGuardado(evento, "guardar", destino, null);
+            correcto = true;
             return true;
         }
-        catch(Exception e) 
+        catch(IOException e) 
         {   
+           metricas.terminaGuardado(evento, "guardar", destino, e);
            return false;
         }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+            if(grupo!=null)
+                grupo.terminaSincrono(correcto);
+        }
     }
     /**
      * Guarda los cambios sobreescribiendo el fichero.
@@ -471,472 +857,1765 @@ public class GestionaXML
      */
     public boolean guardar()
     {
+        return guardar(fichero.getAbsolutePath());
+    }
+    /**
+     * Cambia el tamano del buffer que usa guardar (por defecto 1 MB). Un buffer
+     * mas grande reduce las llamadas al sistema en ficheros muy grandes.
+     * @param bytes tamano del buffer en bytes.
+     */
+    public void setTamBufferGuardado(int bytes)
+    {
+        if(bytes<=0)
+            throw new IllegalArgumentException("El tamano del buffer tiene que ser positivo: "+bytes);
+        tamBufferGuardado = bytes;
+    }
+    /**
+     * Cambia el numero maximo de nodos que guarda la tabla de un cruce (por
+     * defecto 2^20, ver cruza). Con menos se gasta menos memoria pero, si el
+     * fichero pequeno no cabe, el otro se recorre una vez por cada tabla.
+     * @param nodos numero maximo de nodos por tabla.
+     */
+    public void setMaxNodosCruce(int nodos)
+    {
+        if(nodos<=0)
+            throw new IllegalArgumentException("El numero de nodos tiene que ser positivo: "+nodos);
+        maxNodosCruce = nodos;
+    }
+    /**
+     * Guarda los cambios sobreescribiendo el fichero de forma atomica: se escribe
+     * un temporal en la misma carpeta, se fuerza a disco y se renombra encima del
+     * fichero. Si el programa se corta a mitad, el fichero sigue como estaba.
+     * @return true en caso de que se guarde correctamente.
+     */
+    public boolean guardarAtomico()
+    {
+        return guardarAtomico(fichero.getAbsolutePath());
+    }
+    /**
+     * Guarda los cambios en la ruta enviada de forma atomica (ver guardarAtomico()).
+     * @param rutaFichero ruta donde se desea guardar el fichero.
+     * @return true en caso de que se guarde correctamente.
+     */
+    public boolean guardarAtomico(String rutaFichero)
+    {
+        cargaCompleto();
+        if(diario!=null && esPropio(rutaFichero))
+            return puntoControl();
+        MetricasXML.Guardado evento = MetricasXML.iniciaGuardado();
+        Path destino = Paths.get(rutaFichero);
+        long sello = cerrojo.readLock();
+        ConfirmacionGrupo grupo = esPropio(rutaFichero) ? iniciaSincrono() : null;
+        boolean correcto = false;
         try
         {
-            String rutaFichero = fichero.getAbsolutePath();
-            OutputFormat format = new OutputFormat(doc);
-            format.setIndenting(true);
-            XMLSerializer serializer = new XMLSerializer(new FileOutputStream(rutaFichero),format);
-            serializer.serialize(doc);
+            if(!esPropio(rutaFichero))
+                GuardadoAtomico.guarda(almacen, destino, tamBufferGuardado);
+            else if(!GuardadoIncremental.guarda(almacen, destino, tamBufferGuardado, true))
+            {
+                GuardadoAtomico.guarda(almacen, destino, tamBufferGuardado);
+                almacen.setTramos(null); //Las posiciones son del fichero anterior.
+            }
+            if(esPropio(rutaFichero))
+                guardado();
+            metricas.terminaGuardado(evento, "guardarAtomico", destino, null);
+            correcto = true;
             return true;
         }
-        catch(Exception e) 
-        {   
-           return false;
+        catch(IOException e)
+        {
+            metricas.terminaGuardado(evento, "guardarAtomico", destino, e);
+            return false;
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+            if(grupo!=null)
+                grupo.terminaSincrono(correcto);
         }
     }
     /**
-     * Crea un hijo de raiz con los datos del array.   
-     * @param datos array que contiene los datos del nodo.
-     * Tiene que ser en el formato String[n campos][2],
-     * donde en la fila se guardan los campos y en las columnas los valores.
-     * @param tituloNodo nombre del nodo.
-     * @return true en caso de que se logre crear el nodo con exito.
+     * Guarda junto al fichero una instantanea binaria de sus nodos (fichero
+     * ".instantanea"): los valores ya desescapados y las tablas de nodos y
+     * campos, con el tamano, la fecha de modificacion y un CRC32C del XML. A
+     * partir de ahi el constructor abre el fichero proyectando la instantanea en
+     * memoria en vez de leer el XML, siempre que el XML no haya cambiado; si ha
+     * cambiado (o la instantanea esta danada) se ignora y se lee el XML.
+     * <p>
+     * La instantanea es del XML en disco: si hay cambios sin guardar o el diario
+     * esta activo, antes se guarda el fichero. Cuando se vuelva a guardar el
+     * fichero hay que volver a llamarlo para que la instantanea sirva.
+     * @return true si se ha guardado la instantanea.
      */
-    public boolean creaNodo(String tituloNodo, String[][] datos)
+    public boolean guardaInstantanea()
     {
-        if(datos[0].length==2)
+        cargaCompleto();
+        if((modificado || diario!=null) && !guardar())
+            return false;
+        MetricasXML.Guardado evento = MetricasXML.iniciaGuardado();
+        Path destino = Instantanea.rutaInstantanea(ruta());
+        long sello = cerrojo.readLock();
+        try
         {
-            Element elePadre = doc.createElement(tituloNodo);
-            
-            for(int i = 0; i < datos.length; i++) 
-            {
-                String titulo=null;
-                String valor=null;
-                try
-                {
-                    titulo = datos[i][0];
-                    valor = datos[i][1];
-                }
-                catch(NullPointerException e)
-                {
-                    return false;
-                }
-                Element element = doc.createElement(titulo);
-                Text text = doc.createTextNode(valor);
-                element.appendChild(text);
-                elePadre.appendChild(element);
-            }
-            raiz.appendChild(elePadre);
+            if(modificado)
+                throw new IOException("Hay cambios sin guardar en " + ruta());
+            Instantanea.escribe(almacen, ruta(), tamanoDisco, fechaDisco);
+            metricas.terminaGuardado(evento, "guardaInstantanea", destino, null);
             return true;
         }
-        else
+        catch(IOException e)
+        {
+            metricas.terminaGuardado(evento, "guardaInstantanea", destino, e);
             return false;
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+        }
     }
     /**
-     * Crea un hijo de raiz con los datos del array.
-     * @param tituloNodo nombre del nodo.
-     * @param datos array que contiene los datos del nodo.
-     * Tiene que ser en el formato String[n campos][2],
-     * donde en la fila se guardan los campos y en las columnas los valores.
-     * @param saltaIndices lista con los indices que tiene que saltarse 
-     * en el array de datos[][] (estos no seran agregados al xml).
-     * @return true en caso de que se logre crear el nodo con exito.
+     * Guarda los cambios de forma atomica sobreescribiendo el fichero, pero
+     * compartiendo la sincronizacion a disco con el resto de guardados pedidos en
+     * la misma ventana de tiempo (ver setVentanaAgrupado). El contenido se escribe
+     * antes de volver, asi que los cambios posteriores no afectan a este guardado.
+     * Con el diario activo los cambios ya estan anotados, asi que se hace un punto
+     * de control directamente.
+     * @return se completa con true cuando los datos (o unos posteriores) estan en
+     * disco, o con false si ha fallado.
      */
-    public boolean creaNodo(String tituloNodo, String[][] datos, int []saltaIndices)
-    {        
-        if(datos[0].length==2)
+    public Future<Boolean> guardarAgrupado()
+    {
+        cargaCompleto();
+        if(diario!=null)
+            return CompletableFuture.completedFuture(puntoControl());
+        MetricasXML.Guardado evento = MetricasXML.iniciaGuardado();
+        Path destino = ruta();
+        Path temporal;
+        long versionGuardada;
+        long sello = cerrojo.readLock();
+        try
         {
-            Element elePadre = doc.createElement(tituloNodo);
-            
-            for(int i = 0; i < datos.length; i++) 
-            {
-                if(compruebaNum(i, saltaIndices))
-                    continue;
-                
-                String titulo;
-                String valor;
-                try
-                {
-                    titulo = datos[i][0];
-                    valor = datos[i][1];
-                }
-                catch(NullPointerException e)
-                {
-                    return false;
-                }
-                
-                Element element = doc.createElement(titulo);
-                Text text = doc.createTextNode(valor);
-                element.appendChild(text);
-                elePadre.appendChild(element);
-            }
-            raiz.appendChild(elePadre);
-            return true;
+            versionGuardada = version;
+            temporal = GuardadoAtomico.escribeTemporal(almacen, destino, tamBufferGuardado, false);
+            //El temporal sustituira al fichero: sus posiciones ya no sirven.
+            almacen.setTramos(null);
         }
-        else
-            return false;
+        catch(IOException e)
+        {
+            metricas.terminaGuardado(evento, "guardarAgrupado", destino, e);
+            return CompletableFuture.completedFuture(false);
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+        }
+        ConfirmacionGrupo grupo;
+        synchronized(this)
+        {
+            if(confirmacion==null)
+                confirmacion = new ConfirmacionGrupo(destino, ventanaAgrupadoMs);
+            grupo = confirmacion;
+        }
+        CompletableFuture<Boolean> resultado = grupo.agrega(temporal, versionGuardada);
+        resultado.thenAccept(correcto -> {
+            if(correcto)
+                guardadoAgrupado(versionGuardada);
+            metricas.terminaGuardado(evento, "guardarAgrupado", destino,
+                    correcto ? null : new IOException("No se ha podido confirmar el guardado"));
+        });
+        return resultado;
     }
     /**
-     * Crea un hijo de raiz con los datos del array.
-     * @param tituloNodo nombre del nodo.
-     * @param datos array que contiene los datos del nodo.
-     * Tiene que ser en el formato String[n campos][2],
-     * donde en la fila se guardan los campos y en las columnas los valores.
-     * @param saltaIndices indice de la lista de datos que no queremos agregar.
-     * @return true en caso de que se logre crear el nodo con exito.
+     * Anota que se ha confirmado un guardado agrupado. Si desde que se escribio
+     * no ha habido cambios el fichero en disco ya los tiene todos (ver guardado);
+     * si no, se apunta la firma del fichero nuevo y los cambios posteriores
+     * siguen pendientes de guardar.
+     * @param versionGuardada version de los datos que se escribieron.
      */
-    public boolean creaNodo(String tituloNodo, String[][] datos, int saltaIndices)
-    {        
-        if(datos[0].length==2)
+    private void guardadoAgrupado(long versionGuardada)
+    {
+        long sello = cerrojo.readLock();
+        try
         {
-            Element elePadre = doc.createElement(tituloNodo);
-            
-            for(int i = 0; i < datos.length; i++) 
+            if(version==versionGuardada)
+                guardado();
+            else
             {
-                if(i==saltaIndices)
-                    continue;
-                
-                String titulo;
-                String valor;
-                try
-                {
-                    titulo = datos[i][0];
-                    valor = datos[i][1];
-                }
-                catch(NullPointerException e)
-                {
-                    return false;
-                }
-                
-                Element element = doc.createElement(titulo);
-                Text text = doc.createTextNode(valor);
-                element.appendChild(text);
-                elePadre.appendChild(element);
+                modificado = true;
+                apuntaFirma();
+                if(compartido)
+                    COMPARTIDOS.refresca(ruta(), this);
             }
-            raiz.appendChild(elePadre);
-            return true;
         }
-        else
-            return false;
+        finally
+        {
+            cerrojo.unlockRead(sello);
+        }
     }
     /**
-     * Crea un hijo de raiz con los datos del array.
-     * @param datos array que contiene los datos del nodo.
-     * Tiene que ser en el formato String[n campos][2],
-     * donde en la fila se guardan los campos y en las columnas los valores.
-     * @param saltaIndices indice de la lista de datos que no queremos agregar.
-     * @return true en caso de que se logre crear el nodo con exito.
+     * Avisa al grupo de guardarAgrupado de que se va a publicar el propio fichero
+     * sin pasar por el grupo, para que un temporal agrupado mas viejo no se
+     * publique despues encima (ver ConfirmacionGrupo.iniciaSincrono). Hay que
+     * llamarlo con el cerrojo de lectura y despues llamar a terminaSincrono.
+     * @return grupo del fichero.
      */
-    public boolean creaNodo(String[][] datos, int saltaIndices)
-    {        
-        String tituloNodo=hijosRaiz[0].getNodeName();
-
-        if(datos[0].length==2)
+    private ConfirmacionGrupo iniciaSincrono()
+    {
+        ConfirmacionGrupo grupo;
+        synchronized(this)
         {
-            Element elePadre = doc.createElement(tituloNodo);
-            
-            for(int i = 0; i < datos.length; i++) 
-            {
-                if(i==saltaIndices)
-                    continue;
-                
-                String titulo;
-                String valor;
-                try
-                {
-                    titulo = datos[i][0];
-                    valor = datos[i][1];
-                }
-                catch(NullPointerException e)
-                {
-                    return false;
-                }
-                
-                Element element = doc.createElement(titulo);
-                Text text = doc.createTextNode(valor);
-                element.appendChild(text);
-                elePadre.appendChild(element);
-            }
-            raiz.appendChild(elePadre);
-            return true;
+            //Se crea aunque no haya guardados agrupados: uno que ya haya escrito
+            //su temporal podria agregarlo despues.
+            if(confirmacion==null)
+                confirmacion = new ConfirmacionGrupo(ruta(), ventanaAgrupadoMs);
+            grupo = confirmacion;
         }
-        else
-            return false;
+        grupo.iniciaSincrono(version);
+        return grupo;
     }
     /**
-     * Crea un hijo de raiz con los datos del array.
-     * @param datos array que contiene los datos del nodo.
-     * Tiene que ser en el formato String[n campos][2],
-     * donde en la fila se guardan los campos y en las columnas los valores.
-     * @param saltaIndices lista con los indices que tiene que saltarse 
-     * en el array de datos[][] (estos no seran agregados al xml).
-     * @return true en caso de que se logre crear el nodo con exito.
+     * Cambia cuanto espera guardarAgrupado a otros guardados antes de sincronizar
+     * (por defecto 10 ms). Cuanto mas larga, menos sincronizaciones pero mas tarda
+     * en confirmarse cada guardado.
+     * @param milisegundos duracion de la ventana.
      */
-    public boolean creaNodo(String[][] datos, int []saltaIndices)
+    public synchronized void setVentanaAgrupado(long milisegundos)
     {
-        String tituloNodo=hijosRaiz[0].getNodeName();
-        
-        if(datos[0].length==2)
-        {
-            Element elePadre = doc.createElement(tituloNodo);
-            
-            for(int i = 0; i < datos.length; i++) 
-            {
-                if(compruebaNum(i, saltaIndices))
-                    continue;
-                
-                String titulo;
-                String valor;
-                try
-                {
-                    titulo = datos[i][0];
-                    valor = datos[i][1];
-                }
-                catch(NullPointerException e)
-                {
-                    return false;
-                }
-                
-                Element element = doc.createElement(titulo);
-                Text text = doc.createTextNode(valor);
-                element.appendChild(text);
-                elePadre.appendChild(element);
-            }
-            raiz.appendChild(elePadre);
-            return true;
-        }
-        else
-            return false;
+        if(milisegundos<0)
+            throw new IllegalArgumentException("La ventana no puede ser negativa: "+milisegundos);
+        ventanaAgrupadoMs = milisegundos;
+        //Se cambia en el mismo grupo: uno nuevo podria publicar antes que el
+        //que ya esta pendiente y dejar en disco los datos mas viejos.
+        if(confirmacion!=null)
+            confirmacion.setVentana(milisegundos);
     }
     /**
-     * Crea un hijo de raiz con los datos del array.
-     * @param datos array que contiene los datos del nodo.
-     * Tiene que ser en el formato String[n campos][2],
-     * donde en la fila se guardan los campos y en las columnas los valores.
-     * @return true en caso de que se logre crear el nodo con exito.
+     * Devuelve las metricas del fichero: lectura, busquedas (cuantas han tenido
+     * que recorrer todo el fichero y cuantos nodos recorren de media), guardados
+     * y fallos. Ademas se emiten los eventos JFR gestionaxml.Lectura,
+     * gestionaxml.Consulta (las de mas de 1 ms) y gestionaxml.Guardado, que solo
+     * cuestan algo si hay una grabacion de JFR activa.
+     * @return metricas del fichero, actualizadas en cada operacion.
      */
-    public boolean creaNodo(String[][] datos)
+    public MetricasXMLMBean getMetricas()
     {
-        String tituloNodo=hijosRaiz[0].getNodeName();
-        
-        if(datos[0].length==2)
+        return metricas;
+    }
+    /**
+     * Publica las metricas del fichero (ver getMetricas) como MBean en el
+     * servidor JMX de la plataforma, con el nombre
+     * gestionaxml:type=GestionaXML,fichero="ruta",id=n.
+     * Hay que quitarlo con quitaMBean al dejar de usar el fichero.
+     * @return true si esta registrado.
+     */
+    public boolean registraMBean()
+    {
+        return metricas.registra();
+    }
+    /**
+     * Quita las metricas del servidor JMX.
+     */
+    public void quitaMBean()
+    {
+        metricas.quita();
+    }
+    /**
+     * Indica si una ruta es la del propio fichero.
+     * @param rutaFichero ruta a comprobar.
+     * @return true si es el fichero abierto.
+     */
+    private boolean esPropio(String rutaFichero)
+    {
+        return Paths.get(rutaFichero).toAbsolutePath().normalize().equals(ruta().normalize());
+    }
+    /**
+     * Activa el diario de cambios: a partir de ahora cada creaNodo, cambiaInfo,
+     * borraNodo y recargaNodosRaiz se anota al final de un fichero ".diario"
+     * junto al XML antes de aplicarse, con lo que el cambio queda guardado sin
+     * reescribir el XML. Al volver a abrir el fichero con el constructor se
+     * reproducen los cambios anotados. Cuando el diario crece mas que
+     * setUmbralDiario se incorpora al XML en un punto de control en segundo plano.
+     * Si ya habia cambios sin guardar, se guardan primero.
+     * @return true si el diario esta activo.
+     */
+    public boolean activaDiario()
+    {
+        cargaCompleto();
+        synchronized(cerrojoDiario)
         {
-            Element elePadre = doc.createElement(tituloNodo);
-            
-            for(int i = 0; i < datos.length; i++) 
+            if(diario!=null)
+                return true;
+            long sello = cerrojo.readLock();
+            try
             {
-                String titulo=null;
-                String valor=null;
-                try
-                {
-                    titulo = datos[i][0];
-                    valor = datos[i][1];
-                }
-                catch(NullPointerException e)
+                if(modificado)
+                    escribePuntoControl();
+                else
                 {
-                    return false;
+                    DiarioCambios nuevo = DiarioCambios.crea(ruta(), almacen);
+                    nuevo.setSincroniza(sincronizaDiario);
+                    diario = nuevo;
                 }
-                
-                Element element = doc.createElement(titulo);
-                Text text = doc.createTextNode(valor);
-                element.appendChild(text);
-                elePadre.appendChild(element);
+                return true;
+            }
+            catch(IOException e)
+            {
+                metricas.fallo("activaDiario", e);
+                return false;
+            }
+            finally
+            {
+                cerrojo.unlockRead(sello);
             }
-            raiz.appendChild(elePadre);
-            return true;
         }
-        else
-            return false;
-    }
-    /**
-     * Devuelve el indice en el array de hijosRaiz del nodo buscado.
-     * @param campo Campo para buscar el nodo.
-     * @param valorCampo valor que tiene que tener el campo buscado.
-     * @return indice del nodo.
-     */
-    public int getIndiceNodo(String campo, String valorCampo)
-    {
-       Node node;
-       
-       for (int i=0; i<hijosRaiz.length; i++)
-       {
-            node = hijosRaiz[i];
-            //Es un nodo libro que hay que procesar si es de tipo Elemento
-            String valorCampoNodo = GestionaXML.this.getValorCampo(node, campo);
-            if(valorCampo.equals(valorCampoNodo))
-                return i;
-       }
-        return -1;
     }
     /**
-     * Devuelve el indice del primer nodo en el que coincidan 
-     * todos los valores en los campos a buscar (estricto==true) o en el primero
-     * que coincida alguno (estricto==false).
-     * @param campos Array de Strings con los nombres de los campos a buscar.
-     * @param valores Array de Strings con los valores de los campos a buscar.
-     * @param estricto si es true tienen que coincidar todos los campos, sino solo tiene que coincidir alguno.
-     * @return el indice del primer nodo en el que coincidan 
-     * todos los valores en los campos a buscar (estricto==true) o en el primero
-     * que coincida alguno (estricto==false).
+     * Incorpora el diario al XML y lo borra; los cambios vuelven a guardarse solo
+     * con guardar.
+     * @return true si se ha guardado el XML y borrado el diario.
      */
-    public int getIndiceNodo(String campos[], String valores[], boolean estricto)
+    public boolean desactivaDiario()
     {
-        Node node;
-        int numCoincidencias;
-        
-        if(campos.length == valores.length)
+        synchronized(cerrojoDiario)
         {
-            for (int i=0; i<hijosRaiz.length; i++)
+            if(diario==null)
+                return true;
+            //Con el cerrojo de lectura entre el punto de control y el borrado
+            //no se puede anotar ningun cambio que se perderia con el diario.
+            MetricasXML.Guardado evento = MetricasXML.iniciaGuardado();
+            long sello = cerrojo.readLock();
+            try
             {
-                numCoincidencias=0;
-                node = hijosRaiz[i];
-
-                for (int j = 0; j < campos.length; j++) 
-                {
-                   String valor = valores[j];
-                   String campo = campos[j];
-                   String valorCampo = GestionaXML.this.getValorCampo(node, campo);
-
-                   if(valorCampo.equals(valor))
-                       numCoincidencias++;
-               }
-                
-                if(numCoincidencias==campos.length)
-                    return i;
-                if(numCoincidencias>0 && !estricto)
-                    return i;
+                escribePuntoControl();
+                diario.close();
+                diario = null;
+                DiarioCambios.borra(ruta());
+                metricas.terminaGuardado(evento, "desactivaDiario", ruta(), null);
+                return true;
+            }
+            catch(IOException e)
+            {
+                metricas.terminaGuardado(evento, "desactivaDiario", ruta(), e);
+                return false;
+            }
+            finally
+            {
+                cerrojo.unlockRead(sello);
             }
         }
-        return -1;
     }
     /**
-     * Devuelve todos los indices en el array de hijosRaiz del nodo buscado.
-     * @param campo Campo para buscar el nodo.
-     * @param valorCampo valor que tiene que tener el campo buscado.
-     * @return indice del nodo.
+     * Punto de control: guarda el XML de forma atomica con todos los cambios y
+     * empieza un diario vacio. Los cambios esperan mientras se escribe, las
+     * consultas no. Sin diario activo equivale a guardarAtomico().
+     * @return true si se ha guardado correctamente.
      */
-    public int[] getIndicesNodos(String campo, String valorCampo)
+    public boolean puntoControl()
     {
-        List listaIndices = new List();
-        Node node;
-
-        for (int i=0; i<hijosRaiz.length; i++)
+        synchronized(cerrojoDiario)
         {
-             node = hijosRaiz[i];
-             //Es un nodo libro que hay que procesar si es de tipo Elemento
-             String valorCampoNodo = GestionaXML.this.getValorCampo(node, campo);
-             if(valorCampo.equals(valorCampoNodo))
-                 listaIndices.add(String.valueOf(i));
+            if(diario==null)
+                return guardarAtomico();
+            MetricasXML.Guardado evento = MetricasXML.iniciaGuardado();
+            long sello = cerrojo.readLock();
+            try
+            {
+                escribePuntoControl();
+                metricas.terminaGuardado(evento, "puntoControl", ruta(), null);
+                return true;
+            }
+            catch(IOException e)
+            {
+                metricas.terminaGuardado(evento, "puntoControl", ruta(), e);
+                return false;
+            }
+            finally
+            {
+                cerrojo.unlockRead(sello);
+            }
         }
-        
-        String[] sIndices = listaIndices.getItems();
-        int indices[] = new int[sIndices.length];
-        for (int i = 0; i < sIndices.length; i++)
-            indices[i] = Integer.valueOf(sIndices[i]);
-        
-        return indices;
     }
     /**
-     * Devuelve el indice del primer nodo en el que coincidan 
-     * todos los valores en los campos a buscar (estricto==true) o en el primero
-     * que coincida alguno (estricto==false).
-     * @param campos Array de Strings con los nombres de los campos a buscar.
-     * @param valores Array de Strings con los valores de los campos a buscar.
-     * @param estricto si es true tienen que coincidar todos los campos, sino solo tiene que coincidir alguno.
-     * @return el indice del primer nodo en el que coincidan 
-     * todos los valores en los campos a buscar (estricto==true) o en el primero
-     * que coincida alguno (estricto==false).
+     * Escribe el XML en un temporal y el diario vacio en otro, y los publica en ese
+     * orden (ver DiarioCambios.escribeTemporal). Hay que llamarlo con cerrojoDiario y
+     * el cerrojo de lectura, para que ningun cambio se anote mientras tanto.
+     * @throws IOException si falla; si ya se ha publicado el XML pero no el diario,
+     * el diario se desactiva porque el anterior ya no corresponde al XML.
      */
-    public int[] getIndicesNodos(String campos[], String valores[], boolean estricto)
+    private void escribePuntoControl() throws IOException
     {
-        Node node;
-        int numCoincidencias;
-        List listaIndices = new List();
-        
-        if(campos.length == valores.length)
+        Path destino = ruta();
+        Path temporalDiario;
+        ConfirmacionGrupo grupo = iniciaSincrono();
+        boolean correcto = false;
+        try
         {
-            for (int i=0; i<hijosRaiz.length; i++)
+            Path temporal = GuardadoAtomico.escribeTemporal(almacen, destino, tamBufferGuardado, true);
+            try
             {
-                numCoincidencias=0;
-                node = hijosRaiz[i];
-
-                for (int j = 0; j < campos.length; j++) 
-                {
-                   String valor = valores[j];
-                   String campo = campos[j];
-                   String valorCampo = GestionaXML.this.getValorCampo(node, campo);
-
-                   if(valorCampo.equals(valor))
-                       numCoincidencias++;
-               }
-                
-                if(numCoincidencias==campos.length)
-                    listaIndices.add(String.valueOf(i));
-                else if(numCoincidencias>0 && !estricto)
-                    listaIndices.add(String.valueOf(i));
+                temporalDiario = DiarioCambios.escribeTemporal(destino, almacen, temporal);
+            }
+            catch(IOException e)
+            {
+                Files.deleteIfExists(temporal);
+                throw e;
+            }
+            try
+            {
+                GuardadoAtomico.publica(temporal, destino);
+            }
+            catch(IOException e)
+            {
+                Files.deleteIfExists(temporalDiario);
+                throw e;
             }
+            almacen.setTramos(null); //Las posiciones son del fichero anterior.
+            correcto = true;
         }
-        
-        String[] sIndices = listaIndices.getItems();
-        int indices[] = new int[sIndices.length];
-        for (int i = 0; i < sIndices.length; i++)
-            indices[i] = Integer.valueOf(sIndices[i]);
-        
-        return indices;
+        finally
+        {
+            grupo.terminaSincrono(correcto);
+        }
+        guardado();
+
+        DiarioCambios anterior = diario;
+        diario = null;
+        if(anterior!=null)
+            anterior.close();
+        DiarioCambios nuevo = DiarioCambios.publica(destino, temporalDiario);
+        nuevo.setSincroniza(sincronizaDiario);
+        diario = nuevo;
     }
     /**
-     * Devuelve los indices de todos los nodos tipo Elemenet en el archivo.
-     * @return array con todos los indices de nodos Element.
+     * Cambia a partir de que tamano del diario se hace un punto de control en
+     * segundo plano (por defecto 64 MB).
+     * @param bytes tamano maximo del diario.
      */
-    public int[] getIndicesNodos()
+    public void setUmbralDiario(long bytes)
     {
-        List listaIndices = new List();
-        
-        for (int i = 0; i < hijosRaiz.length; i++) {
-            Node node = hijosRaiz[i];
-            if(node.getNodeType()==Node.ELEMENT_NODE)
-                listaIndices.add(String.valueOf(i));
+        if(bytes<=0)
+            throw new IllegalArgumentException("El umbral del diario tiene que ser positivo: "+bytes);
+        umbralDiario = bytes;
+    }
+    /**
+     * Indica si cada cambio anotado en el diario se fuerza a disco (por defecto
+     * no). Sin forzar, los cambios sobreviven a que el programa muera pero no a
+     * un corte de luz; forzando cada cambio cuesta una sincronizacion del disco.
+     * @param sincroniza true para forzar cada cambio a disco.
+     */
+    public void setSincronizaDiario(boolean sincroniza)
+    {
+        synchronized(cerrojoDiario)
+        {
+            sincronizaDiario = sincroniza;
+            if(diario!=null)
+                diario.setSincroniza(sincroniza);
         }
-        
-        int[] indices = new int[listaIndices.getItemCount()];
-        for (int i = 0; i < indices.length; i++)
-            indices[i]=Integer.valueOf(listaIndices.getItem(i));
-        
-        return indices;
     }
     /**
-     * Modifica la informacion del campo de un nodo.
-     * @param indiceNodo indice del nodo a cambiar.
-     * @param campoCambiar Titulo del campo a buscar en el nodo.
-     * @param nuevoDato Nuevo valor del campo.
-     * @return true o false en funcion de si se ha conseguido modificar la info.
+     * Anota un cambio en el diario, si esta activo, antes de aplicarlo. Hay que
+     * llamarlo con el cerrojo de escritura.
+     * @param anotacion escritura del cambio en el diario.
+     * @return false si no se ha podido anotar (el cambio no se debe aplicar).
      */
-    public boolean cambiaInfo(String campoCambiar, String nuevoDato, int indiceNodo) 
+    private boolean anota(Anotacion anotacion)
     {
-        NodeList hijos;
-        Node ntemp;
-        
+        modificado = true;
+        version++;
+        if(diario==null)
+            return true;
         try
         {
-            hijos = hijosRaiz[indiceNodo].getChildNodes();
+            anotacion.anota(diario);
         }
-        catch(ArrayIndexOutOfBoundsException e)
+        catch(IOException e)
         {
+            metricas.fallo("diario", e);
             return false;
         }
-        
-        for (int i=0; i<hijos.getLength(); i++)
+        if(diario.tamano()>umbralDiario && puntoControlProgramado.compareAndSet(false, true))
         {
-            ntemp = hijos.item(i);
-            if(ntemp.getNodeType()==Node.ELEMENT_NODE)
-            {
-                String tituloInfo=ntemp.getNodeName();
-                if(tituloInfo.equals(campoCambiar))
-                {
-                    ntemp.getChildNodes().item(0).setNodeValue(nuevoDato);
-                    return true;
-                }
-            }
+            PUNTOS_CONTROL.execute(() -> {
+                puntoControlProgramado.set(false);
+                puntoControl();
+            });
         }
-        return false;
+        return true;
     }
     /**
-     * Vuelve a cargar los nodos en hijosRaiz.
+     * Escritura de un cambio en el diario.
      */
-    public void recargaNodosRaiz()
+    private interface Anotacion
     {
-        hijosRaiz=getNodosRaiz();
+        void anota(DiarioCambios diario) throws IOException;
+    }
+    /**
+     * Crea un hijo de raiz con los datos del array.   
+     * @param datos array que contiene los datos del nodo.
+     * Tiene que ser en el formato String[n campos][2],
+     * donde en la fila se guardan los campos y en las columnas los valores.
+     * @param tituloNodo nombre del nodo.
+     * @return true en caso de que se logre crear el nodo con exito.
+     */
+    public boolean creaNodo(String tituloNodo, String[][] datos)
+    {
+        return agregaNodo(tituloNodo, datos, -1, null);
+    }
+    /**
+     * Crea un hijo de raiz con los datos del array.
+     * @param tituloNodo nombre del nodo.
+     * @param datos array que contiene los datos del nodo.
+     * Tiene que ser en el formato String[n campos][2],
+     * donde en la fila se guardan los campos y en las columnas los valores.
+     * @param saltaIndices lista con los indices que tiene que saltarse 
+     * en el array de datos[][] (estos no seran agregados al xml).
+     * @return true en caso de que se logre crear el nodo con exito.
+     */
+    public boolean creaNodo(String tituloNodo, String[][] datos, int []saltaIndices)
+    {        
+        return agregaNodo(tituloNodo, datos, -1, saltaIndices);
+    }
+    /**
+     * Crea un hijo de raiz con los datos del array.
+     * @param tituloNodo nombre del nodo.
+     * @param datos array que contiene los datos del nodo.
+     * Tiene que ser en el formato String[n campos][2],
+     * donde en la fila se guardan los campos y en las columnas los valores.
+     * @param saltaIndices indice de la lista de datos que no queremos agregar.
+     * @return true en caso de que se logre crear el nodo con exito.
+     */
+    public boolean creaNodo(String tituloNodo, String[][] datos, int saltaIndices)
+    {        
+        return agregaNodo(tituloNodo, datos, saltaIndices, null);
+    }
+    /**
+     * Crea un hijo de raiz con los datos del array.
+     * @param datos array que contiene los datos del nodo.
+     * Tiene que ser en el formato String[n campos][2],
+     * donde en la fila se guardan los campos y en las columnas los valores.
+     * @param saltaIndices indice de la lista de datos que no queremos agregar.
+     * @return true en caso de que se logre crear el nodo con exito.
+     */
+    public boolean creaNodo(String[][] datos, int saltaIndices)
+    {        
+        cargaCompleto();
+        return agregaNodo(almacen.getTituloNodo(0), datos, saltaIndices, null);
+    }
+    /**
+     * Crea un hijo de raiz con los datos del array.
+     * @param datos array que contiene los datos del nodo.
+     * Tiene que ser en el formato String[n campos][2],
+     * donde en la fila se guardan los campos y en las columnas los valores.
+     * @param saltaIndices lista con los indices que tiene que saltarse 
+     * en el array de datos[][] (estos no seran agregados al xml).
+     * @return true en caso de que se logre crear el nodo con exito.
+     */
+    public boolean creaNodo(String[][] datos, int []saltaIndices)
+    {
+        cargaCompleto();
+        return agregaNodo(almacen.getTituloNodo(0), datos, -1, saltaIndices);
+    }
+    /**
+     * Crea un hijo de raiz con los datos del array.
+     * @param datos array que contiene los datos del nodo.
+     * Tiene que ser en el formato String[n campos][2],
+     * donde en la fila se guardan los campos y en las columnas los valores.
+     * @return true en caso de que se logre crear el nodo con exito.
+     */
+    public boolean creaNodo(String[][] datos)
+    {
+        cargaCompleto();
+        return agregaNodo(almacen.getTituloNodo(0), datos, -1, null);
+    }
+    /**
+     * Agrega al final de la lista un nodo con los datos del array. El nodo se
+     * puede consultar por su indice en cuanto se crea.
+     * @param tituloNodo nombre del nodo.
+     * @param datos array en formato String[n campos][2].
+     * @param saltaIndice indice de datos que no se agrega (-1 para ninguno).
+     * @param saltaIndices indices de datos que no se agregan (null para ninguno).
+     * @return true en caso de que se logre crear el nodo con exito.
+     */
+    private boolean agregaNodo(String tituloNodo, String[][] datos, int saltaIndice, int []saltaIndices)
+    {
+        cargaCompleto();
+        String[][] nodo = preparaNodo(datos, saltaIndice, saltaIndices);
+        if(nodo==null)
+            return false;
+        long sello = cerrojo.writeLock();
+        try
+        {
+            if(!anota(d -> d.anotaCreacion(tituloNodo, nodo[0], nodo[1])))
+                return false;
+            int indiceNodo = almacen.agrega(tituloNodo, nodo[0], nodo[1]);
+            indices.agregaNodo(indiceNodo);
+        }
+        finally
+        {
+            cerrojo.unlockWrite(sello);
+        }
+        return true;
+    }
+    /**
+     * Separa los titulos y los valores de los campos de un nodo.
+     * @param datos array en formato String[n campos][2].
+     * @param saltaIndice indice de datos que no se agrega (-1 para ninguno).
+     * @param saltaIndices indices de datos que no se agregan (null para ninguno).
+     * @return array con los titulos en [0] y los valores en [1], o null si datos
+     * no tiene el formato correcto.
+     */
+    private String[][] preparaNodo(String[][] datos, int saltaIndice, int []saltaIndices)
+    {
+        if(datos==null || datos.length==0 || datos[0]==null || datos[0].length!=2)
+            return null;
+
+        String[] campos = new String[datos.length];
+        String[] valores = new String[datos.length];
+        int numCampos = 0;
+        for(int i = 0; i < datos.length; i++) 
+        {
+            if(i==saltaIndice || (saltaIndices!=null && compruebaNum(i, saltaIndices)))
+                continue;
+            try
+            {
+                campos[numCampos] = datos[i][0];
+                valores[numCampos] = datos[i][1];
+            }
+            catch(NullPointerException e)
+            {
+                return null;
+            }
+            if(campos[numCampos]==null)
+                return null;
+            numCampos++;
+        }
+        if(numCampos<campos.length)
+        {
+            campos = Arrays.copyOf(campos, numCampos);
+            valores = Arrays.copyOf(valores, numCampos);
+        }
+        return new String[][]{campos, valores};
+    }
+    /**
+     * Crea de una vez muchos hijos de raiz con el mismo nombre que el primer nodo.
+     * Es mucho mas rapido que llamar a creaNodo por cada fila: los nodos se agregan
+     * por lotes, los indices se actualizan una vez por lote y con el diario activo
+     * cada lote se anota con una sola escritura.
+     * @param filas datos de cada nodo, en el mismo formato que creaNodo(String[][]).
+     * @return numero de nodos creados. Si es menor que filas.length, la fila con
+     * ese indice no tenia el formato correcto y no se han creado ni ella ni las siguientes.
+     */
+    public int creaNodos(String[][][] filas)
+    {
+        cargaCompleto();
+        return creaNodos(almacen.getTituloNodo(0), Arrays.asList(filas).iterator());
+    }
+    /**
+     * Crea de una vez muchos hijos de raiz (ver creaNodos(String[][][])).
+     * @param tituloNodo nombre de los nodos.
+     * @param filas datos de cada nodo, en el mismo formato que creaNodo(String, String[][]).
+     * @return numero de nodos creados. Si es menor que filas.length, la fila con
+     * ese indice no tenia el formato correcto y no se han creado ni ella ni las siguientes.
+     */
+    public int creaNodos(String tituloNodo, String[][][] filas)
+    {
+        return creaNodos(tituloNodo, Arrays.asList(filas).iterator());
+    }
+    /**
+     * Crea de una vez los hijos de raiz que va dando un iterador, con el mismo
+     * nombre que el primer nodo (ver creaNodos(String[][][])). Las filas se leen
+     * segun se agregan, asi que no hace falta tenerlas todas en memoria.
+     * @param filas iterador con los datos de cada nodo.
+     * @return numero de nodos creados. Se para en la primera fila que no tenga
+     * el formato correcto.
+     */
+    public int creaNodos(Iterator<String[][]> filas)
+    {
+        cargaCompleto();
+        return creaNodos(almacen.getTituloNodo(0), filas);
+    }
+    /**
+     * Crea de una vez los hijos de raiz que va dando un iterador (ver creaNodos(Iterator)).
+     * @param tituloNodo nombre de los nodos.
+     * @param filas iterador con los datos de cada nodo.
+     * @return numero de nodos creados. Se para en la primera fila que no tenga
+     * el formato correcto.
+     */
+    public int creaNodos(String tituloNodo, Iterator<String[][]> filas)
+    {
+        cargaCompleto();
+        String[][] campos = new String[TAM_LOTE][];
+        String[][] valores = new String[TAM_LOTE][];
+        int creados = 0;
+        boolean correcto = true;
+        while(correcto && filas.hasNext())
+        {
+            int numNodos = 0;
+            while(numNodos<TAM_LOTE && filas.hasNext())
+            {
+                String[][] nodo = preparaNodo(filas.next(), -1, null);
+                if(nodo==null)
+                {
+                    correcto = false;
+                    break;
+                }
+                campos[numNodos] = nodo[0];
+                valores[numNodos++] = nodo[1];
+            }
+            if(numNodos==0)
+                break;
+
+            int lote = numNodos;
+            long sello = cerrojo.writeLock();
+            try
+            {
+                if(!anota(d -> d.anotaCreaciones(tituloNodo, campos, valores, lote)))
+                    break;
+                int desde = almacen.numRegistros();
+                for (int i = 0; i < lote; i++)
+                    almacen.agrega(tituloNodo, campos[i], valores[i]);
+                indices.agregaNodos(desde, desde + lote);
+            }
+            finally
+            {
+                cerrojo.unlockWrite(sello);
+            }
+            creados += lote;
+        }
+        return creados;
+    }
+    /**
+     * Devuelve el indice en la lista de nodos del nodo buscado.
+     * @param campo Campo para buscar el nodo.
+     * @param valorCampo valor que tiene que tener el campo buscado.
+     * @return indice del nodo.
+     */
+    public int getIndiceNodo(String campo, String valorCampo)
+    {
+        cargaCompleto();
+        MetricasXML.Consulta evento = MetricasXML.iniciaConsulta();
+        boolean conIndice = false;
+        int recorridos = 0;
+        int encontrado = -1;
+        long sello = cerrojo.readLock();
+        try
+        {
+           IndiceCampo indice = indices.getIndice(campo);
+           if(indice!=null)
+           {
+               conIndice = true;
+               encontrado = indice.primero(valorCampo);
+               recorridos = encontrado<0 ? 0 : 1;
+               return encontrado;
+           }
+
+           int columna = almacen.columna(campo);
+           int numNodos = almacen.numRegistros();
+           recorridos = numNodos;
+       
+           for (int i=0; i<numNodos; i++)
+           {
+                if(almacen.estaBorrado(i))
+                    continue;
+                String valorCampoNodo = almacen.valorCampo(i, columna);
+                if(valorCampo.equals(valorCampoNodo))
+                {
+                    recorridos = i+1;
+                    encontrado = i;
+                    return i;
+                }
+           }
+            return -1;
+    
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+            metricas.terminaConsulta(evento, conIndice, recorridos, encontrado<0 ? 0 : 1);
+        }
+    }
+    /**
+     * Devuelve el indice del primer nodo en el que coincidan 
+     * todos los valores en los campos a buscar (estricto==true) o en el primero
+     * que coincida alguno (estricto==false).
+     * @param campos Array de Strings con los nombres de los campos a buscar.
+     * @param valores Array de Strings con los valores de los campos a buscar.
+     * @param estricto si es true tienen que coincidar todos los campos, sino solo tiene que coincidir alguno.
+     * @return el indice del primer nodo en el que coincidan 
+     * todos los valores en los campos a buscar (estricto==true) o en el primero
+     * que coincida alguno (estricto==false).
+     */
+    public int getIndiceNodo(String campos[], String valores[], boolean estricto)
+    {
+        cargaCompleto();
+        MetricasXML.Consulta evento = MetricasXML.iniciaConsulta();
+        boolean conIndice = false;
+        int recorridos = 0;
+        int encontrado = -1;
+        long sello = cerrojo.readLock();
+        try
+        {
+            int[] planificados = indices.busca(campos, valores, estricto, true);
+            if(planificados!=null)
+            {
+                conIndice = true;
+                encontrado = planificados.length==0 ? -1 : planificados[0];
+                recorridos = planificados.length;
+                return encontrado;
+            }
+
+            if(campos.length == valores.length)
+            {
+                int[] columnas = columnas(campos);
+                int numNodos = almacen.numRegistros();
+                recorridos = numNodos;
+                for (int i=0; i<numNodos; i++)
+                {
+                    if(almacen.estaBorrado(i))
+                        continue;
+                    int numCoincidencias = cuentaCoincidencias(i, columnas, valores);
+                
+                    if(numCoincidencias==campos.length || (numCoincidencias>0 && !estricto))
+                    {
+                        recorridos = i+1;
+                        encontrado = i;
+                        return i;
+                    }
+                }
+            }
+            return -1;
+    
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+            metricas.terminaConsulta(evento, conIndice, recorridos, encontrado<0 ? 0 : 1);
+        }
+    }
+    /**
+     * Devuelve todos los indices en la lista de nodos del nodo buscado.
+     * @param campo Campo para buscar el nodo.
+     * @param valorCampo valor que tiene que tener el campo buscado.
+     * @return indice del nodo.
+     */
+    public int[] getIndicesNodos(String campo, String valorCampo)
+    {
+        cargaCompleto();
+        MetricasXML.Consulta evento = MetricasXML.iniciaConsulta();
+        boolean conIndice = false;
+        int recorridos = 0;
+        int[] encontrados = null;
+        long sello = cerrojo.readLock();
+        try
+        {
+            IndiceCampo indice = indices.getIndice(campo);
+            if(indice!=null)
+            {
+                conIndice = true;
+                encontrados = indice.busca(valorCampo);
+                recorridos = encontrados.length;
+                return encontrados;
+            }
+
+            ListaEnteros listaIndices = new ListaEnteros();
+            int columna = almacen.columna(campo);
+            int numNodos = almacen.numRegistros();
+            recorridos = numNodos;
+
+            for (int i=0; i<numNodos; i++)
+            {
+                 if(almacen.estaBorrado(i))
+                     continue;
+                 String valorCampoNodo = almacen.valorCampo(i, columna);
+                 if(valorCampo.equals(valorCampoNodo))
+                     listaIndices.agrega(i);
+            }
+        
+            encontrados = listaIndices.toArray();
+            return encontrados;
+    
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+            metricas.terminaConsulta(evento, conIndice, recorridos, encontrados==null ? 0 : encontrados.length);
+        }
+    }
+    /**
+     * Devuelve el indice del primer nodo en el que coincidan 
+     * todos los valores en los campos a buscar (estricto==true) o en el primero
+     * que coincida alguno (estricto==false).
+     * @param campos Array de Strings con los nombres de los campos a buscar.
+     * @param valores Array de Strings con los valores de los campos a buscar.
+     * @param estricto si es true tienen que coincidar todos los campos, sino solo tiene que coincidir alguno.
+     * @return el indice del primer nodo en el que coincidan 
+     * todos los valores en los campos a buscar (estricto==true) o en el primero
+     * que coincida alguno (estricto==false).
+     */
+    public int[] getIndicesNodos(String campos[], String valores[], boolean estricto)
+    {
+        cargaCompleto();
+        MetricasXML.Consulta evento = MetricasXML.iniciaConsulta();
+        boolean conIndice = false;
+        int recorridos = 0;
+        int[] encontrados = null;
+        long sello = cerrojo.readLock();
+        try
+        {
+            int[] planificados = indices.busca(campos, valores, estricto, false);
+            if(planificados!=null)
+            {
+                conIndice = true;
+                encontrados = planificados;
+                recorridos = planificados.length;
+                return planificados;
+            }
+
+            ListaEnteros listaIndices = new ListaEnteros();
+        
+            if(campos.length == valores.length)
+            {
+                int[] columnas = columnas(campos);
+                int numNodos = almacen.numRegistros();
+                recorridos = numNodos;
+                for (int i=0; i<numNodos; i++)
+                {
+                    if(almacen.estaBorrado(i))
+                        continue;
+                    int numCoincidencias = cuentaCoincidencias(i, columnas, valores);
+                
+                    if(numCoincidencias==campos.length)
+                        listaIndices.agrega(i);
+                    else if(numCoincidencias>0 && !estricto)
+                        listaIndices.agrega(i);
+                }
+            }
+        
+            encontrados = listaIndices.toArray();
+            return encontrados;
+    
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+            metricas.terminaConsulta(evento, conIndice, recorridos, encontrados==null ? 0 : encontrados.length);
+        }
+    }
+    /**
+     * Devuelve las columnas del almacen de cada campo.
+     * @param campos titulos de los campos.
+     * @return identificador de la columna de cada campo (-1 si no existe).
+     */
+    private int[] columnas(String campos[])
+    {
+        int[] columnas = new int[campos.length];
+        for (int i = 0; i < campos.length; i++)
+            columnas[i] = almacen.columna(campos[i]);
+        return columnas;
+    }
+    /**
+     * Cuenta cuantos campos de un nodo tienen el valor buscado.
+     * @param indiceNodo indice del nodo.
+     * @param columnas columnas de los campos a comparar.
+     * @param valores valores buscados en el mismo orden.
+     * @return numero de campos que coinciden.
+     */
+    private int cuentaCoincidencias(int indiceNodo, int[] columnas, String valores[])
+    {
+        int numCoincidencias=0;
+        for (int j = 0; j < columnas.length; j++) 
+        {
+            String valorCampo = almacen.valorCampo(indiceNodo, columnas[j]);
+            if(valorCampo.equals(valores[j]))
+                numCoincidencias++;
+        }
+        return numCoincidencias;
+    }
+    /**
+     * Devuelve los indices de todos los nodos tipo Elemenet en el archivo
+     * (sin los borrados).
+     * @return array con todos los indices de nodos Element.
+     */
+    public int[] getIndicesNodos()
+    {
+        cargaCompleto();
+        long sello = cerrojo.readLock();
+        try
+        {
+            int numNodos = almacen.numRegistros();
+            ListaEnteros listaIndices = new ListaEnteros(numNodos);
+        
+            for (int i = 0; i < numNodos; i++) {
+                if(!almacen.estaBorrado(i))
+                    listaIndices.agrega(i);
+            }
+        
+            return listaIndices.toArray();
+    
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+        }
+    }
+    /**
+     * Modifica la informacion del campo de un nodo.
+     * @param indiceNodo indice del nodo a cambiar.
+     * @param campoCambiar Titulo del campo a buscar en el nodo.
+     * @param nuevoDato Nuevo valor del campo (null se guarda como texto vacio).
+     * @return true o false en funcion de si se ha conseguido modificar la info.
+     */
+    public boolean cambiaInfo(String campoCambiar, String nuevoDato, int indiceNodo) 
+    {
+        cargaCompleto();
+        String valor = nuevoDato==null ? "" : nuevoDato;
+        long sello = cerrojo.writeLock();
+        try
+        {
+            try
+            {
+                if(almacen.valor(indiceNodo, almacen.columna(campoCambiar))==null)
+                    return false;
+            }
+            catch(ArrayIndexOutOfBoundsException e)
+            {
+                return false;
+            }
+            if(!anota(d -> d.anotaCambio(indiceNodo, campoCambiar, valor)))
+                return false;
+
+            String anterior = almacen.cambia(indiceNodo, campoCambiar, valor);
+            if(!almacen.estaBorrado(indiceNodo))
+                indices.cambiaValor(indiceNodo, campoCambiar, anterior, valor);
+        }
+        finally
+        {
+            cerrojo.unlockWrite(sello);
+        }
+        return true;
+    }
+    /**
+     * Borra todos los nodos cuyo campo cumple una condicion (Los cambios hay que
+     * guardarlos manualmente). La condicion se evalua en paralelo en ficheros
+     * grandes, asi que no puede depender del orden ni modificar nada compartido;
+     * despues todos los borrados se anotan en el diario con una sola escritura y
+     * se aplican de una pasada. Los nodos que no tienen el campo no se borran.
+     * Como en borraNodo, los indices del resto de nodos no cambian hasta llamar
+     * a recargaNodosRaiz.
+     * @param campo titulo del campo a comprobar.
+     * @param condicion condicion sobre el valor del campo (Ej: v -> v.equals("0")).
+     * @return numero de nodos borrados.
+     */
+    public int borraDonde(String campo, Predicate<String> condicion)
+    {
+        cargaCompleto();
+        long sello = cerrojo.writeLock();
+        try
+        {
+            int[] encontrados = buscaDonde(almacen.columna(campo), condicion, -1);
+            if(encontrados.length==0 || !anota(d -> d.anotaBorrados(encontrados)))
+                return 0;
+            for (int nodo : encontrados)
+                almacen.borra(nodo);
+            indices.borraNodos(encontrados);
+            if(fraccionCompactacion>0 && almacen.numBorrados()>fraccionCompactacion*almacen.numRegistros())
+                compactaBorrados();
+            return encontrados.length;
+        }
+        finally
+        {
+            cerrojo.unlockWrite(sello);
+        }
+    }
+    /**
+     * Cambia el valor de un campo en todos los nodos cuyo campo (el mismo u otro)
+     * cumple una condicion, como borraDonde. Los nodos que no tienen el campo a
+     * cambiar no se cambian.
+     * @param campo titulo del campo a comprobar.
+     * @param condicion condicion sobre el valor del campo.
+     * @param campoCambiar titulo del campo a cambiar.
+     * @param nuevoDato nuevo valor del campo (null se guarda como texto vacio).
+     * @return numero de nodos cambiados.
+     */
+    public int cambiaDonde(String campo, Predicate<String> condicion, String campoCambiar, String nuevoDato)
+    {
+        cargaCompleto();
+        String valor = nuevoDato==null ? "" : nuevoDato;
+        long sello = cerrojo.writeLock();
+        try
+        {
+            int columnaCambiar = almacen.columna(campoCambiar);
+            if(columnaCambiar<0)
+                return 0;
+            int[] encontrados = buscaDonde(almacen.columna(campo), condicion, columnaCambiar);
+            if(encontrados.length==0 || !anota(d -> d.anotaCambios(encontrados, campoCambiar, valor)))
+                return 0;
+            String[] anteriores = new String[encontrados.length];
+            for (int i = 0; i < encontrados.length; i++)
+                anteriores[i] = almacen.cambia(encontrados[i], campoCambiar, valor);
+            indices.cambiaValores(encontrados, campoCambiar, anteriores);
+            return encontrados.length;
+        }
+        finally
+        {
+            cerrojo.unlockWrite(sello);
+        }
+    }
+    /**
+     * Busca los nodos no borrados cuyo campo cumple una condicion, en paralelo
+     * si hay muchos nodos (solo se lee, y el cerrojo de escritura impide cambios
+     * mientras tanto). Hay que llamarlo con el cerrojo de escritura.
+     * @param columna columna del campo a comprobar (-1 si no existe).
+     * @param condicion condicion sobre el valor del campo.
+     * @param columnaNecesaria columna que tambien tienen que tener los nodos (-1 para ninguna).
+     * @return indices de los nodos, de menor a mayor.
+     */
+    private int[] buscaDonde(int columna, Predicate<String> condicion, int columnaNecesaria)
+    {
+        if(columna<0)
+            return new int[0];
+        IntPredicate cumple = i -> {
+            if(almacen.estaBorrado(i))
+                return false;
+            String valor = almacen.valor(i, columna);
+            return valor!=null && (columnaNecesaria<0 || almacen.valor(i, columnaNecesaria)!=null)
+                    && condicion.test(valor);
+        };
+        IntStream nodos = IntStream.range(0, almacen.numRegistros());
+        if(almacen.numRegistros()>=MIN_NODOS_PARALELO)
+            nodos = nodos.parallel();
+        return nodos.filter(cumple).toArray();
+    }
+    /**
+     * Vuelve a cargar la lista de nodos: quita definitivamente los nodos
+     * borrados, con lo que cambian los indices de los nodos siguientes.
+     */
+    public void recargaNodosRaiz()
+    {
+        cargaCompleto();
+        long sello = cerrojo.writeLock();
+        try
+        {
+            compactaBorrados();
+        }
+        finally
+        {
+            cerrojo.unlockWrite(sello);
+        }
+    }
+    /**
+     * Quita los nodos borrados anotandolo en el diario. Hay que llamarlo con el
+     * cerrojo de escritura.
+     */
+    private void compactaBorrados()
+    {
+        if(almacen.numBorrados()==0 || !anota(DiarioCambios::anotaCompactacion))
+            return;
+        almacen.compacta();
+        indices.invalida();
+    }
+    /**
+     * Hace que borraNodo quite los nodos borrados (como recargaNodosRaiz) cuando
+     * pasan de una fraccion del total, para que no se acumulen sin tener que
+     * recargar a mano. Como los indices de los nodos cambian al compactar, para
+     * seguir un nodo hay que usar su identificador (ver getIdNodo). Por defecto
+     * esta desactivado.
+     * @param fraccion fraccion de nodos borrados a partir de la que se compacta
+     * (Ej: 0.25), o 0 para desactivarlo.
+     */
+    public void setCompactacionAutomatica(double fraccion)
+    {
+        if(!(fraccion>=0 && fraccion<1))
+            throw new IllegalArgumentException("La fraccion tiene que estar entre 0 y 1: "+fraccion);
+        fraccionCompactacion = fraccion;
+    }
+    /**
+     * Devuelve el identificador de un nodo: a diferencia del indice, no cambia
+     * al quitar los nodos borrados (recargaNodosRaiz), asi se puede seguir un
+     * nodo sin volver a buscarlo. Los nodos nuevos reciben identificadores
+     * mayores que todos los anteriores. Los identificadores no se guardan en el
+     * fichero: solo valen mientras este abierto.
+     * @param indiceNodo indice del nodo.
+     * @return identificador del nodo o -1 si el nodo no existe.
+     */
+    public int getIdNodo(int indiceNodo)
+    {
+        return consulta(() -> {
+            RegistrosPerezosos sinLeer = perezosos;
+            if(sinLeer!=null)
+                return indiceNodo>=0 && indiceNodo<sinLeer.numRegistros() ? indiceNodo : -1;
+            return indiceNodo>=0 && indiceNodo<almacen.numRegistros() ? almacen.id(indiceNodo) : -1;
+        });
+    }
+    /**
+     * Devuelve el indice actual del nodo con un identificador (ver getIdNodo).
+     * @param idNodo identificador del nodo.
+     * @return indice del nodo o -1 si se ha borrado o no existe.
+     */
+    public int getIndiceNodoPorId(int idNodo)
+    {
+        return consulta(() -> {
+            RegistrosPerezosos sinLeer = perezosos;
+            if(sinLeer!=null)
+                return idNodo>=0 && idNodo<sinLeer.numRegistros() ? idNodo : -1;
+            int indice = almacen.posicion(idNodo);
+            return indice<0 || almacen.estaBorrado(indice) ? -1 : indice;
+        });
+    }
+    /**
+     * Activa un indice sobre un campo para que getIndiceNodo(campo, valor) y
+     * getIndicesNodos(campo, valor) no tengan que recorrer todos los nodos.
+     * El indice se construye la primera vez que se usa y se mantiene al usar
+     * creaNodo, borraNodo y cambiaInfo (se reconstruye despues de recargaNodosRaiz).
+     * @param campo titulo del campo a indexar.
+     */
+    public void creaIndice(String campo)
+    {
+        cargaCompleto();
+        long sello = cerrojo.writeLock();
+        try
+        {
+            indices.creaIndice(campo);
+    
+        }
+        finally
+        {
+            cerrojo.unlockWrite(sello);
+        }
+    }
+    /**
+     * Desactiva el indice de un campo y libera su memoria.
+     * @param campo titulo del campo indexado.
+     * @return true si el campo tenia indice.
+     */
+    public boolean borraIndice(String campo)
+    {
+        long sello = cerrojo.writeLock();
+        try
+        {
+            return indices.borraIndice(campo);
+    
+        }
+        finally
+        {
+            cerrojo.unlockWrite(sello);
+        }
+    }
+    /**
+     * Activa un indice compuesto sobre varios campos, que usan
+     * getIndiceNodo(campos, valores, true) y getIndicesNodos(campos, valores, true)
+     * cuando la busqueda incluye todos sus campos. Se construye en el primer uso.
+     * @param campos titulos de los campos a indexar.
+     */
+    public void creaIndiceCompuesto(String campos[])
+    {
+        cargaCompleto();
+        long sello = cerrojo.writeLock();
+        try
+        {
+            indices.creaIndiceCompuesto(campos);
+    
+        }
+        finally
+        {
+            cerrojo.unlockWrite(sello);
+        }
+    }
+    /**
+     * Desactiva un indice compuesto y libera su memoria.
+     * @param campos titulos de los campos, en el mismo orden con el que se creo.
+     * @return true si existia el indice.
+     */
+    public boolean borraIndiceCompuesto(String campos[])
+    {
+        long sello = cerrojo.writeLock();
+        try
+        {
+            return indices.borraIndiceCompuesto(campos);
+    
+        }
+        finally
+        {
+            cerrojo.unlockWrite(sello);
+        }
+    }
+    /**
+     * Devuelve cuantos valores distintos tiene un campo indexado (cuanto mas
+     * valores distintos, mas util es el indice para filtrar).
+     * @param campo titulo del campo.
+     * @return numero de valores distintos o -1 si el campo no tiene indice.
+     */
+    public int getNumValoresDistintos(String campo)
+    {
+        cargaCompleto();
+        long sello = cerrojo.readLock();
+        try
+        {
+            return indices.numValoresDistintos(campo);
+    
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+        }
+    }
+    /**
+     * Activa un indice de rangos sobre un campo numerico para que
+     * getIndicesNodosEntre no tenga que recorrer todos los nodos ni convertir
+     * sus valores, y getValorNumerico devuelva el valor ya convertido. Se
+     * construye la primera vez que se usa (deduciendo el tipo del campo, ver
+     * getTipoCampo) y se mantiene al usar creaNodo, borraNodo y cambiaInfo.
+     * @param campo titulo del campo a indexar.
+     */
+    public void creaIndiceRango(String campo)
+    {
+        cargaCompleto();
+        long sello = cerrojo.writeLock();
+        try
+        {
+            indices.creaIndiceRango(campo);
+        }
+        finally
+        {
+            cerrojo.unlockWrite(sello);
+        }
+    }
+    /**
+     * Desactiva el indice de rangos de un campo y libera su memoria.
+     * @param campo titulo del campo indexado.
+     * @return true si el campo tenia indice de rangos.
+     */
+    public boolean borraIndiceRango(String campo)
+    {
+        long sello = cerrojo.writeLock();
+        try
+        {
+            return indices.borraIndiceRango(campo);
+        }
+        finally
+        {
+            cerrojo.unlockWrite(sello);
+        }
+    }
+    /**
+     * Devuelve los indices de los nodos cuyo campo es un numero en el rango
+     * [desde, hasta), Ej: getIndicesNodosEntre("Precio", 2, 10) para
+     * Precio &gt;= 2 y Precio &lt; 10. Para no limitar un extremo se puede usar
+     * Double.NEGATIVE_INFINITY o Double.POSITIVE_INFINITY. Los nodos sin el
+     * campo o cuyo valor no es un numero no se devuelven. Sin indice de rangos
+     * (ver creaIndiceRango) se recorren y convierten todos los nodos.
+     * @param campo titulo del campo numerico.
+     * @param desde valor minimo (incluido).
+     * @param hasta valor maximo (excluido).
+     * @return array con los indices de los nodos, de menor a mayor.
+     */
+    public int[] getIndicesNodosEntre(String campo, double desde, double hasta)
+    {
+        cargaCompleto();
+        MetricasXML.Consulta evento = MetricasXML.iniciaConsulta();
+        boolean conIndice = false;
+        int recorridos = 0;
+        int[] encontrados = null;
+        long sello = cerrojo.readLock();
+        try
+        {
+            IndiceRango rango = indices.getIndiceRango(campo);
+            if(rango!=null)
+            {
+                conIndice = true;
+                encontrados = rango.busca(almacen, desde, hasta);
+                recorridos = encontrados.length;
+                return encontrados;
+            }
+
+            ListaEnteros listaIndices = new ListaEnteros();
+            int columna = almacen.columna(campo);
+            int numNodos = almacen.numRegistros();
+            recorridos = numNodos;
+            for (int i = 0; i < numNodos; i++)
+            {
+                if(almacen.estaBorrado(i))
+                    continue;
+                double valor = IndiceRango.numero(almacen.valor(i, columna));
+                if(valor>=desde && valor<hasta)
+                    listaIndices.agrega(i);
+            }
+            encontrados = listaIndices.toArray();
+            return encontrados;
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+            metricas.terminaConsulta(evento, conIndice, recorridos, encontrados==null ? 0 : encontrados.length);
+        }
+    }
+    /**
+     * Deduce el tipo de un campo a partir de sus valores: "entero" si todos son
+     * enteros, "decimal" si alguno tiene decimales y "texto" si alguno no es un
+     * numero. Con indice de rangos se usa el tipo deducido al construirlo, que
+     * despues de cambios puede ser mas general que los datos (Ej: decimal aunque
+     * ya solo queden enteros) hasta que se reconstruya.
+     * @param campo titulo del campo.
+     * @return "entero", "decimal", "texto" o null si ningun nodo tiene el campo.
+     */
+    public String getTipoCampo(String campo)
+    {
+        cargaCompleto();
+        long sello = cerrojo.readLock();
+        try
+        {
+            IndiceRango rango = indices.getIndiceRango(campo);
+            return rango!=null ? rango.getTipo() : IndiceRango.tipo(almacen, campo);
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+        }
+    }
+    /**
+     * Agrega los valores numericos de un campo de todos los nodos: cuantos hay,
+     * su suma, media, minimo y maximo (Ej: agrega("Precio").getMedia()). Se
+     * hace en una sola pasada por los nodos, repartida entre los procesadores
+     * en ficheros grandes, sin crear un String por valor si el campo tiene
+     * indice de rangos (ver creaIndiceRango). Los valores que no son numeros no
+     * cuentan.
+     * @param campo titulo del campo numerico.
+     * @return agregado de los valores del campo.
+     */
+    public Agregado agrega(String campo)
+    {
+        Agregado agregado = agregaGrupos(campo, null).get(null);
+        return agregado==null ? new Agregado() : agregado;
+    }
+    /**
+     * Agrega los valores numericos de un campo agrupados por el valor de otro
+     * campo (Ej: agregaPor("Precio", "Categoria") para la media del precio de
+     * cada categoria), en una sola pasada como agrega(campo).
+     * @param campo titulo del campo numerico.
+     * @param campoGrupo titulo del campo por el que se agrupa.
+     * @return agregado de cada valor del campo de grupo, en el orden en que
+     * aparecen en el fichero. Los nodos sin el campo de grupo se agrupan en la
+     * clave null; los grupos sin ningun valor numerico no aparecen.
+     */
+    public Map<String, Agregado> agregaPor(String campo, String campoGrupo)
+    {
+        if(campoGrupo==null)
+            throw new IllegalArgumentException("Falta el campo por el que agrupar");
+        return agregaGrupos(campo, campoGrupo);
+    }
+    /**
+     * Cuerpo de agrega y agregaPor.
+     * @param campoGrupo titulo del campo por el que se agrupa, o null para no agrupar.
+     */
+    private LinkedHashMap<String, Agregado> agregaGrupos(String campo, String campoGrupo)
+    {
+        cargaCompleto();
+        MetricasXML.Consulta evento = MetricasXML.iniciaConsulta();
+        IndiceRango rango = null;
+        LinkedHashMap<String, Agregado> grupos = null;
+        long sello = cerrojo.readLock();
+        try
+        {
+            rango = indices.getIndiceRango(campo);
+            //Si ningun nodo tiene el campo de grupo la columna es -1 y todos van a null.
+            int columnaGrupo = campoGrupo==null ? -1 : almacen.columna(campoGrupo);
+            grupos = Agregacion.agrega(almacen, almacen.columna(campo), columnaGrupo, rango, MIN_NODOS_PARALELO);
+            return grupos;
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+            metricas.terminaConsulta(evento, rango!=null, almacen.numRegistros(), grupos==null ? 0 : grupos.size());
+        }
+    }
+    /**
+     * Devuelve los indices de los nodos ordenados por un campo (ver
+     * getIndicesNodosOrdenados(String[], boolean[])).
+     * @param campo titulo del campo.
+     * @param descendente true para ordenar de mayor a menor.
+     * @return array con los indices de todos los nodos en orden.
+     */
+    public int[] getIndicesNodosOrdenados(String campo, boolean descendente)
+    {
+        return getIndicesNodosOrdenados(new String[]{campo}, new boolean[]{descendente});
+    }
+    /**
+     * Devuelve los indices de los nodos ordenados por varios campos, Ej:
+     * getIndicesNodosOrdenados(new String[]{"Categoria", "Precio"}, new boolean[]{false, true})
+     * para ordenar por categoria y dentro de cada una del precio mas alto al
+     * mas bajo. Los campos cuyos valores son todos numeros se comparan como
+     * numeros (2 antes que 10) y el resto como texto. Los nodos sin el campo van
+     * al final y los empates quedan en el orden del fichero. La ordenacion se
+     * guarda hasta el siguiente cambio, asi que repetirla solo copia el resultado.
+     * @param campos titulos de los campos, del mas importante al menos.
+     * @param descendentes true para ordenar cada campo de mayor a menor.
+     * @return array con los indices de todos los nodos en orden.
+     */
+    public int[] getIndicesNodosOrdenados(String campos[], boolean descendentes[])
+    {
+        compruebaOrden(campos, descendentes);
+        cargaCompleto();
+        long sello = cerrojo.readLock();
+        try
+        {
+            return ordenacion(campos, descendentes).clone();
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+        }
+    }
+    /**
+     * Devuelve los k primeros nodos ordenados por un campo (ver
+     * getPrimerosNodos(String[], boolean[], int)), Ej:
+     * getPrimerosNodos("Precio", false, 50) para los 50 productos mas baratos.
+     * @param campo titulo del campo.
+     * @param descendente true para ordenar de mayor a menor.
+     * @param k numero de nodos a devolver.
+     * @return array con los indices de los k primeros nodos en orden.
+     */
+    public int[] getPrimerosNodos(String campo, boolean descendente, int k)
+    {
+        return getPrimerosNodos(new String[]{campo}, new boolean[]{descendente}, k);
+    }
+    /**
+     * Devuelve los k primeros nodos en el mismo orden que
+     * getIndicesNodosOrdenados, pero sin ordenar todos: se recorren los nodos
+     * una vez guardando solo los k mejores (O(n log k)). Si la ordenacion
+     * completa ya esta calculada se usa esa.
+     * @param campos titulos de los campos, del mas importante al menos.
+     * @param descendentes true para ordenar cada campo de mayor a menor.
+     * @param k numero de nodos a devolver.
+     * @return array con los indices de los k primeros nodos en orden (menos
+     * si no hay tantos nodos).
+     */
+    public int[] getPrimerosNodos(String campos[], boolean descendentes[], int k)
+    {
+        compruebaOrden(campos, descendentes);
+        if(k<=0)
+            throw new IllegalArgumentException("k tiene que ser positivo: "+k);
+        cargaCompleto();
+        long sello = cerrojo.readLock();
+        try
+        {
+            int[] orden = indices.getOrden(GestorIndices.claveOrden(campos, descendentes));
+            if(orden!=null)
+                return Arrays.copyOf(orden, Math.min(k, orden.length));
+            return new Ordenacion(almacen, indices, campos, descendentes).primeros(k);
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+        }
+    }
+    /**
+     * Comprueba los parametros de una ordenacion.
+     */
+    private static void compruebaOrden(String campos[], boolean descendentes[])
+    {
+        if(campos.length==0 || campos.length!=descendentes.length)
+            throw new IllegalArgumentException("Hace falta al menos un campo y un sentido por campo");
+    }
+    /**
+     * Devuelve la ordenacion de los nodos por unos campos, calculandola si no
+     * esta guardada. Hay que llamarlo con el cerrojo de lectura.
+     * @return indices de los nodos en orden (no se puede modificar).
+     */
+    private int[] ordenacion(String campos[], boolean descendentes[])
+    {
+        String clave = GestorIndices.claveOrden(campos, descendentes);
+        int[] orden = indices.getOrden(clave);
+        if(orden==null)
+        {
+            orden = new Ordenacion(almacen, indices, campos, descendentes).ordena();
+            indices.guardaOrden(clave, orden);
+        }
+        return orden;
+    }
+    /**
+     * Activa un indice de texto sobre un campo para que getIndicesNodosEmpiezan
+     * y getIndicesNodosContienen no tengan que recorrer todos los nodos (Ej: para
+     * autocompletar). Se construye la primera vez que se usa y se mantiene al
+     * usar creaNodo, borraNodo y cambiaInfo (se reconstruye despues de
+     * recargaNodosRaiz).
+     * @param campo titulo del campo a indexar.
+     */
+    public void creaIndiceTexto(String campo)
+    {
+        cargaCompleto();
+        long sello = cerrojo.writeLock();
+        try
+        {
+            indices.creaIndiceTexto(campo);
+        }
+        finally
+        {
+            cerrojo.unlockWrite(sello);
+        }
+    }
+    /**
+     * Desactiva el indice de texto de un campo y libera su memoria.
+     * @param campo titulo del campo indexado.
+     * @return true si el campo tenia indice de texto.
+     */
+    public boolean borraIndiceTexto(String campo)
+    {
+        long sello = cerrojo.writeLock();
+        try
+        {
+            return indices.borraIndiceTexto(campo);
+        }
+        finally
+        {
+            cerrojo.unlockWrite(sello);
+        }
+    }
+    /**
+     * Devuelve los indices de los nodos cuyo campo empieza por un texto, Ej:
+     * getIndicesNodosEmpiezan("Nombre", "peo", true, 10) para los 10 primeros
+     * nodos con Nombre Peonias, peonia... Sin indice de texto (ver
+     * creaIndiceTexto) se recorren los nodos hasta encontrar el limite.
+     * @param campo titulo del campo.
+     * @param prefijo texto por el que empieza el valor.
+     * @param ignoraMayusculas si es true no distingue mayusculas de minusculas.
+     * @param limite numero maximo de nodos a devolver (Integer.MAX_VALUE para todos).
+     * @return array con los indices de los primeros nodos, de menor a mayor.
+     */
+    public int[] getIndicesNodosEmpiezan(String campo, String prefijo, boolean ignoraMayusculas, int limite)
+    {
+        return buscaTexto(campo, prefijo, true, ignoraMayusculas, limite);
+    }
+    /**
+     * Devuelve los indices de los nodos cuyo campo contiene un texto, Ej:
+     * getIndicesNodosContienen("Nombre", "oni", true, 10). Sin indice de texto
+     * (ver creaIndiceTexto) se recorren los nodos hasta encontrar el limite.
+     * @param campo titulo del campo.
+     * @param texto texto que contiene el valor.
+     * @param ignoraMayusculas si es true no distingue mayusculas de minusculas.
+     * @param limite numero maximo de nodos a devolver (Integer.MAX_VALUE para todos).
+     * @return array con los indices de los primeros nodos, de menor a mayor.
+     */
+    public int[] getIndicesNodosContienen(String campo, String texto, boolean ignoraMayusculas, int limite)
+    {
+        return buscaTexto(campo, texto, false, ignoraMayusculas, limite);
+    }
+    /**
+     * Cuerpo de getIndicesNodosEmpiezan y getIndicesNodosContienen.
+     */
+    private int[] buscaTexto(String campo, String texto, boolean prefijo, boolean ignoraMayusculas, int limite)
+    {
+        if(limite<=0)
+            throw new IllegalArgumentException("El limite tiene que ser positivo: "+limite);
+        cargaCompleto();
+        MetricasXML.Consulta evento = MetricasXML.iniciaConsulta();
+        boolean conIndice = false;
+        int recorridos = 0;
+        int[] encontrados = null;
+        long sello = cerrojo.readLock();
+        try
+        {
+            IndiceTexto indice = indices.getIndiceTexto(campo);
+            if(indice!=null)
+            {
+                conIndice = true;
+                encontrados = prefijo ? indice.empiezan(almacen, texto, ignoraMayusculas, limite)
+                        : indice.contienen(almacen, texto, ignoraMayusculas, limite);
+                recorridos = encontrados.length;
+                return encontrados;
+            }
+
+            encontrados = IndiceTexto.recorre(almacen, almacen.columna(campo), texto, prefijo, ignoraMayusculas, limite);
+            recorridos = encontrados.length<limite ? almacen.numRegistros() : encontrados[limite - 1] + 1;
+            return encontrados;
+        }
+        finally
+        {
+            cerrojo.unlockRead(sello);
+            metricas.terminaConsulta(evento, conIndice, recorridos, encontrados==null ? 0 : encontrados.length);
+        }
+    }
+    /**
+     * Cruza los nodos de este fichero con los de otro que tienen el mismo valor
+     * en un campo (ver cruza(GestionaXML, String, String, boolean, Consumer)),
+     * sin devolver los nodos sin pareja.
+     * @param otro fichero con el que cruzar.
+     * @param campo titulo del campo en los dos ficheros.
+     * @param destino recibe cada fila.
+     * @return numero de filas devueltas.
+     */
+    public long cruza(GestionaXML otro, String campo, Consumer<String[][]> destino)
+    {
+        return cruza(otro, campo, campo, false, destino);
+    }
+    /**
+     * Cruza los nodos de este fichero con los de otro que tienen el mismo valor
+     * en un campo, Ej: pedidos.cruza(productos, "Nombre", "Nombre", true, fila -> ...).
+     * Cada pareja de nodos da una fila con el formato de getNodo: primero los
+     * campos del nodo de este fichero y despues los del otro. Con
+     * conservaSinPareja los nodos de este fichero sin pareja (o sin el campo)
+     * tambien se devuelven, solo con sus campos.
+     * <p>
+     * Se construye una tabla con el fichero que tiene menos nodos (o se usa su
+     * indice del campo, si lo tiene) y se recorre el otro una vez, en vez de
+     * buscar cada nodo en el otro fichero. Si el fichero grande tiene indice del
+     * campo (ver creaIndice) solo se recorre el pequeno, buscando en ese
+     * indice. La tabla guarda como mucho setMaxNodosCruce nodos: si no caben se
+     * reparten en varias tablas y el otro fichero se recorre una vez por tabla. Las filas salen en el orden del
+     * fichero recorrido (agrupadas por tabla si hay varias).
+     * <p>
+     * destino se llama con los dos ficheros bloqueados para lectura, asi que no
+     * puede modificar ninguno de ellos.
+     * @param otro fichero con el que cruzar (puede ser este mismo).
+     * @param campo titulo del campo en este fichero.
+     * @param campoOtro titulo del campo en el otro fichero.
+     * @param conservaSinPareja true para devolver tambien los nodos de este fichero sin pareja.
+     * @param destino recibe cada fila.
+     * @return numero de filas devueltas.
+     */
+    public long cruza(GestionaXML otro, String campo, String campoOtro, boolean conservaSinPareja,
+            Consumer<String[][]> destino)
+    {
+        cargaCompleto();
+        otro.cargaCompleto();
+        MetricasXML.Consulta evento = MetricasXML.iniciaConsulta();
+        Cruce cruce = null;
+        //Los dos cerrojos se cogen siempre en el mismo orden para que dos cruces
+        //a la vez (a con b y b con a) no se bloqueen esperando a un cambio.
+        int hash = System.identityHashCode(this);
+        int hashOtro = System.identityHashCode(otro);
+        GestionaXML primero = hash<=hashOtro ? this : otro;
+        GestionaXML segundo = primero==this ? otro : this;
+        long sello;
+        long selloSegundo = 0;
+        if(hash!=hashOtro || otro==this)
+        {
+            sello = primero.cerrojo.readLock();
+            if(segundo!=primero)
+                selloSegundo = segundo.cerrojo.readLock();
+        }
+        else
+        {
+            synchronized(CERROJO_CRUCES)
+            {
+                sello = primero.cerrojo.readLock();
+                selloSegundo = segundo.cerrojo.readLock();
+            }
+        }
+        try
+        {
+            cruce = Cruce.cruza(almacen, indices, campo, otro.almacen, otro.indices, campoOtro,
+                    conservaSinPareja, destino, maxNodosCruce);
+            return cruce.getNumFilas();
+        }
+        finally
+        {
+            if(segundo!=primero)
+                segundo.cerrojo.unlockRead(selloSegundo);
+            primero.cerrojo.unlockRead(sello);
+            metricas.terminaConsulta(evento, cruce!=null && cruce.conIndice(),
+                    almacen.numRegistros() + (otro==this ? 0 : otro.almacen.numRegistros()),
+                    cruce==null ? 0 : (int)Math.min(Integer.MAX_VALUE, cruce.getNumFilas()));
+        }
     }
     /**
      * Devuelve la ruta y nodo raiz del fichero.
@@ -944,6 +2623,6 @@ public class GestionaXML
      */
     @Override
     public String toString() {
-        return this.fichero.getPath()+"-"+raiz.getNodeName();
+        return this.fichero.getPath()+"-"+almacen.getTituloRaiz();
     }
 }
\ No newline at end of file
@@ -0,0 +1,670 @@
+package gestionaxml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Guarda los indices (simples y compuestos) de un fichero, los mantiene al
+ * cambiar los datos y decide como resolver las busquedas por varios campos.
+ * <p>
+ * Busqueda estricta: se eligen los indices que cubren campos de la consulta,
+ * se empieza por el que devuelve menos nodos para el valor buscado y se van
+ * intersecando sus listas ordenadas; los campos sin indice se comprueban solo
+ * sobre los nodos que quedan. Busqueda no estricta: se unen las listas de cada
+ * campo, por lo que todos los campos tienen que estar indexados.
+ * Si no hay indices que sirvan se devuelve null y se recorre el fichero.
+ * <p>
+ * Tambien guarda los indices de rangos de los campos numericos ({@link IndiceRango}),
+ * que solo se usan para buscar por rango, y los indices de texto
+ * ({@link IndiceTexto}), que solo se usan para buscar por prefijo o por texto
+ * contenido.
+ * <p>
+ * Ademas guarda las ordenaciones de nodos ya calculadas (ver Ordenacion) hasta
+ * el siguiente cambio.
+ * @author neowavila
+ */
+class GestorIndices
+{
+    private static final int MAX_ORDENES = 8;
+
+    private final AlmacenRegistros almacen;
+    private final HashMap<String, IndiceCampo> simples = new HashMap<>();
+    private final ArrayList<IndiceCampo> compuestos = new ArrayList<>();
+    private final HashMap<String, IndiceRango> rangos = new HashMap<>();
+    private final HashMap<String, IndiceTexto> textos = new HashMap<>();
+    private final ConcurrentHashMap<String, int[]> ordenes = new ConcurrentHashMap<>();
+
+    /**
+     * Crea el gestor de indices de un fichero sin ningun indice.
+     * @param almacen nodos del fichero.
+     */
+    GestorIndices(AlmacenRegistros almacen)
+    {
+        this.almacen = almacen;
+    }
+
+    /**
+     * Activa el indice de un campo (se construye en el primer uso).
+     * @param campo titulo del campo.
+     */
+    void creaIndice(String campo)
+    {
+        if(!simples.containsKey(campo))
+            simples.put(campo, new IndiceCampo(campo));
+    }
+
+    /**
+     * Desactiva el indice de un campo.
+     * @param campo titulo del campo.
+     * @return true si el campo tenia indice.
+     */
+    boolean borraIndice(String campo)
+    {
+        return simples.remove(campo)!=null;
+    }
+
+    /**
+     * Activa un indice compuesto sobre varios campos (se construye en el primer uso).
+     * @param campos titulos de los campos.
+     */
+    void creaIndiceCompuesto(String[] campos)
+    {
+        if(buscaCompuesto(campos)<0)
+            compuestos.add(new IndiceCampo(campos));
+    }
+
+    /**
+     * Desactiva un indice compuesto.
+     * @param campos titulos de los campos, en el mismo orden con el que se creo.
+     * @return true si existia el indice.
+     */
+    boolean borraIndiceCompuesto(String[] campos)
+    {
+        int pos = buscaCompuesto(campos);
+        if(pos<0)
+            return false;
+        compuestos.remove(pos);
+        return true;
+    }
+
+    /**
+     * Activa el indice de rangos de un campo (se construye en el primer uso).
+     * @param campo titulo del campo.
+     */
+    void creaIndiceRango(String campo)
+    {
+        if(!rangos.containsKey(campo))
+            rangos.put(campo, new IndiceRango(campo));
+    }
+
+    /**
+     * Desactiva el indice de rangos de un campo.
+     * @param campo titulo del campo.
+     * @return true si el campo tenia indice de rangos.
+     */
+    boolean borraIndiceRango(String campo)
+    {
+        return rangos.remove(campo)!=null;
+    }
+
+    /**
+     * Devuelve el indice de rangos de un campo, construyendolo si hace falta.
+     * @param campo titulo del campo.
+     * @return el indice o null si el campo no tiene indice de rangos.
+     */
+    IndiceRango getIndiceRango(String campo)
+    {
+        IndiceRango indice = rangos.get(campo);
+        if(indice!=null && !indice.estaConstruido())
+        {
+            synchronized(indice)
+            {
+                if(!indice.estaConstruido())
+                    indice.construye(almacen);
+            }
+        }
+        return indice;
+    }
+
+    /**
+     * Devuelve el indice de rangos de un campo solo si ya esta construido (para
+     * consultas que no pueden construirlo).
+     * @param campo titulo del campo.
+     * @return el indice o null si no existe o no esta construido.
+     */
+    IndiceRango getIndiceRangoConstruido(String campo)
+    {
+        IndiceRango indice = rangos.get(campo);
+        return indice!=null && indice.estaConstruido() ? indice : null;
+    }
+
+    /**
+     * Activa el indice de texto de un campo (se construye en el primer uso).
+     * @param campo titulo del campo.
+     */
+    void creaIndiceTexto(String campo)
+    {
+        if(!textos.containsKey(campo))
+            textos.put(campo, new IndiceTexto(campo));
+    }
+
+    /**
+     * Desactiva el indice de texto de un campo.
+     * @param campo titulo del campo.
+     * @return true si el campo tenia indice de texto.
+     */
+    boolean borraIndiceTexto(String campo)
+    {
+        return textos.remove(campo)!=null;
+    }
+
+    /**
+     * Devuelve el indice de texto de un campo, construyendolo si hace falta.
+     * @param campo titulo del campo.
+     * @return el indice o null si el campo no tiene indice de texto.
+     */
+    IndiceTexto getIndiceTexto(String campo)
+    {
+        IndiceTexto indice = textos.get(campo);
+        if(indice!=null && !indice.estaConstruido())
+        {
+            synchronized(indice)
+            {
+                if(!indice.estaConstruido())
+                    indice.construye(almacen);
+            }
+        }
+        return indice;
+    }
+
+    /**
+     * Devuelve una ordenacion ya calculada.
+     * @param clave campos y sentido de la ordenacion (ver claveOrden).
+     * @return indices de los nodos en orden (no se puede modificar), o null si
+     * no esta calculada o ha habido cambios desde entonces.
+     */
+    int[] getOrden(String clave)
+    {
+        return ordenes.get(clave);
+    }
+
+    /**
+     * Guarda una ordenacion hasta el siguiente cambio. Se guardan como mucho
+     * MAX_ORDENES: si hay mas se descartan todas.
+     * @param clave campos y sentido de la ordenacion (ver claveOrden).
+     * @param orden indices de los nodos en orden.
+     */
+    void guardaOrden(String clave, int[] orden)
+    {
+        if(ordenes.size()>=MAX_ORDENES)
+            ordenes.clear();
+        ordenes.put(clave, orden);
+    }
+
+    /**
+     * Calcula la clave de una ordenacion.
+     * @param campos titulos de los campos.
+     * @param descendentes sentido de cada campo.
+     * @return clave de la ordenacion.
+     */
+    static String claveOrden(String[] campos, boolean[] descendentes)
+    {
+        StringBuilder clave = new StringBuilder();
+        for (int i = 0; i < campos.length; i++)
+            clave.append(descendentes[i] ? '-' : '+').append(campos[i]).append('\u0000');
+        return clave.toString();
+    }
+
+    /**
+     * Busca un indice compuesto por sus campos.
+     * @param campos titulos de los campos.
+     * @return posicion en la lista de compuestos o -1 si no existe.
+     */
+    private int buscaCompuesto(String[] campos)
+    {
+        for (int i = 0; i < compuestos.size(); i++)
+            if(Arrays.equals(compuestos.get(i).getCampos(), campos))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Devuelve el indice simple de un campo, construyendolo si hace falta.
+     * @param campo titulo del campo.
+     * @return el indice o null si el campo no esta indexado.
+     */
+    IndiceCampo getIndice(String campo)
+    {
+        return construido(simples.get(campo));
+    }
+
+    /**
+     * Construye el indice si todavia no se ha usado. Varias consultas a la vez
+     * pueden pedir el mismo indice: solo lo construye la primera.
+     * @param indice indice a preparar (puede ser null).
+     * @return el mismo indice ya construido.
+     */
+    private IndiceCampo construido(IndiceCampo indice)
+    {
+        if(indice!=null && !indice.estaConstruido())
+        {
+            synchronized(indice)
+            {
+                if(!indice.estaConstruido())
+                    indice.construye(almacen);
+            }
+        }
+        return indice;
+    }
+
+    /**
+     * Devuelve cuantos valores distintos tiene un campo indexado.
+     * @param campo titulo del campo.
+     * @return numero de valores distintos o -1 si el campo no tiene indice.
+     */
+    int numValoresDistintos(String campo)
+    {
+        IndiceCampo indice = getIndice(campo);
+        return indice==null ? -1 : indice.numValoresDistintos();
+    }
+
+    /**
+     * Actualiza los indices construidos despues de cambiar el valor de un campo.
+     * @param indiceNodo indice del nodo modificado.
+     * @param campo titulo del campo modificado.
+     * @param anterior valor que tenia el campo.
+     * @param nuevo valor nuevo del campo.
+     */
+    void cambiaValor(int indiceNodo, String campo, String anterior, String nuevo)
+    {
+        ordenes.clear();
+        IndiceRango rango = rangos.get(campo);
+        if(rango!=null && rango.estaConstruido())
+            rango.actualiza(almacen, indiceNodo);
+        IndiceTexto texto = textos.get(campo);
+        if(texto!=null && texto.estaConstruido())
+            texto.actualiza(indiceNodo);
+        IndiceCampo simple = simples.get(campo);
+        if(simple!=null && simple.estaConstruido())
+            simple.cambia(indiceNodo, anterior, nuevo);
+        for (IndiceCampo compuesto : compuestos)
+        {
+            if(compuesto.estaConstruido() && compuesto.contiene(campo))
+                compuesto.cambia(indiceNodo, compuesto.clave(almacen, indiceNodo, campo, anterior),
+                        compuesto.clave(almacen, indiceNodo, null, null));
+        }
+    }
+
+    /**
+     * Agrega a los indices construidos un nodo nuevo.
+     * @param indiceNodo indice del nodo agregado.
+     */
+    void agregaNodo(int indiceNodo)
+    {
+        ordenes.clear();
+        for (IndiceRango rango : rangos.values())
+            if(rango.estaConstruido())
+                rango.actualiza(almacen, indiceNodo);
+        for (IndiceTexto texto : textos.values())
+            if(texto.estaConstruido())
+                texto.actualiza(indiceNodo);
+        for (IndiceCampo indice : simples.values())
+            if(indice.estaConstruido())
+                indice.agrega(indice.clave(almacen, indiceNodo, null, null), indiceNodo);
+        for (IndiceCampo indice : compuestos)
+            if(indice.estaConstruido())
+                indice.agrega(indice.clave(almacen, indiceNodo, null, null), indiceNodo);
+    }
+
+    /**
+     * Agrega a los indices construidos un grupo de nodos nuevos consecutivos,
+     * recorriendo cada indice una sola vez.
+     * @param desde indice del primer nodo agregado.
+     * @param hasta indice siguiente al ultimo nodo agregado.
+     */
+    void agregaNodos(int desde, int hasta)
+    {
+        ordenes.clear();
+        for (IndiceRango rango : rangos.values())
+            for (int i = desde; i < hasta && rango.estaConstruido(); i++)
+                rango.actualiza(almacen, i);
+        for (IndiceTexto texto : textos.values())
+            for (int i = desde; i < hasta && texto.estaConstruido(); i++)
+                texto.actualiza(i);
+        for (IndiceCampo indice : simples.values())
+            if(indice.estaConstruido())
+                for (int i = desde; i < hasta; i++)
+                    indice.agrega(indice.clave(almacen, i, null, null), i);
+        for (IndiceCampo indice : compuestos)
+            if(indice.estaConstruido())
+                for (int i = desde; i < hasta; i++)
+                    indice.agrega(indice.clave(almacen, i, null, null), i);
+    }
+
+    /**
+     * Quita de los indices construidos un nodo borrado (sus datos tienen que
+     * seguir en el almacen).
+     * @param indiceNodo indice del nodo borrado.
+     */
+    void borraNodo(int indiceNodo)
+    {
+        ordenes.clear();
+        for (IndiceCampo indice : simples.values())
+            if(indice.estaConstruido())
+                indice.borra(indice.clave(almacen, indiceNodo, null, null), indiceNodo);
+        for (IndiceCampo indice : compuestos)
+            if(indice.estaConstruido())
+                indice.borra(indice.clave(almacen, indiceNodo, null, null), indiceNodo);
+    }
+
+    /**
+     * Quita de los indices construidos un grupo de nodos borrados (sus datos
+     * tienen que seguir en el almacen), con una sola pasada por cada valor.
+     * @param nodos indices de los nodos borrados, de menor a mayor.
+     */
+    void borraNodos(int[] nodos)
+    {
+        ordenes.clear();
+        for (IndiceCampo indice : simples.values())
+            if(indice.estaConstruido())
+                indice.borraVarios(agrupa(indice, nodos, null, null));
+        for (IndiceCampo indice : compuestos)
+            if(indice.estaConstruido())
+                indice.borraVarios(agrupa(indice, nodos, null, null));
+    }
+
+    /**
+     * Actualiza los indices construidos despues de cambiar el valor de un campo
+     * en un grupo de nodos, con una sola pasada por cada valor.
+     * @param nodos indices de los nodos modificados, de menor a mayor.
+     * @param campo titulo del campo modificado.
+     * @param anteriores valor que tenia el campo en cada nodo.
+     */
+    void cambiaValores(int[] nodos, String campo, String[] anteriores)
+    {
+        ordenes.clear();
+        IndiceRango rango = rangos.get(campo);
+        for (int i = 0; i < nodos.length && rango!=null && rango.estaConstruido(); i++)
+            rango.actualiza(almacen, nodos[i]);
+        IndiceTexto texto = textos.get(campo);
+        for (int i = 0; i < nodos.length && texto!=null && texto.estaConstruido(); i++)
+            texto.actualiza(nodos[i]);
+        IndiceCampo simple = simples.get(campo);
+        if(simple!=null && simple.estaConstruido())
+        {
+            simple.borraVarios(agrupa(simple, nodos, campo, anteriores));
+            simple.agregaVarios(agrupa(simple, nodos, null, null));
+        }
+        for (IndiceCampo compuesto : compuestos)
+        {
+            if(compuesto.estaConstruido() && compuesto.contiene(campo))
+            {
+                compuesto.borraVarios(agrupa(compuesto, nodos, campo, anteriores));
+                compuesto.agregaVarios(agrupa(compuesto, nodos, null, null));
+            }
+        }
+    }
+
+    /**
+     * Agrupa nodos por su clave en un indice.
+     * @param indice indice del que se calculan las claves.
+     * @param nodos indices de los nodos, de menor a mayor.
+     * @param campo campo que se sustituye por su valor anterior (null para ninguno).
+     * @param anteriores valor anterior del campo en cada nodo.
+     * @return nodos de cada clave, de menor a mayor.
+     */
+    private HashMap<String, ListaEnteros> agrupa(IndiceCampo indice, int[] nodos, String campo, String[] anteriores)
+    {
+        HashMap<String, ListaEnteros> grupos = new HashMap<>();
+        for (int i = 0; i < nodos.length; i++)
+        {
+            String clave = indice.clave(almacen, nodos[i], campo, campo==null ? null : anteriores[i]);
+            grupos.computeIfAbsent(clave, c -> new ListaEnteros()).agrega(nodos[i]);
+        }
+        return grupos;
+    }
+
+    /**
+     * Descarta el contenido de todos los indices (se reconstruyen en el proximo uso).
+     */
+    void invalida()
+    {
+        ordenes.clear();
+        for (IndiceRango rango : rangos.values())
+            rango.invalida();
+        for (IndiceTexto texto : textos.values())
+            texto.invalida();
+        for (IndiceCampo indice : simples.values())
+            indice.invalida();
+        for (IndiceCampo indice : compuestos)
+            indice.invalida();
+    }
+
+    /**
+     * Resuelve una busqueda por varios campos usando los indices.
+     * @param campos titulos de los campos a buscar.
+     * @param valores valores de los campos a buscar.
+     * @param estricto si es true tienen que coincidir todos los campos, sino alguno.
+     * @param soloPrimero si es true basta con devolver el primer nodo.
+     * @return indices de los nodos de menor a mayor, o null si los indices no sirven
+     * para esta busqueda y hay que recorrer el fichero.
+     */
+    int[] busca(String[] campos, String[] valores, boolean estricto, boolean soloPrimero)
+    {
+        if(campos.length==0 || campos.length!=valores.length)
+            return null;
+        return estricto ? buscaTodos(campos, valores, soloPrimero) : buscaAlguno(campos, valores, soloPrimero);
+    }
+
+    /**
+     * Busqueda estricta: interseca las listas de los indices de menor a mayor tamano.
+     */
+    private int[] buscaTodos(String[] campos, String[] valores, boolean soloPrimero)
+    {
+        LinkedHashMap<String, String> condiciones = new LinkedHashMap<>();
+        for (int i = 0; i < campos.length; i++)
+        {
+            String previo = condiciones.put(campos[i], valores[i]);
+            if(previo!=null && !previo.equals(valores[i]))
+                return new int[0]; //El mismo campo no puede tener dos valores.
+        }
+
+        ArrayList<Candidato> candidatos = new ArrayList<>();
+        for (Map.Entry<String, String> condicion : condiciones.entrySet())
+        {
+            IndiceCampo indice = getIndice(condicion.getKey());
+            if(indice!=null)
+                candidatos.add(new Candidato(indice, condicion.getValue()));
+        }
+        for (IndiceCampo compuesto : compuestos)
+        {
+            String[] camposIndice = compuesto.getCampos();
+            String[] valoresIndice = new String[camposIndice.length];
+            boolean cubierto = true;
+            for (int i = 0; i < camposIndice.length && cubierto; i++)
+            {
+                valoresIndice[i] = condiciones.get(camposIndice[i]);
+                cubierto = valoresIndice[i]!=null;
+            }
+            if(cubierto)
+                candidatos.add(new Candidato(construido(compuesto), IndiceCampo.clave(valoresIndice)));
+        }
+        if(candidatos.isEmpty())
+            return null;
+
+        //Primero el mas selectivo: el que menos nodos tiene para el valor buscado.
+        candidatos.sort(Comparator.comparingInt(c -> c.tam));
+        int[] resultado = null;
+        for (Candidato candidato : candidatos)
+        {
+            if(resultado!=null && !candidato.aporta(condiciones.keySet()))
+                continue; //Sus campos ya estan filtrados por otro indice.
+            int[] lista = candidato.indice.busca(candidato.clave);
+            resultado = resultado==null ? lista : interseca(resultado, lista);
+            candidato.marcaCubiertos(condiciones);
+            if(resultado.length==0)
+                return resultado;
+        }
+
+        //Campos sin indice: se comprueban solo sobre los nodos que quedan.
+        if(condiciones.isEmpty())
+            return soloPrimero && resultado.length>1 ? new int[]{resultado[0]} : resultado;
+        ListaEnteros filtrados = new ListaEnteros(resultado.length);
+        for (int indiceNodo : resultado)
+        {
+            if(cumple(indiceNodo, condiciones))
+            {
+                filtrados.agrega(indiceNodo);
+                if(soloPrimero)
+                    break;
+            }
+        }
+        return filtrados.toArray();
+    }
+
+    /**
+     * Busqueda no estricta: une las listas de los indices de cada campo.
+     */
+    private int[] buscaAlguno(String[] campos, String[] valores, boolean soloPrimero)
+    {
+        IndiceCampo[] indicesCampos = new IndiceCampo[campos.length];
+        for (int i = 0; i < campos.length; i++)
+        {
+            if(simples.get(campos[i])==null)
+                return null; //Un campo sin indice obliga a recorrer todo el fichero.
+            indicesCampos[i] = getIndice(campos[i]);
+        }
+
+        if(soloPrimero)
+        {
+            int primero = Integer.MAX_VALUE;
+            for (int i = 0; i < campos.length; i++)
+            {
+                int indiceNodo = indicesCampos[i].primero(valores[i]);
+                if(indiceNodo>=0 && indiceNodo<primero)
+                    primero = indiceNodo;
+            }
+            return primero==Integer.MAX_VALUE ? new int[0] : new int[]{primero};
+        }
+
+        int[] resultado = new int[0];
+        for (int i = 0; i < campos.length; i++)
+            resultado = une(resultado, indicesCampos[i].busca(valores[i]));
+        return resultado;
+    }
+
+    /**
+     * Comprueba las condiciones que no ha cubierto ningun indice.
+     * @param indiceNodo nodo a comprobar.
+     * @param condiciones campos y valores que tiene que tener.
+     * @return true si cumple todas.
+     */
+    private boolean cumple(int indiceNodo, Map<String, String> condiciones)
+    {
+        for (Map.Entry<String, String> condicion : condiciones.entrySet())
+            if(!condicion.getValue().equals(almacen.valorCampo(indiceNodo, condicion.getKey())))
+                return false;
+        return true;
+    }
+
+    /**
+     * Interseca dos listas ordenadas. Recorre la pequena y busca en la grande,
+     * asi el coste depende sobre todo de la lista pequena.
+     * @param a lista ordenada.
+     * @param b lista ordenada.
+     * @return numeros que estan en las dos listas, ordenados.
+     */
+    static int[] interseca(int[] a, int[] b)
+    {
+        if(a.length>b.length)
+        {
+            int[] temp = a;
+            a = b;
+            b = temp;
+        }
+        ListaEnteros resultado = new ListaEnteros(a.length);
+        int desde = 0;
+        for (int i = 0; i < a.length && desde < b.length; i++)
+        {
+            int pos = Arrays.binarySearch(b, desde, b.length, a[i]);
+            if(pos>=0)
+            {
+                resultado.agrega(a[i]);
+                desde = pos + 1;
+            }
+            else
+                desde = -pos - 1;
+        }
+        return resultado.toArray();
+    }
+
+    /**
+     * Une dos listas ordenadas sin repetidos.
+     * @param a lista ordenada.
+     * @param b lista ordenada.
+     * @return numeros que estan en alguna de las listas, ordenados.
+     */
+    static int[] une(int[] a, int[] b)
+    {
+        int[] resultado = new int[a.length + b.length];
+        int i = 0, j = 0, tam = 0;
+        while(i<a.length || j<b.length)
+        {
+            int siguiente;
+            if(j==b.length || (i<a.length && a[i]<=b[j]))
+                siguiente = a[i++];
+            else
+                siguiente = b[j++];
+            if(tam==0 || resultado[tam-1]!=siguiente)
+                resultado[tam++] = siguiente;
+        }
+        return Arrays.copyOf(resultado, tam);
+    }
+
+    /**
+     * Indice que puede usarse en una busqueda, con la clave a consultar y
+     * cuantos nodos devolveria.
+     */
+    private static class Candidato
+    {
+        private final IndiceCampo indice;
+        private final String clave;
+        private final int tam;
+
+        Candidato(IndiceCampo indice, String clave)
+        {
+            this.indice = indice;
+            this.clave = clave;
+            this.tam = indice.cuenta(clave);
+        }
+
+        /**
+         * Indica si el indice filtra algun campo que todavia no este filtrado.
+         * @param pendientes campos pendientes de filtrar.
+         * @return true si alguno de sus campos esta pendiente.
+         */
+        boolean aporta(Set<String> pendientes)
+        {
+            for (String campo : indice.getCampos())
+                if(pendientes.contains(campo))
+                    return true;
+            return false;
+        }
+
+        /**
+         * Quita de las condiciones los campos que ya filtra este indice.
+         * @param condiciones condiciones pendientes de comprobar.
+         */
+        void marcaCubiertos(Map<String, String> condiciones)
+        {
+            for (String campo : indice.getCampos())
+                condiciones.remove(campo);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package gestionaxml;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Guardado a prueba de cortes: se escribe un fichero temporal en la misma carpeta,
+ * se fuerza a disco y se renombra encima del destino con un movimiento atomico.
+ * Si el proceso muere a mitad, el fichero original sigue intacto.
+ * @author neowavila
+ */
+class GuardadoAtomico
+{
+    private GuardadoAtomico()
+    {
+    }
+
+    /**
+     * Guarda el almacen en el destino de forma atomica y duradera.
+     * @param almacen nodos a escribir.
+     * @param destino fichero a sustituir.
+     * @param tamBuffer tamano del buffer de escritura en bytes.
+     * @throws IOException si falla la escritura (el destino no se modifica).
+     */
+    static void guarda(AlmacenRegistros almacen, Path destino, int tamBuffer) throws IOException
+    {
+        guarda(almacen, destino, tamBuffer, true);
+    }
+
+    /**
+     * Guarda el almacen en el destino escribiendo un temporal y renombrandolo
+     * encima, sin escribir nunca en el propio destino: quien lo tenga proyectado
+     * (ver ParserMapeado) sigue leyendo el fichero anterior.
+     * @param almacen nodos a escribir.
+     * @param destino fichero a sustituir.
+     * @param tamBuffer tamano del buffer de escritura en bytes.
+     * @param sincroniza si es true no termina hasta que el fichero y su nombre esten en disco.
+     * @throws IOException si falla la escritura (el destino no se modifica).
+     */
+    static void guarda(AlmacenRegistros almacen, Path destino, int tamBuffer, boolean sincroniza) throws IOException
+    {
+        Path temporal = escribeTemporal(almacen, destino, tamBuffer, sincroniza);
+        publica(temporal, destino, sincroniza);
+    }
+
+    /**
+     * Escribe el almacen en un fichero temporal junto al destino.
+     * @param almacen nodos a escribir.
+     * @param destino fichero que se sustituira despues.
+     * @param tamBuffer tamano del buffer de escritura en bytes.
+     * @param sincroniza si es true el temporal se fuerza a disco antes de volver.
+     * @return ruta del fichero temporal.
+     * @throws IOException si falla la escritura (el temporal se borra).
+     */
+    static Path escribeTemporal(AlmacenRegistros almacen, Path destino, int tamBuffer, boolean sincroniza)
+            throws IOException
+    {
+        Path temporal = creaTemporal(destino);
+        try
+        {
+            EscritorXML.escribe(almacen, temporal, tamBuffer, sincroniza);
+            return temporal;
+        }
+        catch(IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(temporal);
+            throw e;
+        }
+    }
+
+    /**
+     * Crea un fichero temporal vacio en la carpeta del destino, con los mismos
+     * permisos que el destino si ya existe.
+     * @param destino fichero que se sustituira.
+     * @return ruta del temporal.
+     * @throws IOException si no se puede crear.
+     */
+    static Path creaTemporal(Path destino) throws IOException
+    {
+        Path absoluto = real(destino);
+        Path carpeta = absoluto.getParent();
+        String nombre = "." + absoluto.getFileName() + ".";
+        while(true)
+        {
+            Path temporal = carpeta.resolve(nombre + Long.toHexString(System.nanoTime()) + ".tmp");
+            try
+            {
+                Files.createFile(temporal);
+            }
+            catch(FileAlreadyExistsException e)
+            {
+                continue;
+            }
+            try
+            {
+                if(Files.exists(absoluto))
+                    Files.setPosixFilePermissions(temporal, Files.getPosixFilePermissions(absoluto));
+            }
+            catch(UnsupportedOperationException e)
+            {
+                //Sistema de ficheros sin permisos POSIX.
+            }
+            catch(IOException e)
+            {
+                Files.deleteIfExists(temporal);
+                throw e;
+            }
+            return temporal;
+        }
+    }
+
+    /**
+     * Fuerza a disco un temporal ya escrito.
+     * @param temporal fichero a sincronizar.
+     * @throws IOException si falla.
+     */
+    static void sincroniza(Path temporal) throws IOException
+    {
+        try(FileChannel canal = FileChannel.open(temporal, StandardOpenOption.WRITE))
+        {
+            canal.force(true);
+        }
+    }
+
+    /**
+     * Renombra el temporal (ya en disco) encima del destino y sincroniza la carpeta
+     * para que el cambio de nombre tambien sobreviva a un corte.
+     * @param temporal fichero temporal ya sincronizado.
+     * @param destino fichero a sustituir.
+     * @throws IOException si falla (el temporal se borra).
+     */
+    static void publica(Path temporal, Path destino) throws IOException
+    {
+        publica(temporal, destino, true);
+    }
+
+    /**
+     * Renombra el temporal encima del destino.
+     * @param temporal fichero temporal ya escrito.
+     * @param destino fichero a sustituir.
+     * @param sincroniza si es true tambien se sincroniza la carpeta.
+     * @throws IOException si falla (el temporal se borra).
+     */
+    static void publica(Path temporal, Path destino, boolean sincroniza) throws IOException
+    {
+        Path real = real(destino);
+        try
+        {
+            try
+            {
+                Files.move(temporal, real, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch(AtomicMoveNotSupportedException e)
+            {
+                Files.move(temporal, real, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch(IOException e)
+        {
+            Files.deleteIfExists(temporal);
+            throw e;
+        }
+        if(sincroniza)
+            sincronizaCarpeta(real.getParent());
+    }
+
+    /**
+     * Devuelve la ruta absoluta del fichero al que apunta el destino, para que
+     * al guardar en un enlace simbolico se sustituya el fichero y no el enlace.
+     * @param destino fichero a sustituir (puede no existir).
+     * @return ruta absoluta sin enlaces.
+     * @throws IOException si no se puede resolver el enlace.
+     */
+    private static Path real(Path destino) throws IOException
+    {
+        return Files.isSymbolicLink(destino) ? destino.toRealPath() : destino.toAbsolutePath();
+    }
+
+    /**
+     * Sincroniza la entrada de la carpeta. No todos los sistemas permiten abrir
+     * una carpeta, en ese caso no se hace nada.
+     * @param carpeta carpeta del fichero guardado.
+     */
+    private static void sincronizaCarpeta(Path carpeta)
+    {
+        try(FileChannel canal = FileChannel.open(carpeta, StandardOpenOption.READ))
+        {
+            canal.force(true);
+        }
+        catch(IOException e)
+        {
+            //Windows no permite sincronizar carpetas; el renombrado ya es atomico.
+        }
+    }
+}
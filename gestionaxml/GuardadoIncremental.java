@@ -0,0 +1,333 @@
+package gestionaxml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Guardado que solo escribe lo que ha cambiado desde que se leyo o se guardo el
+ * fichero, usando la posicion de cada nodo en el fichero (ver TramosFichero).
+ * <p>
+ * Los nodos que no han cambiado se copian del fichero anterior al nuevo por
+ * tramos seguidos con {@link FileChannel#transferTo}, sin convertirlos a texto
+ * (el sistema operativo copia los bytes sin pasar por Java); solo los nodos
+ * cambiados o nuevos se escriben con EscritorXML. El nuevo fichero se escribe en
+ * un temporal y se renombra encima del anterior, tambien cuando solo se han
+ * agregado nodos al final: no se puede reescribir en su sitio porque los
+ * valores que no han cambiado siguen siendo trozos del fichero proyectado, y
+ * las instancias de abrePerezoso leen cada nodo (y el cierre de la raiz) del
+ * fichero cuando se piden. Si no ha cambiado nada no se escribe nada.
+ * @author neowavila
+ */
+class GuardadoIncremental
+{
+    private static final int MAX_POSICION = (1 << 31) - 1;
+    private static final int LONGITUD_SEPARADOR = EscritorXML.SEPARADOR_NODO.length();
+
+    private final AlmacenRegistros almacen;
+    private final TramosFichero tramos;
+    private final Salida salida;
+    private final XMLStreamWriter escritor;
+    /** Posicion en el fichero nuevo del cierre de la raiz. */
+    private long inicioCola;
+
+    private GuardadoIncremental(AlmacenRegistros almacen, TramosFichero tramos, FileChannel destino, int tamBuffer)
+            throws IOException
+    {
+        this.almacen = almacen;
+        this.tramos = tramos;
+        this.salida = new Salida(destino, tamBuffer);
+        try
+        {
+            Writer texto = new OutputStreamWriter(salida, StandardCharsets.UTF_8);
+            this.escritor = EscritorXML.creaEscritor(texto);
+        }
+        catch(XMLStreamException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Guarda el almacen en el fichero del que se leyo, escribiendo solo lo que
+     * ha cambiado. Si no se conoce la posicion de los nodos en el fichero (no se
+     * leyo con ParserMapeado, o el fichero ha cambiado por fuera o se ha
+     * guardado entero) no hace nada y devuelve false.
+     * @param almacen nodos a escribir.
+     * @param ruta fichero del que se leyeron los nodos.
+     * @param tamBuffer tamano del buffer de escritura en bytes.
+     * @param atomico true para forzar a disco el temporal y la carpeta.
+     * @return true si se ha guardado, false si hay que guardarlo entero.
+     * @throws IOException si falla la escritura.
+     */
+    static boolean guarda(AlmacenRegistros almacen, Path ruta, int tamBuffer, boolean atomico) throws IOException
+    {
+        TramosFichero tramos = almacen.getTramos();
+        if(tramos==null || almacen.numRegistros()==almacen.numBorrados())
+            return false; //Sin nodos la raiz se escribe como <Raiz/>.
+        synchronized(tramos)
+        {
+            if(almacen.getTramos()!=tramos || !tramos.coincide(ruta))
+                return false;
+
+            //Busca que ha cambiado: nodos sucios, borrados que siguen en el
+            //fichero y nodos nuevos.
+            boolean cambiados = tramos.hayBorrados();
+            for (int registro = 0; registro < almacen.numRegistros() && !cambiados; registro++)
+            {
+                long tramo = tramos.get(registro);
+                if(almacen.estaBorrado(registro))
+                    cambiados = tramo!=0;
+                else
+                    cambiados = tramo==0 || (tramo & TramosFichero.SUCIO)!=0;
+            }
+            if(cambiados)
+                empalma(almacen, tramos, ruta, tamBuffer, atomico);
+            return true;
+        }
+    }
+
+    /**
+     * Escribe un fichero nuevo copiando los tramos sin cambios del anterior y
+     * lo renombra encima.
+     */
+    private static void empalma(AlmacenRegistros almacen, TramosFichero tramos, Path ruta, int tamBuffer, boolean sincroniza)
+            throws IOException
+    {
+        Path temporal = GuardadoAtomico.creaTemporal(ruta);
+        long[] nuevos;
+        int inicioCola;
+        try
+        {
+            try(FileChannel origen = FileChannel.open(ruta, StandardOpenOption.READ);
+                FileChannel destino = FileChannel.open(temporal, StandardOpenOption.WRITE))
+            {
+                if(!tramos.coincide(ruta))
+                    throw new IOException("El fichero ha cambiado en disco mientras se guardaba: " + ruta);
+                GuardadoIncremental guardado = new GuardadoIncremental(almacen, tramos, destino, tamBuffer);
+                nuevos = guardado.escribe(origen);
+                inicioCola = guardado.posicion(guardado.inicioCola);
+                if(sincroniza)
+                    destino.force(true);
+            }
+            GuardadoAtomico.publica(temporal, ruta, sincroniza);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(temporal);
+            throw e;
+        }
+        if(nuevos==null || inicioCola<0)
+        {
+            almacen.setTramos(null); //Pasa de 2 GB: el siguiente guardado es entero.
+            return;
+        }
+        tramos.sustituye(nuevos);
+        tramos.setCola(inicioCola);
+        tramos.apuntaFichero(ruta);
+    }
+
+    /**
+     * Escribe el fichero entero: cabecera, nodos y cierre de la raiz.
+     * @param origen fichero anterior.
+     * @return tramo de cada nodo en el fichero nuevo, o null si pasa de 2 GB.
+     */
+    private long[] escribe(FileChannel origen) throws IOException
+    {
+        int numRegistros = almacen.numRegistros();
+        long[] nuevos = new long[numRegistros];
+        boolean caben = true;
+        salida.copia(origen, 0, tramos.getFinCabecera());
+
+        //Tramo del fichero anterior que se esta juntando para copiarlo de una vez.
+        int inicioCopia = -1;
+        int finCopia = -1;
+        long desplazamiento = 0;
+        for (int registro = 0; registro < numRegistros; registro++)
+        {
+            long tramo = tramos.get(registro);
+            if(almacen.estaBorrado(registro))
+            {
+                if(tramo!=0 && inicioCopia>=0)
+                {
+                    salida.copia(origen, inicioCopia, finCopia);
+                    inicioCopia = -1;
+                }
+                continue;
+            }
+            if(tramo==0 || (tramo & TramosFichero.SUCIO)!=0)
+            {
+                if(inicioCopia>=0)
+                {
+                    salida.copia(origen, inicioCopia, finCopia);
+                    inicioCopia = -1;
+                }
+                nuevos[registro] = nodo(registro);
+                caben &= nuevos[registro]>=0;
+                continue;
+            }
+            int inicio = TramosFichero.inicio(tramo);
+            int fin = TramosFichero.fin(tramo);
+            if(inicioCopia<0 || (tramo & TramosFichero.CORTE)!=0 || inicio<finCopia)
+            {
+                if(inicioCopia>=0)
+                    salida.copia(origen, inicioCopia, finCopia);
+                salida.escribe(EscritorXML.SEPARADOR_NODO);
+                inicioCopia = inicio;
+                desplazamiento = salida.posicion - inicio;
+            }
+            finCopia = fin;
+            long nuevoFin = fin + desplazamiento;
+            caben &= nuevoFin<=MAX_POSICION;
+            nuevos[registro] = caben ? TramosFichero.tramo((int)(inicio + desplazamiento), (int)nuevoFin) : 0;
+        }
+        if(inicioCopia>=0)
+            salida.copia(origen, inicioCopia, finCopia);
+
+        ByteBuffer cola = ByteBuffer.allocate((int)(origen.size() - tramos.getInicioCola()));
+        while(cola.hasRemaining() && origen.read(cola, tramos.getInicioCola() + cola.position())>=0)
+        {
+            //Lee el cierre de la raiz hasta el final.
+        }
+        cola.flip();
+        escribeCola(cola);
+        salida.vacia();
+        return caben ? nuevos : null;
+    }
+
+    /**
+     * Escribe un nodo con EscritorXML.
+     * @return tramo del nodo en el fichero nuevo, o -1 si pasa de 2 GB.
+     */
+    private long nodo(int registro) throws IOException
+    {
+        try
+        {
+            long antes = salida.posicion;
+            EscritorXML.escribeNodo(escritor, almacen, registro);
+            escritor.writeCharacters(""); //Cierra la etiqueta si el nodo no tiene campos.
+            escritor.flush();
+            long inicio = antes + LONGITUD_SEPARADOR;
+            if(salida.posicion>MAX_POSICION)
+                return -1;
+            return TramosFichero.tramo((int)inicio, (int)salida.posicion);
+        }
+        catch(XMLStreamException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Escribe el salto de linea y el cierre de la raiz tal como estaba.
+     */
+    private void escribeCola(ByteBuffer cola) throws IOException
+    {
+        salida.escribe("\n");
+        inicioCola = salida.posicion;
+        salida.write(cola.array(), 0, cola.limit());
+    }
+
+    /**
+     * Convierte una posicion del fichero nuevo a int.
+     * @return posicion o -1 si pasa de 2 GB.
+     */
+    private int posicion(long posicion)
+    {
+        return posicion>MAX_POSICION ? -1 : (int)posicion;
+    }
+
+    /**
+     * Salida con buffer propio que cuenta los bytes escritos. flush() no hace
+     * nada (el escritor de XML lo llama tras cada nodo para saber donde acaba):
+     * el buffer solo se escribe al llenarse, al copiar tramos y con vacia().
+     */
+    private static class Salida extends OutputStream
+    {
+        private final FileChannel canal;
+        private final ByteBuffer buffer;
+        /** Posicion en el fichero nuevo del siguiente byte. */
+        long posicion;
+
+        Salida(FileChannel canal, int tamBuffer)
+        {
+            this.canal = canal;
+            this.buffer = ByteBuffer.allocate(tamBuffer);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if(!buffer.hasRemaining())
+                vacia();
+            buffer.put((byte)b);
+            posicion++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int desde, int longitud) throws IOException
+        {
+            posicion += longitud;
+            while(longitud>0)
+            {
+                if(!buffer.hasRemaining())
+                    vacia();
+                int parte = Math.min(longitud, buffer.remaining());
+                buffer.put(bytes, desde, parte);
+                desde += parte;
+                longitud -= parte;
+            }
+        }
+
+        @Override
+        public void flush()
+        {
+            //Ver la descripcion de la clase.
+        }
+
+        /**
+         * Escribe un texto ASCII.
+         */
+        void escribe(String ascii) throws IOException
+        {
+            byte[] bytes = ascii.getBytes(StandardCharsets.US_ASCII);
+            write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Escribe en el fichero lo que hay en el buffer.
+         */
+        void vacia() throws IOException
+        {
+            buffer.flip();
+            while(buffer.hasRemaining())
+                canal.write(buffer);
+            buffer.clear();
+        }
+
+        /**
+         * Copia un tramo de otro fichero sin pasarlo por el buffer.
+         */
+        void copia(FileChannel origen, long desde, long hasta) throws IOException
+        {
+            vacia();
+            while(desde<hasta)
+            {
+                long copiados = origen.transferTo(desde, hasta - desde, canal);
+                if(copiados<=0)
+                    throw new IOException("No se ha podido copiar el fichero anterior");
+                desde += copiados;
+                posicion += copiados;
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package gestionaxml;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Indice secundario de un campo: para cada valor del campo guarda la lista
+ * ordenada de indices de los nodos que lo contienen.
+ * Se construye la primera vez que se usa y despues se mantiene con cada cambio,
+ * asi las busquedas por ese campo no tienen que recorrer todos los nodos.
+ * <p>
+ * Tambien puede ser compuesto (varios campos): en ese caso la clave es la
+ * union de los valores de todos los campos, en el orden en que se declararon.
+ * @author neowavila
+ */
+class IndiceCampo
+{
+    /** Separador de los valores en las claves compuestas (no puede aparecer en un XML). */
+    private static final char SEPARADOR = '\u0000';
+
+    private final String[] campos;
+    private volatile HashMap<String, ListaEnteros> valores;
+
+    /**
+     * Crea el indice de un campo sin construirlo todavia.
+     * @param campo titulo del campo a indexar.
+     */
+    IndiceCampo(String campo)
+    {
+        this.campos = new String[]{campo};
+    }
+
+    /**
+     * Crea un indice compuesto sobre varios campos sin construirlo todavia.
+     * @param campos titulos de los campos a indexar.
+     */
+    IndiceCampo(String[] campos)
+    {
+        this.campos = campos.clone();
+    }
+
+    /**
+     * Devuelve los titulos de los campos indexados.
+     * @return titulos de los campos (no modificar).
+     */
+    String[] getCampos()
+    {
+        return campos;
+    }
+
+    /**
+     * Indica si el indice incluye el campo.
+     * @param campo titulo del campo.
+     * @return true si el campo forma parte del indice.
+     */
+    boolean contiene(String campo)
+    {
+        for (String c : campos)
+            if(c.equals(campo))
+                return true;
+        return false;
+    }
+
+    /**
+     * Calcula la clave del indice a partir de los valores de sus campos.
+     * @param valoresCampos valores de los campos en el mismo orden que getCampos().
+     * @return clave con la que se guarda en el indice.
+     */
+    static String clave(String[] valoresCampos)
+    {
+        if(valoresCampos.length==1)
+            return valoresCampos[0];
+        StringBuilder clave = new StringBuilder();
+        for (int i = 0; i < valoresCampos.length; i++)
+        {
+            if(i>0)
+                clave.append(SEPARADOR);
+            clave.append(valoresCampos[i]);
+        }
+        return clave.toString();
+    }
+
+    /**
+     * Calcula la clave de un nodo leyendo sus campos.
+     * @param almacen nodos del fichero.
+     * @param indice indice del nodo.
+     * @param campo campo que se sustituye por valorCampo (null para no sustituir ninguno).
+     * @param valorCampo valor que se usa para el campo sustituido.
+     * @return clave del nodo en el indice.
+     */
+    String clave(AlmacenRegistros almacen, int indice, String campo, String valorCampo)
+    {
+        String[] valoresCampos = new String[campos.length];
+        for (int i = 0; i < campos.length; i++)
+            valoresCampos[i] = campos[i].equals(campo) ? valorCampo : almacen.valorCampo(indice, campos[i]);
+        return clave(valoresCampos);
+    }
+
+    /**
+     * Indica si el indice ya se ha construido.
+     * @return true si esta construido y se puede consultar.
+     */
+    boolean estaConstruido()
+    {
+        return valores!=null;
+    }
+
+    /**
+     * Construye el indice recorriendo una vez todos los nodos no borrados. El
+     * indice solo se publica al terminar, asi que nunca se ve a medias.
+     * @param almacen nodos del fichero.
+     */
+    void construye(AlmacenRegistros almacen)
+    {
+        int[] columnas = new int[campos.length];
+        for (int i = 0; i < campos.length; i++)
+            columnas[i] = almacen.columna(campos[i]);
+        String[] valoresCampos = new String[campos.length];
+        int numNodos = almacen.numRegistros();
+        HashMap<String, ListaEnteros> nuevos = new HashMap<>();
+        for (int i = 0; i < numNodos; i++)
+        {
+            if(almacen.estaBorrado(i))
+                continue;
+            for (int j = 0; j < columnas.length; j++)
+                valoresCampos[j] = almacen.valorCampo(i, columnas[j]);
+            agrega(nuevos, clave(valoresCampos), i);
+        }
+        valores = nuevos;
+    }
+
+    /**
+     * Descarta el contenido del indice, se volvera a construir en el proximo uso.
+     */
+    void invalida()
+    {
+        valores = null;
+    }
+
+    /**
+     * Agrega un nodo al indice.
+     * @param valor valor del campo (o clave compuesta) del nodo.
+     * @param indice indice del nodo.
+     */
+    void agrega(String valor, int indice)
+    {
+        agrega(valores, valor, indice);
+    }
+
+    /**
+     * Agrega un nodo a un mapa de valores.
+     * @param mapa valores del indice.
+     * @param valor valor del campo (o clave compuesta) del nodo.
+     * @param indice indice del nodo.
+     */
+    private static void agrega(HashMap<String, ListaEnteros> mapa, String valor, int indice)
+    {
+        ListaEnteros lista = mapa.get(valor);
+        if(lista==null)
+        {
+            lista = new ListaEnteros(1);
+            mapa.put(valor, lista);
+        }
+        lista.insertaOrdenado(indice);
+    }
+
+    /**
+     * Quita un nodo del indice.
+     * @param valor valor del campo (o clave compuesta) del nodo.
+     * @param indice indice del nodo.
+     */
+    void borra(String valor, int indice)
+    {
+        ListaEnteros lista = valores.get(valor);
+        if(lista!=null && lista.borraOrdenado(indice) && lista.tam()==0)
+            valores.remove(valor);
+    }
+
+    /**
+     * Agrega varios nodos al indice con una sola pasada por cada valor.
+     * @param grupos nodos a agregar por valor (o clave compuesta), de menor a mayor.
+     */
+    void agregaVarios(HashMap<String, ListaEnteros> grupos)
+    {
+        for (Map.Entry<String, ListaEnteros> grupo : grupos.entrySet())
+        {
+            ListaEnteros lista = valores.get(grupo.getKey());
+            if(lista==null)
+                valores.put(grupo.getKey(), grupo.getValue());
+            else
+                lista.insertaOrdenados(grupo.getValue());
+        }
+    }
+
+    /**
+     * Quita varios nodos del indice con una sola pasada por cada valor.
+     * @param grupos nodos a quitar por valor (o clave compuesta), de menor a mayor.
+     */
+    void borraVarios(HashMap<String, ListaEnteros> grupos)
+    {
+        for (Map.Entry<String, ListaEnteros> grupo : grupos.entrySet())
+        {
+            ListaEnteros lista = valores.get(grupo.getKey());
+            if(lista!=null && lista.borraOrdenados(grupo.getValue())>0 && lista.tam()==0)
+                valores.remove(grupo.getKey());
+        }
+    }
+
+    /**
+     * Actualiza el indice cuando cambia el valor del campo de un nodo.
+     * @param indice indice del nodo modificado.
+     * @param anterior valor (o clave compuesta) que tenia el nodo.
+     * @param nuevo valor (o clave compuesta) nuevo del nodo.
+     */
+    void cambia(int indice, String anterior, String nuevo)
+    {
+        borra(anterior, indice);
+        agrega(nuevo, indice);
+    }
+
+    /**
+     * Devuelve cuantos nodos tienen el valor buscado sin copiar sus indices.
+     * @param valor valor del campo (o clave compuesta) a buscar.
+     * @return numero de nodos con ese valor.
+     */
+    int cuenta(String valor)
+    {
+        ListaEnteros lista = valores.get(valor);
+        return lista==null ? 0 : lista.tam();
+    }
+
+    /**
+     * Devuelve el indice del primer nodo con el valor buscado.
+     * @param valor valor del campo (o clave compuesta) a buscar.
+     * @return indice del nodo o -1 si no hay ninguno.
+     */
+    int primero(String valor)
+    {
+        ListaEnteros lista = valores.get(valor);
+        return lista==null ? -1 : lista.get(0);
+    }
+
+    /**
+     * Devuelve los indices de todos los nodos con el valor buscado, de menor a mayor.
+     * @param valor valor del campo (o clave compuesta) a buscar.
+     * @return array con los indices (vacio si no hay ninguno).
+     */
+    int[] busca(String valor)
+    {
+        ListaEnteros lista = valores.get(valor);
+        return lista==null ? new int[0] : lista.toArray();
+    }
+
+    /**
+     * Devuelve cuantos valores (o combinaciones de valores) distintos hay.
+     * @return numero de valores distintos.
+     */
+    int numValoresDistintos()
+    {
+        return valores.size();
+    }
+}
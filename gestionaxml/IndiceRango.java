@@ -0,0 +1,301 @@
+package gestionaxml;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Indice de rangos de un campo numerico (Ej: Precio entre 2 y 10): guarda el
+ * valor de cada nodo ya convertido a numero en un array de double por posicion,
+ * y los mismos valores ordenados con el nodo de cada uno, asi una busqueda por
+ * rango son dos busquedas binarias y no hay que leer ni convertir los valores.
+ * <p>
+ * Al construirlo se deduce el tipo del campo: "entero" si todos los valores son
+ * enteros, "decimal" si alguno tiene decimales y "texto" si alguno no es un
+ * numero (esos valores no entran en ningun rango). Los numeros se guardan como
+ * double, asi que los enteros de mas de 2^53 pierden precision.
+ * <p>
+ * Los nodos borrados se saltan al buscar. Los nodos nuevos o cambiados no se
+ * recolocan en la parte ordenada: se apuntan como pendientes y se comprueban
+ * uno a uno en cada busqueda, y si hay demasiados el indice se reconstruye en
+ * el proximo uso.
+ * @author neowavila
+ */
+class IndiceRango
+{
+    static final String ENTERO = "entero";
+    static final String DECIMAL = "decimal";
+    static final String TEXTO = "texto";
+    private static final int MIN_PENDIENTES = 64;
+
+    private final String campo;
+    private volatile double[] numeros;
+    private double[] ordenados;
+    private int[] orden;
+    private final BitSet pendientes = new BitSet();
+    private int numPendientes;
+    private boolean hayEnteros;
+    private boolean hayDecimales;
+    private boolean hayTextos;
+
+    /**
+     * Crea el indice de rangos de un campo sin construirlo todavia.
+     * @param campo titulo del campo a indexar.
+     */
+    IndiceRango(String campo)
+    {
+        this.campo = campo;
+    }
+
+    /**
+     * Devuelve el campo indexado.
+     * @return titulo del campo.
+     */
+    String getCampo()
+    {
+        return campo;
+    }
+
+    /**
+     * Indica si el indice ya se ha construido.
+     * @return true si esta construido y se puede consultar.
+     */
+    boolean estaConstruido()
+    {
+        return numeros!=null;
+    }
+
+    /**
+     * Construye el indice recorriendo una vez todos los nodos no borrados. El
+     * indice solo se publica al terminar, asi que nunca se ve a medias.
+     * @param almacen nodos del fichero.
+     */
+    void construye(AlmacenRegistros almacen)
+    {
+        int columna = almacen.columna(campo);
+        int numNodos = almacen.numRegistros();
+        double[] nuevos = new double[Math.max(numNodos, 16)];
+        Arrays.fill(nuevos, Double.NaN);
+        hayEnteros = hayDecimales = hayTextos = false;
+        int numValidos = 0;
+        for (int i = 0; i < numNodos; i++)
+        {
+            if(almacen.estaBorrado(i))
+                continue;
+            String valor = almacen.valor(i, columna);
+            nuevos[i] = clasifica(valor);
+            if(!Double.isNaN(nuevos[i]))
+                numValidos++;
+        }
+
+        //Ordena los nodos por valor sin objetos: cada nodo se empaqueta con la
+        //posicion de su valor en la lista ordenada de valores.
+        double[] claves = new double[numValidos];
+        for (int i = 0, j = 0; i < numNodos; i++)
+            if(!Double.isNaN(nuevos[i]))
+                claves[j++] = nuevos[i];
+        Arrays.sort(claves);
+        long[] empaquetados = new long[numValidos];
+        for (int i = 0, j = 0; i < numNodos; i++)
+            if(!Double.isNaN(nuevos[i]))
+                empaquetados[j++] = (long)Arrays.binarySearch(claves, nuevos[i]) << 32 | i;
+        Arrays.sort(empaquetados);
+        int[] nodos = new int[numValidos];
+        for (int i = 0; i < numValidos; i++)
+            nodos[i] = (int)empaquetados[i];
+
+        ordenados = claves;
+        orden = nodos;
+        pendientes.clear();
+        numPendientes = 0;
+        numeros = nuevos;
+    }
+
+    /**
+     * Descarta el contenido del indice, se volvera a construir en el proximo uso.
+     */
+    void invalida()
+    {
+        numeros = null;
+        ordenados = null;
+        orden = null;
+    }
+
+    /**
+     * Actualiza el valor de un nodo nuevo o cambiado. Hay que llamarlo solo si
+     * el indice esta construido.
+     * @param almacen nodos del fichero.
+     * @param nodo indice del nodo.
+     */
+    void actualiza(AlmacenRegistros almacen, int nodo)
+    {
+        double[] actuales = numeros;
+        if(nodo>=actuales.length)
+        {
+            int anterior = actuales.length;
+            actuales = Arrays.copyOf(actuales, Math.max(nodo + 1, anterior + (anterior >> 1)));
+            Arrays.fill(actuales, anterior, actuales.length, Double.NaN);
+        }
+        actuales[nodo] = clasifica(almacen.valor(nodo, almacen.columna(campo)));
+        numeros = actuales;
+        if(!pendientes.get(nodo))
+        {
+            pendientes.set(nodo);
+            if(++numPendientes>Math.max(MIN_PENDIENTES, orden.length >> 5))
+                invalida();
+        }
+    }
+
+    /**
+     * Devuelve el valor numerico de un nodo.
+     * @param nodo indice del nodo.
+     * @return valor o NaN si el nodo no tiene el campo o no es un numero.
+     */
+    double numero(int nodo)
+    {
+        double[] actuales = numeros;
+        return nodo<actuales.length ? actuales[nodo] : Double.NaN;
+    }
+
+    /**
+     * Devuelve el tipo deducido del campo. Despues de cambios puede ser mas
+     * general que los datos (Ej: decimal aunque ya solo queden enteros) hasta
+     * que se reconstruya.
+     * @return "entero", "decimal", "texto" o null si ningun nodo tiene el campo.
+     */
+    String getTipo()
+    {
+        return hayTextos ? TEXTO : hayDecimales ? DECIMAL : hayEnteros ? ENTERO : null;
+    }
+
+    /**
+     * Busca los nodos no borrados cuyo valor esta en el rango [desde, hasta).
+     * @param almacen nodos del fichero.
+     * @param desde valor minimo (incluido).
+     * @param hasta valor maximo (excluido).
+     * @return indices de los nodos de menor a mayor.
+     */
+    int[] busca(AlmacenRegistros almacen, double desde, double hasta)
+    {
+        if(!(desde<hasta))
+            return new int[0];
+        int inicio = primero(ordenados, desde);
+        int fin = primero(ordenados, hasta);
+        ListaEnteros encontrados = new ListaEnteros(Math.max(fin - inicio, 1));
+        for (int i = inicio; i < fin; i++)
+        {
+            int nodo = orden[i];
+            if(!pendientes.get(nodo) && !almacen.estaBorrado(nodo))
+                encontrados.agrega(nodo);
+        }
+        double[] actuales = numeros;
+        for (int nodo = pendientes.nextSetBit(0); nodo >= 0; nodo = pendientes.nextSetBit(nodo + 1))
+        {
+            if(!almacen.estaBorrado(nodo) && actuales[nodo]>=desde && actuales[nodo]<hasta)
+                encontrados.agrega(nodo);
+        }
+        int[] resultado = encontrados.toArray();
+        Arrays.sort(resultado);
+        return resultado;
+    }
+
+    /**
+     * Devuelve la primera posicion de un array ordenado con un valor mayor o igual.
+     */
+    private static int primero(double[] ordenados, double valor)
+    {
+        int inicio = 0;
+        int fin = ordenados.length;
+        while(inicio<fin)
+        {
+            int medio = (inicio + fin) >>> 1;
+            if(ordenados[medio]<valor)
+                inicio = medio + 1;
+            else
+                fin = medio;
+        }
+        return inicio;
+    }
+
+    /**
+     * Convierte un valor a numero y apunta su tipo.
+     * @param valor valor del campo (null si el nodo no lo tiene).
+     * @return numero o NaN si no es un numero.
+     */
+    private double clasifica(String valor)
+    {
+        if(valor==null)
+            return Double.NaN;
+        double numero = numero(valor);
+        if(Double.isNaN(numero))
+            hayTextos = true;
+        else if(esEntero(valor))
+            hayEnteros = true;
+        else
+            hayDecimales = true;
+        return numero;
+    }
+
+    /**
+     * Convierte un valor a numero. Solo se aceptan numeros escritos de forma
+     * normal (signo, cifras, punto decimal y exponente), no "NaN", "Infinity"
+     * ni hexadecimales.
+     * @param valor valor del campo.
+     * @return numero o NaN si no es un numero (o es null).
+     */
+    static double numero(String valor)
+    {
+        if(valor==null)
+            return Double.NaN;
+        String limpio = valor.trim();
+        boolean cifras = false;
+        for (int i = 0; i < limpio.length(); i++)
+        {
+            char c = limpio.charAt(i);
+            if(c>='0' && c<='9')
+                cifras = true;
+            else if(c!='+' && c!='-' && c!='.' && c!='e' && c!='E')
+                return Double.NaN;
+        }
+        if(!cifras)
+            return Double.NaN;
+        try
+        {
+            return Double.parseDouble(limpio);
+        }
+        catch(NumberFormatException e)
+        {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Indica si un valor numerico es entero (solo signo y cifras).
+     */
+    private static boolean esEntero(String valor)
+    {
+        String limpio = valor.trim();
+        for (int i = 0; i < limpio.length(); i++)
+        {
+            char c = limpio.charAt(i);
+            if((c<'0' || c>'9') && !(i==0 && (c=='+' || c=='-')))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Deduce el tipo de un campo recorriendo todos los nodos, sin indice.
+     * @param almacen nodos del fichero.
+     * @param campo titulo del campo.
+     * @return "entero", "decimal", "texto" o null si ningun nodo tiene el campo.
+     */
+    static String tipo(AlmacenRegistros almacen, String campo)
+    {
+        IndiceRango tipos = new IndiceRango(campo);
+        int columna = almacen.columna(campo);
+        for (int i = 0; i < almacen.numRegistros() && !tipos.hayTextos; i++)
+            if(!almacen.estaBorrado(i))
+                tipos.clasifica(almacen.valor(i, columna));
+        return tipos.getTipo();
+    }
+}
@@ -0,0 +1,523 @@
+package gestionaxml;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+
+/**
+ * Indice de texto de un campo para buscar por prefijo (Ej: "Peo" encuentra
+ * Peonias) o por texto contenido, con o sin distinguir mayusculas.
+ * <p>
+ * Guarda los valores distintos del campo en minusculas y ordenados (el
+ * diccionario), con los nodos de cada valor. Un prefijo es un tramo seguido del
+ * diccionario que se encuentra con una busqueda binaria. Para buscar texto
+ * contenido se guardan tambien los trigramas (grupos de 3 caracteres seguidos)
+ * de cada valor con los valores en que aparecen: solo se comprueban los valores
+ * que tienen todos los trigramas del texto buscado. Todas las listas van en
+ * arrays de int seguidos (el principio de cada lista en otro array), sin objetos
+ * por nodo ni por valor.
+ * <p>
+ * Sin distinguir mayusculas el diccionario ya da la respuesta; distinguiendo
+ * mayusculas se comprueba el valor real de los nodos que encuentra. Como
+ * IndiceRango, los nodos borrados se saltan al buscar y los nodos nuevos o
+ * cambiados se apuntan como pendientes y se comprueban uno a uno, hasta que son
+ * demasiados y el indice se reconstruye en el proximo uso.
+ * <p>
+ * Con un limite pequeno y un texto muy comun (Ej: una sola letra) es mas rapido
+ * recorrer los nodos en orden, que encuentra enseguida los primeros, que sacar
+ * del indice todos los nodos que lo cumplen para quedarse con los menores: cada
+ * busqueda estima cuantos nodos tendria que mirar de cada forma y elige.
+ * @author neowavila
+ */
+class IndiceTexto
+{
+    private static final int MIN_PENDIENTES = 64;
+    private static final int LONGITUD_TRIGRAMA = 3;
+    /** Cuantas veces mas cuesta comprobar un nodo recorriendo que sacarlo del indice. */
+    private static final int COSTE_RECORRIDO = 8;
+
+    private final String campo;
+    /** Valores distintos en minusculas, ordenados (null si no esta construido). */
+    private volatile String[] claves;
+    /** Los nodos del valor k estan en nodos[inicioNodos[k]] hasta nodos[inicioNodos[k+1]]. */
+    private int[] inicioNodos;
+    private int[] nodos;
+    /** Trigramas distintos ordenados (3 caracteres de 16 bits en un long). */
+    private long[] trigramas;
+    /** Los valores del trigrama t estan en clavesTrigrama[inicioClaves[t]] hasta inicioClaves[t+1]. */
+    private int[] inicioClaves;
+    private int[] clavesTrigrama;
+    private final BitSet pendientes = new BitSet();
+    private int numPendientes;
+
+    /**
+     * Crea el indice de texto de un campo sin construirlo todavia.
+     * @param campo titulo del campo a indexar.
+     */
+    IndiceTexto(String campo)
+    {
+        this.campo = campo;
+    }
+
+    /**
+     * Devuelve el campo indexado.
+     * @return titulo del campo.
+     */
+    String getCampo()
+    {
+        return campo;
+    }
+
+    /**
+     * Indica si el indice ya se ha construido.
+     * @return true si esta construido y se puede consultar.
+     */
+    boolean estaConstruido()
+    {
+        return claves!=null;
+    }
+
+    /**
+     * Construye el indice recorriendo una vez todos los nodos no borrados. El
+     * indice solo se publica al terminar, asi que nunca se ve a medias.
+     * @param almacen nodos del fichero.
+     */
+    void construye(AlmacenRegistros almacen)
+    {
+        int columna = almacen.columna(campo);
+        int numNodos = almacen.numRegistros();
+        String[] textos = new String[numNodos];
+        int numValores = 0;
+        for (int i = 0; i < numNodos; i++)
+        {
+            if(almacen.estaBorrado(i))
+                continue;
+            String valor = almacen.valor(i, columna);
+            if(valor!=null)
+            {
+                textos[i] = normaliza(valor);
+                numValores++;
+            }
+        }
+
+        //Diccionario: valores distintos ordenados.
+        String[] distintos = new String[numValores];
+        for (int i = 0, j = 0; i < numNodos; i++)
+            if(textos[i]!=null)
+                distintos[j++] = textos[i];
+        Arrays.sort(distintos);
+        int numClaves = 0;
+        for (int i = 0; i < distintos.length; i++)
+            if(numClaves==0 || !distintos[i].equals(distintos[numClaves - 1]))
+                distintos[numClaves++] = distintos[i];
+        String[] nuevas = Arrays.copyOf(distintos, numClaves);
+
+        //Nodos de cada valor: cada nodo se empaqueta con la posicion de su valor
+        //en el diccionario y se ordena, como en IndiceRango.
+        long[] empaquetados = new long[numValores];
+        for (int i = 0, j = 0; i < numNodos; i++)
+            if(textos[i]!=null)
+                empaquetados[j++] = (long)Arrays.binarySearch(nuevas, textos[i]) << 32 | i;
+        Arrays.sort(empaquetados);
+        int[] inicios = new int[numClaves + 1];
+        int[] lista = new int[numValores];
+        for (int i = 0; i < numValores; i++)
+        {
+            inicios[(int)(empaquetados[i] >>> 32) + 1]++;
+            lista[i] = (int)empaquetados[i];
+        }
+        for (int k = 0; k < numClaves; k++)
+            inicios[k + 1] += inicios[k];
+
+        construyeTrigramas(nuevas);
+        inicioNodos = inicios;
+        nodos = lista;
+        pendientes.clear();
+        numPendientes = 0;
+        claves = nuevas;
+    }
+
+    /**
+     * Construye la lista de valores de cada trigrama.
+     * @param diccionario valores distintos ordenados.
+     */
+    private void construyeTrigramas(String[] diccionario)
+    {
+        int total = 0;
+        for (String clave : diccionario)
+            total += Math.max(clave.length() - LONGITUD_TRIGRAMA + 1, 0);
+        long[] todos = new long[total];
+        int numTodos = 0;
+        for (String clave : diccionario)
+            for (int i = 0; i + LONGITUD_TRIGRAMA <= clave.length(); i++)
+                todos[numTodos++] = trigrama(clave, i);
+        long[] distintos = todos.clone();
+        Arrays.sort(distintos);
+        int numTrigramas = 0;
+        for (int i = 0; i < distintos.length; i++)
+            if(numTrigramas==0 || distintos[i]!=distintos[numTrigramas - 1])
+                distintos[numTrigramas++] = distintos[i];
+        long[] nuevos = Arrays.copyOf(distintos, numTrigramas);
+
+        //Igual que los nodos: trigrama y valor empaquetados en un long.
+        for (int k = 0, j = 0; k < diccionario.length; k++)
+            for (int i = 0; i + LONGITUD_TRIGRAMA <= diccionario[k].length(); i++, j++)
+                todos[j] = (long)Arrays.binarySearch(nuevos, todos[j]) << 32 | k;
+        Arrays.sort(todos);
+        int[] inicios = new int[numTrigramas + 1];
+        int[] lista = new int[total];
+        int tam = 0;
+        for (int i = 0; i < total; i++)
+        {
+            if(i>0 && todos[i]==todos[i - 1])
+                continue; //El trigrama se repite en el mismo valor.
+            inicios[(int)(todos[i] >>> 32) + 1]++;
+            lista[tam++] = (int)todos[i];
+        }
+        for (int t = 0; t < numTrigramas; t++)
+            inicios[t + 1] += inicios[t];
+
+        trigramas = nuevos;
+        inicioClaves = inicios;
+        clavesTrigrama = Arrays.copyOf(lista, tam);
+    }
+
+    /**
+     * Descarta el contenido del indice, se volvera a construir en el proximo uso.
+     */
+    void invalida()
+    {
+        claves = null;
+        inicioNodos = null;
+        nodos = null;
+        trigramas = null;
+        inicioClaves = null;
+        clavesTrigrama = null;
+    }
+
+    /**
+     * Apunta un nodo nuevo o cambiado para comprobarlo en cada busqueda. Hay
+     * que llamarlo solo si el indice esta construido.
+     * @param nodo indice del nodo.
+     */
+    void actualiza(int nodo)
+    {
+        if(!pendientes.get(nodo))
+        {
+            pendientes.set(nodo);
+            if(++numPendientes>Math.max(MIN_PENDIENTES, nodos.length >> 5))
+                invalida();
+        }
+    }
+
+    /**
+     * Busca los nodos no borrados cuyo valor empieza por un texto.
+     * @param almacen nodos del fichero.
+     * @param prefijo texto por el que empieza el valor.
+     * @param ignoraMayusculas si es true no distingue mayusculas de minusculas.
+     * @param limite numero maximo de nodos a devolver.
+     * @return los primeros nodos encontrados (los de menor indice), de menor a mayor.
+     */
+    int[] empiezan(AlmacenRegistros almacen, String prefijo, boolean ignoraMayusculas, int limite)
+    {
+        String buscado = normaliza(prefijo);
+        int desde = primera(claves, buscado);
+        int hasta = ultima(claves, desde, buscado);
+        int columna = almacen.columna(campo);
+        if(convieneRecorrer(almacen, inicioNodos[hasta] - inicioNodos[desde], limite))
+            return recorre(almacen, columna, prefijo, true, ignoraMayusculas, limite);
+        Menores encontrados = new Menores(limite);
+        for (int k = desde; k < hasta; k++)
+            agregaNodos(almacen, columna, k, prefijo, true, ignoraMayusculas, encontrados);
+        agregaPendientes(almacen, columna, prefijo, true, ignoraMayusculas, encontrados);
+        return encontrados.toArray();
+    }
+
+    /**
+     * Busca los nodos no borrados cuyo valor contiene un texto.
+     * @param almacen nodos del fichero.
+     * @param texto texto que contiene el valor.
+     * @param ignoraMayusculas si es true no distingue mayusculas de minusculas.
+     * @param limite numero maximo de nodos a devolver.
+     * @return los primeros nodos encontrados (los de menor indice), de menor a mayor.
+     */
+    int[] contienen(AlmacenRegistros almacen, String texto, boolean ignoraMayusculas, int limite)
+    {
+        String buscado = normaliza(texto);
+        Menores encontrados = new Menores(limite);
+        int columna = almacen.columna(campo);
+        int[] candidatas = candidatas(buscado);
+        int numCandidatas = candidatas==null ? claves.length : candidatas.length;
+        long posibles = 0;
+        for (int i = 0; i < numCandidatas; i++)
+        {
+            int k = candidatas==null ? i : candidatas[i];
+            posibles += inicioNodos[k + 1] - inicioNodos[k];
+        }
+        if(convieneRecorrer(almacen, posibles, limite))
+            return recorre(almacen, columna, texto, false, ignoraMayusculas, limite);
+        for (int i = 0; i < numCandidatas; i++)
+        {
+            int k = candidatas==null ? i : candidatas[i];
+            if(claves[k].contains(buscado))
+                agregaNodos(almacen, columna, k, texto, false, ignoraMayusculas, encontrados);
+        }
+        agregaPendientes(almacen, columna, texto, false, ignoraMayusculas, encontrados);
+        return encontrados.toArray();
+    }
+
+    /**
+     * Estima si es mas rapido recorrer los nodos en orden que usar el indice:
+     * si hay m nodos que cumplen la busqueda repartidos entre los n nodos,
+     * recorriendo hay que mirar unos limite * n / m nodos, y con el indice los m.
+     * @param posibles nodos que sacaria el indice.
+     * @param limite numero maximo de nodos a devolver.
+     * @return true si conviene recorrer.
+     */
+    private boolean convieneRecorrer(AlmacenRegistros almacen, long posibles, int limite)
+    {
+        return (double)limite * almacen.numRegistros() * COSTE_RECORRIDO < (double)posibles * posibles;
+    }
+
+    /**
+     * Recorre los nodos en orden hasta encontrar el limite, sin usar ningun
+     * indice.
+     * @param almacen nodos del fichero.
+     * @param columna columna del campo.
+     * @param texto texto buscado.
+     * @param prefijo true si el valor tiene que empezar por el texto, false si
+     * lo tiene que contener.
+     * @param ignoraMayusculas si es true no distingue mayusculas de minusculas.
+     * @param limite numero maximo de nodos a devolver.
+     * @return los primeros nodos encontrados, de menor a mayor.
+     */
+    static int[] recorre(AlmacenRegistros almacen, int columna, String texto, boolean prefijo,
+            boolean ignoraMayusculas, int limite)
+    {
+        ListaEnteros encontrados = new ListaEnteros();
+        int numNodos = almacen.numRegistros();
+        for (int i = 0; i < numNodos && encontrados.tam() < limite; i++)
+            if(!almacen.estaBorrado(i) && cumple(almacen.valor(i, columna), texto, prefijo, ignoraMayusculas))
+                encontrados.agrega(i);
+        return encontrados.toArray();
+    }
+
+    /**
+     * Devuelve los valores del diccionario que tienen todos los trigramas de un
+     * texto, intersecando sus listas de la mas corta a la mas larga.
+     * @param buscado texto en minusculas.
+     * @return posiciones de los valores, o null si el texto es demasiado corto
+     * para tener trigramas y hay que mirar todo el diccionario.
+     */
+    private int[] candidatas(String buscado)
+    {
+        int numTrigramas = buscado.length() - LONGITUD_TRIGRAMA + 1;
+        if(numTrigramas<=0)
+            return null;
+        int[][] listas = new int[numTrigramas][];
+        for (int i = 0; i < numTrigramas; i++)
+        {
+            int t = Arrays.binarySearch(trigramas, trigrama(buscado, i));
+            if(t<0)
+                return new int[0];
+            listas[i] = Arrays.copyOfRange(clavesTrigrama, inicioClaves[t], inicioClaves[t + 1]);
+        }
+        Arrays.sort(listas, Comparator.comparingInt(l -> l.length));
+        int[] resultado = listas[0];
+        for (int i = 1; i < listas.length && resultado.length>0; i++)
+            resultado = GestorIndices.interseca(resultado, listas[i]);
+        return resultado;
+    }
+
+    /**
+     * Agrega los nodos de un valor del diccionario que siguen en el indice,
+     * comprobando el valor real si se distinguen mayusculas.
+     */
+    private void agregaNodos(AlmacenRegistros almacen, int columna, int clave, String texto, boolean prefijo,
+            boolean ignoraMayusculas, Menores encontrados)
+    {
+        for (int i = inicioNodos[clave]; i < inicioNodos[clave + 1]; i++)
+        {
+            int nodo = nodos[i];
+            if(!encontrados.admite(nodo))
+                return; //Los nodos de cada valor van de menor a mayor.
+            if(pendientes.get(nodo) || almacen.estaBorrado(nodo))
+                continue;
+            if(ignoraMayusculas || cumple(almacen.valor(nodo, columna), texto, prefijo, false))
+                encontrados.agrega(nodo);
+        }
+    }
+
+    /**
+     * Comprueba uno a uno los nodos nuevos o cambiados.
+     */
+    private void agregaPendientes(AlmacenRegistros almacen, int columna, String texto, boolean prefijo,
+            boolean ignoraMayusculas, Menores encontrados)
+    {
+        for (int nodo = pendientes.nextSetBit(0); nodo >= 0 && encontrados.admite(nodo); nodo = pendientes.nextSetBit(nodo + 1))
+        {
+            if(!almacen.estaBorrado(nodo) && cumple(almacen.valor(nodo, columna), texto, prefijo, ignoraMayusculas))
+                encontrados.agrega(nodo);
+        }
+    }
+
+    /**
+     * Comprueba si un valor empieza por un texto o lo contiene.
+     * @param valor valor del campo (null si el nodo no lo tiene).
+     * @param texto texto buscado.
+     * @param prefijo true para comprobar que empieza por el texto, false para
+     * comprobar que lo contiene.
+     * @param ignoraMayusculas si es true no distingue mayusculas de minusculas.
+     * @return true si cumple la condicion.
+     */
+    static boolean cumple(String valor, String texto, boolean prefijo, boolean ignoraMayusculas)
+    {
+        if(valor==null)
+            return false;
+        if(ignoraMayusculas)
+        {
+            valor = normaliza(valor);
+            texto = normaliza(texto);
+        }
+        return prefijo ? valor.startsWith(texto) : valor.contains(texto);
+    }
+
+    /**
+     * Pasa un texto a minusculas caracter a caracter, sin cambiar su longitud
+     * (a diferencia de String.toLowerCase), para que un texto contenido en otro
+     * lo siga estando en minusculas.
+     */
+    static String normaliza(String texto)
+    {
+        char[] caracteres = null;
+        for (int i = 0; i < texto.length(); i++)
+        {
+            char c = texto.charAt(i);
+            char minuscula = Character.toLowerCase(c);
+            if(minuscula!=c)
+            {
+                if(caracteres==null)
+                    caracteres = texto.toCharArray();
+                caracteres[i] = minuscula;
+            }
+        }
+        return caracteres==null ? texto : new String(caracteres);
+    }
+
+    /**
+     * Empaqueta los 3 caracteres de un texto a partir de una posicion.
+     */
+    private static long trigrama(String texto, int posicion)
+    {
+        return (long)texto.charAt(posicion) << 32 | (long)texto.charAt(posicion + 1) << 16 | texto.charAt(posicion + 2);
+    }
+
+    /**
+     * Devuelve la primera posicion de un array ordenado con un valor mayor o igual.
+     */
+    private static int primera(String[] ordenados, String valor)
+    {
+        int inicio = 0;
+        int fin = ordenados.length;
+        while(inicio<fin)
+        {
+            int medio = (inicio + fin) >>> 1;
+            if(ordenados[medio].compareTo(valor)<0)
+                inicio = medio + 1;
+            else
+                fin = medio;
+        }
+        return inicio;
+    }
+
+    /**
+     * Devuelve la primera posicion desde la que los valores ya no empiezan por
+     * un texto (los que empiezan van seguidos a partir de desde).
+     */
+    private static int ultima(String[] ordenados, int desde, String prefijo)
+    {
+        int inicio = desde;
+        int fin = ordenados.length;
+        while(inicio<fin)
+        {
+            int medio = (inicio + fin) >>> 1;
+            if(ordenados[medio].startsWith(prefijo))
+                inicio = medio + 1;
+            else
+                fin = medio;
+        }
+        return inicio;
+    }
+
+    /**
+     * Guarda los nodos de menor indice encontrados hasta un limite, en un
+     * monticulo con el mayor arriba: cuando esta lleno, un nodo nuevo solo
+     * entra si es menor que el mayor, y no hace falta guardar el resto.
+     */
+    private static class Menores
+    {
+        private final int limite;
+        private int[] monticulo;
+        private int tam;
+
+        Menores(int limite)
+        {
+            this.limite = limite;
+            this.monticulo = new int[Math.min(limite, 16)];
+        }
+
+        /**
+         * Indica si un nodo entraria en la lista (para no comprobarlo si no).
+         */
+        boolean admite(int nodo)
+        {
+            return tam<limite || nodo<monticulo[0];
+        }
+
+        /**
+         * Agrega un nodo, sacando el mayor si la lista esta llena.
+         */
+        void agrega(int nodo)
+        {
+            if(tam<limite)
+            {
+                if(tam==monticulo.length)
+                    monticulo = Arrays.copyOf(monticulo, (int)Math.min(limite, tam * 2L));
+                int pos = tam++;
+                while(pos>0 && monticulo[(pos - 1) >> 1]<nodo)
+                {
+                    monticulo[pos] = monticulo[(pos - 1) >> 1];
+                    pos = (pos - 1) >> 1;
+                }
+                monticulo[pos] = nodo;
+                return;
+            }
+            if(nodo>=monticulo[0])
+                return;
+            int pos = 0;
+            while(true)
+            {
+                int hijo = 2 * pos + 1;
+                if(hijo>=tam)
+                    break;
+                if(hijo + 1<tam && monticulo[hijo + 1]>monticulo[hijo])
+                    hijo++;
+                if(monticulo[hijo]<=nodo)
+                    break;
+                monticulo[pos] = monticulo[hijo];
+                pos = hijo;
+            }
+            monticulo[pos] = nodo;
+        }
+
+        /**
+         * Devuelve los nodos guardados de menor a mayor.
+         */
+        int[] toArray()
+        {
+            int[] resultado = Arrays.copyOf(monticulo, tam);
+            Arrays.sort(resultado);
+            return resultado;
+        }
+    }
+}
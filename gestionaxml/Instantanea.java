@@ -0,0 +1,408 @@
+package gestionaxml;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Instantanea binaria de los nodos de un XML que se guarda junto a el con la
+ * extension ".instantanea", para abrirlo sin volver a leer el XML (ver
+ * GestionaXML.guardaInstantanea).
+ * <p>
+ * Formato: cabecera (magia, tamano, fecha de modificacion y CRC32C del XML del
+ * que se saco, CRC32C del resto de la instantanea y posicion de las tablas),
+ * despues todos los valores en UTF-8 ya desescapados, uno detras de otro, y al
+ * final las tablas: raiz, nombres de las columnas, formatos de nodo (nombre del
+ * nodo y titulos de sus campos, asi cada nodo solo guarda el numero de su
+ * formato), formato de cada nodo, atributos de los nodos y de sus campos, y
+ * por cada columna un trozo (posicion y longitud del valor, codificado como en
+ * ParserMapeado) por nodo.
+ * <p>
+ * Para abrirla se proyecta en memoria: las tablas se copian de golpe a los
+ * arrays del almacen y los valores se quedan en el fichero proyectado hasta que
+ * se consultan, igual que con ParserMapeado pero sin recorrer el XML (en
+ * Windows se copia a memoria, ver ParserMapeado.PROYECTA). Solo se
+ * usa si el tamano, la fecha y el CRC32C del XML siguen siendo los de la
+ * cabecera y el CRC32C de la instantanea es correcto; si no, se lee el XML.
+ * Los valores tienen que caber en 2 GB, como con ParserMapeado.
+ * @author neowavila
+ */
+class Instantanea
+{
+    private static final int MAGIA = 0x47584932; //"GXI2"
+    private static final int TAM_CABECERA = 4 + 8 + 8 + 4 + 4 + 8;
+    private static final int TAM_BUFFER = 1 << 16;
+    private static final int TAM_BLOQUE_HASH = 1 << 30;
+
+    private Instantanea()
+    {
+    }
+
+    /**
+     * Devuelve la ruta de la instantanea de un fichero XML.
+     * @param xml ruta del fichero XML.
+     * @return ruta de la instantanea.
+     */
+    static Path rutaInstantanea(Path xml)
+    {
+        Path absoluto = xml.toAbsolutePath();
+        return absoluto.resolveSibling(absoluto.getFileName() + ".instantanea");
+    }
+
+    /**
+     * Indica si el fichero XML tiene instantanea (aunque no este al dia).
+     * @param xml ruta del fichero XML.
+     * @return true si existe la instantanea.
+     */
+    static boolean existe(Path xml)
+    {
+        return Files.exists(rutaInstantanea(xml));
+    }
+
+    /**
+     * Escribe la instantanea de los nodos no borrados en un temporal y la
+     * publica encima de la anterior. Los nodos tienen que ser exactamente los
+     * del XML en disco, que tiene que seguir teniendo el tamano y la fecha de
+     * cuando se leyo o se guardo.
+     * @param almacen nodos del fichero.
+     * @param xml ruta del fichero XML.
+     * @param tamanoXML tamano del XML cuando se leyo o se guardo.
+     * @param fechaXML fecha de modificacion del XML (en nanosegundos) cuando se leyo o se guardo.
+     * @throws IOException si el XML ha cambiado, los valores no caben en 2 GB o
+     * falla la escritura.
+     */
+    static void escribe(AlmacenRegistros almacen, Path xml, long tamanoXML, long fechaXML) throws IOException
+    {
+        compruebaXML(xml, tamanoXML, fechaXML);
+        int hashXML = hash(xml);
+        compruebaXML(xml, tamanoXML, fechaXML);
+
+        Path destino = rutaInstantanea(xml);
+        Path temporal = GuardadoAtomico.creaTemporal(destino);
+        try
+        {
+            try(FileChannel canal = FileChannel.open(temporal, StandardOpenOption.WRITE))
+            {
+                canal.position(TAM_CABECERA);
+                CRC32C crc = new CRC32C();
+                DataOutputStream salida = new DataOutputStream(new BufferedOutputStream(
+                        new CheckedOutputStream(Channels.newOutputStream(canal), crc), TAM_BUFFER));
+                long inicioTablas = escribeCuerpo(almacen, salida);
+                salida.flush();
+
+                ByteBuffer cabecera = ByteBuffer.allocate(TAM_CABECERA);
+                cabecera.putInt(MAGIA).putLong(tamanoXML).putLong(fechaXML).putInt(hashXML)
+                        .putInt((int)crc.getValue()).putLong(inicioTablas).flip();
+                while(cabecera.hasRemaining())
+                    canal.write(cabecera, cabecera.position());
+                canal.force(true);
+            }
+            GuardadoAtomico.publica(temporal, destino);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(temporal);
+            throw e;
+        }
+    }
+
+    /**
+     * Escribe los valores y las tablas.
+     * @return posicion de las tablas en el fichero.
+     */
+    private static long escribeCuerpo(AlmacenRegistros almacen, DataOutputStream salida) throws IOException
+    {
+        int numNodos = almacen.numRegistros() - almacen.numBorrados();
+        int[] vivos = new int[numNodos];
+        for (int i = 0, j = 0; j < numNodos; i++)
+            if(!almacen.estaBorrado(i))
+                vivos[j++] = i;
+
+        //Valores, columna a columna, apuntando el trozo de cada uno.
+        int numColumnas = almacen.numColumnas();
+        long[][] trozos = new long[numColumnas][];
+        byte[] bytes = new byte[256];
+        long posicion = TAM_CABECERA;
+        for (int columna = 0; columna < numColumnas; columna++)
+        {
+            long[] trozosColumna = new long[numNodos];
+            for (int i = 0; i < numNodos; i++)
+            {
+                int longitud = almacen.copiaBytes(vivos[i], columna, bytes);
+                if(longitud>=0)
+                    salida.write(bytes, 0, longitud);
+                else
+                {
+                    String valor = almacen.valor(vivos[i], columna);
+                    if(valor==null)
+                        continue;
+                    byte[] codificado = valor.getBytes(StandardCharsets.UTF_8);
+                    longitud = codificado.length;
+                    salida.write(codificado);
+                    if(longitud>bytes.length && longitud<=1 << 20)
+                        bytes = new byte[Math.max(longitud, bytes.length * 2)];
+                }
+                if(posicion + longitud>Integer.MAX_VALUE)
+                    throw new IOException("Los valores no caben en una instantanea (maximo 2 GB)");
+                trozosColumna[i] = ParserMapeado.trozo((int)posicion, longitud);
+                posicion += longitud;
+            }
+            trozos[columna] = trozosColumna;
+        }
+
+        escribeTexto(salida, almacen.getTituloRaiz());
+        escribeAtributos(salida, almacen.getAtributosRaiz());
+        salida.writeInt(numColumnas);
+        for (int columna = 0; columna < numColumnas; columna++)
+            escribeTexto(salida, almacen.getNombreColumna(columna));
+        salida.writeInt(almacen.numFormatos());
+        for (int formato = 0; formato < almacen.numFormatos(); formato++)
+        {
+            escribeTexto(salida, almacen.getTituloFormato(formato));
+            String[] campos = almacen.getCamposFormato(formato);
+            salida.writeInt(campos.length);
+            for (String campo : campos)
+                escribeTexto(salida, campo);
+        }
+        salida.writeInt(numNodos);
+        for (int i = 0; i < numNodos; i++)
+            salida.writeInt(almacen.formato(vivos[i]));
+        int conAtributos = 0;
+        for (int i = 0; i < numNodos; i++)
+            if(almacen.getAtributos(vivos[i]).length>0)
+                conAtributos++;
+        salida.writeInt(conAtributos);
+        for (int i = 0; i < numNodos; i++)
+        {
+            String[][] atributos = almacen.getAtributos(vivos[i]);
+            if(atributos.length==0)
+                continue;
+            salida.writeInt(i);
+            escribeAtributos(salida, atributos);
+        }
+        int conAtributosCampos = 0;
+        for (int i = 0; i < numNodos; i++)
+            if(almacen.getAtributosCampos(vivos[i])!=null)
+                conAtributosCampos++;
+        salida.writeInt(conAtributosCampos);
+        for (int i = 0; i < numNodos; i++)
+        {
+            String[][][] atributosCampos = almacen.getAtributosCampos(vivos[i]);
+            if(atributosCampos==null)
+                continue;
+            int numCampos = almacen.getColumnas(vivos[i]).length;
+            salida.writeInt(i);
+            salida.writeInt(numCampos);
+            for (int campo = 0; campo < numCampos; campo++)
+                escribeAtributos(salida, almacen.getAtributosCampo(vivos[i], campo));
+        }
+        for (long[] trozosColumna : trozos)
+            for (long trozo : trozosColumna)
+                salida.writeLong(trozo);
+        return posicion;
+    }
+
+    /**
+     * Abre la instantanea de un XML si corresponde al XML actual.
+     * @param xml ruta del fichero XML.
+     * @return almacen con los nodos del XML, o null si no hay instantanea, es de
+     * otra version del XML o esta danada.
+     * @throws IOException si no se puede leer.
+     */
+    static AlmacenRegistros lee(Path xml) throws IOException
+    {
+        Path ruta = rutaInstantanea(xml);
+        if(!Files.exists(ruta))
+            return null;
+        try(FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ))
+        {
+            long tamano = canal.size();
+            if(tamano<TAM_CABECERA)
+                return null;
+            ByteBuffer cabecera = ByteBuffer.allocate(TAM_CABECERA);
+            while(cabecera.hasRemaining() && canal.read(cabecera, cabecera.position())>=0)
+            {
+                //Lee hasta llenar la cabecera.
+            }
+            cabecera.flip();
+            if(cabecera.getInt()!=MAGIA)
+                return null;
+            long tamanoXML = cabecera.getLong();
+            long fechaXML = cabecera.getLong();
+            int hashXML = cabecera.getInt();
+            int crcCuerpo = cabecera.getInt();
+            long inicioTablas = cabecera.getLong();
+            if(tamanoXML!=Files.size(xml) || fechaXML!=DiarioCambios.fechaModificacion(xml))
+                return null;
+            if(inicioTablas<TAM_CABECERA || inicioTablas>Integer.MAX_VALUE || inicioTablas>tamano
+                    || tamano - inicioTablas>Integer.MAX_VALUE)
+                return null;
+
+            ByteBuffer valores = ParserMapeado.leeFichero(canal, 0, inicioTablas);
+            ByteBuffer tablas = ParserMapeado.leeFichero(canal, inicioTablas, tamano - inicioTablas);
+            CRC32C crc = new CRC32C();
+            crc.update(valores.duplicate().position(TAM_CABECERA));
+            crc.update(tablas.duplicate());
+            if((int)crc.getValue()!=crcCuerpo || hash(xml)!=hashXML)
+                return null;
+            return leeTablas(tablas, valores);
+        }
+    }
+
+    /**
+     * Crea el almacen a partir de las tablas.
+     * @return almacen o null si las tablas no cuadran.
+     */
+    private static AlmacenRegistros leeTablas(ByteBuffer tablas, ByteBuffer valores)
+    {
+        AlmacenRegistros almacen = new AlmacenRegistros(leeTexto(tablas), leeAtributos(tablas), valores);
+        String[] nombres = new String[tablas.getInt()];
+        for (int i = 0; i < nombres.length; i++)
+            nombres[i] = leeTexto(tablas);
+        int numFormatos = tablas.getInt();
+        for (int formato = 0; formato < numFormatos; formato++)
+        {
+            String titulo = leeTexto(tablas);
+            String[] campos = new String[tablas.getInt()];
+            for (int i = 0; i < campos.length; i++)
+                campos[i] = leeTexto(tablas);
+            if(almacen.buscaFormato(titulo, campos)!=formato)
+                return null;
+        }
+        if(almacen.numColumnas()!=nombres.length)
+            return null;
+        for (int i = 0; i < nombres.length; i++)
+            if(!nombres[i].equals(almacen.getNombreColumna(i)))
+                return null;
+
+        int[] formatosNodos = new int[tablas.getInt()];
+        tablas.asIntBuffer().get(formatosNodos);
+        tablas.position(tablas.position() + formatosNodos.length * 4);
+        for (int formato : formatosNodos)
+            if(formato<0 || formato>=numFormatos)
+                return null;
+        int conAtributos = tablas.getInt();
+        int[] nodosAtributos = new int[conAtributos];
+        String[][][] atributos = new String[conAtributos][][];
+        for (int i = 0; i < conAtributos; i++)
+        {
+            nodosAtributos[i] = tablas.getInt();
+            atributos[i] = leeAtributos(tablas);
+        }
+        int conAtributosCampos = tablas.getInt();
+        int[] nodosAtributosCampos = new int[conAtributosCampos];
+        String[][][][] atributosCampos = new String[conAtributosCampos][][][];
+        for (int i = 0; i < conAtributosCampos; i++)
+        {
+            nodosAtributosCampos[i] = tablas.getInt();
+            atributosCampos[i] = new String[tablas.getInt()][][];
+            for (int campo = 0; campo < atributosCampos[i].length; campo++)
+                atributosCampos[i][campo] = leeAtributos(tablas);
+        }
+        long[][] trozos = new long[nombres.length][formatosNodos.length];
+        for (long[] trozosColumna : trozos)
+        {
+            tablas.asLongBuffer().get(trozosColumna);
+            tablas.position(tablas.position() + trozosColumna.length * 8);
+        }
+
+        almacen.cargaTrozos(formatosNodos, trozos);
+        for (int i = 0; i < conAtributos; i++)
+            almacen.setAtributos(nodosAtributos[i], atributos[i]);
+        for (int i = 0; i < conAtributosCampos; i++)
+            almacen.setAtributosCampos(nodosAtributosCampos[i], atributosCampos[i]);
+        return almacen;
+    }
+
+    /**
+     * Comprueba que el XML siga teniendo el tamano y la fecha de modificacion.
+     */
+    private static void compruebaXML(Path xml, long tamano, long fecha) throws IOException
+    {
+        if(tamano!=Files.size(xml) || fecha!=DiarioCambios.fechaModificacion(xml))
+            throw new IOException("El fichero ha cambiado en disco desde que se leyo: " + xml);
+    }
+
+    /**
+     * Calcula el CRC32C de un fichero proyectandolo en memoria por bloques, o
+     * leyendolo con un buffer donde no se proyecta (ver ParserMapeado.PROYECTA),
+     * para que ninguna proyeccion impida despues sustituir el fichero.
+     * @param fichero ruta del fichero.
+     * @return CRC32C del contenido.
+     * @throws IOException si no se puede leer.
+     */
+    static int hash(Path fichero) throws IOException
+    {
+        CRC32C crc = new CRC32C();
+        try(FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ))
+        {
+            long tamano = canal.size();
+            if(!ParserMapeado.PROYECTA)
+            {
+                ByteBuffer bloque = ByteBuffer.allocate(TAM_BUFFER);
+                while(canal.read(bloque)>=0)
+                {
+                    crc.update(bloque.flip());
+                    bloque.clear();
+                }
+                return (int)crc.getValue();
+            }
+            for (long inicio = 0; inicio < tamano; inicio += TAM_BLOQUE_HASH)
+                crc.update(canal.map(FileChannel.MapMode.READ_ONLY, inicio, Math.min(TAM_BLOQUE_HASH, tamano - inicio)));
+        }
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Escribe un texto como longitud y bytes UTF-8.
+     */
+    private static void escribeTexto(DataOutputStream salida, String texto) throws IOException
+    {
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        salida.writeInt(bytes.length);
+        salida.write(bytes);
+    }
+
+    /**
+     * Escribe atributos como numero de atributos y pares nombre, valor.
+     */
+    private static void escribeAtributos(DataOutputStream salida, String[][] atributos) throws IOException
+    {
+        salida.writeInt(atributos.length);
+        for (String[] atributo : atributos)
+        {
+            escribeTexto(salida, atributo[0]);
+            escribeTexto(salida, atributo[1]);
+        }
+    }
+
+    /**
+     * Lee un texto escrito con escribeTexto.
+     */
+    private static String leeTexto(ByteBuffer tablas)
+    {
+        byte[] bytes = new byte[tablas.getInt()];
+        tablas.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Lee atributos escritos con escribeAtributos.
+     */
+    private static String[][] leeAtributos(ByteBuffer tablas)
+    {
+        String[][] atributos = new String[tablas.getInt()][];
+        for (int i = 0; i < atributos.length; i++)
+            atributos[i] = new String[]{leeTexto(tablas), leeTexto(tablas)};
+        return atributos;
+    }
+}
@@ -0,0 +1,240 @@
+package gestionaxml;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * <h1>LectorXML</h1>
+ * Recorre un fichero XML de un nivel de profundidad nodo a nodo usando StAX
+ * ({@link XMLStreamReader}), sin construir el arbol DOM completo.
+ * La memoria usada solo depende del tamano de un nodo y no del tamano del fichero.
+ * <p>
+ * Cada nodo se devuelve en el mismo formato que {@link GestionaXML#getNodo(int)}:
+ * String[n][0] = Campo y String[n][1] = Informacion.
+ * <pre>
+ * {@code
+ * try(LectorXML lector = new LectorXML("productos.xml"))
+ * {
+ *     while(lector.hasNext())
+ *     {
+ *         String[][] nodo = lector.next();
+ *         ...
+ *     }
+ * }
+ * }
+ * </pre>
+ * @author neowavila
+ */
+public class LectorXML implements Iterator<String[][]>, Closeable
+{
+    private static final int TAM_BUFFER = 64 * 1024;
+    private static final XMLInputFactory FACTORIA = creaFactoria();
+
+    private final InputStream entrada;
+    private final XMLStreamReader lector;
+    private final String tituloRaiz;
+    private String tituloNodo;
+    private String[][] siguiente;
+    private boolean terminado;
+
+    /**
+     * Abre el fichero y se situa en el nodo raiz, sin leer todavia ningun nodo hijo.
+     * @param rutaXML ruta del fichero XML que queremos recorrer.
+     * @throws IOException si no se puede abrir el fichero.
+     * @throws XMLStreamException si el fichero no es un XML valido.
+     */
+    public LectorXML(String rutaXML) throws IOException, XMLStreamException
+    {
+        entrada = new BufferedInputStream(new FileInputStream(rutaXML), TAM_BUFFER);
+        try
+        {
+            lector = FACTORIA.createXMLStreamReader(entrada);
+            tituloRaiz = buscaRaiz();
+        }
+        catch(XMLStreamException e)
+        {
+            entrada.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Crea la factoria StAX compartida (coalescente y sin entidades externas).
+     * @return factoria configurada.
+     */
+    private static XMLInputFactory creaFactoria()
+    {
+        XMLInputFactory factoria = XMLInputFactory.newInstance();
+        factoria.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factoria.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factoria;
+    }
+
+    /**
+     * Avanza hasta el primer elemento del documento.
+     * @return nombre del nodo raiz, o null si el documento no tiene elementos.
+     */
+    private String buscaRaiz() throws XMLStreamException
+    {
+        while(lector.hasNext())
+        {
+            if(lector.next()==XMLStreamConstants.START_ELEMENT)
+                return lector.getLocalName();
+        }
+        terminado = true;
+        return null;
+    }
+
+    /**
+     * Lee el siguiente hijo del raiz con todos sus campos.
+     * @return el nodo leido o null si ya no quedan nodos.
+     */
+    private String[][] leeNodo() throws XMLStreamException
+    {
+        while(lector.hasNext())
+        {
+            int evento = lector.next();
+            if(evento==XMLStreamConstants.START_ELEMENT)
+            {
+                tituloNodo = lector.getLocalName();
+                return leeCampos();
+            }
+            if(evento==XMLStreamConstants.END_ELEMENT)
+                break; //Cierre del raiz.
+        }
+        return null;
+    }
+
+    /**
+     * Lee los campos del nodo actual hasta su etiqueta de cierre.
+     * @return array con los campos y valores del nodo.
+     */
+    private String[][] leeCampos() throws XMLStreamException
+    {
+        ArrayList<String[]> campos = new ArrayList<>();
+        StringBuilder valor = new StringBuilder();
+        String campo = null;
+        int profundidad = 0;
+
+        while(lector.hasNext())
+        {
+            switch(lector.next())
+            {
+                case XMLStreamConstants.START_ELEMENT:
+                    profundidad++;
+                    if(profundidad==1)
+                    {
+                        campo = lector.getLocalName();
+                        valor.setLength(0);
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if(profundidad==1)
+                        valor.append(lector.getTextCharacters(), lector.getTextStart(), lector.getTextLength());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if(profundidad==0)
+                        return campos.toArray(new String[campos.size()][]);
+                    if(profundidad==1)
+                        campos.add(new String[]{campo, valor.toString()});
+                    profundidad--;
+                    break;
+                default:
+                    break;
+            }
+        }
+        throw new XMLStreamException("Fin de fichero dentro del nodo "+tituloNodo);
+    }
+
+    /**
+     * Devuelve el nombre del nodo raiz del fichero.
+     * @return nombre del nodo raiz.
+     */
+    public String getTituloRaiz()
+    {
+        return tituloRaiz;
+    }
+
+    /**
+     * Devuelve el nombre del ultimo nodo leido (Ej: Producto).
+     * @return nombre del ultimo nodo leido o null si todavia no se ha leido ninguno.
+     */
+    public String getTituloNodo()
+    {
+        return tituloNodo;
+    }
+
+    /**
+     * Comprueba si quedan nodos por leer.
+     * @return true si queda algun nodo.
+     */
+    @Override
+    public boolean hasNext()
+    {
+        if(siguiente==null && !terminado)
+        {
+            try
+            {
+                siguiente = leeNodo();
+            }
+            catch(XMLStreamException e)
+            {
+                throw new UncheckedIOException(new IOException(e));
+            }
+            terminado = siguiente==null;
+        }
+        return siguiente!=null;
+    }
+
+    /**
+     * Devuelve el siguiente nodo en formato String[numCamposNodo][2]:
+     * String[n][0] = Campo
+     * String[n][1] = Informacion.
+     * @return el siguiente nodo del fichero.
+     */
+    @Override
+    public String[][] next()
+    {
+        if(!hasNext())
+            throw new NoSuchElementException();
+        String[][] nodo = siguiente;
+        siguiente = null;
+        return nodo;
+    }
+
+    /**
+     * Cierra el lector y el fichero.
+     * @throws IOException si falla el cierre del fichero.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        terminado = true;
+        siguiente = null;
+        try
+        {
+            lector.close();
+        }
+        catch(XMLStreamException e)
+        {
+            //El fichero se cierra igualmente.
+        }
+        finally
+        {
+            entrada.close();
+        }
+    }
+}
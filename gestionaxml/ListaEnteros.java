@@ -0,0 +1,167 @@
+package gestionaxml;
+
+import java.util.Arrays;
+
+/**
+ * Lista de enteros primitivos que crece segun se necesita (sin objetos Integer).
+ * Se usa para guardar listas de indices de nodos, normalmente ordenadas de menor a mayor.
+ * @author neowavila
+ */
+class ListaEnteros
+{
+    private int[] datos;
+    private int tam;
+
+    /**
+     * Crea una lista vacia.
+     */
+    ListaEnteros()
+    {
+        this(4);
+    }
+
+    /**
+     * Crea una lista vacia con la capacidad indicada.
+     * @param capacidad numero de elementos que caben sin tener que crecer.
+     */
+    ListaEnteros(int capacidad)
+    {
+        datos = new int[Math.max(capacidad, 1)];
+    }
+
+    /**
+     * Agrega un numero al final de la lista.
+     * @param num numero a agregar.
+     */
+    void agrega(int num)
+    {
+        if(tam==datos.length)
+            datos = Arrays.copyOf(datos, tam + (tam >> 1) + 1);
+        datos[tam++] = num;
+    }
+
+    /**
+     * Inserta un numero manteniendo la lista ordenada (no inserta repetidos).
+     * Si el numero es mayor que el ultimo es igual de rapido que agrega.
+     * @param num numero a insertar.
+     */
+    void insertaOrdenado(int num)
+    {
+        if(tam==0 || datos[tam-1]<num)
+        {
+            agrega(num);
+            return;
+        }
+        int pos = Arrays.binarySearch(datos, 0, tam, num);
+        if(pos>=0)
+            return;
+        pos = -pos - 1;
+        if(tam==datos.length)
+            datos = Arrays.copyOf(datos, tam + (tam >> 1) + 1);
+        System.arraycopy(datos, pos, datos, pos+1, tam-pos);
+        datos[pos] = num;
+        tam++;
+    }
+
+    /**
+     * Borra un numero de una lista ordenada.
+     * @param num numero a borrar.
+     * @return true si el numero estaba en la lista.
+     */
+    boolean borraOrdenado(int num)
+    {
+        int pos = Arrays.binarySearch(datos, 0, tam, num);
+        if(pos<0)
+            return false;
+        System.arraycopy(datos, pos+1, datos, pos, tam-pos-1);
+        tam--;
+        return true;
+    }
+
+    /**
+     * Inserta en una lista ordenada todos los numeros de otra lista ordenada con
+     * una sola pasada (no inserta repetidos).
+     * @param nuevos numeros a insertar, de menor a mayor.
+     */
+    void insertaOrdenados(ListaEnteros nuevos)
+    {
+        if(nuevos.tam==0)
+            return;
+        if(tam==0 || datos[tam-1]<nuevos.datos[0])
+        {
+            if(tam + nuevos.tam>datos.length)
+                datos = Arrays.copyOf(datos, tam + nuevos.tam);
+            System.arraycopy(nuevos.datos, 0, datos, tam, nuevos.tam);
+            tam += nuevos.tam;
+            return;
+        }
+        int[] mezcla = new int[tam + nuevos.tam];
+        int i = 0, j = 0, k = 0;
+        while(i<tam || j<nuevos.tam)
+        {
+            int num;
+            if(j==nuevos.tam || (i<tam && datos[i]<=nuevos.datos[j]))
+            {
+                num = datos[i++];
+                if(j<nuevos.tam && nuevos.datos[j]==num)
+                    j++;
+            }
+            else
+                num = nuevos.datos[j++];
+            mezcla[k++] = num;
+        }
+        datos = mezcla;
+        tam = k;
+    }
+
+    /**
+     * Borra de una lista ordenada todos los numeros de otra lista ordenada con
+     * una sola pasada.
+     * @param quitar numeros a borrar, de menor a mayor.
+     * @return cuantos numeros se han borrado.
+     */
+    int borraOrdenados(ListaEnteros quitar)
+    {
+        int destino = 0;
+        int j = 0;
+        for (int i = 0; i < tam; i++)
+        {
+            while(j<quitar.tam && quitar.datos[j]<datos[i])
+                j++;
+            if(j<quitar.tam && quitar.datos[j]==datos[i])
+                continue;
+            datos[destino++] = datos[i];
+        }
+        int borrados = tam - destino;
+        tam = destino;
+        return borrados;
+    }
+
+    /**
+     * Devuelve el numero de la posicion indicada.
+     * @param pos posicion en la lista.
+     * @return numero guardado en esa posicion.
+     */
+    int get(int pos)
+    {
+        return datos[pos];
+    }
+
+    /**
+     * Devuelve cuantos numeros hay en la lista.
+     * @return numero de elementos.
+     */
+    int tam()
+    {
+        return tam;
+    }
+
+    /**
+     * Devuelve una copia de la lista como array.
+     * @return array con los numeros de la lista.
+     */
+    int[] toArray()
+    {
+        return Arrays.copyOf(datos, tam);
+    }
+}
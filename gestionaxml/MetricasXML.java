@@ -0,0 +1,417 @@
+package gestionaxml;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Metricas de un fichero abierto y eventos JFR de lectura, busqueda y guardado.
+ * <p>
+ * Los contadores son {@link LongAdder} y se actualizan siempre, ya que cuestan
+ * muy poco al lado de la operacion que miden. Los eventos JFR solo se rellenan
+ * si hay una grabacion que los pide (shouldCommit). Las busquedas con indice
+ * son tan rapidas que hasta crear el evento se nota, asi que su evento solo se
+ * crea si esta activado en alguna grabacion, y solo se graban las que tardan
+ * mas de 1 ms para que las busquedas con indice no llenen la grabacion.
+ * @author neowavila
+ */
+class MetricasXML implements MetricasXMLMBean
+{
+    private static final AtomicInteger NUM_REGISTRADOS = new AtomicInteger();
+    /** Solo se usa para saber si el evento Consulta esta activado. */
+    private static final Consulta SONDA_CONSULTA = new Consulta();
+
+    private final String fichero;
+    private final IntSupplier numNodos;
+    private volatile String lector = "error";
+    private volatile long duracionLectura;
+    private volatile long bytesLeidos;
+
+    private final LongAdder consultasConIndice = new LongAdder();
+    private final LongAdder consultasSinIndice = new LongAdder();
+    private final LongAdder nodosRecorridos = new LongAdder();
+    private final LongAdder guardados = new LongAdder();
+    private final LongAdder duracionGuardados = new LongAdder();
+    private final LongAdder bytesEscritos = new LongAdder();
+    private final LongAdder fallos = new LongAdder();
+    private volatile long duracionUltimoGuardado;
+    private volatile String ultimoFallo;
+    private ObjectName nombre;
+
+    /**
+     * Crea las metricas de un fichero.
+     * @param fichero ruta del fichero.
+     * @param numNodos devuelve el numero de nodos actual.
+     */
+    MetricasXML(String fichero, IntSupplier numNodos)
+    {
+        this.fichero = fichero;
+        this.numNodos = numNodos;
+    }
+
+    /**
+     * Evento JFR de la lectura de un fichero.
+     */
+    @Name("gestionaxml.Lectura")
+    @Label("Lectura XML")
+    @Category("GestionaXML")
+    @Description("Lectura de un fichero al abrirlo, incluido su diario de cambios")
+    static class Lectura extends Event
+    {
+        @Label("Fichero")
+        String fichero;
+        @Label("Lector")
+        String lector;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Nodos")
+        int nodos;
+        /** Inicio para las metricas, no se graba. */
+        transient long inicio;
+    }
+
+    /**
+     * Evento JFR de una busqueda.
+     */
+    @Name("gestionaxml.Consulta")
+    @Label("Busqueda XML")
+    @Category("GestionaXML")
+    @Description("Busqueda de nodos por el valor de uno o varios campos")
+    @Threshold("1 ms")
+    static class Consulta extends Event
+    {
+        @Label("Fichero")
+        String fichero;
+        @Label("Con indice")
+        boolean conIndice;
+        @Label("Nodos recorridos")
+        int recorridos;
+        @Label("Nodos encontrados")
+        int encontrados;
+    }
+
+    /**
+     * Evento JFR de un guardado o punto de control.
+     */
+    @Name("gestionaxml.Guardado")
+    @Label("Guardado XML")
+    @Category("GestionaXML")
+    @Description("Guardado del fichero (guardar, guardarAtomico, guardarAgrupado o punto de control)")
+    static class Guardado extends Event
+    {
+        @Label("Fichero")
+        String fichero;
+        @Label("Operacion")
+        String operacion;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Correcto")
+        boolean correcto;
+        /** Inicio para las metricas, no se graba. */
+        transient long inicio;
+    }
+
+    /**
+     * Empieza a medir la lectura del fichero.
+     * @return evento a pasar a terminaLectura.
+     */
+    static Lectura iniciaLectura()
+    {
+        Lectura evento = new Lectura();
+        evento.inicio = System.nanoTime();
+        evento.begin();
+        return evento;
+    }
+
+    /**
+     * Termina de medir la lectura del fichero.
+     * @param evento evento de iniciaLectura.
+     * @param lector lector usado (null si no se ha podido leer).
+     * @param bytes tamano del fichero.
+     */
+    void terminaLectura(Lectura evento, String lector, long bytes)
+    {
+        evento.end();
+        duracionLectura = System.nanoTime() - evento.inicio;
+        bytesLeidos = bytes;
+        if(lector!=null)
+            this.lector = lector;
+        if(evento.shouldCommit())
+        {
+            evento.fichero = fichero;
+            evento.lector = this.lector;
+            evento.bytes = bytes;
+            evento.nodos = lector==null ? 0 : numNodos.getAsInt();
+            evento.commit();
+        }
+    }
+
+    /**
+     * Empieza a medir una busqueda.
+     * @return evento a pasar a terminaConsulta, o null si ninguna grabacion lo usa.
+     */
+    static Consulta iniciaConsulta()
+    {
+        if(!SONDA_CONSULTA.isEnabled())
+            return null;
+        Consulta evento = new Consulta();
+        evento.begin();
+        return evento;
+    }
+
+    /**
+     * Termina de medir una busqueda.
+     * @param evento evento de iniciaConsulta (puede ser null).
+     * @param conIndice true si se ha resuelto con indices.
+     * @param recorridos nodos recorridos (con indice, los encontrados; solo para el evento).
+     * @param encontrados nodos encontrados.
+     */
+    void terminaConsulta(Consulta evento, boolean conIndice, int recorridos, int encontrados)
+    {
+        //Con indice se cuenta lo minimo: la busqueda dura pocas decenas de ns.
+        if(conIndice)
+            consultasConIndice.increment();
+        else
+        {
+            consultasSinIndice.increment();
+            nodosRecorridos.add(recorridos);
+        }
+        if(evento==null)
+            return;
+        evento.end();
+        if(evento.shouldCommit())
+        {
+            evento.fichero = fichero;
+            evento.conIndice = conIndice;
+            evento.recorridos = recorridos;
+            evento.encontrados = encontrados;
+            evento.commit();
+        }
+    }
+
+    /**
+     * Empieza a medir un guardado.
+     * @return evento a pasar a terminaGuardado.
+     */
+    static Guardado iniciaGuardado()
+    {
+        Guardado evento = new Guardado();
+        evento.inicio = System.nanoTime();
+        evento.begin();
+        return evento;
+    }
+
+    /**
+     * Termina de medir un guardado.
+     * @param evento evento de iniciaGuardado.
+     * @param operacion metodo que ha guardado.
+     * @param destino fichero escrito (para saber cuantos bytes tiene).
+     * @param error excepcion si ha fallado o null si se ha guardado.
+     */
+    void terminaGuardado(Guardado evento, String operacion, Path destino, Exception error)
+    {
+        evento.end();
+        long duracion = System.nanoTime() - evento.inicio;
+        long bytes = 0;
+        if(error==null)
+        {
+            try
+            {
+                bytes = Files.size(destino);
+            }
+            catch(IOException e)
+            {
+                //Se ha guardado, solo falta el tamano.
+            }
+            guardados.increment();
+            duracionGuardados.add(duracion);
+            duracionUltimoGuardado = duracion;
+            bytesEscritos.add(bytes);
+        }
+        else
+            fallo(operacion, error);
+        if(evento.shouldCommit())
+        {
+            evento.fichero = fichero;
+            evento.operacion = operacion;
+            evento.bytes = bytes;
+            evento.correcto = error==null;
+            evento.commit();
+        }
+    }
+
+    /**
+     * Anota un fallo.
+     * @param operacion metodo que ha fallado.
+     * @param error excepcion del fallo.
+     */
+    void fallo(String operacion, Exception error)
+    {
+        fallos.increment();
+        ultimoFallo = operacion + ": " + error;
+    }
+
+    /**
+     * Registra las metricas en el servidor JMX de la plataforma, con el nombre
+     * gestionaxml:type=GestionaXML,fichero="ruta",id=n.
+     * @return true si se ha registrado (o ya lo estaba).
+     */
+    synchronized boolean registra()
+    {
+        if(nombre!=null)
+            return true;
+        try
+        {
+            ObjectName nuevo = new ObjectName("gestionaxml:type=GestionaXML,fichero="
+                    + ObjectName.quote(fichero) + ",id=" + NUM_REGISTRADOS.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, nuevo);
+            nombre = nuevo;
+            return true;
+        }
+        catch(JMException e)
+        {
+            fallo("registraMBean", e);
+            return false;
+        }
+    }
+
+    /**
+     * Quita las metricas del servidor JMX.
+     */
+    synchronized void quita()
+    {
+        if(nombre==null)
+            return;
+        MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            servidor.unregisterMBean(nombre);
+        }
+        catch(JMException e)
+        {
+            //Ya no estaba registrado.
+        }
+        nombre = null;
+    }
+
+    @Override
+    public String getFichero()
+    {
+        return fichero;
+    }
+
+    @Override
+    public String getLector()
+    {
+        return lector;
+    }
+
+    @Override
+    public double getDuracionLecturaMs()
+    {
+        return duracionLectura / 1e6;
+    }
+
+    @Override
+    public long getBytesLeidos()
+    {
+        return bytesLeidos;
+    }
+
+    @Override
+    public int getNumNodos()
+    {
+        return numNodos.getAsInt();
+    }
+
+    @Override
+    public long getNumConsultas()
+    {
+        return consultasConIndice.sum() + consultasSinIndice.sum();
+    }
+
+    @Override
+    public long getNumConsultasSinIndice()
+    {
+        return consultasSinIndice.sum();
+    }
+
+    @Override
+    public long getNodosRecorridos()
+    {
+        return nodosRecorridos.sum();
+    }
+
+    @Override
+    public double getNodosRecorridosPorConsulta()
+    {
+        long numConsultas = getNumConsultas();
+        return numConsultas==0 ? 0 : (double)nodosRecorridos.sum() / numConsultas;
+    }
+
+    @Override
+    public long getNumGuardados()
+    {
+        return guardados.sum();
+    }
+
+    @Override
+    public double getDuracionUltimoGuardadoMs()
+    {
+        return duracionUltimoGuardado / 1e6;
+    }
+
+    @Override
+    public double getDuracionGuardadosMs()
+    {
+        return duracionGuardados.sum() / 1e6;
+    }
+
+    @Override
+    public long getBytesEscritos()
+    {
+        return bytesEscritos.sum();
+    }
+
+    @Override
+    public long getNumFallos()
+    {
+        return fallos.sum();
+    }
+
+    @Override
+    public String getUltimoFallo()
+    {
+        return ultimoFallo;
+    }
+
+    @Override
+    public void reinicia()
+    {
+        consultasConIndice.reset();
+        consultasSinIndice.reset();
+        nodosRecorridos.reset();
+        guardados.reset();
+        duracionGuardados.reset();
+        bytesEscritos.reset();
+        fallos.reset();
+        duracionUltimoGuardado = 0;
+        ultimoFallo = null;
+    }
+}
@@ -0,0 +1,93 @@
+package gestionaxml;
+
+/**
+ * Metricas de un fichero abierto con {@link GestionaXML}, publicadas por JMX
+ * con GestionaXML.registraMBean() o consultables con GestionaXML.getMetricas().
+ * Los tiempos son en milisegundos y los contadores se acumulan desde que se
+ * abrio el fichero (o desde la ultima llamada a reinicia()).
+ * @author neowavila
+ */
+public interface MetricasXMLMBean
+{
+    /**
+     * @return ruta del fichero.
+     */
+    String getFichero();
+
+    /**
+     * @return lector usado al abrir: "mapeado", "paralelo", "perezoso",
+     * "instantanea" o "DOM" (o "error").
+     */
+    String getLector();
+
+    /**
+     * @return duracion de la lectura del fichero, incluido el diario.
+     */
+    double getDuracionLecturaMs();
+
+    /**
+     * @return tamano del fichero leido.
+     */
+    long getBytesLeidos();
+
+    /**
+     * @return numero de nodos actual, incluidos los borrados sin compactar.
+     */
+    int getNumNodos();
+
+    /**
+     * @return numero de busquedas (getIndiceNodo y getIndicesNodos).
+     */
+    long getNumConsultas();
+
+    /**
+     * @return busquedas que no han podido usar ningun indice y han recorrido el fichero.
+     */
+    long getNumConsultasSinIndice();
+
+    /**
+     * @return nodos recorridos por las busquedas que no han usado indices.
+     */
+    long getNodosRecorridos();
+
+    /**
+     * @return media de nodos recorridos por busqueda, contando las que usan indices
+     * como busquedas que no recorren ningun nodo.
+     */
+    double getNodosRecorridosPorConsulta();
+
+    /**
+     * @return numero de guardados y puntos de control correctos.
+     */
+    long getNumGuardados();
+
+    /**
+     * @return duracion del ultimo guardado.
+     */
+    double getDuracionUltimoGuardadoMs();
+
+    /**
+     * @return suma de la duracion de todos los guardados.
+     */
+    double getDuracionGuardadosMs();
+
+    /**
+     * @return bytes escritos por todos los guardados.
+     */
+    long getBytesEscritos();
+
+    /**
+     * @return numero de lecturas, guardados o anotaciones en el diario que han fallado.
+     */
+    long getNumFallos();
+
+    /**
+     * @return descripcion del ultimo fallo o null si no ha habido ninguno.
+     */
+    String getUltimoFallo();
+
+    /**
+     * Pone a cero los contadores de consultas, guardados y fallos.
+     */
+    void reinicia();
+}
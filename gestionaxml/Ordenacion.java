@@ -0,0 +1,388 @@
+package gestionaxml;
+
+import java.util.Arrays;
+
+/**
+ * Ordena los nodos no borrados por uno o varios campos, o saca solo los k
+ * primeros, comparando como numeros los campos numericos y como texto el resto.
+ * <p>
+ * Un campo es numerico si todos sus valores son numeros (el mismo criterio que
+ * IndiceRango). Los nodos sin el campo van siempre al final, tambien en orden
+ * descendente, y los empates se resuelven por el indice del nodo, asi que el
+ * orden es siempre el mismo.
+ * <p>
+ * Para ordenar todo se calcula el puesto de cada nodo en cada campo (un int por
+ * nodo), se juntan los puestos de los campos en uno solo y se ordenan los nodos
+ * empaquetados con su puesto en un long, como en IndiceRango: no se crea ningun
+ * objeto por nodo salvo los valores de los campos de texto. Los k primeros se
+ * sacan en una pasada con un monticulo de k nodos (O(n log k)), guardando en
+ * cada hueco el valor del primer campo para no leerlo en cada comparacion.
+ * @author neowavila
+ */
+class Ordenacion
+{
+    private final AlmacenRegistros almacen;
+    private final boolean[] descendentes;
+    private final int[] columnas;
+    private final IndiceRango[] rangos;
+    private final boolean[] numericos;
+    private final char[] texto = new char[64];
+
+    /**
+     * Prepara la ordenacion deduciendo el tipo de cada campo.
+     * @param almacen nodos del fichero.
+     * @param indices indices del fichero (se usan los indices de rangos ya construidos).
+     * @param campos titulos de los campos, del mas importante al menos.
+     * @param descendentes true para ordenar cada campo de mayor a menor.
+     */
+    Ordenacion(AlmacenRegistros almacen, GestorIndices indices, String[] campos, boolean[] descendentes)
+    {
+        this.almacen = almacen;
+        this.descendentes = descendentes;
+        this.columnas = new int[campos.length];
+        this.rangos = new IndiceRango[campos.length];
+        this.numericos = new boolean[campos.length];
+        for (int f = 0; f < campos.length; f++)
+        {
+            columnas[f] = almacen.columna(campos[f]);
+            rangos[f] = indices.getIndiceRangoConstruido(campos[f]);
+            numericos[f] = esNumerico(f);
+        }
+    }
+
+    /**
+     * Comprueba si todos los valores de un campo son numeros, sin crear un
+     * String por valor si se puede.
+     */
+    private boolean esNumerico(int campo)
+    {
+        if(columnas[campo]<0)
+            return false;
+        if(rangos[campo]!=null)
+            return !IndiceRango.TEXTO.equals(rangos[campo].getTipo());
+        for (int i = 0; i < almacen.numRegistros(); i++)
+            if(!almacen.estaBorrado(i) && Double.isNaN(numero(campo, i)) && almacen.valor(i, columnas[campo])!=null)
+                return false;
+        return true;
+    }
+
+    /**
+     * Devuelve el valor numerico de un campo en un nodo.
+     * @return numero o NaN si el nodo no tiene el campo.
+     */
+    private double numero(int campo, int registro)
+    {
+        if(rangos[campo]!=null)
+            return rangos[campo].numero(registro);
+        return Agregacion.numero(almacen, registro, columnas[campo], texto);
+    }
+
+    /**
+     * Ordena todos los nodos no borrados.
+     * @return indices de los nodos en orden.
+     */
+    int[] ordena()
+    {
+        int numNodos = almacen.numRegistros();
+        int[] puestos = null;
+        for (int f = 0; f < columnas.length; f++)
+        {
+            int[] puestosCampo = new int[numNodos];
+            puestosCampo(f, puestosCampo);
+            puestos = puestos==null ? puestosCampo : junta(puestos, puestosCampo);
+        }
+        int numVivos = numNodos - almacen.numBorrados();
+        long[] empaquetados = new long[numVivos];
+        for (int i = 0, j = 0; i < numNodos; i++)
+            if(!almacen.estaBorrado(i))
+                empaquetados[j++] = (long)puestos[i] << 32 | i;
+        Arrays.sort(empaquetados);
+        int[] orden = new int[numVivos];
+        for (int i = 0; i < numVivos; i++)
+            orden[i] = (int)empaquetados[i];
+        return orden;
+    }
+
+    /**
+     * Calcula el puesto de cada nodo en un campo: la posicion de su valor entre
+     * los valores distintos ordenados (invertida si es descendente), o el
+     * numero de valores distintos si no tiene el campo.
+     */
+    private void puestosCampo(int campo, int[] puestos)
+    {
+        int numNodos = puestos.length;
+        int numDistintos;
+        if(numericos[campo])
+        {
+            double[] valores = new double[numNodos];
+            double[] distintos = new double[numNodos];
+            int numValores = 0;
+            for (int i = 0; i < numNodos; i++)
+            {
+                valores[i] = almacen.estaBorrado(i) ? Double.NaN : numero(campo, i);
+                if(!Double.isNaN(valores[i]))
+                    distintos[numValores++] = valores[i];
+            }
+            Arrays.sort(distintos, 0, numValores);
+            numDistintos = 0;
+            for (int i = 0; i < numValores; i++)
+                if(numDistintos==0 || Double.compare(distintos[i], distintos[numDistintos - 1])!=0)
+                    distintos[numDistintos++] = distintos[i];
+            for (int i = 0; i < numNodos; i++)
+                puestos[i] = Double.isNaN(valores[i]) ? -1 : Arrays.binarySearch(distintos, 0, numDistintos, valores[i]);
+        }
+        else
+        {
+            String[] valores = new String[numNodos];
+            String[] distintos = new String[numNodos];
+            int numValores = 0;
+            for (int i = 0; i < numNodos; i++)
+            {
+                valores[i] = almacen.estaBorrado(i) ? null : almacen.valor(i, columnas[campo]);
+                if(valores[i]!=null)
+                    distintos[numValores++] = valores[i];
+            }
+            Arrays.sort(distintos, 0, numValores);
+            numDistintos = 0;
+            for (int i = 0; i < numValores; i++)
+                if(numDistintos==0 || !distintos[i].equals(distintos[numDistintos - 1]))
+                    distintos[numDistintos++] = distintos[i];
+            for (int i = 0; i < numNodos; i++)
+                puestos[i] = valores[i]==null ? -1 : Arrays.binarySearch(distintos, 0, numDistintos, valores[i]);
+        }
+        for (int i = 0; i < numNodos; i++)
+        {
+            if(puestos[i]<0)
+                puestos[i] = numDistintos;
+            else if(descendentes[campo])
+                puestos[i] = numDistintos - 1 - puestos[i];
+        }
+    }
+
+    /**
+     * Junta los puestos de los campos anteriores con los de un campo menos
+     * importante: el nuevo puesto es la posicion de la pareja entre todas las
+     * parejas distintas ordenadas.
+     * @return puestos juntos (se reutiliza el array de los anteriores).
+     */
+    private int[] junta(int[] anteriores, int[] puestosCampo)
+    {
+        int numNodos = anteriores.length;
+        long[] parejas = new long[numNodos - almacen.numBorrados()];
+        for (int i = 0, j = 0; i < numNodos; i++)
+            if(!almacen.estaBorrado(i))
+                parejas[j++] = (long)anteriores[i] << 32 | puestosCampo[i];
+        Arrays.sort(parejas);
+        int numDistintas = 0;
+        for (int i = 0; i < parejas.length; i++)
+            if(numDistintas==0 || parejas[i]!=parejas[numDistintas - 1])
+                parejas[numDistintas++] = parejas[i];
+        for (int i = 0; i < numNodos; i++)
+            if(!almacen.estaBorrado(i))
+                anteriores[i] = Arrays.binarySearch(parejas, 0, numDistintas, (long)anteriores[i] << 32 | puestosCampo[i]);
+        return anteriores;
+    }
+
+    /**
+     * Saca los k primeros nodos no borrados en una pasada, sin ordenar el resto.
+     * @param k numero de nodos a devolver.
+     * @return indices de los nodos en orden (menos de k si no hay tantos).
+     */
+    int[] primeros(int k)
+    {
+        Monticulo monticulo = new Monticulo(k);
+        for (int i = 0; i < almacen.numRegistros(); i++)
+        {
+            if(almacen.estaBorrado(i))
+                continue;
+            double numero = Double.NaN;
+            String valor = null;
+            if(columnas.length>0 && numericos[0])
+                numero = numero(0, i);
+            else if(columnas.length>0)
+                valor = almacen.valor(i, columnas[0]);
+            monticulo.agrega(i, numero, valor);
+        }
+        return monticulo.ordenados();
+    }
+
+    /**
+     * Compara dos nodos: negativo si a va antes que b.
+     * @param a primer nodo.
+     * @param numeroA valor numerico del primer campo en a (si es numerico).
+     * @param valorA valor del primer campo en a (si es texto).
+     * @param b segundo nodo.
+     * @param numeroB valor numerico del primer campo en b.
+     * @param valorB valor del primer campo en b.
+     */
+    private int compara(int a, double numeroA, String valorA, int b, double numeroB, String valorB)
+    {
+        for (int f = 0; f < columnas.length; f++)
+        {
+            int comparacion;
+            if(numericos[f])
+                comparacion = f==0 ? comparaNumeros(numeroA, numeroB, descendentes[f])
+                        : comparaNumeros(numero(f, a), numero(f, b), descendentes[f]);
+            else
+                comparacion = f==0 ? comparaTextos(valorA, valorB, descendentes[f])
+                        : comparaTextos(almacen.valor(a, columnas[f]), almacen.valor(b, columnas[f]), descendentes[f]);
+            if(comparacion!=0)
+                return comparacion;
+        }
+        return Integer.compare(a, b);
+    }
+
+    /**
+     * Compara dos numeros (NaN = sin valor, siempre al final).
+     */
+    private static int comparaNumeros(double a, double b, boolean descendente)
+    {
+        boolean faltaA = Double.isNaN(a);
+        boolean faltaB = Double.isNaN(b);
+        if(faltaA || faltaB)
+            return faltaA==faltaB ? 0 : faltaA ? 1 : -1;
+        int comparacion = Double.compare(a, b);
+        return descendente ? -comparacion : comparacion;
+    }
+
+    /**
+     * Compara dos textos (null = sin valor, siempre al final).
+     */
+    private static int comparaTextos(String a, String b, boolean descendente)
+    {
+        if(a==null || b==null)
+            return a==b ? 0 : a==null ? 1 : -1;
+        int comparacion = a.compareTo(b);
+        return descendente ? -comparacion : comparacion;
+    }
+
+    /**
+     * Monticulo de los k mejores nodos con el peor arriba: un nodo nuevo solo
+     * entra si va antes que el peor, que sale.
+     */
+    private class Monticulo
+    {
+        private final int limite;
+        private int[] nodos;
+        private double[] numeros;
+        private String[] valores;
+        private int tam;
+
+        Monticulo(int limite)
+        {
+            this.limite = limite;
+            int capacidad = Math.min(limite, 16);
+            nodos = new int[capacidad];
+            numeros = new double[capacidad];
+            valores = new String[capacidad];
+        }
+
+        /**
+         * Compara los nodos de dos huecos.
+         */
+        private int compara(int i, int j)
+        {
+            return Ordenacion.this.compara(nodos[i], numeros[i], valores[i], nodos[j], numeros[j], valores[j]);
+        }
+
+        /**
+         * Pone un nodo en un hueco.
+         */
+        private void pon(int hueco, int nodo, double numero, String valor)
+        {
+            nodos[hueco] = nodo;
+            numeros[hueco] = numero;
+            valores[hueco] = valor;
+        }
+
+        /**
+         * Mueve el contenido de un hueco a otro.
+         */
+        private void mueve(int desde, int hasta)
+        {
+            pon(hasta, nodos[desde], numeros[desde], valores[desde]);
+        }
+
+        void agrega(int nodo, double numero, String valor)
+        {
+            if(tam<limite)
+            {
+                if(tam==nodos.length)
+                {
+                    int capacidad = (int)Math.min(limite, tam * 2L);
+                    nodos = Arrays.copyOf(nodos, capacidad);
+                    numeros = Arrays.copyOf(numeros, capacidad);
+                    valores = Arrays.copyOf(valores, capacidad);
+                }
+                //Sube el nodo nuevo mientras vaya despues que su padre.
+                int hueco = tam++;
+                while(hueco>0)
+                {
+                    int padre = (hueco - 1) >> 1;
+                    if(Ordenacion.this.compara(nodos[padre], numeros[padre], valores[padre], nodo, numero, valor)>=0)
+                        break;
+                    mueve(padre, hueco);
+                    hueco = padre;
+                }
+                pon(hueco, nodo, numero, valor);
+                return;
+            }
+            if(Ordenacion.this.compara(nodo, numero, valor, nodos[0], numeros[0], valores[0])>=0)
+                return;
+            pon(0, nodo, numero, valor); //Sustituye al peor.
+            baja();
+        }
+
+        /**
+         * Baja el nodo de arriba mientras algun hijo vaya despues que el.
+         */
+        private void baja()
+        {
+            int hueco = 0;
+            while(true)
+            {
+                int hijo = 2 * hueco + 1;
+                if(hijo>=tam)
+                    break;
+                if(hijo + 1<tam && compara(hijo + 1, hijo)>0)
+                    hijo++;
+                if(compara(hijo, hueco)<=0)
+                    break;
+                intercambia(hueco, hijo);
+                hueco = hijo;
+            }
+        }
+
+        /**
+         * Intercambia dos huecos.
+         */
+        private void intercambia(int i, int j)
+        {
+            int nodo = nodos[i];
+            double numero = numeros[i];
+            String valor = valores[i];
+            mueve(j, i);
+            pon(j, nodo, numero, valor);
+        }
+
+        /**
+         * Vacia el monticulo sacando siempre el peor.
+         * @return nodos del mejor al peor.
+         */
+        int[] ordenados()
+        {
+            int[] resultado = new int[tam];
+            for (int i = tam - 1; i >= 0; i--)
+            {
+                resultado[i] = nodos[0];
+                tam--;
+                if(tam>0)
+                {
+                    mueve(tam, 0);
+                    baja();
+                }
+            }
+            return resultado;
+        }
+    }
+}
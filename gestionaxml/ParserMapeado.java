@@ -0,0 +1,1147 @@
+package gestionaxml;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Lector rapido para ficheros con la estructura que admite GestionaXML
+ * (raiz, nodos y campos). Proyecta el fichero en memoria con
+ * {@link FileChannel#map} y busca directamente en los bytes el principio y el
+ * final de cada nodo y campo, sin parser general ni DOM.
+ * <p>
+ * Los valores no se copian: cada campo se guarda como un trozo (posicion y
+ * longitud en el fichero) y solo se convierte a String cuando se consulta (ver
+ * {@link #texto(ByteBuffer, long)}). Un trozo se codifica en un long:
+ * bit 63 = presente, bits 32-62 = posicion, bit 31 = hay que resolver entidades,
+ * CDATA, comentarios o saltos de linea CR, bits 0-30 = longitud.
+ * <p>
+ * Como los valores apuntan al fichero, este no se puede reescribir en su sitio
+ * mientras alguna instancia lo tenga abierto: GestionaXML siempre escribe un
+ * temporal y lo renombra encima (ver GuardadoAtomico), y quien tenga el fichero
+ * anterior proyectado lo sigue leyendo. Si otro programa trunca o reescribe el
+ * fichero en su sitio, las consultas de las instancias que lo tenian abierto
+ * pueden leer datos cambiados o fallar con InternalError.
+ * <p>
+ * En Windows no se puede sustituir ni truncar un fichero mientras este
+ * proyectado en memoria, y la proyeccion dura lo que la instancia, asi que
+ * ningun guardado del propio fichero funcionaria. Alli el fichero se copia
+ * entero a memoria al abrirlo (ver PROYECTA): se lee igual de rapido pero
+ * ocupa su tamano en el heap.
+ * <p>
+ * Los nodos se pueden leer en paralelo: se corta el fichero en partes que
+ * empiezan en una etiqueta de nodo y se leen a la vez (ver lee(int)).
+ * <p>
+ * Tambien se puede solo indexar el fichero (ver indexa): se comprueba la
+ * estructura y se guarda donde empieza cada nodo, y cada nodo se lee cuando se
+ * pide (ver leeRegistro).
+ * <p>
+ * Si el fichero tiene algo que este lector no trata (campos con nodos dentro,
+ * DOCTYPE, codificacion distinta de UTF-8, mas de 2 GB o un error de formato)
+ * devuelve null y se lee con el parser DOM de siempre.
+ * @author neowavila
+ */
+class ParserMapeado
+{
+    private static final long PRESENTE = 1L << 63;
+    private static final long ESCAPADO = 1L << 31;
+    private static final int MAX_LONGITUD = (1 << 31) - 1;
+    private static final String[][] SIN_ATRIBUTOS = new String[0][];
+    /** false si el sistema no deja sustituir un fichero proyectado (Windows). */
+    static final boolean PROYECTA = !System.getProperty("os.name", "").startsWith("Windows");
+
+    private final ByteBuffer datos;
+    private final int fin;
+    private int pos;
+    /** Posicion del nombre de la raiz, para comprobar su cierre. */
+    private int inicioRaiz;
+    /** Fecha de modificacion e identificador del fichero, para sus tramos. */
+    private long fecha;
+    private Object clave;
+
+    private ParserMapeado(ByteBuffer datos)
+    {
+        this.datos = datos;
+        this.fin = datos.limit();
+    }
+
+    /**
+     * Lee un fichero proyectandolo en memoria.
+     * @param ruta fichero XML.
+     * @param partes numero de partes en las que se reparten los nodos para leerlas
+     * en paralelo (1 para leer seguido).
+     * @return almacen cuyos valores apuntan al fichero, o null si el fichero no
+     * tiene la estructura de un nivel o usa algo que este lector no trata.
+     * @throws IOException si no se puede leer el fichero.
+     */
+    static AlmacenRegistros abre(Path ruta, int partes) throws IOException
+    {
+        ParserMapeado parser = proyecta(ruta);
+        if(parser==null)
+            return null;
+        try
+        {
+            return parser.lee(partes);
+        }
+        catch(FormatoNoAdmitido | IndexOutOfBoundsException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Indexa un fichero proyectandolo en memoria: comprueba que tenga la
+     * estructura de un nivel y guarda donde empieza cada nodo, sin leerlos.
+     * @param ruta fichero XML.
+     * @param tamCache numero de nodos leidos que se guardan en memoria.
+     * @return nodos sin leer, o null si el fichero no tiene la estructura de un
+     * nivel o usa algo que este lector no trata.
+     * @throws IOException si no se puede leer el fichero.
+     */
+    static RegistrosPerezosos indexa(Path ruta, int tamCache) throws IOException
+    {
+        ParserMapeado parser = proyecta(ruta);
+        if(parser==null)
+            return null;
+        try
+        {
+            return parser.indexa(tamCache);
+        }
+        catch(FormatoNoAdmitido | IndexOutOfBoundsException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Proyecta un fichero en memoria y apunta su fecha e identificador antes de
+     * leerlo, para saber despues si los tramos siguen valiendo.
+     * @return lector al principio del fichero o null si tiene mas de 2 GB.
+     */
+    private static ParserMapeado proyecta(Path ruta) throws IOException
+    {
+        BasicFileAttributes atributos = Files.readAttributes(ruta, BasicFileAttributes.class);
+        long fecha = DiarioCambios.fechaModificacion(ruta);
+        ByteBuffer datos;
+        try(FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ))
+        {
+            long tamano = canal.size();
+            if(tamano>MAX_LONGITUD)
+                return null;
+            datos = leeFichero(canal, 0, tamano);
+        }
+        ParserMapeado parser = new ParserMapeado(datos);
+        parser.fecha = fecha;
+        parser.clave = atributos.fileKey();
+        return parser;
+    }
+
+    /**
+     * Proyecta en memoria un trozo de un fichero o, si el sistema no deja
+     * sustituir ficheros proyectados (ver PROYECTA), lo copia a un buffer.
+     * @param canal fichero abierto para leer.
+     * @param desde posicion del primer byte.
+     * @param tamano numero de bytes (como mucho 2 GB).
+     * @return bytes del trozo, desde la posicion 0.
+     * @throws IOException si no se puede leer.
+     */
+    static ByteBuffer leeFichero(FileChannel canal, long desde, long tamano) throws IOException
+    {
+        if(PROYECTA)
+            return canal.map(FileChannel.MapMode.READ_ONLY, desde, tamano);
+        ByteBuffer datos = ByteBuffer.allocate((int)tamano);
+        while(datos.hasRemaining() && canal.read(datos, desde + datos.position())>=0)
+        {
+            //Lee hasta llenar el buffer.
+        }
+        if(datos.hasRemaining())
+            throw new IOException("El fichero ha cambiado mientras se leia");
+        return datos.flip();
+    }
+
+    /**
+     * Lee un nodo localizado por indexa.
+     * @param datos fichero proyectado.
+     * @param inicio posicion del nodo.
+     * @param limite posicion del nodo siguiente, o -1 si es el ultimo.
+     * @param inicioRaiz posicion del nombre de la raiz, para comprobar su cierre.
+     * @return nodo leido con sus valores ya convertidos.
+     */
+    static RegistrosPerezosos.Registro leeRegistro(ByteBuffer datos, int inicio, int limite, int inicioRaiz)
+    {
+        ParserMapeado parser = new ParserMapeado(datos);
+        parser.pos = inicio;
+        LoteNodos lote = new LoteNodos(null, 1);
+        try
+        {
+            parser.leeNodos(lote, limite, inicioRaiz);
+        }
+        catch(FormatoNoAdmitido | IndexOutOfBoundsException e)
+        {
+            throw new IllegalStateException("El nodo en la posicion " + inicio + " no tiene el formato esperado");
+        }
+        String[] campos = lote.campos[0];
+        String[] valores = new String[campos.length];
+        for (int i = 0; i < valores.length; i++)
+            valores[i] = texto(datos, lote.trozos[i]);
+        return new RegistrosPerezosos.Registro(campos, valores);
+    }
+
+    /**
+     * Lee todos los nodos de un fichero indexado y los agrega al almacen.
+     * @param datos fichero proyectado.
+     * @param inicioNodos posicion siguiente a la etiqueta de apertura de la raiz.
+     * @param inicioRaiz posicion del nombre de la raiz, para comprobar su cierre.
+     * @param almacen almacen vacio del fichero.
+     */
+    static void cargaRegistros(ByteBuffer datos, int inicioNodos, int inicioRaiz, AlmacenRegistros almacen)
+    {
+        ParserMapeado parser = new ParserMapeado(datos);
+        parser.pos = inicioNodos;
+        try
+        {
+            LoteNodos lote = new LoteNodos(almacen, 0);
+            parser.leeNodos(lote, -1, inicioRaiz);
+            if(almacen.getTramos()!=null)
+                almacen.getTramos().setCola(lote.inicioCola);
+        }
+        catch(FormatoNoAdmitido | IndexOutOfBoundsException e)
+        {
+            throw new IllegalStateException("El fichero no tiene el formato esperado");
+        }
+    }
+
+    /**
+     * El fichero no se puede leer con este lector.
+     */
+    private static class FormatoNoAdmitido extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        FormatoNoAdmitido()
+        {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final FormatoNoAdmitido NO_ADMITIDO = new FormatoNoAdmitido();
+
+    /**
+     * Lee el prologo, la raiz y todos sus nodos.
+     * @param partes numero de partes en las que se reparten los nodos para leerlas
+     * en paralelo (1 para leer seguido).
+     */
+    private AlmacenRegistros lee(int partes) throws FormatoNoAdmitido
+    {
+        AlmacenRegistros almacen = leeRaiz();
+        if(empieza("/>"))
+            return almacen;
+        pos++;
+
+        int inicioNodos = pos;
+        TramosFichero tramos = new TramosFichero(inicioNodos, fin, fecha, clave);
+        almacen.setTramos(tramos);
+        int[] cortes = partes>1 ? divide(inicioNodos, partes) : new int[0];
+        if(cortes.length>0)
+        {
+            LoteNodos[] lotes = leeEnParalelo(inicioNodos, cortes, inicioRaiz);
+            if(lotes!=null)
+            {
+                for (LoteNodos lote : lotes)
+                    lote.vuelca(almacen);
+                LoteNodos ultimo = lotes[lotes.length - 1];
+                tramos.setCola(ultimo.inicioCola);
+                return almacen;
+            }
+            //Algun corte no era el principio de un nodo: se lee seguido.
+        }
+        pos = inicioNodos;
+        LoteNodos lote = new LoteNodos(almacen, 0);
+        leeNodos(lote, -1, inicioRaiz);
+        tramos.setCola(lote.inicioCola);
+        return almacen;
+    }
+
+    /**
+     * Lee el prologo y la raiz, y recorre los nodos comprobando su estructura y
+     * guardando donde empieza cada uno.
+     * @param tamCache numero de nodos leidos que se guardan en memoria.
+     */
+    private RegistrosPerezosos indexa(int tamCache) throws FormatoNoAdmitido
+    {
+        AlmacenRegistros almacen = leeRaiz();
+        if(empieza("/>"))
+            return new RegistrosPerezosos(almacen, datos, new int[0], pos, inicioRaiz, tamCache);
+        pos++;
+
+        int inicioNodos = pos;
+        almacen.setTramos(new TramosFichero(inicioNodos, fin, fecha, clave));
+        ListaEnteros inicios = new ListaEnteros();
+        while(true)
+        {
+            buscaEtiqueta();
+            if(empieza("</"))
+            {
+                cierre(inicioRaiz);
+                break;
+            }
+            if(saltaEspecial())
+                continue;
+            inicios.agrega(pos);
+            saltaNodo();
+        }
+        return new RegistrosPerezosos(almacen, datos, inicios.toArray(), inicioNodos, inicioRaiz, tamCache);
+    }
+
+    /**
+     * Salta un nodo entero comprobando que sus campos no tengan nodos dentro y
+     * que cada etiqueta se cierre con su nombre, sin guardar nada.
+     */
+    private void saltaNodo() throws FormatoNoAdmitido
+    {
+        pos++;
+        int inicioNodo = pos;
+        saltaNombre();
+        saltaAtributos();
+        if(empieza("/>"))
+        {
+            pos += 2;
+            return;
+        }
+        pos++;
+        while(true)
+        {
+            buscaEtiqueta();
+            if(empieza("</"))
+            {
+                cierre(inicioNodo);
+                return;
+            }
+            if(saltaEspecial())
+                continue;
+            pos++;
+            int inicioCampo = pos;
+            int longitudNombre = saltaNombre() - inicioCampo;
+            saltaAtributos();
+            if(empieza("/>"))
+                pos += 2;
+            else
+            {
+                pos++;
+                leeValor(inicioCampo, longitudNombre);
+            }
+        }
+    }
+
+    /**
+     * Lee el prologo y la etiqueta de apertura de la raiz (guarda donde empieza
+     * su nombre en inicioRaiz) y se queda en su '>' o "/>".
+     * @return almacen vacio con la raiz.
+     */
+    private AlmacenRegistros leeRaiz() throws FormatoNoAdmitido
+    {
+        if(fin>=3 && (datos.get(0) & 0xFF)==0xEF && (datos.get(1) & 0xFF)==0xBB && (datos.get(2) & 0xFF)==0xBF)
+            pos = 3;
+        while(true)
+        {
+            saltaEspacios();
+            exige('<');
+            if(empieza("<?xml"))
+                compruebaDeclaracion();
+            else if(empieza("<?"))
+                saltaHasta("?>");
+            else if(empieza("<!--"))
+                saltaHasta("-->");
+            else if(empieza("<!"))
+                throw NO_ADMITIDO; //DOCTYPE: puede definir entidades propias.
+            else
+                break;
+        }
+
+        pos++;
+        inicioRaiz = pos;
+        String tituloRaiz = texto(inicioRaiz, saltaNombre() - inicioRaiz);
+        String[][] atributosRaiz = leeAtributos();
+        return new AlmacenRegistros(tituloRaiz, atributosRaiz, datos);
+    }
+
+
+    /**
+     * Busca donde cortar los nodos en partes de tamano parecido. Cada corte es el
+     * principio de una etiqueta con el nombre del primer nodo (Ej: {@code <Producto}).
+     * Puede que un corte caiga dentro de un comentario o CDATA que contenga ese
+     * texto; eso se detecta al leer (ver leeNodos) y entonces se lee seguido.
+     * @param inicioNodos posicion siguiente a la etiqueta de apertura de la raiz.
+     * @param partes numero de partes deseado.
+     * @return posiciones de los cortes, de menor a mayor (puede haber menos de partes-1).
+     */
+    private int[] divide(int inicioNodos, int partes) throws FormatoNoAdmitido
+    {
+        while(true)
+        {
+            buscaEtiqueta();
+            if(!saltaEspecial())
+                break;
+        }
+        if(empieza("</"))
+            return new int[0];
+        int anterior = pos++;
+        int inicioTitulo = pos;
+        int longitudTitulo = saltaNombre() - inicioTitulo;
+
+        ListaEnteros cortes = new ListaEnteros();
+        for (int i = 1; i < partes; i++)
+        {
+            int corte = (int)(inicioNodos + (long)(fin - inicioNodos) * i / partes);
+            corte = Math.max(corte, anterior + 1);
+            while(corte<fin - longitudTitulo - 1)
+            {
+                if(datos.get(corte)=='<' && iguales(corte + 1, inicioTitulo, longitudTitulo))
+                {
+                    byte siguiente = datos.get(corte + 1 + longitudTitulo);
+                    if(siguiente<=' ' && siguiente>=0 || siguiente=='>' || siguiente=='/')
+                        break;
+                }
+                corte++;
+            }
+            if(corte>=fin - longitudTitulo - 1)
+                break;
+            cortes.agrega(corte);
+            anterior = corte;
+        }
+        return cortes.toArray();
+    }
+
+    /**
+     * Lee cada parte en una tarea del {@link ForkJoinPool} comun y comprueba que
+     * cada parte termine justo donde empieza la siguiente, con lo que los nodos
+     * quedan en el mismo orden (y con los mismos indices) que leyendo seguido.
+     * @param inicioNodos principio de la primera parte.
+     * @param cortes principio del resto de partes.
+     * @param inicioRaiz posicion del nombre de la raiz, para comprobar su cierre.
+     * @return nodos de cada parte en orden, o null si algun corte no era valido.
+     */
+    private LoteNodos[] leeEnParalelo(int inicioNodos, int[] cortes, int inicioRaiz)
+    {
+        ArrayList<ParteNodos> tareas = new ArrayList<>();
+        for (int i = 0; i <= cortes.length; i++)
+        {
+            ParteNodos tarea = new ParteNodos(i==0 ? inicioNodos : cortes[i-1], i<cortes.length ? cortes[i] : -1, inicioRaiz);
+            tarea.fork();
+            tareas.add(tarea);
+        }
+        LoteNodos[] lotes = new LoteNodos[tareas.size()];
+        boolean correcto = true;
+        for (int i = 0; i < lotes.length; i++)
+        {
+            lotes[i] = tareas.get(i).join();
+            correcto &= lotes[i]!=null;
+        }
+        return correcto ? lotes : null;
+    }
+
+    /**
+     * Lectura de una parte de los nodos con su propio lector.
+     */
+    private class ParteNodos extends RecursiveTask<LoteNodos>
+    {
+        private static final long serialVersionUID = 1L;
+        private final int inicio;
+        private final int limite;
+        private final int inicioRaiz;
+
+        ParteNodos(int inicio, int limite, int inicioRaiz)
+        {
+            this.inicio = inicio;
+            this.limite = limite;
+            this.inicioRaiz = inicioRaiz;
+        }
+
+        @Override
+        protected LoteNodos compute()
+        {
+            ParserMapeado parser = new ParserMapeado(datos);
+            parser.pos = inicio;
+            LoteNodos lote = new LoteNodos(null, 256);
+            try
+            {
+                parser.leeNodos(lote, limite, inicioRaiz);
+                return lote;
+            }
+            catch(FormatoNoAdmitido | IndexOutOfBoundsException e)
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Lee nodos desde la posicion actual.
+     * @param lote donde se guardan los nodos leidos.
+     * @param limite posicion donde empieza la parte siguiente, o -1 para leer
+     * hasta el cierre de la raiz. La lectura tiene que llegar justo a esa
+     * posicion al terminar un nodo; si no, el corte no era valido.
+     * @param inicioRaiz posicion del nombre de la raiz, para comprobar su cierre.
+     */
+    private void leeNodos(LoteNodos lote, int limite, int inicioRaiz) throws FormatoNoAdmitido
+    {
+        NombresNodo anterior = new NombresNodo();
+        NombresNodo actual = new NombresNodo();
+        while(true)
+        {
+            buscaEtiqueta();
+            if(limite>=0 && pos>=limite)
+            {
+                if(pos!=limite)
+                    throw NO_ADMITIDO;
+                return;
+            }
+            if(empieza("</"))
+            {
+                if(limite>=0)
+                    throw NO_ADMITIDO;
+                lote.inicioCola = pos;
+                cierre(inicioRaiz);
+                return;
+            }
+            if(saltaEspecial())
+                continue;
+
+            pos++;
+            int inicioNodo = pos;
+            actual.titulo = nombre(inicioNodo, saltaNombre() - inicioNodo, anterior.titulo, anterior.inicioTitulo);
+            actual.inicioTitulo = inicioNodo;
+            String[][] atributos = leeAtributos();
+            actual.numCampos = 0;
+            actual.atributos = null;
+            if(empieza("/>"))
+                pos += 2;
+            else
+            {
+                pos++;
+                leeCampos(inicioNodo, actual, anterior);
+            }
+
+            String[] campos = actual.numCampos==anterior.numCampos
+                    && actual.mismosCampos(anterior) ? anterior.campos : Arrays.copyOf(actual.nombres, actual.numCampos);
+            actual.campos = campos;
+            lote.agrega(actual.titulo, campos, actual.trozos, atributos, actual.atributos,
+                    TramosFichero.tramo(inicioNodo - 1, pos));
+
+            NombresNodo cambio = anterior;
+            anterior = actual;
+            actual = cambio;
+        }
+    }
+
+    /**
+     * Lee los campos de un nodo hasta su etiqueta de cierre.
+     * @param inicioNodo posicion del nombre del nodo.
+     * @param actual donde se guardan los campos.
+     * @param anterior campos del nodo anterior, para no crear otra vez los mismos nombres.
+     */
+    private void leeCampos(int inicioNodo, NombresNodo actual, NombresNodo anterior) throws FormatoNoAdmitido
+    {
+        while(true)
+        {
+            buscaEtiqueta();
+            if(empieza("</"))
+            {
+                cierre(inicioNodo);
+                return;
+            }
+            if(saltaEspecial())
+                continue;
+
+            pos++;
+            int inicioCampo = pos;
+            int longitudNombre = saltaNombre() - inicioCampo;
+            int i = actual.numCampos;
+            String campo = i<anterior.numCampos
+                    ? nombre(inicioCampo, longitudNombre, anterior.nombres[i], anterior.inicioNombres[i])
+                    : texto(inicioCampo, longitudNombre);
+            String[][] atributos = leeAtributos();
+            if(atributos.length>0)
+                actual.agregaAtributos(i, atributos);
+            long trozo;
+            if(empieza("/>"))
+            {
+                pos += 2;
+                trozo = PRESENTE | ((long)pos << 32);
+            }
+            else
+            {
+                pos++;
+                trozo = leeValor(inicioCampo, longitudNombre);
+            }
+            actual.agrega(campo, inicioCampo, trozo);
+        }
+    }
+
+    /**
+     * Lee el valor de un campo hasta su cierre y lo devuelve como trozo.
+     */
+    private long leeValor(int inicioCampo, int longitudNombre) throws FormatoNoAdmitido
+    {
+        int inicio = pos;
+        long escapado = 0;
+        while(true)
+        {
+            byte b = datos.get(pos);
+            if(b=='<')
+            {
+                if(datos.get(pos+1)=='/')
+                    break;
+                if(!saltaEspecial())
+                    throw NO_ADMITIDO; //Un campo con nodos dentro: mas de un nivel.
+                escapado = ESCAPADO;
+                continue;
+            }
+            if(b=='&' || b=='\r')
+                escapado = ESCAPADO;
+            pos++;
+        }
+        int longitud = pos - inicio;
+        pos += 2;
+        int inicioCierre = pos;
+        if(saltaNombre() - inicioCierre!=longitudNombre || !iguales(inicioCierre, inicioCampo, longitudNombre))
+            throw NO_ADMITIDO;
+        saltaEspacios();
+        exige('>');
+        pos++;
+        return PRESENTE | ((long)inicio << 32) | escapado | longitud;
+    }
+
+    /**
+     * Comprueba la declaracion XML: solo se admite UTF-8 (o ASCII, que es un subconjunto).
+     */
+    private void compruebaDeclaracion() throws FormatoNoAdmitido
+    {
+        int inicio = pos;
+        saltaHasta("?>");
+        String declaracion = texto(inicio, pos - inicio);
+        int codificacion = declaracion.indexOf("encoding");
+        if(codificacion<0)
+            return;
+        String resto = declaracion.substring(codificacion + 8).replace(" ", "").toUpperCase();
+        if(!resto.startsWith("=\"UTF-8\"") && !resto.startsWith("='UTF-8'")
+                && !resto.startsWith("=\"US-ASCII\"") && !resto.startsWith("='US-ASCII'"))
+            throw NO_ADMITIDO;
+    }
+
+    /**
+     * Salta texto entre etiquetas (DOM tampoco lo usa fuera de los campos) y se
+     * queda en el siguiente '<'.
+     */
+    private void buscaEtiqueta()
+    {
+        while(datos.get(pos)!='<')
+            pos++;
+    }
+
+    /**
+     * Si en la posicion actual hay un comentario, instruccion de proceso o CDATA lo salta.
+     * @return true si se ha saltado algo.
+     */
+    private boolean saltaEspecial() throws FormatoNoAdmitido
+    {
+        if(empieza("<!--"))
+            saltaHasta("-->");
+        else if(empieza("<![CDATA["))
+            saltaHasta("]]>");
+        else if(empieza("<?"))
+            saltaHasta("?>");
+        else if(empieza("<!"))
+            throw NO_ADMITIDO;
+        else
+            return false;
+        return true;
+    }
+
+    /**
+     * Lee una etiqueta de cierre y comprueba que cierre el elemento abierto en inicioNombre.
+     */
+    private void cierre(int inicioNombre) throws FormatoNoAdmitido
+    {
+        pos += 2;
+        int inicio = pos;
+        int longitud = saltaNombre() - inicio;
+        if(datos.get(inicioNombre + longitud)>' ' && datos.get(inicioNombre + longitud)!='>'
+                && datos.get(inicioNombre + longitud)!='/')
+            throw NO_ADMITIDO;
+        if(!iguales(inicio, inicioNombre, longitud))
+            throw NO_ADMITIDO;
+        saltaEspacios();
+        exige('>');
+        pos++;
+    }
+
+    /**
+     * Lee los atributos de una etiqueta de apertura y se queda en '>' o "/>".
+     * @return atributos en formato String[n][2] (nombre, valor).
+     */
+    private String[][] leeAtributos() throws FormatoNoAdmitido
+    {
+        String[][] atributos = SIN_ATRIBUTOS;
+        while(true)
+        {
+            saltaEspacios();
+            byte b = datos.get(pos);
+            if(b=='>' || b=='/')
+                return atributos;
+            int inicio = pos;
+            String nombre = texto(inicio, saltaNombre() - inicio);
+            String valor = leeValorAtributo();
+            atributos = Arrays.copyOf(atributos, atributos.length + 1);
+            atributos[atributos.length - 1] = new String[]{nombre, valor};
+        }
+    }
+
+    /**
+     * Salta los atributos de una etiqueta sin guardarlos (al indexar, ver saltaNodo).
+     */
+    private void saltaAtributos() throws FormatoNoAdmitido
+    {
+        while(true)
+        {
+            saltaEspacios();
+            byte b = datos.get(pos);
+            if(b=='>' || b=='/')
+                return;
+            saltaNombre();
+            saltaEspacios();
+            exige('=');
+            pos++;
+            saltaEspacios();
+            byte comilla = datos.get(pos);
+            if(comilla!='"' && comilla!='\'')
+                throw NO_ADMITIDO;
+            pos++;
+            while(datos.get(pos)!=comilla)
+                pos++;
+            pos++;
+        }
+    }
+
+    /**
+     * Lee el valor de un atributo despues de su nombre, con las entidades resueltas
+     * y los saltos de linea y tabuladores cambiados por espacios, como hace DOM.
+     */
+    private String leeValorAtributo() throws FormatoNoAdmitido
+    {
+        saltaEspacios();
+        exige('=');
+        pos++;
+        saltaEspacios();
+        byte comilla = datos.get(pos);
+        if(comilla!='"' && comilla!='\'')
+            throw NO_ADMITIDO;
+        int inicio = ++pos;
+        while(datos.get(pos)!=comilla)
+            pos++;
+        String valor = texto(inicio, pos - inicio).replace("\r\n", " ").replace('\r', ' ')
+                .replace('\n', ' ').replace('\t', ' ');
+        pos++;
+        return desescapa(valor);
+    }
+
+    /**
+     * Avanza hasta el final de un nombre de elemento.
+     * @return posicion siguiente al nombre.
+     */
+    private int saltaNombre() throws FormatoNoAdmitido
+    {
+        int inicio = pos;
+        byte b = datos.get(pos);
+        while((b>' ' || b<0) && b!='>' && b!='/' && b!='<' && b!='=')
+            b = datos.get(++pos);
+        if(pos==inicio)
+            throw NO_ADMITIDO;
+        return pos;
+    }
+
+    private void saltaEspacios()
+    {
+        while(pos<fin && datos.get(pos)<=' ' && datos.get(pos)>=0)
+            pos++;
+    }
+
+    private void saltaHasta(String marca) throws FormatoNoAdmitido
+    {
+        while(!empieza(marca))
+        {
+            if(++pos>=fin)
+                throw NO_ADMITIDO;
+        }
+        pos += marca.length();
+    }
+
+    private void exige(char c) throws FormatoNoAdmitido
+    {
+        if(pos>=fin || datos.get(pos)!=c)
+            throw NO_ADMITIDO;
+    }
+
+    /**
+     * Indica si en la posicion actual empieza el texto (ASCII) indicado.
+     */
+    private boolean empieza(String marca)
+    {
+        if(pos + marca.length()>fin)
+            return false;
+        for (int i = 0; i < marca.length(); i++)
+            if(datos.get(pos + i)!=marca.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * Compara dos trozos del fichero de la misma longitud.
+     */
+    private boolean iguales(int a, int b, int longitud)
+    {
+        for (int i = 0; i < longitud; i++)
+            if(datos.get(a + i)!=datos.get(b + i))
+                return false;
+        return true;
+    }
+
+    /**
+     * Devuelve el nombre que hay en el fichero, reutilizando el String del nodo
+     * anterior si es el mismo (casi siempre lo es).
+     */
+    private String nombre(int inicio, int longitud, String anterior, int inicioAnterior)
+    {
+        if(anterior!=null && anterior.length()==longitud && iguales(inicio, inicioAnterior, longitud))
+            return anterior;
+        return texto(inicio, longitud);
+    }
+
+    private String texto(int inicio, int longitud)
+    {
+        byte[] bytes = new byte[longitud];
+        datos.get(inicio, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Convierte un trozo en el valor del campo.
+     * @param datos fichero proyectado.
+     * @param trozo trozo codificado (ver la descripcion de la clase).
+     * @return valor del campo o null si el trozo esta vacio (el nodo no tiene el campo).
+     */
+    static String texto(ByteBuffer datos, long trozo)
+    {
+        if(trozo==0)
+            return null;
+        int longitud = (int)(trozo & MAX_LONGITUD);
+        if(longitud==0)
+            return "";
+        byte[] bytes = new byte[longitud];
+        datos.get((int)((trozo & ~PRESENTE) >>> 32), bytes);
+        String texto = new String(bytes, StandardCharsets.UTF_8);
+        return (trozo & ESCAPADO)==0 ? texto : desescapa(texto);
+    }
+
+    /**
+     * Codifica un trozo de texto que no hay que desescapar (ver Instantanea).
+     * @param posicion posicion del primer byte en el fichero proyectado.
+     * @param longitud numero de bytes.
+     * @return trozo codificado.
+     */
+    static long trozo(int posicion, int longitud)
+    {
+        return PRESENTE | ((long)posicion << 32) | longitud;
+    }
+
+    /**
+     * Copia los bytes UTF-8 de un trozo que no hay que desescapar.
+     * @param datos fichero proyectado.
+     * @param trozo trozo codificado.
+     * @param destino donde se copian los bytes.
+     * @return numero de bytes copiados, o -1 si no se puede copiar asi (vacio,
+     * escapado o mas largo que destino).
+     */
+    static int copiaBytes(ByteBuffer datos, long trozo, byte[] destino)
+    {
+        int longitud = (int)(trozo & MAX_LONGITUD);
+        if(trozo==0 || (trozo & ESCAPADO)!=0 || longitud>destino.length)
+            return -1;
+        datos.get((int)((trozo & ~PRESENTE) >>> 32), destino, 0, longitud);
+        return longitud;
+    }
+
+    /**
+     * Copia un trozo como caracteres sin crear ningun objeto, si es texto ASCII
+     * sin escapar (lo normal en nombres, precios...).
+     * @param datos fichero proyectado.
+     * @param trozo trozo codificado.
+     * @param destino donde se copian los caracteres.
+     * @return numero de caracteres copiados, o -1 si no se puede copiar asi
+     * (vacio, escapado, con caracteres no ASCII o mas largo que destino).
+     */
+    static int copiaTexto(ByteBuffer datos, long trozo, char[] destino)
+    {
+        int longitud = (int)(trozo & MAX_LONGITUD);
+        if(trozo==0 || (trozo & ESCAPADO)!=0 || longitud>destino.length)
+            return -1;
+        int inicio = (int)((trozo & ~PRESENTE) >>> 32);
+        for (int i = 0; i < longitud; i++)
+        {
+            byte b = datos.get(inicio + i);
+            if(b<0)
+                return -1;
+            destino[i] = (char)b;
+        }
+        return longitud;
+    }
+
+    /**
+     * Resuelve las entidades, secciones CDATA, comentarios, instrucciones de
+     * proceso y saltos de linea CR de un texto tal como esta en el fichero.
+     * @param texto texto sin resolver.
+     * @return texto como lo devolveria getTextContent.
+     */
+    static String desescapa(String texto)
+    {
+        StringBuilder resultado = new StringBuilder(texto.length());
+        int i = 0;
+        while(i<texto.length())
+        {
+            char c = texto.charAt(i);
+            if(c=='&')
+            {
+                int finEntidad = texto.indexOf(';', i);
+                if(finEntidad<0)
+                {
+                    resultado.append(c);
+                    i++;
+                    continue;
+                }
+                resuelveEntidad(texto.substring(i + 1, finEntidad), resultado);
+                i = finEntidad + 1;
+            }
+            else if(c=='\r')
+            {
+                resultado.append('\n');
+                i += texto.startsWith("\n", i + 1) ? 2 : 1;
+            }
+            else if(texto.startsWith("<![CDATA[", i))
+            {
+                int finCdata = texto.indexOf("]]>", i);
+                resultado.append(texto, i + 9, finCdata);
+                i = finCdata + 3;
+            }
+            else if(texto.startsWith("<!--", i))
+                i = texto.indexOf("-->", i) + 3;
+            else if(texto.startsWith("<?", i))
+                i = texto.indexOf("?>", i) + 2;
+            else
+            {
+                resultado.append(c);
+                i++;
+            }
+        }
+        int retorno = resultado.indexOf("\r");
+        while(retorno>=0)
+        {
+            //CR dentro de CDATA.
+            if(retorno + 1<resultado.length() && resultado.charAt(retorno + 1)=='\n')
+                resultado.deleteCharAt(retorno);
+            else
+                resultado.setCharAt(retorno, '\n');
+            retorno = resultado.indexOf("\r", retorno);
+        }
+        return resultado.toString();
+    }
+
+    /**
+     * Agrega el caracter de una entidad predefinida o numerica.
+     */
+    private static void resuelveEntidad(String entidad, StringBuilder resultado)
+    {
+        switch(entidad)
+        {
+            case "lt": resultado.append('<'); return;
+            case "gt": resultado.append('>'); return;
+            case "amp": resultado.append('&'); return;
+            case "quot": resultado.append('"'); return;
+            case "apos": resultado.append('\''); return;
+            default:
+        }
+        try
+        {
+            if(entidad.startsWith("#x"))
+                resultado.appendCodePoint(Integer.parseInt(entidad.substring(2), 16));
+            else if(entidad.startsWith("#"))
+                resultado.appendCodePoint(Integer.parseInt(entidad.substring(1)));
+            else
+                resultado.append('&').append(entidad).append(';');
+        }
+        catch(IllegalArgumentException e)
+        {
+            resultado.append('&').append(entidad).append(';');
+        }
+    }
+
+    /**
+     * Nodos leidos por una parte, que se agregan al almacen en orden al terminar
+     * todas. Leyendo seguido se agregan directamente al almacen.
+     */
+    private static class LoteNodos
+    {
+        private final AlmacenRegistros directo;
+        private String[] titulos;
+        private String[][] campos;
+        private String[][][] atributos;
+        private String[][][][] atributosCampos;
+        private long[] trozos;
+        private long[] tramos;
+        private int numNodos;
+        private int numTrozos;
+        /** Posicion del cierre de la raiz, si la parte llega hasta ella. */
+        int inicioCola;
+
+        /**
+         * @param directo almacen al que se agregan los nodos segun se leen, o null
+         * para guardarlos hasta llamar a vuelca.
+         * @param capacidad numero de nodos que caben sin crecer (0 con directo).
+         */
+        LoteNodos(AlmacenRegistros directo, int capacidad)
+        {
+            this.directo = directo;
+            titulos = new String[capacidad];
+            campos = new String[capacidad][];
+            trozos = new long[capacidad * 4];
+            tramos = new long[Math.max(capacidad, 1)];
+        }
+
+        void agrega(String titulo, String[] camposNodo, long[] trozosNodo, String[][] atributosNodo,
+                String[][][] atributosCamposNodo, long tramo)
+        {
+            if(directo!=null)
+            {
+                int registro = directo.agregaTrozos(titulo, camposNodo, trozosNodo, 0);
+                if(atributosNodo.length>0)
+                    directo.setAtributos(registro, atributosNodo);
+                if(atributosCamposNodo!=null)
+                    directo.setAtributosCampos(registro, atributosCamposNodo);
+                if(directo.getTramos()!=null)
+                    directo.getTramos().set(registro, tramo);
+                return;
+            }
+            if(numNodos==titulos.length)
+            {
+                titulos = Arrays.copyOf(titulos, numNodos * 2);
+                campos = Arrays.copyOf(campos, numNodos * 2);
+                tramos = Arrays.copyOf(tramos, numNodos * 2);
+                if(atributos!=null)
+                    atributos = Arrays.copyOf(atributos, numNodos * 2);
+                if(atributosCampos!=null)
+                    atributosCampos = Arrays.copyOf(atributosCampos, numNodos * 2);
+            }
+            if(numTrozos + camposNodo.length>trozos.length)
+                trozos = Arrays.copyOf(trozos, Math.max(numTrozos + camposNodo.length, trozos.length * 2));
+            if(atributosNodo.length>0)
+            {
+                if(atributos==null)
+                    atributos = new String[titulos.length][][];
+                atributos[numNodos] = atributosNodo;
+            }
+            if(atributosCamposNodo!=null)
+            {
+                if(atributosCampos==null)
+                    atributosCampos = new String[titulos.length][][][];
+                atributosCampos[numNodos] = atributosCamposNodo;
+            }
+            titulos[numNodos] = titulo;
+            tramos[numNodos] = tramo;
+            campos[numNodos++] = camposNodo;
+            System.arraycopy(trozosNodo, 0, trozos, numTrozos, camposNodo.length);
+            numTrozos += camposNodo.length;
+        }
+
+        /**
+         * Agrega al almacen todos los nodos guardados, en orden.
+         */
+        void vuelca(AlmacenRegistros almacen)
+        {
+            int desde = 0;
+            for (int i = 0; i < numNodos; i++)
+            {
+                int registro = almacen.agregaTrozos(titulos[i], campos[i], trozos, desde);
+                if(atributos!=null && atributos[i]!=null)
+                    almacen.setAtributos(registro, atributos[i]);
+                if(atributosCampos!=null && atributosCampos[i]!=null)
+                    almacen.setAtributosCampos(registro, atributosCampos[i]);
+                if(almacen.getTramos()!=null)
+                    almacen.getTramos().set(registro, tramos[i]);
+                desde += campos[i].length;
+            }
+        }
+    }
+
+    /**
+     * Nombres y trozos de los campos de un nodo. Se usan dos que se van
+     * alternando (nodo actual y anterior) para no crear objetos por nodo.
+     */
+    private static class NombresNodo
+    {
+        String titulo;
+        int inicioTitulo;
+        String[] campos;
+        String[] nombres = new String[8];
+        int[] inicioNombres = new int[8];
+        long[] trozos = new long[8];
+        int numCampos;
+        /** Atributos de los campos por su posicion, o null si ninguno tiene (es del nodo, no se reutiliza). */
+        String[][][] atributos;
+
+        void agrega(String campo, int inicio, long trozo)
+        {
+            if(numCampos==nombres.length)
+            {
+                nombres = Arrays.copyOf(nombres, numCampos * 2);
+                inicioNombres = Arrays.copyOf(inicioNombres, numCampos * 2);
+                trozos = Arrays.copyOf(trozos, numCampos * 2);
+            }
+            nombres[numCampos] = campo;
+            inicioNombres[numCampos] = inicio;
+            trozos[numCampos++] = trozo;
+        }
+
+        /**
+         * Guarda los atributos de un campo.
+         * @param posicion posicion del campo en el nodo.
+         * @param atributosCampo atributos en formato String[n][2] (nombre, valor).
+         */
+        void agregaAtributos(int posicion, String[][] atributosCampo)
+        {
+            if(atributos==null)
+                atributos = new String[Math.max(nombres.length, posicion + 1)][][];
+            else if(posicion>=atributos.length)
+                atributos = Arrays.copyOf(atributos, Math.max(posicion + 1, atributos.length * 2));
+            atributos[posicion] = atributosCampo;
+        }
+
+        /**
+         * Indica si tiene los mismos campos (los mismos String, ya reutilizados) que otro nodo.
+         */
+        boolean mismosCampos(NombresNodo otro)
+        {
+            for (int i = 0; i < numCampos; i++)
+                if(nombres[i]!=otro.nombres[i])
+                    return false;
+            return otro.campos!=null;
+        }
+    }
+}
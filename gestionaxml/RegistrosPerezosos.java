@@ -0,0 +1,137 @@
+package gestionaxml;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Nodos de un fichero abierto sin leerlos (ver GestionaXML.abrePerezoso): solo
+ * se guarda donde empieza cada nodo en el fichero proyectado, y cada nodo se lee
+ * la primera vez que se pide. Los ultimos nodos leidos se guardan en una cache
+ * LRU de tamano fijo, asi la memoria depende de los nodos que se usan y no del
+ * tamano del fichero.
+ * <p>
+ * La cache se puede usar desde varios hilos a la vez; los nodos se leen fuera
+ * del cerrojo de la cache, asi que dos hilos pueden leer el mismo nodo a la vez.
+ * @author neowavila
+ */
+class RegistrosPerezosos
+{
+    private final AlmacenRegistros almacen;
+    private final ByteBuffer datos;
+    private final int[] inicios;
+    private final int inicioNodos;
+    private final int inicioRaiz;
+    private final LinkedHashMap<Integer, Registro> cache;
+
+    /**
+     * Campos y valores de un nodo ya leido.
+     */
+    static class Registro
+    {
+        final String[] campos;
+        final String[] valores;
+
+        Registro(String[] campos, String[] valores)
+        {
+            this.campos = campos;
+            this.valores = valores;
+        }
+    }
+
+    /**
+     * Crea los nodos sin leer de un fichero.
+     * @param almacen almacen vacio del fichero (con su raiz), donde se cargan
+     * todos los nodos con carga().
+     * @param datos fichero proyectado.
+     * @param inicios posicion de cada nodo en el fichero.
+     * @param inicioNodos posicion siguiente a la etiqueta de apertura de la raiz.
+     * @param inicioRaiz posicion del nombre de la raiz, para comprobar su cierre.
+     * @param tamCache numero maximo de nodos leidos que se guardan.
+     */
+    RegistrosPerezosos(AlmacenRegistros almacen, ByteBuffer datos, int[] inicios, int inicioNodos, int inicioRaiz, int tamCache)
+    {
+        this.almacen = almacen;
+        this.datos = datos;
+        this.inicios = inicios;
+        this.inicioNodos = inicioNodos;
+        this.inicioRaiz = inicioRaiz;
+        this.cache = new LinkedHashMap<Integer, Registro>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Registro> mayor)
+            {
+                return size()>tamCache;
+            }
+        };
+    }
+
+    /**
+     * Devuelve el almacen del fichero, vacio hasta llamar a carga().
+     * @return almacen del fichero.
+     */
+    AlmacenRegistros getAlmacen()
+    {
+        return almacen;
+    }
+
+    /**
+     * Devuelve cuantos nodos tiene el fichero.
+     * @return numero de nodos.
+     */
+    int numRegistros()
+    {
+        return inicios.length;
+    }
+
+    /**
+     * Devuelve un nodo, leyendolo del fichero si no esta en la cache.
+     * @param registro posicion del nodo.
+     * @return nodo leido (no modificar).
+     */
+    Registro get(int registro)
+    {
+        if(registro<0 || registro>=inicios.length)
+            throw new ArrayIndexOutOfBoundsException(registro);
+        synchronized(cache)
+        {
+            Registro leido = cache.get(registro);
+            if(leido!=null)
+                return leido;
+        }
+        int limite = registro + 1<inicios.length ? inicios[registro + 1] : -1;
+        Registro leido = ParserMapeado.leeRegistro(datos, inicios[registro], limite, inicioRaiz);
+        synchronized(cache)
+        {
+            cache.put(registro, leido);
+        }
+        return leido;
+    }
+
+    /**
+     * Devuelve el valor de un campo en un nodo, o NO_ENCONTRADO si no lo tiene.
+     * @param registro posicion del nodo.
+     * @param campo titulo del campo.
+     * @return valor del campo.
+     */
+    String valorCampo(int registro, String campo)
+    {
+        Registro leido = get(registro);
+        for (int i = 0; i < leido.campos.length; i++)
+            if(leido.campos[i].equals(campo))
+                return leido.valores[i];
+        return AlmacenRegistros.NO_ENCONTRADO;
+    }
+
+    /**
+     * Lee todos los nodos y los agrega al almacen, para trabajar con el fichero
+     * entero (busquedas, cambios, guardado...). Despues esta clase ya no se usa.
+     */
+    void carga()
+    {
+        if(inicios.length>0)
+            ParserMapeado.cargaRegistros(datos, inicioNodos, inicioRaiz, almacen);
+    }
+}
@@ -0,0 +1,228 @@
+package gestionaxml;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * Posicion de cada nodo en el fichero en disco (su tramo), para que
+ * GuardadoIncremental copie tal cual los nodos que no han cambiado.
+ * <p>
+ * Cada tramo se codifica en un long: bits 32-62 = inicio del nodo (su '<'),
+ * bits 0-30 = fin (siguiente al ultimo '>'), bit 63 = el nodo ha cambiado y
+ * hay que escribirlo de nuevo, bit 31 = antes del nodo habia nodos borrados
+ * que ya no estan en el almacen pero si en el fichero. Un tramo 0 es un nodo
+ * que no esta en el fichero (nuevo, o borrado y ya guardado).
+ * <p>
+ * Los tramos solo valen para el fichero del que se sacaron: se guarda su
+ * tamano, fecha de modificacion e identificador, y si el fichero ya no
+ * coincide no se usan.
+ * @author neowavila
+ */
+class TramosFichero
+{
+    static final long SUCIO = 1L << 63;
+    static final long CORTE = 1L << 31;
+    private static final int MAX_POSICION = (1 << 31) - 1;
+
+    private long[] tramos = new long[16];
+    private final int finCabecera;
+    private int inicioCola;
+    private long tamano;
+    private long fecha;
+    private Object clave;
+    private boolean hayBorrados;
+
+    /**
+     * Crea los tramos vacios de un fichero recien leido.
+     * @param finCabecera posicion siguiente a la etiqueta de apertura de la raiz.
+     * @param tamano tamano del fichero.
+     * @param fecha fecha de modificacion del fichero en nanosegundos.
+     * @param clave identificador del fichero (ver BasicFileAttributes.fileKey), puede ser null.
+     */
+    TramosFichero(int finCabecera, long tamano, long fecha, Object clave)
+    {
+        this.finCabecera = finCabecera;
+        this.tamano = tamano;
+        this.fecha = fecha;
+        this.clave = clave;
+    }
+
+    /**
+     * Codifica un tramo.
+     * @param inicio posicion del '<' del nodo.
+     * @param fin posicion siguiente al final del nodo.
+     * @return tramo codificado.
+     */
+    static long tramo(int inicio, int fin)
+    {
+        return (long)inicio << 32 | fin;
+    }
+
+    /**
+     * Devuelve la posicion del principio de un tramo.
+     */
+    static int inicio(long tramo)
+    {
+        return (int)((tramo & ~SUCIO) >>> 32);
+    }
+
+    /**
+     * Devuelve la posicion siguiente al final de un tramo.
+     */
+    static int fin(long tramo)
+    {
+        return (int)tramo & MAX_POSICION;
+    }
+
+    /**
+     * Devuelve el tramo de un nodo.
+     * @param registro posicion del nodo.
+     * @return tramo codificado (0 si el nodo no esta en el fichero).
+     */
+    long get(int registro)
+    {
+        return registro<tramos.length ? tramos[registro] : 0;
+    }
+
+    /**
+     * Guarda el tramo de un nodo, creciendo si hace falta.
+     * @param registro posicion del nodo.
+     * @param tramo tramo codificado.
+     */
+    void set(int registro, long tramo)
+    {
+        if(registro>=tramos.length)
+            tramos = Arrays.copyOf(tramos, Math.max(registro + 1, tramos.length + (tramos.length >> 1)));
+        tramos[registro] = tramo;
+    }
+
+    /**
+     * Marca un nodo como cambiado: su tramo sigue en el fichero pero hay que
+     * escribirlo de nuevo.
+     * @param registro posicion del nodo.
+     */
+    void ensucia(int registro)
+    {
+        if(registro<tramos.length && tramos[registro]!=0)
+            tramos[registro] |= SUCIO;
+    }
+
+    /**
+     * Sustituye todos los tramos despues de guardar.
+     * @param nuevos tramo de cada nodo en el fichero nuevo (se usa sin copiar).
+     */
+    void sustituye(long[] nuevos)
+    {
+        tramos = nuevos;
+        hayBorrados = false;
+    }
+
+    /**
+     * Apunta donde empieza el cierre de la raiz.
+     * @param inicioCola posicion del cierre de la raiz.
+     */
+    void setCola(int inicioCola)
+    {
+        this.inicioCola = inicioCola;
+    }
+
+    /**
+     * Devuelve la posicion siguiente a la etiqueta de apertura de la raiz.
+     */
+    int getFinCabecera()
+    {
+        return finCabecera;
+    }
+
+    /**
+     * Devuelve la posicion del cierre de la raiz.
+     */
+    int getInicioCola()
+    {
+        return inicioCola;
+    }
+
+    /**
+     * Indica si en el fichero quedan nodos que ya se han quitado del almacen al
+     * compactar (sus bytes no se pueden conservar).
+     */
+    boolean hayBorrados()
+    {
+        return hayBorrados;
+    }
+
+    /**
+     * Quita los tramos de los nodos borrados como AlmacenRegistros.compacta. Si
+     * un nodo borrado seguia en el fichero, el siguiente nodo se marca con CORTE
+     * para no copiarlo junto con el anterior.
+     * @param borrados nodos borrados.
+     * @param numRegistros numero de nodos antes de compactar.
+     */
+    void compacta(BitSet borrados, int numRegistros)
+    {
+        int destino = 0;
+        boolean corte = false;
+        int limite = Math.min(numRegistros, tramos.length);
+        for (int i = 0; i < limite; i++)
+        {
+            if(borrados.get(i))
+            {
+                if(tramos[i]!=0)
+                {
+                    corte = true;
+                    hayBorrados = true;
+                }
+                continue;
+            }
+            tramos[destino++] = corte && tramos[i]!=0 ? tramos[i] | CORTE : tramos[i];
+            corte &= tramos[i]==0;
+        }
+        Arrays.fill(tramos, destino, limite, 0);
+    }
+
+    /**
+     * Abre huecos con tramo 0 como AlmacenRegistros.insertaBorrados.
+     * @param huecos posiciones finales de los huecos, de menor a mayor.
+     * @param numRegistros numero de nodos antes de abrir los huecos.
+     */
+    void abreHuecos(int[] huecos, int numRegistros)
+    {
+        int total = numRegistros + huecos.length;
+        if(total>tramos.length)
+            tramos = Arrays.copyOf(tramos, total);
+        AlmacenRegistros.abreHuecos(tramos, huecos, numRegistros);
+        for (int hueco : huecos)
+            tramos[hueco] = 0;
+    }
+
+    /**
+     * Comprueba si el fichero sigue siendo el de los tramos.
+     * @param ruta ruta del fichero.
+     * @return true si coinciden el tamano, la fecha y el identificador.
+     * @throws IOException si no se puede leer el fichero.
+     */
+    boolean coincide(Path ruta) throws IOException
+    {
+        BasicFileAttributes atributos = Files.readAttributes(ruta, BasicFileAttributes.class);
+        return atributos.size()==tamano && DiarioCambios.fechaModificacion(ruta)==fecha
+                && Objects.equals(atributos.fileKey(), clave);
+    }
+
+    /**
+     * Apunta el tamano, la fecha y el identificador del fichero despues de guardarlo.
+     * @param ruta ruta del fichero.
+     * @throws IOException si no se puede leer el fichero.
+     */
+    void apuntaFichero(Path ruta) throws IOException
+    {
+        BasicFileAttributes atributos = Files.readAttributes(ruta, BasicFileAttributes.class);
+        tamano = atributos.size();
+        fecha = DiarioCambios.fechaModificacion(ruta);
+        clave = atributos.fileKey();
+    }
+}